@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Helper methods to create synthetic objects for benchmarking.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+class BenchmarkObjects {
+	
+	private static final String[] MEASUREMENT_NAMES = {
+			"Nucleus: Area", "Nucleus: Perimeter", "Nucleus: Circularity", "Nucleus: Hematoxylin OD mean", 
+			"Nucleus: Hematoxylin OD std dev", "Nucleus: DAB OD mean", "Cell: Area", "Cell: DAB OD mean"
+	};
+
+	/**
+	 * Create a hierarchy containing a grid of annotations, with detections inside each annotation.
+	 * 
+	 * @param nDetections total number of detections
+	 * @param width width of the image
+	 * @param height height of the image
+	 * @param nAnnotationsPerSide number of annotations along each side of the grid
+	 * @return
+	 */
+	static PathObjectHierarchy createHierarchy(int nDetections, int width, int height, int nAnnotationsPerSide) {
+		var plane = ImagePlane.getDefaultPlane();
+		var random = new Random(100L);
+		double annotationWidth = width / (double)nAnnotationsPerSide;
+		double annotationHeight = height / (double)nAnnotationsPerSide;
+		int nAnnotations = nAnnotationsPerSide * nAnnotationsPerSide;
+		List<PathObject> annotations = new ArrayList<>();
+		var tumor = PathClassFactory.getPathClass("Tumor");
+		var stroma = PathClassFactory.getPathClass("Stroma");
+		for (int i = 0; i < nAnnotations; i++) {
+			double x = (i % nAnnotationsPerSide) * annotationWidth;
+			double y = (i / nAnnotationsPerSide) * annotationHeight;
+			var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(x, y, annotationWidth, annotationHeight, plane));
+			int n = nDetections / nAnnotations + (i < nDetections % nAnnotations ? 1 : 0);
+			List<PathObject> detections = new ArrayList<>(n);
+			for (int d = 0; d < n; d++) {
+				double size = 8 + random.nextDouble() * 8;
+				double xx = x + random.nextDouble() * (annotationWidth - size);
+				double yy = y + random.nextDouble() * (annotationHeight - size);
+				var roi = ROIs.createEllipseROI(xx, yy, size, size, plane);
+				var detection = PathObjects.createDetectionObject(roi, random.nextBoolean() ? tumor : stroma);
+				try (var ml = detection.getMeasurementList()) {
+					for (String name : MEASUREMENT_NAMES)
+						ml.addMeasurement(name, random.nextDouble() * 100);
+				}
+				detections.add(detection);
+			}
+			annotation.addPathObjects(detections);
+			annotations.add(annotation);
+		}
+		var hierarchy = new PathObjectHierarchy();
+		hierarchy.addPathObjects(annotations, false);
+		return hierarchy;
+	}
+
+}
@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorDeconvolutionStains.DEFAULT_CD_STAINS;
+import qupath.lib.color.ColorTransformer;
+import qupath.lib.color.ColorTransformer.ColorTransformMethod;
+
+/**
+ * Benchmark for {@link ColorTransformer#getTransformedPixels(int[], ColorTransformMethod, float[], ColorDeconvolutionStains)}, 
+ * as used to extract stains and other color transforms from RGB images.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ColorTransformBenchmark {
+	
+	@Param({"Stain_1", "Hematoxylin_H_DAB", "Optical_density_sum", "Hue", "Red"})
+	public ColorTransformMethod method;
+	
+	private ColorDeconvolutionStains stains;
+	private int[] rgb;
+	private float[] pixels;
+	
+	@Setup
+	public void setup() {
+		stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(DEFAULT_CD_STAINS.H_DAB);
+		// Equivalent to one 1024x1024 tile
+		var random = new Random(1L);
+		rgb = new int[1024 * 1024];
+		for (int i = 0; i < rgb.length; i++)
+			rgb[i] = random.nextInt(0xffffff);
+		pixels = new float[rgb.length];
+	}
+	
+	@Benchmark
+	public float[] getTransformedPixels() {
+		return ColorTransformer.getTransformedPixels(rgb, method, pixels, stains);
+	}
+
+}
@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.analysis.algorithms.FloatArraySimpleImage;
+import qupath.lib.analysis.features.CoocMatrix;
+import qupath.lib.analysis.features.HaralickFeatureComputer;
+import qupath.lib.analysis.features.HaralickFeatures;
+
+/**
+ * Benchmark for computing Haralick texture features, both from an existing cooccurrence matrix 
+ * ({@link HaralickFeatures#computeFeatures()}) and from an image.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HaralickBenchmark {
+	
+	@Param({"32", "256"})
+	public int nBins;
+	
+	private FloatArraySimpleImage img;
+	private HaralickFeatures features;
+	
+	@Setup
+	public void setup() {
+		// Use an image that is roughly the size of a large cell
+		int size = 64;
+		var random = new Random(1L);
+		float[] data = new float[size * size];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (float)(Math.sin(i * 0.1) * 50 + random.nextGaussian() * 20 + 128);
+		img = new FloatArraySimpleImage(data, size, size);
+		
+		var matrix = new CoocMatrix(nBins);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size - 1; x++) {
+				matrix.addToEntrySymmetric(toBin(img.getValue(x, y)), toBin(img.getValue(x+1, y)));
+			}
+		}
+		matrix.finalizeMatrix();
+		features = new HaralickFeatures(matrix);
+	}
+	
+	private int toBin(float value) {
+		int bin = (int)(value / 256 * nBins);
+		return Math.max(0, Math.min(nBins - 1, bin));
+	}
+	
+	@Benchmark
+	public HaralickFeatures computeFeatures() {
+		features.computeFeatures();
+		return features;
+	}
+	
+	@Benchmark
+	public HaralickFeatures measureHaralick() {
+		return HaralickFeatureComputer.measureHaralick(img, null, nBins, 0, 256, 1);
+	}
+
+}
@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Benchmark for {@link PathObjectHierarchy#getObjectsForRegion(Class, ImageRegion, Collection)}, 
+ * using regions of a size typically requested when painting a viewer.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HierarchyRegionBenchmark {
+	
+	@Param({"10000", "200000"})
+	public int nDetections;
+	
+	@Param({"512", "4096"})
+	public int regionSize;
+	
+	private PathObjectHierarchy hierarchy;
+	private ImageRegion[] regions;
+	private int regionIndex = 0;
+	
+	@Setup
+	public void setup() {
+		hierarchy = BenchmarkObjects.createHierarchy(nDetections, 50000, 50000, 10);
+		// Precompute the regions, so that queries don't always return the same objects
+		var random = new Random(1L);
+		regions = new ImageRegion[256];
+		for (int i = 0; i < regions.length; i++)
+			regions[i] = ImageRegion.createInstance(random.nextInt(50000 - regionSize), random.nextInt(50000 - regionSize), regionSize, regionSize, 0, 0);
+		// Ensure the spatial cache has been built
+		hierarchy.getObjectsForRegion(null, regions[0], null);
+	}
+	
+	@Benchmark
+	public Collection<PathObject> getDetectionsForRegion() {
+		return hierarchy.getObjectsForRegion(PathDetectionObject.class, nextRegion(), new ArrayList<>());
+	}
+	
+	@Benchmark
+	public Collection<PathObject> getObjectsForRegion() {
+		return hierarchy.getObjectsForRegion(null, nextRegion(), new ArrayList<>());
+	}
+
+	@Benchmark
+	public boolean hasObjectsForRegion() {
+		return hierarchy.hasObjectsForRegion(PathDetectionObject.class, nextRegion());
+	}
+	
+	private ImageRegion nextRegion() {
+		regionIndex = (regionIndex + 1) % regions.length;
+		return regions[regionIndex];
+	}
+
+}
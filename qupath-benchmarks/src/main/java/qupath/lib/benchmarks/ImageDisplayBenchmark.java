@@ -0,0 +1,102 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.display.ImageDisplay;
+import qupath.lib.images.ImageData;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Benchmark for {@link ImageDisplay#applyTransforms(BufferedImage, BufferedImage)}, 
+ * which converts image tiles to RGB for display.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = {"-Djava.awt.headless=true"})
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ImageDisplayBenchmark {
+	
+	/**
+	 * Number of channels to composite; if zero, an RGB image is used with a color deconvolution channel selected.
+	 */
+	@Param({"0", "1", "3", "6"})
+	public int nChannels;
+	
+	private ImageDisplay display;
+	private BufferedImage imgInput;
+	private BufferedImage imgOutput;
+	
+	@Setup
+	public void setup() throws IOException {
+		ImageData<BufferedImage> imageData;
+		if (nChannels == 0) {
+			var server = SyntheticImageServer.createRGB(4096, 4096, 512);
+			imageData = new ImageData<>(server, ImageData.ImageType.BRIGHTFIELD_H_DAB);
+		} else {
+			var server = SyntheticImageServer.createMultichannel(4096, 4096, 512, nChannels);
+			imageData = new ImageData<>(server, ImageData.ImageType.FLUORESCENCE);
+		}
+		display = new ImageDisplay(imageData);
+		var available = new ArrayList<>(display.availableChannels());
+		if (nChannels == 0) {
+			// Select the first stain, rather than the original RGB image (which needs no transform)
+			var channel = available.stream().filter(c -> c.getName().startsWith("Hematoxylin")).findFirst().orElse(available.get(available.size()-1));
+			display.setChannelSelected(channel, true);
+		} else {
+			for (var channel : available)
+				display.setChannelSelected(channel, true);
+		}
+		var server = imageData.getServer();
+		imgInput = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1.0, 0, 0, 1024, 1024));
+		imgOutput = new BufferedImage(imgInput.getWidth(), imgInput.getHeight(), BufferedImage.TYPE_INT_RGB);
+	}
+	
+	@Benchmark
+	public BufferedImage applyTransforms() {
+		return display.applyTransforms(imgInput, imgOutput);
+	}
+
+}
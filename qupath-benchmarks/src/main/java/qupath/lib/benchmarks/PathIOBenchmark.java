@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.io.PathIO;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Benchmark for writing and reading data files containing large object hierarchies with {@link PathIO}.
+ * <p>
+ * Data is written to and read from memory, so that results don't depend upon the disk.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = {"-Xmx4G"})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class PathIOBenchmark {
+	
+	@Param({"10000", "100000"})
+	public int nDetections;
+	
+	private ImageData<BufferedImage> imageData;
+	private byte[] bytes;
+	
+	@Setup
+	public void setup() throws IOException {
+		var server = SyntheticImageServer.createRGB(50000, 50000, 512);
+		imageData = new ImageData<>(server, BenchmarkObjects.createHierarchy(nDetections, 50000, 50000, 10), ImageData.ImageType.BRIGHTFIELD_H_DAB);
+		bytes = writeImageData().toByteArray();
+	}
+	
+	@Benchmark
+	public ByteArrayOutputStream writeImageData() throws IOException {
+		var stream = new ByteArrayOutputStream(bytes == null ? 1024 * 1024 : bytes.length);
+		PathIO.writeImageData(stream, imageData);
+		return stream;
+	}
+	
+	@Benchmark
+	public PathObjectHierarchy readHierarchy() throws IOException {
+		return PathIO.readHierarchy(new ByteArrayInputStream(bytes));
+	}
+
+}
@@ -0,0 +1,102 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.Prefs;
+import ij.plugin.filter.RankFilters;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import qupath.imagej.processing.FastRankFilters;
+
+/**
+ * Benchmark comparing {@link FastRankFilters} with ImageJ's {@link RankFilters}, 
+ * for the filter types and radii typically used for background subtraction and cell detection.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RankFilterBenchmark {
+	
+	@Param({"MIN", "MEDIAN"})
+	public String filter;
+	
+	@Param({"2", "8", "30"})
+	public double radius;
+	
+	@Param({"8-bit", "32-bit"})
+	public String type;
+	
+	private int filterType;
+	private ImageProcessor ip;
+	
+	@Setup
+	public void setup() {
+		// Filters are applied single-threaded within detection plugins
+		Prefs.setThreads(1);
+		filterType = "MIN".equals(filter) ? RankFilters.MIN : RankFilters.MEDIAN;
+		// Smoothed noise, equivalent to one 1024x1024 tile
+		var random = new Random(1L);
+		var fp = new FloatProcessor(1024, 1024);
+		for (int i = 0; i < fp.getPixelCount(); i++)
+			fp.setf(i, (float)random.nextGaussian());
+		fp.blurGaussian(2.0);
+		ip = "8-bit".equals(type) ? fp.convertToByteProcessor() : fp;
+	}
+	
+	@Benchmark
+	public ImageProcessor imageJ() {
+		var ip2 = ip.duplicate();
+		new RankFilters().rank(ip2, radius, filterType);
+		return ip2;
+	}
+
+	@Benchmark
+	public ImageProcessor fastRankFilters() {
+		var ip2 = ip.duplicate();
+		FastRankFilters.rank(ip2, radius, filterType);
+		return ip2;
+	}
+
+}
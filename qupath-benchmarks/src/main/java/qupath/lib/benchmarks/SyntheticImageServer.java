@@ -0,0 +1,206 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.benchmarks;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import qupath.lib.awt.color.model.ColorModelFactory;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * An in-memory ImageServer for benchmarking, which doesn't need any image files.
+ * <p>
+ * Tiles contain smooth gradients with some noise, and are generated when first requested and then retained, 
+ * so that benchmarks measure the cost of handling tiles rather than generating them.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+public class SyntheticImageServer extends AbstractTileableImageServer {
+	
+	private final ImageServerMetadata metadata;
+	private final Map<RegionRequest, BufferedImage> tiles = new ConcurrentHashMap<>();
+	
+	/**
+	 * Create an 8-bit RGB server.
+	 * 
+	 * @param width
+	 * @param height
+	 * @param tileSize
+	 * @return
+	 */
+	public static SyntheticImageServer createRGB(int width, int height, int tileSize) {
+		return new SyntheticImageServer(width, height, tileSize, true, 3);
+	}
+	
+	/**
+	 * Create a 16-bit server with multiple channels (e.g. as for fluorescence).
+	 * 
+	 * @param width
+	 * @param height
+	 * @param tileSize
+	 * @param nChannels
+	 * @return
+	 */
+	public static SyntheticImageServer createMultichannel(int width, int height, int tileSize, int nChannels) {
+		return new SyntheticImageServer(width, height, tileSize, false, nChannels);
+	}
+	
+	private SyntheticImageServer(int width, int height, int tileSize, boolean isRGB, int nChannels) {
+		List<ImageChannel> channels;
+		if (isRGB)
+			channels = ImageChannel.getDefaultRGBChannels();
+		else {
+			channels = new ArrayList<>();
+			for (int c = 0; c < nChannels; c++)
+				channels.add(ImageChannel.getInstance("Channel " + (c + 1), ImageChannel.getDefaultChannelColor(c)));
+		}
+		String path = String.format("synthetic://%s/%dx%d/%d/%d", isRGB ? "rgb" : "uint16", width, height, nChannels, tileSize);
+		this.metadata = new ImageServerMetadata.Builder(getClass(), path, width, height)
+				.rgb(isRGB)
+				.bitDepth(isRGB ? 8 : 16)
+				.channels(channels)
+				.preferredTileSize(tileSize, tileSize)
+				.levelsFromDownsamples(1, 4, 16)
+				.build();
+	}
+
+	@Override
+	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+		return tiles.computeIfAbsent(tileRequest.getRegionRequest(), r -> createTile(tileRequest));
+	}
+	
+	private BufferedImage createTile(TileRequest tileRequest) {
+		int w = tileRequest.getTileWidth();
+		int h = tileRequest.getTileHeight();
+		int nChannels = nChannels();
+		var random = new Random(tileRequest.getRegionRequest().hashCode());
+		BufferedImage img;
+		if (isRGB())
+			img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		else {
+			var raster = WritableRaster.createWritableRaster(new BandedSampleModel(DataBuffer.TYPE_USHORT, w, h, nChannels), null);
+			img = new BufferedImage(ColorModelFactory.getDummyColorModel(16), raster, false, null);
+		}
+		var raster = img.getRaster();
+		int maxValue = isRGB() ? 255 : 4095;
+		for (int b = 0; b < raster.getNumBands(); b++) {
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					double xx = (tileRequest.getTileX() + x) * tileRequest.getDownsample();
+					double yy = (tileRequest.getTileY() + y) * tileRequest.getDownsample();
+					double val = (Math.sin(xx / (50.0 + b * 10)) * Math.cos(yy / (70.0 - b * 5)) + 1) / 2 * 0.8 + random.nextDouble() * 0.2;
+					raster.setSample(x, y, b, (int)(val * maxValue));
+				}
+			}
+		}
+		return img;
+	}
+
+	/**
+	 * Discard any tiles that have been generated.
+	 * <p>
+	 * This doesn't throw any exceptions, so the server can be used in a try-with-resources statement without any handling.
+	 */
+	@Override
+	public void close() {
+		tiles.clear();
+	}
+	
+	@Override
+	public String getPath() {
+		return metadata.getPath();
+	}
+
+	@Override
+	public String getShortServerName() {
+		return getPath();
+	}
+
+	@Override
+	public String getServerType() {
+		return "Synthetic";
+	}
+
+	@Override
+	public List<String> getSubImageList() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public String getSubImagePath(String imageName) {
+		throw new IllegalArgumentException("No sub-images available");
+	}
+
+	@Override
+	public List<String> getAssociatedImageList() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public BufferedImage getAssociatedImage(String name) {
+		return null;
+	}
+
+	@Override
+	public String getDisplayedImageName() {
+		return getPath();
+	}
+
+	@Override
+	public boolean containsSubImages() {
+		return false;
+	}
+
+	@Override
+	public boolean usesBaseServer(ImageServer<?> server) {
+		return this == server;
+	}
+
+	@Override
+	public boolean isEmptyRegion(RegionRequest request) {
+		return false;
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return metadata;
+	}
+
+}
@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Benchmark for stitching tiles with {@link qupath.lib.images.servers.AbstractTileableImageServer#readBufferedImage(RegionRequest)}.
+ * <p>
+ * Tiles are held in memory by the server, so this measures the cost of requesting, cropping and combining tiles 
+ * (and any downsampling) rather than of reading pixels.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TileStitchingBenchmark {
+	
+	@Param({"rgb", "uint16"})
+	public String type;
+
+	@Param({"256", "512"})
+	public int tileSize;
+	
+	@Param({"1.0", "2.0"})
+	public double downsample;
+	
+	private SyntheticImageServer server;
+	private RegionRequest request;
+	
+	@Setup
+	public void setup() throws IOException {
+		if ("rgb".equals(type))
+			server = SyntheticImageServer.createRGB(20000, 20000, tileSize);
+		else
+			server = SyntheticImageServer.createMultichannel(20000, 20000, tileSize, 4);
+		// Use a region that isn't aligned to tile boundaries, roughly the size of a large viewer
+		int size = (int)Math.round(2000 * downsample);
+		request = RegionRequest.createInstance(server.getPath(), downsample, 1000 + tileSize/3, 2000 + tileSize/5, size, (int)(size * 0.75));
+		// Ensure all tiles have been created
+		server.readBufferedImage(request);
+	}
+	
+	@Benchmark
+	public BufferedImage readBufferedImage() throws IOException {
+		return server.readBufferedImage(request);
+	}
+
+}
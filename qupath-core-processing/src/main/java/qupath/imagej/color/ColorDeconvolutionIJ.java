@@ -49,10 +49,36 @@ public class ColorDeconvolutionIJ {
 	 * @return
 	 */
 	public static FloatProcessor convertToOpticalDensitySum(ColorProcessor cp, double maxRed, double maxGreen, double maxBlue) {
-		FloatProcessor fp = cp.toFloat(0, null);
+		return computeOpticalDensitySum(cp, maxRed, maxGreen, maxBlue, null, null);
+	}
+	
+	/**
+	 * Calculate optical density values for the red, green and blue channels, then add these all together.
+	 * <p>
+	 * The output and temporary processors are reused if they have the same size as the input, 
+	 * in the same way as {@link ColorProcessor#toFloat(int, FloatProcessor)}.
+	 * Unlike {@link #convertToOpticalDensitySum(ColorProcessor, double, double, double)}, the display range of the output 
+	 * is reset to the range of the optical density values.
+	 * 
+	 * @param cp
+	 * @param maxRed
+	 * @param maxGreen
+	 * @param maxBlue
+	 * @param fp processor to store the output, or null if a new processor should be created
+	 * @param fpTemp processor to store intermediate values, or null if a new processor should be created
+	 * @return
+	 */
+	public static FloatProcessor convertToOpticalDensitySum(ColorProcessor cp, double maxRed, double maxGreen, double maxBlue, FloatProcessor fp, FloatProcessor fpTemp) {
+		fp = computeOpticalDensitySum(cp, maxRed, maxGreen, maxBlue, fp, fpTemp);
+		fp.resetMinAndMax();
+		return fp;
+	}
+	
+	private static FloatProcessor computeOpticalDensitySum(ColorProcessor cp, double maxRed, double maxGreen, double maxBlue, FloatProcessor fp, FloatProcessor fpTemp) {
+		fp = cp.toFloat(0, fp);
 		ColorDeconvolutionHelper.convertPixelsToOpticalDensities((float[])fp.getPixels(), maxRed, true);
 
-		FloatProcessor fpTemp = cp.toFloat(1, null);
+		fpTemp = cp.toFloat(1, fpTemp);
 		ColorDeconvolutionHelper.convertPixelsToOpticalDensities((float[])fpTemp.getPixels(), maxGreen, true);
 		fp.copyBits(fpTemp, 0, 0, Blitter.ADD);
 		
@@ -79,5 +105,32 @@ public class ColorDeconvolutionIJ {
 		return new FloatProcessor[] {fpStain1, fpStain2, fpStain3};
 	}
 	
+	/**
+	 * Apply color deconvolution, writing 3 'stain' images in the same order as the stain vectors to existing processors.
+	 * <p>
+	 * This avoids allocating new pixel arrays whenever the same buffers can be reused, e.g. when processing many tiles of the same size.
+	 * 
+	 * @param cp      input RGB color image
+	 * @param stains  color deconvolution stain vectors
+	 * @param fps     array of length 3, containing processors to store the output; any null or wrongly-sized elements are replaced by new processors
+	 * @return the array of processors, updated to contain the deconvolved stains
+	 */
+	public static FloatProcessor[] colorDeconvolve(ColorProcessor cp, ColorDeconvolutionStains stains, FloatProcessor[] fps) {
+		int width = cp.getWidth();
+		int height = cp.getHeight();
+		int[] rgb = (int[])cp.getPixels();
+		ColorTransformMethod[] methods = {ColorTransformMethod.Stain_1, ColorTransformMethod.Stain_2, ColorTransformMethod.Stain_3};
+		for (int i = 0; i < 3; i++) {
+			FloatProcessor fp = fps[i];
+			if (fp == null || fp.getWidth() != width || fp.getHeight() != height) {
+				fps[i] = new FloatProcessor(width, height, ColorTransformer.getTransformedPixels(rgb, methods[i], null, stains));
+			} else {
+				ColorTransformer.getTransformedPixels(rgb, methods[i], (float[])fp.getPixels(), stains);
+				fp.resetMinAndMax();
+			}
+		}
+		return fps;
+	}
+	
 	
 }
@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.imagej.detect.cells;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Per-thread pixel buffers reused by {@link WatershedCellDetection} across tiles.
+ * <p>
+ * Cell detection makes several full-size copies of each tile (stain channels, filtered images, binary masks and labels).
+ * Because tiles processed by the same thread usually have the same size, these buffers can be reused rather than
+ * allocated afresh for every tile.  Only the arrays are reused; the ImageJ processors wrapping them are lightweight
+ * and are created on request, so they never carry ROIs or thresholds over from a previous tile.
+ * <p>
+ * The buffers for each thread are only softly reachable while not in use, so they can be reclaimed if memory is low.
+ * Pixel arrays returned from a workspace must not be used after {@link #release()} has been called.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+class CellDetectionWorkspace {
+	
+	static final int FLOAT_STAIN_1 = 0;
+	static final int FLOAT_STAIN_2 = 1;
+	static final int FLOAT_STAIN_3 = 2;
+	static final int FLOAT_DETECTION = 3;
+	static final int FLOAT_TEMP = 4;
+	static final int FLOAT_LOG = 5;
+	static final int FLOAT_BACKGROUND = 6;
+	static final int FLOAT_MEASURE = 7;
+	static final int FLOAT_BOUNDARY = 8;
+	/**
+	 * First slot used for the channels of fluorescence images; channel c (starting at 1) uses slot FLOAT_CHANNEL + c - 1.
+	 */
+	static final int FLOAT_CHANNEL = 9;
+	
+	static final int BYTE_BINARY = 0;
+	
+	static final int SHORT_LABELS = 0;
+	static final int SHORT_LABELS_CELLS = 1;
+	
+	private static final ThreadLocal<SoftReference<CellDetectionWorkspace>> workspaces = new ThreadLocal<>();
+	
+	private float[][] floats = new float[FLOAT_CHANNEL + 3][];
+	private byte[][] bytes = new byte[1][];
+	private short[][] shorts = new short[2][];
+	
+	private boolean inUse = false;
+	private boolean shared;
+	
+	private CellDetectionWorkspace(final boolean shared) {
+		this.shared = shared;
+	}
+	
+	/**
+	 * Get the workspace for the current thread, creating it if necessary.
+	 * <p>
+	 * If the thread's workspace is already in use (e.g. because detection has somehow been called re-entrantly),
+	 * a new workspace is returned that won't be retained.
+	 * 
+	 * @return
+	 */
+	static CellDetectionWorkspace acquire() {
+		SoftReference<CellDetectionWorkspace> ref = workspaces.get();
+		CellDetectionWorkspace workspace = ref == null ? null : ref.get();
+		if (workspace == null) {
+			workspace = new CellDetectionWorkspace(true);
+			workspaces.set(new SoftReference<>(workspace));
+		} else if (workspace.inUse)
+			workspace = new CellDetectionWorkspace(false);
+		workspace.inUse = true;
+		return workspace;
+	}
+	
+	/**
+	 * Indicate that the buffers are no longer needed, so that they may be reused by the next call to {@link #acquire()}.
+	 */
+	void release() {
+		inUse = false;
+		if (!shared) {
+			floats = null;
+			bytes = null;
+			shorts = null;
+		}
+	}
+	
+	/**
+	 * Get a float processor backed by the specified buffer.  The initial pixel values are undefined.
+	 * 
+	 * @param slot
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	FloatProcessor getFloatProcessor(final int slot, final int width, final int height) {
+		int n = width * height;
+		if (slot >= floats.length)
+			floats = Arrays.copyOf(floats, slot + 1);
+		float[] pixels = floats[slot];
+		if (pixels == null || pixels.length != n) {
+			pixels = new float[n];
+			floats[slot] = pixels;
+		}
+		return new FloatProcessor(width, height, pixels);
+	}
+	
+	/**
+	 * Get a float processor backed by the specified buffer, containing a copy of the pixels of another processor.
+	 * This serves the same purpose as {@link FloatProcessor#duplicate()}.
+	 * 
+	 * @param slot
+	 * @param fp
+	 * @return
+	 */
+	FloatProcessor copyFloatProcessor(final int slot, final FloatProcessor fp) {
+		FloatProcessor fp2 = getFloatProcessor(slot, fp.getWidth(), fp.getHeight());
+		float[] pixels = (float[])fp.getPixels();
+		System.arraycopy(pixels, 0, fp2.getPixels(), 0, pixels.length);
+		fp2.resetMinAndMax();
+		return fp2;
+	}
+	
+	/**
+	 * Get a byte processor backed by the specified buffer, with all pixels set to zero.
+	 * 
+	 * @param slot
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	ByteProcessor getByteProcessor(final int slot, final int width, final int height) {
+		int n = width * height;
+		byte[] pixels = bytes[slot];
+		if (pixels == null || pixels.length != n) {
+			pixels = new byte[n];
+			bytes[slot] = pixels;
+		} else
+			Arrays.fill(pixels, (byte)0);
+		return new ByteProcessor(width, height, pixels);
+	}
+	
+	/**
+	 * Get a short processor backed by the specified buffer, with all pixels set to zero.
+	 * 
+	 * @param slot
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	ShortProcessor getShortProcessor(final int slot, final int width, final int height) {
+		int n = width * height;
+		short[] pixels = shorts[slot];
+		if (pixels == null || pixels.length != n) {
+			pixels = new short[n];
+			shorts[slot] = pixels;
+		} else
+			Arrays.fill(pixels, (short)0);
+		return new ShortProcessor(width, height, pixels, null);
+	}
+	
+	/**
+	 * Get a short processor backed by the specified buffer, containing a copy of the pixels of another processor.
+	 * 
+	 * @param slot
+	 * @param sp
+	 * @return
+	 */
+	ShortProcessor copyShortProcessor(final int slot, final ShortProcessor sp) {
+		int n = sp.getWidth() * sp.getHeight();
+		short[] pixels = shorts[slot];
+		if (pixels == null || pixels.length != n) {
+			pixels = new short[n];
+			shorts[slot] = pixels;
+		}
+		System.arraycopy(sp.getPixels(), 0, pixels, 0, n);
+		return new ShortProcessor(sp.getWidth(), sp.getHeight(), pixels, null);
+	}
+
+}
@@ -58,6 +58,7 @@ import qupath.imagej.helpers.IJTools;
 import qupath.imagej.objects.PathImagePlus;
 import qupath.imagej.objects.ROIConverterIJ;
 import qupath.imagej.objects.measure.ObjectMeasurements;
+import qupath.imagej.processing.FastRankFilters;
 import qupath.imagej.processing.MorphologicalReconstruction;
 import qupath.imagej.processing.ROILabeling;
 import qupath.imagej.processing.RegionalExtrema;
@@ -248,6 +249,17 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 	
 		@Override
 		public Collection<PathObject> runDetection(final ImageData<BufferedImage> imageData, ParameterList params, ROI pathROI) {
+			// Reuse pixel buffers from previous tiles processed by this thread where possible
+			CellDetectionWorkspace workspace = CellDetectionWorkspace.acquire();
+			try {
+				return runDetection(imageData, params, pathROI, workspace);
+			} finally {
+				workspace.release();
+			}
+		}
+		
+		
+		private Collection<PathObject> runDetection(final ImageData<BufferedImage> imageData, ParameterList params, ROI pathROI, final CellDetectionWorkspace workspace) {
 			// TODO: Give a sensible error
 			if (pathROI == null)
 				return null;
@@ -275,7 +287,13 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			if (pathROI != null)
 				roi = ROIConverterIJ.convertToIJRoi(pathROI, pathImage);
 			if (ip instanceof ColorProcessor && stains != null && isBrightfield) {
-				FloatProcessor[] fps = ColorDeconvolutionIJ.colorDeconvolve((ColorProcessor)ip, stains);
+				int width = ip.getWidth();
+				int height = ip.getHeight();
+				FloatProcessor[] fps = ColorDeconvolutionIJ.colorDeconvolve((ColorProcessor)ip, stains, new FloatProcessor[] {
+						workspace.getFloatProcessor(CellDetectionWorkspace.FLOAT_STAIN_1, width, height),
+						workspace.getFloatProcessor(CellDetectionWorkspace.FLOAT_STAIN_2, width, height),
+						workspace.getFloatProcessor(CellDetectionWorkspace.FLOAT_STAIN_3, width, height)
+				});
 				for (int i = 0; i < 3; i++) {
 					StainVector stain = stains.getStain(i+1);
 					if (!stain.isResidual()) {
@@ -296,9 +314,11 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 
 				if (!params.getParameters().get("detectionImageBrightfield").isHidden()) {
 					if (params.getChoiceParameterValue("detectionImageBrightfield").equals(IMAGE_OPTICAL_DENSITY))
-						fpDetection = ColorDeconvolutionIJ.convertToOpticalDensitySum((ColorProcessor)ip, stains.getMaxRed(), stains.getMaxGreen(), stains.getMaxBlue());
+						fpDetection = ColorDeconvolutionIJ.convertToOpticalDensitySum((ColorProcessor)ip, stains.getMaxRed(), stains.getMaxGreen(), stains.getMaxBlue(),
+								workspace.getFloatProcessor(CellDetectionWorkspace.FLOAT_DETECTION, width, height),
+								workspace.getFloatProcessor(CellDetectionWorkspace.FLOAT_TEMP, width, height));
 					else
-						fpDetection = (FloatProcessor)fps[0].duplicate();
+						fpDetection = workspace.copyFloatProcessor(CellDetectionWorkspace.FLOAT_DETECTION, fps[0]);
 				}
 				
 				// Temporary test of the usefulness of RGB measurements...
@@ -309,13 +329,20 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			} //else {
 			if (fpDetection == null) {
 				if (ip instanceof ColorProcessor) {
-					channels.put("Channel 1", ((ColorProcessor)ip).toFloat(0, null));
-					channels.put("Channel 2", ((ColorProcessor)ip).toFloat(1, null));
-					channels.put("Channel 3", ((ColorProcessor)ip).toFloat(2, null));
+					for (int c = 1; c <= 3; c++) {
+						FloatProcessor fp = workspace.getFloatProcessor(CellDetectionWorkspace.FLOAT_CHANNEL + c - 1, ip.getWidth(), ip.getHeight());
+						channels.put("Channel " + c, ((ColorProcessor)ip).toFloat(c-1, fp));
+					}
 				} else {
 					ImagePlus imp = pathImage.getImage();
 					for (int c = 1; c <= imp.getNChannels(); c++) {
-						channels.put("Channel " + c, imp.getStack().getProcessor(imp.getStackIndex(c, 0, 0)).convertToFloatProcessor());
+						ImageProcessor ipChannel = imp.getStack().getProcessor(imp.getStackIndex(c, 0, 0));
+						FloatProcessor fp = workspace.getFloatProcessor(CellDetectionWorkspace.FLOAT_CHANNEL + c - 1, ipChannel.getWidth(), ipChannel.getHeight());
+						float[] pixels = (float[])fp.getPixels();
+						for (int i = 0; i < pixels.length; i++)
+							pixels[i] = ipChannel.getf(i);
+						fp.resetMinAndMax();
+						channels.put("Channel " + c, fp);
 					}
 				}
 				// For fluorescence, measure everything
@@ -331,7 +358,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 					fpDetection = channels.get("Channel 1");
 				}
 			}
-			WatershedCellDetector detector2 = new WatershedCellDetector(fpDetection, channels, channelsCell, roi, pathImage);
+			WatershedCellDetector detector2 = new WatershedCellDetector(fpDetection, channels, channelsCell, roi, pathImage, workspace);
 			
 			// Create or reset the PathObjects list
 			if (pathObjects == null)
@@ -501,8 +528,11 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 		
 		private PathImage<ImagePlus> pathImage = null;
 		
-		public WatershedCellDetector(FloatProcessor fpDetection, Map<String, FloatProcessor> channels, Map<String, FloatProcessor> channelsCell, Roi roi, PathImage<ImagePlus> pathImage) {
+		private CellDetectionWorkspace workspace;
+		
+		public WatershedCellDetector(FloatProcessor fpDetection, Map<String, FloatProcessor> channels, Map<String, FloatProcessor> channelsCell, Roi roi, PathImage<ImagePlus> pathImage, CellDetectionWorkspace workspace) {
 			this.fpDetection = fpDetection;
+			this.workspace = workspace;
 			if (channels != null)
 				this.channels.putAll(channels);
 			if (channelsCell != null)
@@ -516,9 +546,8 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 		
 		public static ByteProcessor limitedOpeningByReconstruction(final ImageProcessor ip, final ImageProcessor ipBackground, final double radius, final double maxBackground) {
 			// Apply (initial) morphological opening
-			final RankFilters rf = new RankFilters();
 			ipBackground.setRoi(ip.getRoi());
-			rf.rank(ipBackground, radius, RankFilters.MIN);
+			FastRankFilters.rank(ipBackground, radius, RankFilters.MIN, 1);
 			
 			// Mask out any above-threshold background pixels & their surroundings
 			ByteProcessor bpMask = null;
@@ -534,7 +563,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				}
 				// Apply mask if required
 				if (bpMask != null) {
-					rf.rank(bpMask, radius*2, RankFilters.MAX);
+					FastRankFilters.rank(bpMask, radius*2, RankFilters.MAX, 1);
 					for (int i = 0; i < w * h; i++) {
 						if (bpMask.getf(i) != 0f) {
 							ipBackground.setf(i, Float.NEGATIVE_INFINITY);
@@ -565,12 +594,11 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				
 				// Use Laplacian of Gaussian filtering followed by watershed transform to determine possible nucleus segments
 				// Result will be a dramatic over-segmentation...
-				FloatProcessor fpLoG = (FloatProcessor)fpDetection.duplicate();
+				FloatProcessor fpLoG = workspace.copyFloatProcessor(CellDetectionWorkspace.FLOAT_LOG, fpDetection);
 
 				// Start off with a median filter to reduce texture, if necessary
-				RankFilters rf = new RankFilters();
 				if (medianRadius > 0)
-					rf.rank(fpLoG, medianRadius, RankFilters.MEDIAN);
+					FastRankFilters.rank(fpLoG, medianRadius, RankFilters.MEDIAN, 1);
 
 				//--------NEW--------
 				if (excludeDAB && channels.containsKey("Hematoxylin OD") && channels.containsKey("DAB OD")) {
@@ -579,18 +607,18 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 					fpDAB.setRoi(roi);
 					ByteProcessor bpH = SimpleThresholding.greaterThanOrEqual(channels.get("Hematoxylin OD"), fpDAB);
 					bpH.multiply(1.0/255.0);
-					rf.rank(bpH, 2.5, RankFilters.MEDIAN);
-					rf.rank(bpH, 2.5, RankFilters.MAX);
+					FastRankFilters.rank(bpH, 2.5, RankFilters.MEDIAN, 1);
+					FastRankFilters.rank(bpH, 2.5, RankFilters.MAX, 1);
 					fpLoG.copyBits(bpH, 0, 0, Blitter.MULTIPLY);
 				}
 				//--------END_NEW--------
 				
 				// Subtract background first, if needed
 				if (backgroundRadius > 0) {
-					ImageProcessor ipBackground = fpLoG.duplicate();
+					ImageProcessor ipBackground = workspace.copyFloatProcessor(CellDetectionWorkspace.FLOAT_BACKGROUND, fpLoG);
 					bpBackgroundMask = limitedOpeningByReconstruction(fpLoG, ipBackground, backgroundRadius, maxBackground);
 					fpLoG.copyBits(ipBackground, 0, 0, Blitter.SUBTRACT);
-					ipToMeasure = fpLoG.duplicate();
+					ipToMeasure = workspace.copyFloatProcessor(CellDetectionWorkspace.FLOAT_MEASURE, fpLoG);
 				} else {
 					ipToMeasure = fpDetection;
 				}
@@ -618,7 +646,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			} 
 			
 			if (bp == null)
-				bp = new ByteProcessor(width, height);	
+				bp = workspace.getByteProcessor(CellDetectionWorkspace.BYTE_BINARY, width, height);
 			
 //			// TODO: Consider application of an automated threshold
 //			if (threshold < 0) {
@@ -680,7 +708,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			// The idea is that Gaussian smoothing tends to cause the boundaries of 'thin' nuclei to be overestimated;
 			// this uses a smaller filter to correct instances where the boundary has moved by just one pixel
 			if (refineBoundary && sigma > 1.5) {
-				FloatProcessor fpBoundaryCleanup = (FloatProcessor)fpDetection.duplicate();
+				FloatProcessor fpBoundaryCleanup = workspace.copyFloatProcessor(CellDetectionWorkspace.FLOAT_BOUNDARY, fpDetection);
 				fpBoundaryCleanup.blurGaussian(1);
 				fpBoundaryCleanup.convolve(new float[]{0, -1, 0, -1, 4, -1, 0, -1, 0}, 3, 3);
 				ByteProcessor bp2 = SimpleThresholding.thresholdAbove(fpBoundaryCleanup, 0f);
@@ -716,7 +744,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			
 			
 			// Label nuclei
-			ShortProcessor ipLabels = new ShortProcessor(width, height);
+			ShortProcessor ipLabels = workspace.getShortProcessor(CellDetectionWorkspace.SHORT_LABELS, width, height);
 			ROILabeling.labelROIs(ipLabels, roisNuclei);
 			
 			// Measure nuclei for all required channels
@@ -788,7 +816,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				double cellExpansionThreshold = -cellExpansion;
 				
 				// Create cell ROIs
-				ImageProcessor ipLabelsCells = ipLabels.duplicate();
+				ImageProcessor ipLabelsCells = workspace.copyShortProcessor(CellDetectionWorkspace.SHORT_LABELS_CELLS, ipLabels);
 				Watershed.doWatershed(fpEDM, ipLabelsCells, cellExpansionThreshold, false);
 				PolygonRoi[] roisCells = ROILabeling.labelsToFilledROIs(ipLabelsCells, roisNuclei.size());
 				
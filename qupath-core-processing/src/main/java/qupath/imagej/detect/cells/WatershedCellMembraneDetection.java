@@ -57,6 +57,7 @@ import qupath.imagej.color.ColorDeconvolutionIJ;
 import qupath.imagej.objects.PathImagePlus;
 import qupath.imagej.objects.ROIConverterIJ;
 import qupath.imagej.objects.measure.ObjectMeasurements;
+import qupath.imagej.processing.FastRankFilters;
 import qupath.imagej.processing.MorphologicalReconstruction;
 import qupath.imagej.processing.ROILabeling;
 import qupath.imagej.processing.RegionalExtrema;
@@ -437,9 +438,8 @@ public class WatershedCellMembraneDetection extends AbstractTileableDetectionPlu
 		
 		public static ByteProcessor limitedOpeningByReconstruction(final ImageProcessor ip, final ImageProcessor ipBackground, final double radius, final double maxBackground) {
 			// Apply (initial) morphological opening
-			final RankFilters rf = new RankFilters();
 			ipBackground.setRoi(ip.getRoi());
-			rf.rank(ipBackground, radius, RankFilters.MIN);
+			FastRankFilters.rank(ipBackground, radius, RankFilters.MIN, 1);
 			
 			// Mask out any above-threshold background pixels & their surroundings
 			ByteProcessor bpMask = null;
@@ -455,7 +455,7 @@ public class WatershedCellMembraneDetection extends AbstractTileableDetectionPlu
 				}
 				// Apply mask if required
 				if (bpMask != null) {
-					rf.rank(bpMask, radius*2, RankFilters.MAX);
+					FastRankFilters.rank(bpMask, radius*2, RankFilters.MAX, 1);
 					for (int i = 0; i < w * h; i++) {
 						if (bpMask.getf(i) != 0f) {
 							ipBackground.setf(i, Float.NEGATIVE_INFINITY);
@@ -501,9 +501,8 @@ public class WatershedCellMembraneDetection extends AbstractTileableDetectionPlu
 //					return;
 
 				// Start off with a median filter to reduce texture, if necessary
-				RankFilters rf = new RankFilters();
 				if (medianRadius > 0)
-					rf.rank(fpLoG, medianRadius, RankFilters.MEDIAN);
+					FastRankFilters.rank(fpLoG, medianRadius, RankFilters.MEDIAN, 1);
 
 				// Subtract background first, if needed
 				if (backgroundRadius > 0) {
@@ -541,8 +540,8 @@ public class WatershedCellMembraneDetection extends AbstractTileableDetectionPlu
 					fpDAB.setRoi(roi);
 					ByteProcessor bpH = SimpleThresholding.greaterThanOrEqual(fpH, fpDAB);
 					bpH.multiply(1.0/255.0);
-					rf.rank(bpH, 2.5, RankFilters.MEDIAN); // TODO: Check hard-coded filter sizes for reasonableness
-					rf.rank(bpH, 2.5, RankFilters.MAX);
+					FastRankFilters.rank(bpH, 2.5, RankFilters.MEDIAN, 1); // TODO: Check hard-coded filter sizes for reasonableness
+					FastRankFilters.rank(bpH, 2.5, RankFilters.MAX, 1);
 					fpLoG.copyBits(bpH, 0, 0, Blitter.MULTIPLY);
 				}
 //				new ImagePlus("Log", fpLoG.duplicate()).show();
@@ -714,7 +713,7 @@ public class WatershedCellMembraneDetection extends AbstractTileableDetectionPlu
 				
 				// Determine a mask of the furthest anything can expand
 				ByteProcessor bpMaxExpansion = (ByteProcessor)bpMarkers.duplicate();
-				new RankFilters().rank(bpMaxExpansion, cellExpansion, RankFilters.MAX);
+				FastRankFilters.rank(bpMaxExpansion, cellExpansion, RankFilters.MAX, 1);
 				
 				// Update the mask to remove completely unstained pixels
 				for (int i = 0; i < width * height; i++) {
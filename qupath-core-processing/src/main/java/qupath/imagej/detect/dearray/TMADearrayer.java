@@ -54,6 +54,7 @@ import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import qupath.imagej.processing.FastRankFilters;
 import qupath.imagej.processing.ROILabeling;
 
 
@@ -265,8 +266,7 @@ public class TMADearrayer {
 		ip.resetRoi();
 		
 		// Apply small median filter (helps remove JPEG artifacts)
-		RankFilters rf = new RankFilters();
-		rf.rank(ip, 1.0, RankFilters.MEDIAN);
+		FastRankFilters.rank(ip, 1.0, RankFilters.MEDIAN, 1);
 		
 		// If this is a brightfield image, invert it
 		if (!isFluorescence)
@@ -291,8 +291,8 @@ public class TMADearrayer {
 		if (downsample > 1) {
 			ip2 = ip.resize((int)(ip.getWidth() / downsample + 0.5), (int)(ip.getHeight() / downsample + 0.5), true);
 //			long start = System.currentTimeMillis();
-			rf.rank(ip2, filterRadius/downsample, RankFilters.MIN);
-			rf.rank(ip2, filterRadius/downsample, RankFilters.MAX);
+			FastRankFilters.rank(ip2, filterRadius/downsample, RankFilters.MIN, 1);
+			FastRankFilters.rank(ip2, filterRadius/downsample, RankFilters.MAX, 1);
 			ip2 = ip2.resize(ip.getWidth(), ip.getHeight());
 //			long end = System.currentTimeMillis();
 //			System.err.println("Duration: " + (end - start));
@@ -314,10 +314,10 @@ public class TMADearrayer {
 		
 		// Apply (gentle) morphological cleaning
 		filterRadius = Math.max(1.0, coreDiameterPx * 0.02);
-		rf.rank(bp, filterRadius, RankFilters.MAX);
-		rf.rank(bp, filterRadius, RankFilters.MIN);
-		rf.rank(bp, filterRadius, RankFilters.MIN);
-		rf.rank(bp, filterRadius, RankFilters.MAX);
+		FastRankFilters.rank(bp, filterRadius, RankFilters.MAX, 1);
+		FastRankFilters.rank(bp, filterRadius, RankFilters.MIN, 1);
+		FastRankFilters.rank(bp, filterRadius, RankFilters.MIN, 1);
+		FastRankFilters.rank(bp, filterRadius, RankFilters.MAX, 1);
 		
 		// Fill holes
 		ROILabeling.fillHoles(bp);
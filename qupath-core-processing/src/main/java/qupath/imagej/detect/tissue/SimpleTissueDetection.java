@@ -48,6 +48,7 @@ import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import qupath.imagej.helpers.IJTools;
 import qupath.imagej.objects.ROIConverterIJ;
+import qupath.imagej.processing.FastRankFilters;
 import qupath.imagej.processing.ROILabeling;
 import qupath.imagej.processing.SimpleThresholding;
 import qupath.lib.common.GeneralTools;
@@ -185,8 +186,7 @@ public class SimpleTissueDetection extends AbstractDetectionPlugin<BufferedImage
 			
 			// Apply small median filter to clean up
 			if (medianCleanup) {
-				RankFilters rf = new RankFilters();
-				rf.rank(bp, 1, RankFilters.MEDIAN);
+				FastRankFilters.rank(bp, 1, RankFilters.MEDIAN, 1);
 			}
 			
 	//		bp.resetMinAndMax();
@@ -48,6 +48,7 @@ import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import qupath.imagej.helpers.IJTools;
 import qupath.imagej.objects.ROIConverterIJ;
+import qupath.imagej.processing.FastRankFilters;
 import qupath.imagej.processing.MorphologicalReconstruction;
 import qupath.imagej.processing.ROILabeling;
 import qupath.imagej.processing.SimpleThresholding;
@@ -192,8 +193,7 @@ public class SimpleTissueDetection2 extends AbstractDetectionPlugin<BufferedImag
 			
 			// Apply small median filter to clean up
 			if (medianCleanup) {
-				RankFilters rf = new RankFilters();
-				rf.rank(bp, 1, RankFilters.MEDIAN);
+				FastRankFilters.rank(bp, 1, RankFilters.MEDIAN, 1);
 			}
 			
 			// Apply maximum filter, if required
@@ -0,0 +1,581 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.imagej.processing;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import ij.Prefs;
+import ij.plugin.filter.RankFilters;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Minimum, maximum and median filters with circular kernels, intended as faster replacements for
+ * the corresponding filters in ImageJ's {@link RankFilters}.
+ * <p>
+ * The kernel shape, edge handling and treatment of the ROI are the same as for ImageJ, so that the results
+ * are identical for images without NaNs.  However, the cost of filtering grows much more slowly with the radius:
+ * <ul>
+ *   <li>Minimum and maximum filters apply the van Herk/Gil-Werman algorithm to each line of the kernel,
+ *   which requires a constant number of comparisons per pixel for each line - regardless of its length.</li>
+ *   <li>Median filters use a sliding histogram, updated only at the left and right edges of each kernel line,
+ *   with a coarse histogram used to find the median without scanning every bin.
+ *   Integer images use their pixel values as bins; floating point images are first converted to ranks.
+ *   Small kernels applied to floating point images are passed to ImageJ instead, since the ranks are then 
+ *   too sparse for the histogram to be efficient and ImageJ's selection-based median is faster.</li>
+ * </ul>
+ * The total cost therefore grows linearly with the radius, rather than with the area of the kernel.
+ * <p>
+ * Images are split into strips of rows, which may be filtered in parallel.
+ * By default, the number of threads is given by {@link Prefs#getThreads()}; code that is already running 
+ * in parallel (e.g. within a plugin task) should request a single thread instead, to avoid oversubscription.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+public class FastRankFilters {
+	
+	/**
+	 * Minimum number of rows in a strip processed by a single thread.
+	 */
+	private static final int MIN_STRIP_HEIGHT = 16;
+	
+	/**
+	 * Maximum number of pixels in a kernel for which the median of floating point images is computed by ImageJ, 
+	 * rather than using a histogram.
+	 */
+	private static final int MAX_IMAGEJ_MEDIAN_KERNEL_SIZE = 130;
+	
+	/**
+	 * Apply a rank filter, in the same way as {@link RankFilters#rank(ImageProcessor, double, int)}.
+	 * Only pixels within the bounding box of the processor's ROI are changed.
+	 * 
+	 * @param ip the image to filter, which is modified in-place
+	 * @param radius the kernel radius, as used by ImageJ
+	 * @param filterType one of {@link RankFilters#MIN}, {@link RankFilters#MAX} or {@link RankFilters#MEDIAN}
+	 * @throws IllegalArgumentException if another filter type is requested
+	 */
+	public static void rank(final ImageProcessor ip, final double radius, final int filterType) throws IllegalArgumentException {
+		rank(ip, radius, filterType, Prefs.getThreads());
+	}
+	
+	/**
+	 * Apply a rank filter, in the same way as {@link RankFilters#rank(ImageProcessor, double, int)}, 
+	 * using up to a specified number of threads.
+	 * Only pixels within the bounding box of the processor's ROI are changed.
+	 * 
+	 * @param ip the image to filter, which is modified in-place
+	 * @param radius the kernel radius, as used by ImageJ
+	 * @param filterType one of {@link RankFilters#MIN}, {@link RankFilters#MAX} or {@link RankFilters#MEDIAN}
+	 * @param nThreads maximum number of threads to use; this should be 1 if the caller is already running in parallel
+	 * @throws IllegalArgumentException if another filter type is requested
+	 */
+	public static void rank(final ImageProcessor ip, final double radius, final int filterType, final int nThreads) throws IllegalArgumentException {
+		switch (filterType) {
+		case RankFilters.MIN:
+		case RankFilters.MAX:
+		case RankFilters.MEDIAN:
+			filter(ip, radius, filterType, nThreads);
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported filter type " + filterType);
+		}
+	}
+	
+	/**
+	 * Apply a minimum filter with a circular kernel.
+	 * NaNs are ignored when computing the minimum.
+	 * 
+	 * @param ip the image to filter, which is modified in-place
+	 * @param radius the kernel radius, as used by ImageJ
+	 */
+	public static void min(final ImageProcessor ip, final double radius) {
+		filter(ip, radius, RankFilters.MIN, Prefs.getThreads());
+	}
+	
+	/**
+	 * Apply a maximum filter with a circular kernel.
+	 * NaNs are ignored when computing the maximum.
+	 * 
+	 * @param ip the image to filter, which is modified in-place
+	 * @param radius the kernel radius, as used by ImageJ
+	 */
+	public static void max(final ImageProcessor ip, final double radius) {
+		filter(ip, radius, RankFilters.MAX, Prefs.getThreads());
+	}
+	
+	/**
+	 * Apply a median filter with a circular kernel.
+	 * As in ImageJ, NaN pixels remain NaN.  Otherwise NaNs are ignored when computing the median; 
+	 * if the number of other values is even, the higher of the two central values is used.
+	 * This can differ slightly from ImageJ's handling of NaNs for large kernels.
+	 * 
+	 * @param ip the image to filter, which is modified in-place
+	 * @param radius the kernel radius, as used by ImageJ
+	 */
+	public static void median(final ImageProcessor ip, final double radius) {
+		filter(ip, radius, RankFilters.MEDIAN, Prefs.getThreads());
+	}
+	
+	
+	private static void filter(final ImageProcessor ip, final double radius, final int filterType, final int nThreads) {
+		int[] halfWidths = getKernelHalfWidths(radius);
+		Rectangle rect = ip.getRoi();
+		if (ip instanceof ColorProcessor) {
+			FloatProcessor fp = null;
+			for (int c = 0; c < 3; c++) {
+				fp = ip.toFloat(c, fp);
+				filter((float[])fp.getPixels(), null, fp.getWidth(), fp.getHeight(), rect, halfWidths, filterType, nThreads);
+				ip.setPixels(c, fp);
+			}
+			return;
+		}
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		if (ip instanceof FloatProcessor) {
+			if (filterType == RankFilters.MEDIAN && getKernelSize(halfWidths) <= MAX_IMAGEJ_MEDIAN_KERNEL_SIZE) {
+				new RankFilters().rank(ip, radius, filterType);
+				return;
+			}
+			filter((float[])ip.getPixels(), null, width, height, rect, halfWidths, filterType, nThreads);
+		} else if (ip instanceof ByteProcessor || ip instanceof ShortProcessor) {
+			// Convert to float, reusing the values as histogram bins for the median
+			int n = width * height;
+			float[] pixels = new float[n];
+			int[] bins = filterType == RankFilters.MEDIAN ? new int[n] : null;
+			for (int i = 0; i < n; i++) {
+				int v = ip.get(i);
+				pixels[i] = v;
+				if (bins != null)
+					bins[i] = v;
+			}
+			filter(pixels, bins, width, height, rect, halfWidths, filterType, nThreads);
+			for (int y = rect.y; y < rect.y + rect.height; y++) {
+				for (int x = rect.x; x < rect.x + rect.width; x++) {
+					int i = y * width + x;
+					ip.set(i, (int)pixels[i]);
+				}
+			}
+		} else
+			throw new IllegalArgumentException("Unsupported image type " + ip.getClass().getSimpleName());
+	}
+	
+	
+	/**
+	 * Get the half-width of each line of a circular kernel, using the same definition as ImageJ.
+	 * The kernel has an odd number of lines; the central line corresponds to the central element of the array.
+	 * 
+	 * @param radius
+	 * @return
+	 */
+	static int[] getKernelHalfWidths(double radius) {
+		// Small radii are adjusted in ImageJ for more regular kernels
+		if (radius >= 1.5 && radius < 1.75)
+			radius = 1.75;
+		else if (radius >= 2.5 && radius < 2.85)
+			radius = 2.85;
+		int r2 = (int)(radius * radius) + 1;
+		int kRadius = (int)Math.sqrt(r2 + 1e-10);
+		int[] halfWidths = new int[2 * kRadius + 1];
+		for (int dy = 0; dy <= kRadius; dy++) {
+			int dx = (int)Math.sqrt(r2 - dy * dy + 1e-10);
+			halfWidths[kRadius - dy] = dx;
+			halfWidths[kRadius + dy] = dx;
+		}
+		return halfWidths;
+	}
+	
+	
+	/**
+	 * Filter pixels within a rectangle in-place, processing strips of rows in parallel if possible.
+	 * 
+	 * @param pixels the pixels to filter
+	 * @param bins histogram bins for the median filter, or null if these should be computed from the pixels
+	 * @param width
+	 * @param height
+	 * @param rect
+	 * @param halfWidths
+	 * @param filterType
+	 * @param maxThreads
+	 */
+	private static void filter(final float[] pixels, int[] bins, final int width, final int height, final Rectangle rect, final int[] halfWidths, final int filterType, final int maxThreads) {
+		if (rect.width <= 0 || rect.height <= 0)
+			return;
+		
+		// Filter from a copy, since pixels are updated in-place
+		float[] source = pixels.clone();
+		
+		// For the median, values need to be converted to histogram bins, along with a table to convert them back
+		float[] binValues = null;
+		int nBins = 0;
+		if (filterType == RankFilters.MEDIAN) {
+			if (bins == null) {
+				bins = new int[pixels.length];
+				binValues = computeRanks(source, bins);
+			} else {
+				int maxBin = 0;
+				for (int b : bins)
+					maxBin = Math.max(maxBin, b);
+				binValues = new float[maxBin + 1];
+				for (int b = 0; b <= maxBin; b++)
+					binValues[b] = b;
+			}
+			nBins = binValues.length;
+		}
+		
+		int nThreads = Math.max(1, Math.min(maxThreads, rect.height / MIN_STRIP_HEIGHT));
+		int stripHeight = (rect.height + nThreads - 1) / nThreads;
+		final int[] binsFinal = bins;
+		final float[] binValuesFinal = binValues;
+		final int nBinsFinal = nBins;
+		IntStream stream = IntStream.range(0, nThreads);
+		if (nThreads > 1)
+			stream = stream.parallel();
+		stream.forEach(s -> {
+			int yStart = rect.y + s * stripHeight;
+			int yEnd = Math.min(rect.y + rect.height, yStart + stripHeight);
+			if (filterType == RankFilters.MEDIAN)
+				filterMedian(binsFinal, nBinsFinal, binValuesFinal, pixels, width, height, rect.x, rect.x + rect.width, yStart, yEnd, halfWidths);
+			else
+				filterMinMax(source, pixels, width, height, rect.x, rect.x + rect.width, yStart, yEnd, halfWidths, filterType == RankFilters.MAX);
+		});
+	}
+	
+	
+	/**
+	 * Min or max filter for a strip of rows.
+	 * <p>
+	 * Each output row is the min/max of the corresponding kernel lines, each of which is the min/max within a 
+	 * horizontal window of a source row.  Because the kernel is symmetric, each source row is processed only once:
+	 * the lines are computed from the narrowest to the widest, and each is used to update the output rows above and below.
+	 * Wider lines are computed from narrower ones where possible, otherwise using the van Herk/Gil-Werman algorithm.
+	 */
+	private static void filterMinMax(final float[] source, final float[] output, final int width, final int height,
+			final int xStart, final int xEnd, final int yStart, final int yEnd, final int[] halfWidths, final boolean isMax) {
+		
+		int kRadius = halfWidths.length / 2;
+		int maxHalfWidth = halfWidths[kRadius];
+		
+		// Lines are computed for positions up to maxHalfWidth beyond the image, so that they can be used to compute wider lines.
+		// This requires the input to be padded by twice as much; padded values are ignored.
+		float pad = isMax ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+		int lineLength = width + 2 * maxHalfWidth;
+		int paddedLength = width + 4 * maxHalfWidth;
+		float[] padded = new float[paddedLength];
+		Arrays.fill(padded, pad);
+		float[] prefix = new float[paddedLength];
+		float[] suffix = new float[paddedLength];
+		float[] windowed = new float[paddedLength];
+		float[] line = new float[lineLength];
+		float[] lineTemp = new float[lineLength];
+		
+		for (int y = yStart; y < yEnd; y++)
+			Arrays.fill(output, y * width + xStart, y * width + xEnd, pad);
+		
+		int sStart = Math.max(0, yStart - kRadius);
+		int sEnd = Math.min(height, yEnd + kRadius);
+		for (int s = sStart; s < sEnd; s++) {
+			System.arraycopy(source, s * width, padded, 2 * maxHalfWidth, width);
+			int w = -1;
+			for (int d = kRadius; d >= 0; d--) {
+				int yAbove = s - d;
+				int yBelow = s + d;
+				boolean updateAbove = yAbove >= yStart && yAbove < yEnd;
+				boolean updateBelow = d > 0 && yBelow >= yStart && yBelow < yEnd;
+				if (!updateAbove && !updateBelow)
+					continue;
+				
+				// Update the line for the required width
+				int wNext = halfWidths[kRadius + d];
+				int delta = wNext - w;
+				if (w >= 0 && delta > 0 && delta <= w) {
+					// Windows of the current width centred delta pixels either side cover the new window
+					for (int c = delta; c < lineLength - delta; c++) {
+						float v1 = line[c - delta];
+						float v2 = line[c + delta];
+						lineTemp[c] = isMax ? (v2 > v1 || v1 != v1 ? v2 : v1) : (v2 < v1 || v1 != v1 ? v2 : v1);
+					}
+					float[] temp = line;
+					line = lineTemp;
+					lineTemp = temp;
+				} else if (delta != 0) {
+					int k = 2 * wNext + 1;
+					lineFilter(padded, paddedLength, k, prefix, suffix, windowed, isMax);
+					System.arraycopy(windowed, maxHalfWidth - wNext, line, 0, lineLength);
+				}
+				w = wNext;
+				
+				if (updateAbove)
+					combine(line, maxHalfWidth, output, yAbove * width, xStart, xEnd, isMax);
+				if (updateBelow)
+					combine(line, maxHalfWidth, output, yBelow * width, xStart, xEnd, isMax);
+			}
+		}
+		
+		// Pixels remain padded only if all the values in the kernel were NaN
+		for (int y = yStart; y < yEnd; y++) {
+			for (int i = y * width + xStart; i < y * width + xEnd; i++) {
+				if (output[i] == pad && Float.isNaN(source[i]))
+					output[i] = Float.NaN;
+			}
+		}
+	}
+	
+	private static void combine(final float[] line, final int lineOffset, final float[] output, final int outputOffset, final int xStart, final int xEnd, final boolean isMax) {
+		int offset = lineOffset - outputOffset;
+		if (isMax) {
+			for (int i = outputOffset + xStart; i < outputOffset + xEnd; i++) {
+				float v = line[i + offset];
+				if (v > output[i])
+					output[i] = v;
+			}
+		} else {
+			for (int i = outputOffset + xStart; i < outputOffset + xEnd; i++) {
+				float v = line[i + offset];
+				if (v < output[i])
+					output[i] = v;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Compute the min or max within a sliding window using the van Herk/Gil-Werman algorithm.
+	 * The input is split into blocks the size of the window, and the min/max computed cumulatively from the start
+	 * and the end of each block.  Any window then covers at most two blocks, and so its min/max can be determined
+	 * using a single comparison.
+	 * 
+	 * @param input padded input values
+	 * @param n number of input values to use
+	 * @param k window size
+	 * @param prefix buffer of length at least n
+	 * @param suffix buffer of length at least n
+	 * @param output output values, of length n - k + 1
+	 * @param isMax
+	 */
+	static void lineFilter(final float[] input, final int n, final int k, final float[] prefix, final float[] suffix, final float[] output, final boolean isMax) {
+		for (int blockStart = 0; blockStart < n; blockStart += k) {
+			int blockEnd = Math.min(n, blockStart + k);
+			float v = input[blockStart];
+			prefix[blockStart] = v;
+			for (int i = blockStart + 1; i < blockEnd; i++)
+				prefix[i] = v = extreme(v, input[i], isMax);
+			v = input[blockEnd - 1];
+			suffix[blockEnd - 1] = v;
+			for (int i = blockEnd - 2; i >= blockStart; i--)
+				suffix[i] = v = extreme(v, input[i], isMax);
+		}
+		int nOutput = n - k + 1;
+		for (int i = 0; i < nOutput; i++)
+			output[i] = extreme(suffix[i], prefix[i + k - 1], isMax);
+	}
+	
+	/**
+	 * Get the min or max of two values, ignoring NaNs where possible.
+	 */
+	private static float extreme(final float v1, final float v2, final boolean isMax) {
+		if (isMax)
+			return v2 > v1 || v1 != v1 ? v2 : v1;
+		else
+			return v2 < v1 || v1 != v1 ? v2 : v1;
+	}
+	
+	
+	/**
+	 * Convert pixel values to ranks among the distinct values, for use as histogram bins.
+	 * NaNs are given the bin -1.
+	 * 
+	 * @param values
+	 * @param bins
+	 * @return the distinct values, in ascending order
+	 */
+	static float[] computeRanks(final float[] values, final int[] bins) {
+		float[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int nDistinct = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			float v = sorted[i];
+			if (Float.isNaN(v))
+				break;
+			if (nDistinct == 0 || sorted[nDistinct - 1] != v)
+				sorted[nDistinct++] = v;
+		}
+		float[] distinct = Arrays.copyOf(sorted, Math.max(1, nDistinct));
+		for (int i = 0; i < values.length; i++) {
+			float v = values[i];
+			bins[i] = Float.isNaN(v) ? -1 : Arrays.binarySearch(distinct, 0, nDistinct, v);
+		}
+		return distinct;
+	}
+	
+	
+	/**
+	 * Median filter for a strip of rows, using a sliding histogram.
+	 */
+	private static void filterMedian(final int[] bins, final int nBins, final float[] binValues, final float[] output, final int width, final int height,
+			final int xStart, final int xEnd, final int yStart, final int yEnd, final int[] halfWidths) {
+		int kRadius = halfWidths.length / 2;
+		var histogram = new MedianHistogram(nBins);
+		int[] rowOffsets = new int[halfWidths.length];
+		for (int y = yStart; y < yEnd; y++) {
+			// Replicate edge pixels, as in ImageJ
+			for (int dy = -kRadius; dy <= kRadius; dy++)
+				rowOffsets[dy + kRadius] = clamp(y + dy, height) * width;
+			
+			// Fill the histogram for the first pixel in the row
+			for (int k = 0; k < halfWidths.length; k++) {
+				int w = halfWidths[k];
+				int offset = rowOffsets[k];
+				for (int dx = -w; dx <= w; dx++)
+					histogram.add(bins[offset + clamp(xStart + dx, width)]);
+			}
+			
+			// Slide the histogram along the row, updating only the edges of each kernel line
+			int outputOffset = y * width;
+			for (int x = xStart; x < xEnd; x++) {
+				if (x > xStart) {
+					for (int k = 0; k < halfWidths.length; k++) {
+						int w = halfWidths[k];
+						int offset = rowOffsets[k];
+						histogram.remove(bins[offset + clamp(x - w - 1, width)]);
+						histogram.add(bins[offset + clamp(x + w, width)]);
+					}
+				}
+				int b = bins[outputOffset + x] < 0 ? -1 : histogram.getMedianBin();
+				output[outputOffset + x] = b < 0 ? Float.NaN : binValues[b];
+			}
+			
+			// Empty the histogram for the next row
+			for (int k = 0; k < halfWidths.length; k++) {
+				int w = halfWidths[k];
+				int offset = rowOffsets[k];
+				for (int dx = -w; dx <= w; dx++)
+					histogram.remove(bins[offset + clamp(xEnd - 1 + dx, width)]);
+			}
+		}
+	}
+	
+	private static int getKernelSize(final int[] halfWidths) {
+		int n = 0;
+		for (int w : halfWidths)
+			n += 2 * w + 1;
+		return n;
+	}
+	
+	private static int clamp(final int i, final int n) {
+		return i < 0 ? 0 : (i >= n ? n - 1 : i);
+	}
+	
+	
+	/**
+	 * Histogram that keeps track of its median as values are added and removed.
+	 * <p>
+	 * A coarse histogram, with each bin summing a block of fine bins, is used to skip over many fine bins at once
+	 * when the median changes by a large amount.
+	 */
+	static class MedianHistogram {
+		
+		private final int[] fine;
+		private final int[] coarse;
+		private final int shift;
+		private final int blockSize;
+		
+		private int count = 0;
+		// Current median estimate, and the number of values in bins below it
+		private int median = 0;
+		private int nBelow = 0;
+		
+		MedianHistogram(final int nBins) {
+			// Choose a block size around the square root of the number of bins
+			int s = 2;
+			while ((1 << (2 * s)) < nBins && s < 10)
+				s++;
+			shift = s;
+			blockSize = 1 << shift;
+			fine = new int[nBins];
+			coarse = new int[(nBins >> shift) + 1];
+		}
+		
+		void add(final int bin) {
+			if (bin < 0)
+				return;
+			fine[bin]++;
+			coarse[bin >> shift]++;
+			count++;
+			if (bin < median)
+				nBelow++;
+		}
+		
+		void remove(final int bin) {
+			if (bin < 0)
+				return;
+			fine[bin]--;
+			coarse[bin >> shift]--;
+			count--;
+			if (bin < median)
+				nBelow--;
+		}
+		
+		/**
+		 * Get the bin containing the median, or -1 if the histogram is empty.
+		 * This corresponds to the value at index count/2 if all values were sorted.
+		 * @return
+		 */
+		int getMedianBin() {
+			if (count == 0)
+				return -1;
+			int k = count / 2;
+			// Move down until there are no more than k values below the median
+			while (nBelow > k) {
+				int block = median >> shift;
+				if ((median & (blockSize - 1)) == 0 && block > 0 && nBelow - coarse[block - 1] > k) {
+					nBelow -= coarse[block - 1];
+					median -= blockSize;
+				} else {
+					median--;
+					nBelow -= fine[median];
+				}
+			}
+			// Move up until the median bin contains the value at index k
+			while (nBelow + fine[median] <= k) {
+				int block = median >> shift;
+				if ((median & (blockSize - 1)) == 0 && nBelow + coarse[block] <= k) {
+					nBelow += coarse[block];
+					median += blockSize;
+				} else {
+					nBelow += fine[median];
+					median++;
+				}
+			}
+			return median;
+		}
+		
+	}
+
+}
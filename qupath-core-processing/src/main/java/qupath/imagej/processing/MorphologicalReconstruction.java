@@ -321,10 +321,9 @@ public class MorphologicalReconstruction {
 	
 	public static ImageProcessor openingByReconstruction(final ImageProcessor ip, final double radius) {
 		// Apply (initial) morphological opening
-		final RankFilters rf = new RankFilters();
 		final ImageProcessor ipReconstructed = ip.duplicate();
 		ipReconstructed.setRoi(ip.getRoi());
-		rf.rank(ipReconstructed, radius, RankFilters.MIN);
+		FastRankFilters.rank(ipReconstructed, radius, RankFilters.MIN);
 //		if (ip.getRoi() == null)
 //			rf.rank(ipReconstructed, radius, RankFilters.MAX);
 		// Dilate opened image constrained by original image as a mask
@@ -0,0 +1,152 @@
+package qupath.imagej.detect.cells;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import qupath.imagej.color.ColorDeconvolutionIJ;
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.ImageData.ImageType;
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.roi.interfaces.ROI;
+
+public class TestCellDetectionWorkspace {
+
+	@Test
+	public void testReuse() {
+		var workspace = CellDetectionWorkspace.acquire();
+		try {
+			var fp = workspace.getFloatProcessor(CellDetectionWorkspace.FLOAT_LOG, 20, 10);
+			var bp = workspace.getByteProcessor(CellDetectionWorkspace.BYTE_BINARY, 20, 10);
+			bp.set(5, 5, 255);
+			workspace.release();
+
+			// Buffers of the same size should be reused by the same thread, with integer buffers cleared
+			workspace = CellDetectionWorkspace.acquire();
+			assertSame(fp.getPixels(), workspace.getFloatProcessor(CellDetectionWorkspace.FLOAT_LOG, 20, 10).getPixels());
+			var bp2 = workspace.getByteProcessor(CellDetectionWorkspace.BYTE_BINARY, 20, 10);
+			assertSame(bp.getPixels(), bp2.getPixels());
+			assertEquals(0, bp2.get(5, 5));
+
+			// Different sizes need new buffers
+			assertNotSame(fp.getPixels(), workspace.getFloatProcessor(CellDetectionWorkspace.FLOAT_LOG, 10, 10).getPixels());
+			
+			// A workspace that is in use shouldn't be shared
+			var workspace2 = CellDetectionWorkspace.acquire();
+			assertNotSame(workspace, workspace2);
+			workspace2.release();
+		} finally {
+			workspace.release();
+		}
+	}
+	
+	@Test
+	public void testDetectionWithReusedBuffers() {
+		var imageData = createImageData(1L);
+		var params = new WatershedCellDetection().getDefaultParameterList(imageData);
+		var roi = ROIs.createRectangleROI(0, 0, 256, 256, ImagePlane.getDefaultPlane());
+		
+		// Holding the thread's workspace means that detection has to use new buffers
+		List<PathObject> expected;
+		var workspace = CellDetectionWorkspace.acquire();
+		try {
+			expected = detect(imageData, params, roi);
+		} finally {
+			workspace.release();
+		}
+		assertTrue(expected.size() > 10);
+		
+		// Fill the thread's buffers using a different image, then reuse them
+		detect(createImageData(2L), params, roi);
+		List<PathObject> actual = detect(imageData, params, roi);
+		
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			var cellExpected = (PathCellObject)expected.get(i);
+			var cellActual = (PathCellObject)actual.get(i);
+			assertEquals(((PathArea)cellExpected.getNucleusROI()).getArea(), ((PathArea)cellActual.getNucleusROI()).getArea(), 0.0);
+			assertEquals(((PathArea)cellExpected.getROI()).getArea(), ((PathArea)cellActual.getROI()).getArea(), 0.0);
+			var measurementsExpected = cellExpected.getMeasurementList();
+			var measurementsActual = cellActual.getMeasurementList();
+			assertEquals(measurementsExpected.getMeasurementNames(), measurementsActual.getMeasurementNames());
+			for (String name : measurementsExpected.getMeasurementNames())
+				assertEquals(name, measurementsExpected.getMeasurementValue(name), measurementsActual.getMeasurementValue(name), 0.0);
+		}
+	}
+	
+	private static List<PathObject> detect(ImageData<BufferedImage> imageData, ParameterList params, ROI roi) {
+		List<PathObject> pathObjects = new ArrayList<>(new WatershedCellDetection.CellDetector().runDetection(imageData, params, roi));
+		pathObjects.sort(Comparator.comparingDouble((PathObject p) -> p.getROI().getCentroidY()).thenComparingDouble(p -> p.getROI().getCentroidX()));
+		return pathObjects;
+	}
+	
+	/**
+	 * Create a brightfield image containing hematoxylin- and DAB-stained blobs of different sizes.
+	 */
+	private static ImageData<BufferedImage> createImageData(long seed) {
+		var rand = new Random(seed);
+		var img = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+		var g2d = img.createGraphics();
+		g2d.setColor(new Color(235, 230, 235));
+		g2d.fillRect(0, 0, 256, 256);
+		for (int i = 0; i < 40; i++) {
+			g2d.setColor(rand.nextInt(3) == 0 ? new Color(140, 90, 50) : new Color(70, 50, 150));
+			int d = 8 + rand.nextInt(10);
+			g2d.fillOval(rand.nextInt(256 - d), rand.nextInt(256 - d), d, d + rand.nextInt(4));
+		}
+		g2d.dispose();
+		// Add some noise, so that the images aren't perfectly flat
+		int[] rgb = img.getRGB(0, 0, 256, 256, null, 0, 256);
+		for (int i = 0; i < rgb.length; i++) {
+			int noise = rand.nextInt(9) - 4;
+			int r = Math.max(0, Math.min(255, ((rgb[i] >> 16) & 0xff) + noise));
+			int g = Math.max(0, Math.min(255, ((rgb[i] >> 8) & 0xff) + noise));
+			int b = Math.max(0, Math.min(255, (rgb[i] & 0xff) + noise));
+			rgb[i] = (r << 16) | (g << 8) | b;
+		}
+		img.setRGB(0, 0, 256, 256, rgb, 0, 256);
+		var server = new ImageIoImageServer("cells-" + seed, "cells-" + seed, img);
+		return new ImageData<>(server, ImageType.BRIGHTFIELD_H_DAB);
+	}
+	
+	@Test
+	public void testColorDeconvolutionBuffers() {
+		var cp = new ColorProcessor(32, 16);
+		var rand = new Random(100L);
+		int[] rgb = (int[])cp.getPixels();
+		for (int i = 0; i < rgb.length; i++)
+			rgb[i] = rand.nextInt() & 0xffffff;
+		var stains = ColorDeconvolutionStains.makeDefaultColorDeconvolutionStains(ColorDeconvolutionStains.DEFAULT_CD_STAINS.H_DAB);
+		
+		FloatProcessor[] expected = ColorDeconvolutionIJ.colorDeconvolve(cp, stains);
+		FloatProcessor[] buffers = {new FloatProcessor(32, 16), new FloatProcessor(32, 16), new FloatProcessor(16, 16)};
+		Object reused = buffers[0].getPixels();
+		FloatProcessor[] fps = ColorDeconvolutionIJ.colorDeconvolve(cp, stains, buffers);
+		assertSame(reused, fps[0].getPixels());
+		assertEquals(32, fps[2].getWidth());
+		for (int i = 0; i < 3; i++)
+			assertArrayEquals((float[])expected[i].getPixels(), (float[])fps[i].getPixels(), 0f);
+		
+		var fpOD = ColorDeconvolutionIJ.convertToOpticalDensitySum(cp, 255, 255, 255);
+		var fpODReused = ColorDeconvolutionIJ.convertToOpticalDensitySum(cp, 255, 255, 255, fps[0], fps[1]);
+		assertSame(reused, fpODReused.getPixels());
+		assertArrayEquals((float[])fpOD.getPixels(), (float[])fpODReused.getPixels(), 0f);
+	}
+
+}
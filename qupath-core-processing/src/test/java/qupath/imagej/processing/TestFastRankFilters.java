@@ -0,0 +1,174 @@
+package qupath.imagej.processing;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.Prefs;
+import ij.plugin.filter.RankFilters;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+public class TestFastRankFilters {
+	
+	private static final double[] RADII = {0.5, 1, 1.5, 2, 2.5, 3, 5.5, 12, 20};
+	private static final int[] FILTERS = {RankFilters.MIN, RankFilters.MAX, RankFilters.MEDIAN};
+
+	@Test
+	public void testFloat() {
+		var rand = new Random(1L);
+		var fp = new FloatProcessor(67, 45);
+		for (int i = 0; i < fp.getPixelCount(); i++)
+			fp.setf(i, (float)rand.nextGaussian());
+		checkSameAsImageJ(fp);
+	}
+	
+	@Test
+	public void testByte() {
+		var rand = new Random(2L);
+		var bp = new ByteProcessor(64, 50);
+		for (int i = 0; i < bp.getPixelCount(); i++)
+			bp.set(i, rand.nextInt(256));
+		checkSameAsImageJ(bp);
+		
+		// Binary images have many repeated values
+		var bpBinary = new ByteProcessor(64, 50);
+		for (int i = 0; i < bpBinary.getPixelCount(); i++)
+			bpBinary.set(i, rand.nextInt(10) == 0 ? 255 : 0);
+		checkSameAsImageJ(bpBinary);
+	}
+	
+	@Test
+	public void testShort() {
+		var rand = new Random(3L);
+		var sp = new ShortProcessor(40, 71);
+		for (int i = 0; i < sp.getPixelCount(); i++)
+			sp.set(i, rand.nextInt(65536));
+		checkSameAsImageJ(sp);
+	}
+	
+	@Test
+	public void testRoi() {
+		var rand = new Random(4L);
+		var fp = new FloatProcessor(50, 50);
+		for (int i = 0; i < fp.getPixelCount(); i++)
+			fp.setf(i, rand.nextFloat());
+		fp.setRoi(10, 5, 20, 30);
+		checkSameAsImageJ(fp);
+	}
+	
+	@Test
+	public void testParallel() {
+		// A 16-bit image is used so that all filters are applied in strips, rather than by ImageJ
+		var rand = new Random(5L);
+		var sp = new ShortProcessor(80, 200);
+		for (int i = 0; i < sp.getPixelCount(); i++)
+			sp.set(i, rand.nextInt(65536));
+		checkSameAsImageJ(sp);
+		for (double radius : RADII) {
+			for (int filter : FILTERS) {
+				var ipExpected = sp.duplicate();
+				FastRankFilters.rank(ipExpected, radius, filter, 1);
+				var ipParallel = sp.duplicate();
+				FastRankFilters.rank(ipParallel, radius, filter, 4);
+				assertArrayEquals("Filter " + filter + ", radius " + radius, (short[])ipExpected.getPixels(), (short[])ipParallel.getPixels());
+			}
+		}
+	}
+	
+	@Test
+	public void testNaN() {
+		var fp = new FloatProcessor(5, 1, new float[] {1, Float.NaN, 3, 0, 2});
+		var fpMin = fp.duplicate();
+		FastRankFilters.min(fpMin, 1);
+		assertArrayEquals(new float[] {1, 1, 0, 0, 0}, (float[])fpMin.getPixels(), 0f);
+		var fpMax = fp.duplicate();
+		FastRankFilters.max(fpMax, 1);
+		assertArrayEquals(new float[] {1, 3, 3, 3, 2}, (float[])fpMax.getPixels(), 0f);
+		var fpMedian = fp.duplicate();
+		FastRankFilters.median(fpMedian, 1);
+		assertArrayEquals(new float[] {1, Float.NaN, 3, 2, 2}, (float[])fpMedian.getPixels(), 0f);
+		
+		// Check the histogram is also used correctly with NaNs
+		// (ImageJ handles NaNs a little differently, so compare with sorting instead)
+		var rand = new Random(7L);
+		var fpLarge = new FloatProcessor(40, 40);
+		for (int i = 0; i < fpLarge.getPixelCount(); i++)
+			fpLarge.setf(i, rand.nextInt(20) == 0 ? Float.NaN : rand.nextFloat());
+		var fpFiltered = fpLarge.duplicate();
+		FastRankFilters.median(fpFiltered, 8);
+		int[] halfWidths = FastRankFilters.getKernelHalfWidths(8);
+		int kRadius = halfWidths.length / 2;
+		for (int y = 0; y < fpLarge.getHeight(); y++) {
+			for (int x = 0; x < fpLarge.getWidth(); x++) {
+				if (Float.isNaN(fpLarge.getf(x, y))) {
+					assertTrue(Float.isNaN(fpFiltered.getf(x, y)));
+					continue;
+				}
+				var values = new ArrayList<Float>();
+				for (int dy = -kRadius; dy <= kRadius; dy++) {
+					for (int dx = -halfWidths[dy + kRadius]; dx <= halfWidths[dy + kRadius]; dx++) {
+						int xx = Math.min(Math.max(x + dx, 0), fpLarge.getWidth() - 1);
+						int yy = Math.min(Math.max(y + dy, 0), fpLarge.getHeight() - 1);
+						float v = fpLarge.getf(xx, yy);
+						if (!Float.isNaN(v))
+							values.add(v);
+					}
+				}
+				Collections.sort(values);
+				assertEquals(values.get(values.size() / 2), fpFiltered.getf(x, y), 0f);
+			}
+		}
+	}
+	
+	@Test
+	public void testLineFilter() {
+		var rand = new Random(6L);
+		float[] input = new float[37];
+		for (int i = 0; i < input.length; i++)
+			input[i] = rand.nextFloat();
+		for (int k = 1; k <= input.length; k += 2) {
+			float[] output = new float[input.length - k + 1];
+			FastRankFilters.lineFilter(input, input.length, k, new float[input.length], new float[input.length], output, false);
+			for (int i = 0; i < output.length; i++) {
+				float expected = Float.POSITIVE_INFINITY;
+				for (int j = i; j < i + k; j++)
+					expected = Math.min(expected, input[j]);
+				assertEquals(expected, output[i], 0f);
+			}
+		}
+	}
+	
+	/**
+	 * Compare with ImageJ's RankFilters, using a single thread (as QuPath does) since ImageJ's multithreaded filtering can hang.
+	 */
+	private static void checkSameAsImageJ(final ImageProcessor ip) {
+		int nThreads = Prefs.getThreads();
+		try {
+			Prefs.setThreads(1);
+			for (double radius : RADII) {
+				for (int filter : FILTERS) {
+					var ipExpected = ip.duplicate();
+					ipExpected.setRoi(ip.getRoi());
+					new RankFilters().rank(ipExpected, radius, filter);
+					var ipFast = ip.duplicate();
+					ipFast.setRoi(ip.getRoi());
+					FastRankFilters.rank(ipFast, radius, filter);
+					for (int i = 0; i < ip.getPixelCount(); i++) {
+						if (ipExpected.getf(i) != ipFast.getf(i))
+							fail(String.format("Filter %d, radius %.1f: expected %f but got %f at pixel %d", filter, radius, ipExpected.getf(i), ipFast.getf(i), i));
+					}
+				}
+			}
+		} finally {
+			Prefs.setThreads(nThreads);
+		}
+	}
+
+}
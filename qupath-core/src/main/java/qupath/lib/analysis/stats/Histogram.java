@@ -24,8 +24,12 @@
 package qupath.lib.analysis.stats;
 
 //import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
+import qupath.lib.measurements.ColumnarMeasurementStore;
+import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.PathObject;
 
 
@@ -162,19 +166,37 @@ public class Histogram { // implements Serializable {
 		return countSum;
 	}
 
-//	public Histogram(double[] edges, double[] counts) {
-//		this.edges = edges;
-//		this.counts = counts;
-//		maxCount = 0;
-//		countSum = 0;
-//		for (double c : counts) {
-//			if (c > maxCount)
-//				maxCount = c;
-//			countSum += c;
-//		}
-//		edgeMin = edges[0];
-//		edgeMax = edges[edges.length-1];
-//	}
+	/**
+	 * Create a histogram from precomputed counts, e.g. where values have been counted incrementally 
+	 * without retaining the values themselves.
+	 * 
+	 * @param edges bin edges; the length should be one more than the length of counts
+	 * @param counts counts for each bin
+	 * @param isInteger true if all the values represented by the histogram are integers
+	 * @param nValues number of (non-NaN) values represented by the histogram
+	 * @param nMissingValues number of NaN values
+	 * @param sum sum of all values
+	 * @param sumSquares sum of all squared values
+	 * @param minValue minimum value
+	 * @param maxValue maximum value
+	 */
+	public Histogram(double[] edges, long[] counts, boolean isInteger, long nValues, long nMissingValues, double sum, double sumSquares, double minValue, double maxValue) {
+		if (edges.length != counts.length + 1)
+			throw new IllegalArgumentException("Number of edges should be one more than the number of bins!");
+		this.edges = edges.clone();
+		this.counts = counts.clone();
+		this.isInteger = isInteger;
+		maxCount = 0;
+		countSum = 0;
+		for (long c : counts) {
+			if (c > maxCount)
+				maxCount = c;
+			countSum += c;
+		}
+		edgeMin = edges[0];
+		edgeMax = edges[edges.length-1];
+		stats = new RunningStatistics(nValues, (int)Math.min(Integer.MAX_VALUE, nMissingValues), sum, sumSquares, minValue, maxValue);
+	}
 	
 	
 	public Histogram(double[] values, int nBins) {
@@ -326,13 +348,11 @@ public class Histogram { // implements Serializable {
 	
 
 	public static double[] getMeasurementValues(final Collection<PathObject> pathObjects, final String measurementName) {
-		double[] values = new double[pathObjects.size()];
-		int ind = 0;
-		for (PathObject pathObject : pathObjects) {
-			values[ind] = pathObject.getMeasurementList().getMeasurementValue(measurementName);
-			ind++;
-		}
-		return values;
+		// Read values in bulk, which is much faster for detections with columnar measurements
+		List<MeasurementList> lists = new ArrayList<>(pathObjects.size());
+		for (PathObject pathObject : pathObjects)
+			lists.add(pathObject.getMeasurementList());
+		return ColumnarMeasurementStore.getValues(measurementName, lists, null);
 	}
 	
 	public static Histogram makeMeasurementHistogram(final Collection<PathObject> pathObjects, final String measurementName, final int nBins) {
@@ -59,6 +59,28 @@ public class RunningStatistics {
 	
 	public RunningStatistics() {}
 	
+	/**
+	 * Create statistics from summary values, where the individual values are no longer available.
+	 * 
+	 * @param size number of (non-NaN) values
+	 * @param numNaNs number of NaNs
+	 * @param sum sum of all values
+	 * @param sumSquares sum of all squared values
+	 * @param min minimum value
+	 * @param max maximum value
+	 */
+	RunningStatistics(long size, int numNaNs, double sum, double sumSquares, double min, double max) {
+		this.size = size;
+		this.numNaNs = numNaNs;
+		if (size > 0) {
+			this.sum = sum;
+			this.min = min;
+			this.max = max;
+			this.m1 = sum / size;
+			this.s1 = Math.max(0, sumSquares - sum * m1);
+		}
+	}
+	
 	public long size() {
 		return size;
 	}
@@ -7,13 +7,25 @@ import java.awt.image.ColorModel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.SimpleThreadFactory;
 import qupath.lib.regions.RegionRequest;
 
 public abstract class AbstractTileableImageServer extends AbstractImageServer<BufferedImage> {
@@ -25,6 +37,21 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	 */
 	private Map<RegionRequest, BufferedImage> cache = ImageServerProvider.getCache(BufferedImage.class);
 	
+	/**
+	 * Shared pool used to read tiles that are missing from the cache in parallel.
+	 * This is bounded, since most tile reading is limited by I/O rather than processing.
+	 */
+	private static ExecutorService tilePool = Executors.newFixedThreadPool(
+			Math.max(4, Math.min(Runtime.getRuntime().availableProcessors() * 2, 32)),
+			new SimpleThreadFactory("tile-reader-", true));
+	
+	/**
+	 * Flag used to identify threads that are already reading tiles for the shared pool. 
+	 * Nested requests (e.g. from servers that wrap other servers) are then handled sequentially, 
+	 * to avoid all pool threads waiting for one another.
+	 */
+	private static ThreadLocal<Boolean> isTileReaderThread = ThreadLocal.withInitial(() -> Boolean.FALSE);
+	
 	/**
 	 * Read a single image tile.
 	 * 
@@ -56,15 +83,147 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 			logger.trace("Returning cached tile: {}", tileRequest.getRegionRequest());
 			return imgCached;
 		}
-		logger.trace("Reading tile: {}", tileRequest.getRegionRequest());
 		
-		imgCached = readTile(tileRequest);
+		// Try the persistent cache, if we have one
+		DiskTileCache diskCache = useDiskTileCache() ? ImageServerProvider.getDiskTileCache() : null;
+		if (diskCache != null) {
+			imgCached = diskCache.get(getPath(), tileRequest.getRegionRequest());
+			if (imgCached != null)
+				logger.trace("Read tile from disk cache: {}", tileRequest.getRegionRequest());
+		}
+		
+		if (imgCached == null) {
+			logger.trace("Reading tile: {}", tileRequest.getRegionRequest());
+			imgCached = readTile(tileRequest);
+			if (diskCache != null)
+				diskCache.put(getPath(), tileRequest.getRegionRequest(), imgCached);
+		}
 		
 		if (cache != null)
 			cache.put(tileRequest.getRegionRequest(), imgCached);
 		return imgCached;
 	}
 	
+	/**
+	 * Returns true if tiles read by this server may be stored in the persistent tile cache, if available.
+	 * <p>
+	 * This is false by default. Subclasses should only return true if reading tiles is expensive compared to 
+	 * reading uncompressed pixels from a local file, and if the server path uniquely identifies the pixels.
+	 * 
+	 * @return
+	 * @see ImageServerProvider#getDiskTileCache()
+	 */
+	protected boolean useDiskTileCache() {
+		return false;
+	}
+	
+	/**
+	 * Get the maximum number of tiles that may be read concurrently when assembling a single region 
+	 * in {@link #readBufferedImage(RegionRequest)}.
+	 * <p>
+	 * Subclasses should override this to return 1 if they cannot benefit from parallel tile reading, 
+	 * e.g. because requests are synchronized on a single reader.
+	 * 
+	 * @return the maximum number of tiles to read concurrently; values &lt;= 1 indicate that tiles are read sequentially
+	 */
+	protected int getMaxParallelTileRequests() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Request all the specified tiles, passing each to the consumer along with its tile request as soon as it is available.
+	 * <p>
+	 * Tiles that are already cached are passed first. Any remaining tiles are read using the shared tile pool, 
+	 * up to a maximum of {@link #getMaxParallelTileRequests()} at a time. The calling thread also helps reading tiles, 
+	 * so that progress is made even whenever the shared pool is busy.
+	 * <p>
+	 * The consumer is always called from the calling thread, and so does not need to be thread-safe. 
+	 * The order in which tiles are passed to it is not defined.
+	 * 
+	 * @param tiles the tiles to request
+	 * @param consumer consumer for each tile request &amp; corresponding image (which may be null)
+	 * @throws IOException if any tile could not be read
+	 */
+	protected void readTiles(final Collection<TileRequest> tiles, final BiConsumer<TileRequest, BufferedImage> consumer) throws IOException {
+		// Use whatever we already have cached
+		List<TileRequest> missing = new ArrayList<>();
+		for (var tileRequest : tiles) {
+			BufferedImage imgCached = cache == null ? null : cache.get(tileRequest.getRegionRequest());
+			if (imgCached == null)
+				missing.add(tileRequest);
+			else
+				consumer.accept(tileRequest, imgCached);
+		}
+		
+		int nWorkers = Math.min(getMaxParallelTileRequests(), missing.size()) - 1;
+		if (nWorkers <= 0 || isTileReaderThread.get()) {
+			for (var tileRequest : missing)
+				consumer.accept(tileRequest, getTile(tileRequest));
+			return;
+		}
+		
+		logger.trace("Reading {} tiles with {} additional threads", missing.size(), nWorkers);
+		Queue<TileRequest> pending = new ConcurrentLinkedQueue<>(missing);
+		BlockingQueue<TileResult> results = new LinkedBlockingQueue<>();
+		Runnable worker = () -> {
+			isTileReaderThread.set(Boolean.TRUE);
+			try {
+				TileRequest tileRequest;
+				while ((tileRequest = pending.poll()) != null)
+					results.add(readTileResult(tileRequest));
+			} finally {
+				isTileReaderThread.remove();
+			}
+		};
+		for (int i = 0; i < nWorkers; i++)
+			tilePool.execute(worker);
+		
+		try {
+			for (int i = 0; i < missing.size(); i++) {
+				// Stitch whatever is ready, otherwise read the next tile ourselves
+				TileResult result = results.poll();
+				if (result == null) {
+					var tileRequest = pending.poll();
+					result = tileRequest == null ? results.take() : readTileResult(tileRequest);
+				}
+				if (result.exception != null)
+					throw result.exception;
+				consumer.accept(result.tileRequest, result.img);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading tiles", e);
+		} finally {
+			// Don't read any more tiles if we've stopped early
+			pending.clear();
+		}
+	}
+	
+	private TileResult readTileResult(final TileRequest tileRequest) {
+		try {
+			return new TileResult(tileRequest, getTile(tileRequest), null);
+		} catch (IOException e) {
+			return new TileResult(tileRequest, null, e);
+		} catch (Throwable t) {
+			// Always return a result, otherwise the calling thread would wait indefinitely
+			return new TileResult(tileRequest, null, new IOException(t));
+		}
+	}
+	
+	private static class TileResult {
+		
+		private final TileRequest tileRequest;
+		private final BufferedImage img;
+		private final IOException exception;
+		
+		private TileResult(final TileRequest tileRequest, final BufferedImage img, final IOException exception) {
+			this.tileRequest = tileRequest;
+			this.img = img;
+			this.exception = exception;
+		}
+		
+	}
+	
 	/**
 	 * Create the default (blank) RGB image for this server.
 	 * <p>
@@ -127,11 +286,13 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 			// Interpolate if downsampling
 			if (request.getDownsample() > 1)
 				g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-			for (TileRequest tileRequest : tiles) {
-				BufferedImage imgTile = getTile(tileRequest);
-				g2d.drawImage(imgTile, tileRequest.getImageX(), tileRequest.getImageY(), tileRequest.getImageWidth(), tileRequest.getImageHeight(), null);
+			try {
+				readTiles(tiles, (tileRequest, imgTile) -> {
+					g2d.drawImage(imgTile, tileRequest.getImageX(), tileRequest.getImageY(), tileRequest.getImageWidth(), tileRequest.getImageHeight(), null);
+				});
+			} finally {
+				g2d.dispose();
 			}
-			g2d.dispose();
 			
 			long endTime = System.currentTimeMillis();
 			logger.trace("Requested " + tiles.size() + " tiles in " + (endTime - startTime) + " ms (RGB)");
@@ -140,9 +301,6 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 		} else {
 			// Request all of the tiles we need & figure out image dimensions
 			// Do all this at the pyramid level of the tiles
-			WritableRaster raster = null;
-			ColorModel colorModel = null;
-			boolean alphaPremultiplied = false;
 			
 			// Get the dimensions, based on tile coordinates & at the tiled resolution
 			int tileMinX = Integer.MAX_VALUE;
@@ -161,31 +319,12 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 			}
 			
 			
-			for (var tileRequest : tiles) {
-				
-				BufferedImage imgTile = getTile(tileRequest);
-				if (imgTile != null) {
-					// Preallocate a raster if we need to, and everything else the tile might give us
-					if (raster == null) {
-						raster = imgTile.getRaster().createCompatibleWritableRaster(tileMaxX - tileMinX, tileMaxY - tileMinY);
-						colorModel = imgTile.getColorModel();
-						alphaPremultiplied = imgTile.isAlphaPremultiplied();							
-					}
-					// Insert the tile into the raster
-					int dx = tileRequest.getTileX() - tileMinX;
-					int dy = tileRequest.getTileY() - tileMinY;
-					if (dx >= raster.getWidth() ||
-							dy >= raster.getHeight()
-							)
-						continue;
-					raster.setRect(
-							dx,
-							dy,
-//							Math.min(raster.getWidth() - tileMinX, imgTile.getWidth()),
-//							Math.min(raster.getHeight() - tileMinY, imgTile.getHeight()),							
-							imgTile.getRaster());
-				}
-			}
+			var stitcher = new RasterStitcher(tileMinX, tileMinY, tileMaxX - tileMinX, tileMaxY - tileMinY);
+			readTiles(tiles, stitcher);
+			WritableRaster raster = stitcher.raster;
+			ColorModel colorModel = stitcher.colorModel;
+			boolean alphaPremultiplied = stitcher.alphaPremultiplied;
+			
 			// Maybe we don't have anything at all (which is not an error if the image is sparse!)
 			if (raster == null)
 				return null;
@@ -228,6 +367,47 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	}
 
 	
+	/**
+	 * Helper class to insert tiles into a single raster, preallocated according to the first tile received.
+	 */
+	private static class RasterStitcher implements BiConsumer<TileRequest, BufferedImage> {
+		
+		private final int tileMinX, tileMinY, width, height;
+		
+		private WritableRaster raster = null;
+		private ColorModel colorModel = null;
+		private boolean alphaPremultiplied = false;
+		
+		private RasterStitcher(int tileMinX, int tileMinY, int width, int height) {
+			this.tileMinX = tileMinX;
+			this.tileMinY = tileMinY;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public void accept(TileRequest tileRequest, BufferedImage imgTile) {
+			if (imgTile == null)
+				return;
+			// Preallocate a raster if we need to, and everything else the tile might give us
+			if (raster == null) {
+				raster = imgTile.getRaster().createCompatibleWritableRaster(width, height);
+				colorModel = imgTile.getColorModel();
+				alphaPremultiplied = imgTile.isAlphaPremultiplied();							
+			}
+			// Insert the tile into the raster
+			int dx = tileRequest.getTileX() - tileMinX;
+			int dy = tileRequest.getTileY() - tileMinY;
+			if (dx >= raster.getWidth() ||
+					dy >= raster.getHeight()
+					)
+				return;
+			raster.setRect(dx, dy, imgTile.getRaster());
+		}
+		
+	}
+
+	
 	/**
 	 * Resize the image to have the requested width/height, using area averaging & bilinear interpolation.
 	 * 
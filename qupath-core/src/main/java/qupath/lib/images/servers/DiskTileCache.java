@@ -0,0 +1,654 @@
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Persistent cache for image tiles, stored as uncompressed files within a directory.
+ * <p>
+ * This is intended as a second-level cache for servers where reading a tile is expensive (e.g. requiring HTTP requests
+ * or decoding a heavyweight format), so that tiles need not be read again after QuPath is restarted.
+ * Tiles are identified by the server path and {@link RegionRequest}, and so the server path is assumed to uniquely
+ * identify the pixels that will be returned.
+ * <p>
+ * The total size of all cached tiles is limited; when this is exceeded, the least recently used tiles are deleted.
+ * Tiles are written on a background thread, and read using memory-mapped files.
+ * Any tiles that were previously cached are indexed in the background, so that creating the cache is cheap.
+ * <p>
+ * Access times are recorded in memory whenever a tile is read, and written to the file modification times 
+ * separately from the tile writes, so that the least recently used order is retained when the cache is reopened.
+ * <p>
+ * Images using standard {@link BufferedImage} types can always be restored. Images with custom types require a
+ * {@link ColorModel}, which is taken from the most recent tile read directly from the same server. Until such a
+ * tile is available, cached tiles of a custom type are treated as missing.
+ *
+ * @author Pete Bankhead
+ *
+ * @see ImageServerProvider#setDiskTileCache(DiskTileCache)
+ */
+public class DiskTileCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(DiskTileCache.class);
+
+	private static final int MAGIC = 0x51505443; // 'QPTC'
+	private static final int VERSION = 1;
+	private static final String EXT = ".tile";
+
+	/**
+	 * Maximum number of tiles waiting to be written; beyond this, tiles will not be added to the cache.
+	 */
+	private static final int MAX_PENDING_WRITES = 256;
+
+	private final Path dir;
+	private volatile long maxSizeBytes;
+
+	/**
+	 * Sizes of all cached files, in access order (least recent first).
+	 */
+	private final LinkedHashMap<Path, Long> index = new LinkedHashMap<>(256, 0.75f, true);
+	private long totalBytes = 0L;
+	
+	/**
+	 * Released once any previously-cached tiles have been added to the index.
+	 */
+	private final CountDownLatch indexLatch = new CountDownLatch(1);
+	
+	/**
+	 * Times at which tiles were last read, which have not yet been written to the files.
+	 */
+	private final Map<Path, Long> pendingAccessTimes = new ConcurrentHashMap<>();
+	private final AtomicBoolean accessUpdateScheduled = new AtomicBoolean(false);
+
+	/**
+	 * Color models for custom image types, identified by server path.
+	 */
+	private final Map<String, ImageTemplate> templates = new ConcurrentHashMap<>();
+
+	private final ThreadPoolExecutor writer;
+	
+	/**
+	 * Executor used for housekeeping that must not be discarded (updating access times, evicting after resizing).
+	 */
+	private final ExecutorService maintenance;
+
+	/**
+	 * Create a cache within the specified directory, using any tiles that were previously cached there.
+	 * <p>
+	 * Existing tiles are indexed on a background thread; new tiles will only be written after this is complete.
+	 *
+	 * @param dir directory used to store the tiles; this will be created if necessary
+	 * @param maxSizeBytes maximum total size of all tiles that should be cached
+	 * @throws IOException if the directory could not be created
+	 */
+	public DiskTileCache(final File dir, final long maxSizeBytes) throws IOException {
+		this.dir = dir.toPath();
+		this.maxSizeBytes = maxSizeBytes;
+		Files.createDirectories(this.dir);
+		writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(MAX_PENDING_WRITES),
+				new SimpleThreadFactory("disk-tile-cache-", true),
+				new ThreadPoolExecutor.DiscardPolicy());
+		maintenance = Executors.newSingleThreadExecutor(new SimpleThreadFactory("disk-tile-cache-maintenance-", true));
+		// The queue is empty, so this can't be discarded - & all writes will be queued behind it
+		writer.execute(() -> {
+			try {
+				buildIndex();
+			} catch (IOException e) {
+				logger.warn("Unable to index disk tile cache {} ({})", dir, e.getLocalizedMessage());
+				logger.debug("", e);
+			} finally {
+				indexLatch.countDown();
+			}
+		});
+	}
+
+	/**
+	 * Get the directory containing cached tiles.
+	 * @return
+	 */
+	public File getDirectory() {
+		return dir.toFile();
+	}
+
+	/**
+	 * Get the maximum total size of the cached tiles.
+	 * @return
+	 */
+	public long getMaxSizeBytes() {
+		return maxSizeBytes;
+	}
+	
+	/**
+	 * Set the maximum total size of the cached tiles.
+	 * If the cache is currently larger than this, the least recently used tiles will be removed in the background.
+	 * @param maxSizeBytes
+	 */
+	public void setMaxSizeBytes(final long maxSizeBytes) {
+		long previous = this.maxSizeBytes;
+		this.maxSizeBytes = maxSizeBytes;
+		if (maxSizeBytes < previous && !maintenance.isShutdown())
+			maintenance.execute(this::evict);
+	}
+
+	/**
+	 * Get the current total size of the cached tiles.
+	 * @return
+	 */
+	public synchronized long getSizeBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Get the number of cached tiles.
+	 * @return
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	private void buildIndex() throws IOException {
+		List<Path> files;
+		try (Stream<Path> stream = Files.walk(dir, 2)) {
+			files = stream.filter(p -> p.toString().endsWith(EXT) && Files.isRegularFile(p)).collect(Collectors.toList());
+		}
+		// Add the least recently used files first
+		Map<Path, FileTime> times = new LinkedHashMap<>();
+		for (Path file : files)
+			times.put(file, Files.getLastModifiedTime(file));
+		files.sort(Comparator.comparing(times::get));
+		synchronized (this) {
+			for (Path file : files) {
+				long size = Files.size(file);
+				Long previous = index.put(file, size);
+				totalBytes += size - (previous == null ? 0L : previous);
+			}
+			logger.debug("Disk tile cache contains {} tiles ({} MB) in {}", index.size(), totalBytes / (1024 * 1024), dir);
+		}
+		evict();
+	}
+
+	/**
+	 * Request a tile from the cache.
+	 *
+	 * @param serverPath path of the server that supplied the tile
+	 * @param request region corresponding to the tile
+	 * @return the cached tile, or null if no suitable tile is available
+	 */
+	public BufferedImage get(final String serverPath, final RegionRequest request) {
+		Path path = getTilePath(serverPath, request);
+		boolean indexed;
+		synchronized (this) {
+			// Getting from the index also updates the access order
+			indexed = index.get(path) != null;
+		}
+		// If the index is still being built, the file may exist but not yet be indexed
+		if (!indexed && (indexLatch.getCount() == 0 || !Files.isRegularFile(path)))
+			return null;
+		try {
+			BufferedImage img = readTile(path, serverPath, getKey(serverPath, request));
+			if (img != null)
+				recordAccess(path);
+			return img;
+		} catch (Exception e) {
+			logger.warn("Unable to read cached tile {} ({})", path, e.getLocalizedMessage());
+			logger.debug("", e);
+			remove(path);
+			return null;
+		}
+	}
+
+	/**
+	 * Add a tile to the cache. The tile will be written on a background thread, and the request is ignored
+	 * if too many other tiles are already waiting to be written.
+	 *
+	 * @param serverPath path of the server that supplied the tile
+	 * @param request region corresponding to the tile
+	 * @param img the tile
+	 */
+	public void put(final String serverPath, final RegionRequest request, final BufferedImage img) {
+		if (img == null)
+			return;
+		if (img.getType() == BufferedImage.TYPE_CUSTOM || img.getType() == BufferedImage.TYPE_BYTE_INDEXED)
+			templates.put(serverPath, new ImageTemplate(img));
+		writer.execute(() -> {
+			Path path = getTilePath(serverPath, request);
+			try {
+				writeTile(path, getKey(serverPath, request), img);
+			} catch (Exception e) {
+				logger.warn("Unable to write cached tile {} ({})", path, e.getLocalizedMessage());
+				logger.debug("", e);
+			}
+		});
+	}
+
+	/**
+	 * Remove all cached tiles for the specified server path.
+	 *
+	 * @param serverPath
+	 */
+	public void clearCacheForServer(final String serverPath) {
+		Path serverDir = dir.resolve(getServerDirectoryName(serverPath));
+		List<Path> toRemove = new ArrayList<>();
+		synchronized (this) {
+			for (Path path : index.keySet()) {
+				if (serverDir.equals(path.getParent()))
+					toRemove.add(path);
+			}
+		}
+		for (Path path : toRemove)
+			remove(path);
+		templates.remove(serverPath);
+	}
+
+	/**
+	 * Stop writing tiles to the cache. Any pending writes will be completed, but no new tiles will be written.
+	 */
+	public void close() {
+		writer.shutdown();
+		if (!maintenance.isShutdown()) {
+			// Ensure any outstanding access times are written
+			maintenance.execute(this::writeAccessTimes);
+			maintenance.shutdown();
+		}
+	}
+	
+	/**
+	 * Wait for pending writes to complete after {@link #close()} has been called.
+	 */
+	boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+		long endTime = System.currentTimeMillis() + timeoutMillis;
+		return writer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS) &&
+				maintenance.awaitTermination(Math.max(0L, endTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Wait for any tiles previously stored in the cache directory to be indexed.
+	 */
+	boolean awaitIndex(long timeoutMillis) throws InterruptedException {
+		return indexLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Record that a tile has been read, so that its modification time can be updated to retain the 
+	 * access order the next time the cache is opened.
+	 * Times are collected in memory, and written in batches on the maintenance thread.
+	 */
+	private void recordAccess(Path path) {
+		pendingAccessTimes.put(path, System.currentTimeMillis());
+		if (accessUpdateScheduled.compareAndSet(false, true) && !maintenance.isShutdown()) {
+			try {
+				maintenance.execute(this::writeAccessTimes);
+			} catch (RejectedExecutionException e) {
+				logger.trace("Unable to update access times after cache closed");
+			}
+		}
+	}
+	
+	private void writeAccessTimes() {
+		// Reset the flag first, so that any accesses after this point will be written by this call or a later one
+		accessUpdateScheduled.set(false);
+		for (Path path : pendingAccessTimes.keySet()) {
+			Long time = pendingAccessTimes.remove(path);
+			if (time == null)
+				continue;
+			try {
+				if (Files.exists(path))
+					Files.setLastModifiedTime(path, FileTime.fromMillis(time));
+			} catch (IOException e) {
+				logger.trace("Unable to update last modified time for {}", path);
+			}
+		}
+	}
+
+	private void remove(Path path) {
+		synchronized (this) {
+			Long size = index.remove(path);
+			if (size != null)
+				totalBytes -= size;
+		}
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			logger.warn("Unable to delete cached tile {}", path);
+		}
+	}
+
+	/**
+	 * Remove the least recently used tiles until the cache size is within its limit.
+	 */
+	private void evict() {
+		List<Path> toRemove = new ArrayList<>();
+		synchronized (this) {
+			Iterator<Map.Entry<Path, Long>> iter = index.entrySet().iterator();
+			while (totalBytes > maxSizeBytes && iter.hasNext()) {
+				var entry = iter.next();
+				totalBytes -= entry.getValue();
+				toRemove.add(entry.getKey());
+				iter.remove();
+			}
+		}
+		for (Path path : toRemove) {
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				logger.warn("Unable to delete cached tile {}", path);
+			}
+		}
+		if (!toRemove.isEmpty())
+			logger.trace("Removed {} tiles from disk cache", toRemove.size());
+	}
+
+
+	private Path getTilePath(String serverPath, RegionRequest request) {
+		String name = String.format("%s_%d_%d_%d_%d_z%d_t%d%s",
+				Double.toString(request.getDownsample()),
+				request.getX(), request.getY(), request.getWidth(), request.getHeight(),
+				request.getZ(), request.getT(), EXT);
+		return dir.resolve(getServerDirectoryName(serverPath)).resolve(name);
+	}
+
+	/**
+	 * Full key stored within each file, used to check that the file really corresponds to the request.
+	 */
+	private static String getKey(String serverPath, RegionRequest request) {
+		return serverPath + "|" + request.getDownsample() + "|" +
+				request.getX() + "|" + request.getY() + "|" + request.getWidth() + "|" + request.getHeight() + "|" +
+				request.getZ() + "|" + request.getT();
+	}
+
+	private static String getServerDirectoryName(String serverPath) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(serverPath.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 16; i++)
+				sb.append(String.format("%02x", digest[i]));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Shouldn't happen, SHA-256 is required by the Java platform
+			return Integer.toHexString(serverPath.hashCode());
+		}
+	}
+
+
+	/**
+	 * Number of bytes used to store each sample for a specified band.
+	 */
+	private static int getBytesPerSample(Raster raster, int band) {
+		int dataType = raster.getDataBuffer().getDataType();
+		if (dataType == DataBuffer.TYPE_FLOAT)
+			return 4;
+		if (dataType == DataBuffer.TYPE_DOUBLE)
+			return 8;
+		int bits = raster.getSampleModel().getSampleSize(band);
+		if (bits <= 8)
+			return 1;
+		if (bits <= 16)
+			return 2;
+		return 4;
+	}
+
+	private void writeTile(Path path, String key, BufferedImage img) throws IOException {
+		WritableRaster raster = img.getRaster();
+		int w = raster.getWidth();
+		int h = raster.getHeight();
+		int nBands = raster.getNumBands();
+		int dataType = raster.getDataBuffer().getDataType();
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+		int imageType = img.getType() == BufferedImage.TYPE_BYTE_INDEXED ? BufferedImage.TYPE_CUSTOM : img.getType();
+		int headerBytes = 4 * 9 + keyBytes.length;
+		long dataBytes = 0;
+		for (int b = 0; b < nBands; b++)
+			dataBytes += (long)w * h * getBytesPerSample(raster, b);
+		if (headerBytes + dataBytes > Integer.MAX_VALUE)
+			return;
+
+		ByteBuffer buffer = ByteBuffer.allocate((int)(headerBytes + dataBytes));
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(keyBytes.length);
+		buffer.put(keyBytes);
+		buffer.putInt(imageType);
+		buffer.putInt(img.isAlphaPremultiplied() ? 1 : 0);
+		buffer.putInt(w);
+		buffer.putInt(h);
+		buffer.putInt(nBands);
+		buffer.putInt(dataType);
+		for (int b = 0; b < nBands; b++) {
+			switch (getBytesPerSample(raster, b)) {
+			case 8:
+				buffer.asDoubleBuffer().put(raster.getSamples(0, 0, w, h, b, (double[])null));
+				buffer.position(buffer.position() + w * h * 8);
+				break;
+			case 4:
+				if (dataType == DataBuffer.TYPE_FLOAT)
+					buffer.asFloatBuffer().put(raster.getSamples(0, 0, w, h, b, (float[])null));
+				else
+					buffer.asIntBuffer().put(raster.getSamples(0, 0, w, h, b, (int[])null));
+				buffer.position(buffer.position() + w * h * 4);
+				break;
+			case 2:
+				for (int v : raster.getSamples(0, 0, w, h, b, (int[])null))
+					buffer.putShort((short)v);
+				break;
+			default:
+				for (int v : raster.getSamples(0, 0, w, h, b, (int[])null))
+					buffer.put((byte)v);
+			}
+		}
+		buffer.flip();
+
+		// Write to a temporary file & then move, so that incomplete tiles are never read
+		Files.createDirectories(path.getParent());
+		Path temp = Files.createTempFile(path.getParent(), "tile-", ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		long size = headerBytes + dataBytes;
+		synchronized (this) {
+			Long previous = index.put(path, size);
+			totalBytes += size - (previous == null ? 0L : previous);
+		}
+		evict();
+	}
+
+	private BufferedImage readTile(Path path, String serverPath, String key) throws IOException {
+		// Read into a heap buffer rather than mapping the file, since a mapping can't be released explicitly 
+		// & would prevent the file from being deleted or replaced on some platforms until garbage collection
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Cached tile is too large");
+			buffer = ByteBuffer.allocate((int)size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new IOException("Unexpected end of cached tile");
+			}
+			buffer.flip();
+		}
+		if (buffer.getInt() != MAGIC)
+			throw new IOException("Not a cached tile");
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported cached tile version " + version);
+		byte[] keyBytes = new byte[buffer.getInt()];
+		buffer.get(keyBytes);
+		if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+			logger.debug("Cached tile key mismatch for {}", path);
+			return null;
+		}
+		int imageType = buffer.getInt();
+		boolean alphaPremultiplied = buffer.getInt() != 0;
+		int w = buffer.getInt();
+		int h = buffer.getInt();
+		int nBands = buffer.getInt();
+		int dataType = buffer.getInt();
+
+		// Create an empty image of the right kind
+		BufferedImage img;
+		if (imageType == BufferedImage.TYPE_CUSTOM) {
+			ImageTemplate template = templates.get(serverPath);
+			if (template == null)
+				return null;
+			img = template.createImage(w, h);
+		} else
+			img = new BufferedImage(w, h, imageType);
+		WritableRaster raster = img.getRaster();
+		if (raster.getNumBands() != nBands || raster.getDataBuffer().getDataType() != dataType || img.isAlphaPremultiplied() != alphaPremultiplied) {
+			logger.debug("Cached tile is not compatible with the current image type: {}", path);
+			return null;
+		}
+
+		int n = w * h;
+		for (int b = 0; b < nBands; b++) {
+			switch (getBytesPerSample(raster, b)) {
+			case 8:
+				double[] doubles = new double[n];
+				buffer.asDoubleBuffer().get(doubles);
+				buffer.position(buffer.position() + n * 8);
+				raster.setSamples(0, 0, w, h, b, doubles);
+				break;
+			case 4:
+				if (dataType == DataBuffer.TYPE_FLOAT) {
+					float[] floats = new float[n];
+					buffer.asFloatBuffer().get(floats);
+					raster.setSamples(0, 0, w, h, b, floats);
+				} else {
+					int[] ints = new int[n];
+					buffer.asIntBuffer().get(ints);
+					raster.setSamples(0, 0, w, h, b, ints);
+				}
+				buffer.position(buffer.position() + n * 4);
+				break;
+			case 2:
+				if (!readBandDirectly(buffer, raster, b, 2)) {
+					short[] shorts = new short[n];
+					buffer.asShortBuffer().get(shorts);
+					int[] samples = new int[n];
+					boolean signed = dataType == DataBuffer.TYPE_SHORT;
+					for (int i = 0; i < n; i++)
+						samples[i] = signed ? shorts[i] : shorts[i] & 0xFFFF;
+					raster.setSamples(0, 0, w, h, b, samples);
+				}
+				buffer.position(buffer.position() + n * 2);
+				break;
+			default:
+				if (!readBandDirectly(buffer, raster, b, 1)) {
+					byte[] bytes = new byte[n];
+					buffer.duplicate().get(bytes);
+					int[] samples = new int[n];
+					for (int i = 0; i < n; i++)
+						samples[i] = bytes[i] & 0xFF;
+					raster.setSamples(0, 0, w, h, b, samples);
+				}
+				buffer.position(buffer.position() + n);
+			}
+		}
+		return img;
+	}
+
+	
+	/**
+	 * Copy the samples for one band straight into the data array of a raster, if the band is stored contiguously 
+	 * with one sample per array element. The position of the buffer is unchanged.
+	 * 
+	 * @return true if the samples were copied, false if they need to be set through the raster instead
+	 */
+	private static boolean readBandDirectly(ByteBuffer buffer, WritableRaster raster, int band, int bytesPerSample) {
+		if (!(raster.getSampleModel() instanceof ComponentSampleModel) || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0)
+			return false;
+		ComponentSampleModel model = (ComponentSampleModel)raster.getSampleModel();
+		int w = raster.getWidth();
+		if (model.getPixelStride() != 1 || model.getScanlineStride() != w)
+			return false;
+		DataBuffer db = raster.getDataBuffer();
+		int bank = model.getBankIndices()[band];
+		int offset = db.getOffsets()[bank] + model.getBandOffsets()[band];
+		int n = w * raster.getHeight();
+		if (bytesPerSample == 1 && db instanceof DataBufferByte)
+			buffer.duplicate().get(((DataBufferByte)db).getData(bank), offset, n);
+		else if (bytesPerSample == 2 && db instanceof DataBufferUShort)
+			buffer.asShortBuffer().get(((DataBufferUShort)db).getData(bank), offset, n);
+		else if (bytesPerSample == 2 && db instanceof DataBufferShort)
+			buffer.asShortBuffer().get(((DataBufferShort)db).getData(bank), offset, n);
+		else
+			return false;
+		return true;
+	}
+
+
+	/**
+	 * Information needed to create images with a custom type.
+	 */
+	private static class ImageTemplate {
+
+		private final ColorModel colorModel;
+		private final WritableRaster raster;
+		private final boolean alphaPremultiplied;
+
+		private ImageTemplate(BufferedImage img) {
+			this.colorModel = img.getColorModel();
+			// Retain only a minimal raster, to avoid holding on to the tile itself
+			this.raster = img.getRaster().createCompatibleWritableRaster(1, 1);
+			this.alphaPremultiplied = img.isAlphaPremultiplied();
+		}
+
+		private BufferedImage createImage(int width, int height) {
+			return new BufferedImage(colorModel, raster.createCompatibleWritableRaster(width, height), alphaPremultiplied, null);
+		}
+
+	}
+
+}
@@ -55,6 +55,8 @@ public class ImageServerProvider {
 	
 	private static Map<Class<?>, Map<RegionRequest, ?>> cacheMap = new HashMap<>();
 	
+	private static DiskTileCache diskTileCache = null;
+	
 	@SuppressWarnings("rawtypes")
 	private static ServiceLoader<ImageServerBuilder> serviceLoader = ServiceLoader.load(ImageServerBuilder.class);
 	
@@ -66,6 +68,26 @@ public class ImageServerProvider {
 		return (Map<RegionRequest, T>)cacheMap.get(cls);
 	}
 	
+	/**
+	 * Set a persistent cache that may be used by servers for which reading tiles is expensive.
+	 * 
+	 * @param cache the cache, or null if no persistent cache should be used
+	 * 
+	 * @see AbstractTileableImageServer#useDiskTileCache()
+	 */
+	public static void setDiskTileCache(final DiskTileCache cache) {
+		diskTileCache = cache;
+	}
+	
+	/**
+	 * Get the persistent tile cache, if one has been set.
+	 * 
+	 * @return the cache, or null if no persistent cache should be used
+	 */
+	public static DiskTileCache getDiskTileCache() {
+		return diskTileCache;
+	}
+	
 	/**
 	 * Replace the default service loader with another.
 	 * 
@@ -0,0 +1,282 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Cleaner.Cleanable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.DeferredObjectLoader;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Temporary store for detections that have been removed from memory, but which still belong to a hierarchy.
+ * <p>
+ * Detections are added in batches (e.g. one for each tile processed by a detection plugin), which are written
+ * to a temporary file using the same compact encoding as {@link HierarchyBinaryIO}.
+ * Only a short summary of each batch is kept in memory: its parent, bounding box and position within the file.
+ * <p>
+ * The store acts as a {@link DeferredObjectLoader}, so that the detections are added back to their parents
+ * only when they are needed. The file is deleted when the store is closed, or when it is no longer reachable.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class DetectionSpillStore implements DeferredObjectLoader {
+
+	final private static Logger logger = LoggerFactory.getLogger(DetectionSpillStore.class);
+
+	private static final Cleaner cleaner = Cleaner.create();
+
+	private final RandomAccessFile file;
+	private final Cleanable cleanable;
+
+	private final List<Batch> batches = new ArrayList<>();
+	private long length = 0;
+	private int nLoaded = 0;
+	private long nObjects = 0;
+	private boolean closed = false;
+
+	private DetectionSpillStore(final File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.cleanable = cleaner.register(this, new FileDeleter(this.file, file));
+	}
+
+	/**
+	 * Create a new store backed by a temporary file.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public static DetectionSpillStore createTemporary() throws IOException {
+		File file = File.createTempFile("qupath-detections-", ".bin");
+		file.deleteOnExit();
+		return new DetectionSpillStore(file);
+	}
+
+	/**
+	 * Write detections to the store.  These should already have been removed from any parent,
+	 * and should only contain other detections as descendants.
+	 *
+	 * @param parent the object to which the detections should be added when they are loaded
+	 * @param pathObjects the detections
+	 * @throws IOException
+	 */
+	public synchronized void add(final PathObject parent, final Collection<? extends PathObject> pathObjects) throws IOException {
+		if (closed)
+			throw new IOException("Detection store has been closed");
+		if (pathObjects.isEmpty())
+			return;
+		var batch = new Batch(parent, pathObjects.size());
+		for (var pathObject : pathObjects)
+			batch.updateBounds(pathObject);
+		var bytes = new ByteArrayOutputStream();
+		HierarchyBinaryIO.writeDetections(bytes, new ArrayList<>(pathObjects));
+		batch.offset = length;
+		batch.length = bytes.size();
+		file.seek(length);
+		file.write(bytes.toByteArray(), 0, bytes.size());
+		length += batch.length;
+		batches.add(batch);
+		nObjects += batch.nObjects;
+		logger.trace("{} detections written to store for {}", batch.nObjects, parent);
+	}
+
+	/**
+	 * Get the number of detections that have been written to the store, but not yet loaded.
+	 *
+	 * @return
+	 */
+	public synchronized long getPendingCount() {
+		long n = nObjects;
+		for (var batch : batches) {
+			if (batch.loaded)
+				n -= batch.nObjects;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns true if the store has been closed, and so can't accept any more detections.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public synchronized Collection<PathObject> loadObjectsForRegion(final ImageRegion region) throws IOException {
+		return load(batch -> batch.overlaps(region));
+	}
+
+	@Override
+	public synchronized Collection<PathObject> loadDescendants(final PathObject parent) throws IOException {
+		return load(batch -> isAncestor(parent, batch.parent));
+	}
+
+	@Override
+	public synchronized Collection<PathObject> loadAll() throws IOException {
+		return load(batch -> true);
+	}
+
+	@Override
+	public synchronized boolean isComplete() {
+		return closed || nLoaded == batches.size();
+	}
+
+	private static boolean isAncestor(final PathObject ancestor, PathObject pathObject) {
+		while (pathObject != null) {
+			if (pathObject == ancestor)
+				return true;
+			pathObject = pathObject.getParent();
+		}
+		return false;
+	}
+
+	private Collection<PathObject> load(final Predicate<Batch> predicate) throws IOException {
+		if (isComplete())
+			return Collections.emptyList();
+		List<PathObject> loaded = new ArrayList<>();
+		for (var batch : batches) {
+			if (batch.loaded || !predicate.test(batch))
+				continue;
+			byte[] buffer = new byte[batch.length];
+			file.seek(batch.offset);
+			file.readFully(buffer);
+			var pathObjects = HierarchyBinaryIO.readDetections(ByteBuffer.wrap(buffer));
+			batch.parent.addPathObjects(pathObjects);
+			loaded.addAll(pathObjects);
+			batch.loaded = true;
+			nLoaded++;
+		}
+		if (!loaded.isEmpty())
+			logger.debug("{} detections loaded from store ({} of {} batches loaded)", loaded.size(), nLoaded, batches.size());
+		return loaded;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		batches.clear();
+		cleanable.clean();
+	}
+
+
+	/**
+	 * Summary of a batch of detections written to the file.
+	 */
+	private static class Batch {
+
+		private final PathObject parent;
+		private final int nObjects;
+		private int z = -1, t = -1;
+		private double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		private double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		private long offset;
+		private int length;
+		private boolean loaded = false;
+
+		Batch(final PathObject parent, final int nObjects) {
+			this.parent = parent;
+			this.nObjects = nObjects;
+		}
+
+		/**
+		 * Include the ROIs of the object and all its descendants in the bounds.
+		 */
+		private void updateBounds(final PathObject pathObject) {
+			ROI roi = pathObject.getROI();
+			if (roi != null) {
+				// Mixed planes are very unlikely, but if they occur then the batch must be loaded for any region
+				if (z == -1 && t == -1) {
+					z = roi.getZ();
+					t = roi.getT();
+				} else if (z != roi.getZ() || t != roi.getT()) {
+					z = Integer.MIN_VALUE;
+					t = Integer.MIN_VALUE;
+				}
+				minX = Math.min(minX, roi.getBoundsX());
+				minY = Math.min(minY, roi.getBoundsY());
+				maxX = Math.max(maxX, roi.getBoundsX() + roi.getBoundsWidth());
+				maxY = Math.max(maxY, roi.getBoundsY() + roi.getBoundsHeight());
+			}
+			if (pathObject.hasChildren()) {
+				for (var child : pathObject.getChildObjects())
+					updateBounds(child);
+			}
+		}
+
+		boolean overlaps(final ImageRegion region) {
+			if (z == Integer.MIN_VALUE)
+				return true;
+			return z == region.getZ() && t == region.getT() &&
+					maxX >= region.getMinX() && minX <= region.getMaxX() &&
+					maxY >= region.getMinY() && minY <= region.getMaxY();
+		}
+
+	}
+
+
+	/**
+	 * Closes &amp; deletes a file, without holding a reference to whatever was using it.
+	 */
+	private static class FileDeleter implements Runnable {
+
+		private final RandomAccessFile raf;
+		private final File file;
+
+		FileDeleter(final RandomAccessFile raf, final File file) {
+			this.raf = raf;
+			this.file = file;
+		}
+
+		@Override
+		public void run() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close file: {}", e.getLocalizedMessage());
+			}
+			if (!file.delete())
+				logger.debug("Unable to delete {}", file);
+		}
+
+	}
+
+}
@@ -0,0 +1,1866 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.io;
+
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Cleaner.Cleanable;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.PathRootObject;
+import qupath.lib.objects.PathTileObject;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.hierarchy.DefaultTMAGrid;
+import qupath.lib.objects.hierarchy.DeferredObjectLoader;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.TMAGrid;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.EllipseROI;
+import qupath.lib.roi.LineROI;
+import qupath.lib.roi.PointsROI;
+import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.PolylineROI;
+import qupath.lib.roi.AreaROI;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Read and write a {@link PathObjectHierarchy} using a compact, versioned binary format.
+ * <p>
+ * Objects are written depth-first in blocks of up to {@link #BLOCK_SIZE} objects.
+ * Within each block, object properties are stored column-wise: ROI vertices are packed into float arrays,
+ * measurement values are written as primitive blocks for all objects sharing the same measurement names,
+ * and classifications and measurement names are referenced by index into tables that grow as the stream is written.
+ * This means that only a single block needs to be held in memory in addition to the objects themselves.
+ * <p>
+ * Objects that cannot be represented in this way (e.g. subclasses of the standard object types)
+ * fall back to Java serialization, so that nothing is lost.
+ * <p>
+ * Detections that are direct children of other object types are written separately after everything else, 
+ * grouped into spatial tiles according to their centroids (along with any descendants).
+ * Each tile is self-contained and preceded by its bounding box, which means that when reading from a file 
+ * detections can be loaded on demand for the regions that are actually needed - 
+ * see {@link #readHierarchyDeferred(File, long)}.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class HierarchyBinaryIO {
+
+	final private static Logger logger = LoggerFactory.getLogger(HierarchyBinaryIO.class);
+
+	/**
+	 * Identifier at the start of every binary hierarchy ('QPHB').
+	 */
+	static final int MAGIC = 0x51504842;
+
+	/**
+	 * Current format version.
+	 * Version 2 added the tiled detection section.
+	 */
+	static final int VERSION = 2;
+
+	/**
+	 * Maximum number of objects written within a single block.
+	 */
+	static final int BLOCK_SIZE = 8192;
+
+	/**
+	 * Size of the square tiles used to group detections, in pixels at the full image resolution.
+	 */
+	static final int DETECTION_TILE_SIZE = 1024;
+
+	private static final byte KIND_ROOT = 0;
+	private static final byte KIND_ANNOTATION = 1;
+	private static final byte KIND_DETECTION = 2;
+	private static final byte KIND_CELL = 3;
+	private static final byte KIND_TILE = 4;
+	private static final byte KIND_TMA_CORE = 5;
+	private static final byte KIND_SERIALIZED = 6;
+
+	private static final byte ROI_NONE = 0;
+	private static final byte ROI_RECTANGLE = 1;
+	private static final byte ROI_ELLIPSE = 2;
+	private static final byte ROI_LINE = 3;
+	private static final byte ROI_POINTS = 4;
+	private static final byte ROI_POLYGON = 5;
+	private static final byte ROI_POLYLINE = 6;
+	private static final byte ROI_AREA = 7;
+	private static final byte ROI_SERIALIZED = 8;
+
+	private static final int FLAG_NAME = 1;
+	private static final int FLAG_COLOR = 1 << 1;
+	private static final int FLAG_PROBABILITY = 1 << 2;
+	private static final int FLAG_LOCKED = 1 << 3;
+	private static final int FLAG_DESCRIPTION = 1 << 4;
+	private static final int FLAG_METADATA = 1 << 5;
+	private static final int FLAG_MISSING = 1 << 6;
+	private static final int FLAG_NUCLEUS = 1 << 7;
+
+	private static final int GRID_NONE = 0;
+	private static final int GRID_INDEXED = 1;
+	private static final int GRID_SERIALIZED = 2;
+
+	private static final Cleaner cleaner = Cleaner.create();
+
+	private HierarchyBinaryIO() {}
+
+
+	/**
+	 * Write a hierarchy to an output stream.
+	 * The stream is flushed, but not closed.
+	 *
+	 * @param stream
+	 * @param hierarchy
+	 * @throws IOException
+	 */
+	public static void writeHierarchy(final OutputStream stream, final PathObjectHierarchy hierarchy) throws IOException {
+		new HierarchyWriter(stream).write(hierarchy);
+	}
+
+	/**
+	 * Read a hierarchy from an input stream, starting from the binary hierarchy identifier.
+	 * The stream is not closed.
+	 *
+	 * @param stream
+	 * @return
+	 * @throws IOException if the stream does not contain a binary hierarchy, or it cannot be read
+	 */
+	public static PathObjectHierarchy readHierarchy(final InputStream stream) throws IOException {
+		return new HierarchyReader(stream).read();
+	}
+
+	/**
+	 * Read a hierarchy from a file, starting at the specified offset, deferring the loading of tiled detections until they are first requested.
+	 * <p>
+	 * All other objects (e.g. annotations, TMA cores) are read immediately.
+	 * The file is kept open until all detections have been loaded, the hierarchy's loader is closed, 
+	 * or the hierarchy is no longer reachable. It should not be modified in the meantime.
+	 *
+	 * @param file
+	 * @param offset the position within the file at which the binary hierarchy starts
+	 * @return
+	 * @throws IOException if the file does not contain a binary hierarchy at the offset, or it cannot be read
+	 *
+	 * @see PathObjectHierarchy#setDeferredObjectLoader(DeferredObjectLoader)
+	 */
+	public static PathObjectHierarchy readHierarchyDeferred(final File file, final long offset) throws IOException {
+		try (var fileStream = new FileInputStream(file)) {
+			skipFully(fileStream, offset);
+			var stream = new CountingInputStream(new BufferedInputStream(fileStream), offset);
+			return new HierarchyReader(stream).readDeferred(file, stream);
+		}
+	}
+
+
+	private static byte[] serialize(Object object) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		try (var out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void skipFully(InputStream stream, long n) throws IOException {
+		while (n > 0) {
+			long skipped = stream.skip(n);
+			if (skipped <= 0) {
+				if (stream.read() < 0)
+					throw new EOFException();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	private static Object deserialize(byte[] bytes) throws IOException {
+		try (var in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unable to deserialize object", e);
+		}
+	}
+
+
+	private static class HierarchyWriter {
+
+		private final DataOutputStream out;
+		private final BlockBuffer buffer;
+
+		// Tables shared by all blocks, along with the entries that haven't been written yet
+		private final Map<PathClass, Integer> classTable = new IdentityHashMap<>();
+		private final List<PathClass> pendingClasses = new ArrayList<>();
+		private final Map<String, Integer> nameTable = new HashMap<>();
+		private final List<String> pendingNames = new ArrayList<>();
+		private final Map<Layout, Integer> layoutTable = new HashMap<>();
+		private final List<Layout> pendingLayouts = new ArrayList<>();
+		private Layout lastLayout = null;
+
+		// TMA cores, mapped to their indices in the order objects are written
+		private final Map<PathObject, Integer> coreIndices = new IdentityHashMap<>();
+		private long objectCount = 0;
+
+		private final List<PathObject> block = new ArrayList<>(BLOCK_SIZE);
+		private final IntColumn blockChildCounts = new IntColumn();
+
+		HierarchyWriter(OutputStream stream) {
+			this(stream, new BlockBuffer());
+		}
+
+		HierarchyWriter(OutputStream stream, BlockBuffer buffer) {
+			this.out = new DataOutputStream(stream);
+			this.buffer = buffer;
+		}
+
+		void write(PathObjectHierarchy hierarchy) throws IOException {
+			long startTime = System.currentTimeMillis();
+
+			// Everything needs to be written, including anything not yet loaded
+			hierarchy.loadDeferredObjects();
+
+			TMAGrid grid = hierarchy.getTMAGrid();
+			if (grid != null) {
+				for (var core : grid.getTMACoreList())
+					coreIndices.put(core, -1);
+			}
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			// Serialized grids contain all their descendants, so we can't separate detections from their cores
+			var tiles = grid == null || grid instanceof DefaultTMAGrid ? new DetectionTiles() : null;
+			writeObjects(Collections.singletonList(hierarchy.getRootObject()), tiles);
+
+			writeGrid(grid);
+
+			if (tiles == null)
+				out.writeInt(0);
+			else
+				tiles.write(out, buffer);
+			out.flush();
+
+			long endTime = System.currentTimeMillis();
+			logger.debug("{} objects written in {} ms", objectCount, endTime - startTime);
+		}
+
+		/**
+		 * Write objects and their descendants as a series of blocks, followed by a terminating zero.
+		 *
+		 * @param pathObjects the objects to write
+		 * @param tiles if not null, detections that are children of other objects are added to the tiles rather than being written
+		 * @throws IOException
+		 */
+		void writeObjects(List<PathObject> pathObjects, DetectionTiles tiles) throws IOException {
+			// Traverse depth-first, recording the number of children for each object.
+			// Snapshots of child lists are used so that counts & contents are consistent.
+			Deque<Iterator<PathObject>> stack = new ArrayDeque<>();
+			stack.push(pathObjects.iterator());
+			while (!stack.isEmpty()) {
+				var iter = stack.peek();
+				if (!iter.hasNext()) {
+					stack.pop();
+					continue;
+				}
+				var pathObject = iter.next();
+				if (getKind(pathObject) == KIND_SERIALIZED || !pathObject.hasChildren()) {
+					// Any children will be serialized too
+					add(pathObject, 0);
+					continue;
+				}
+				List<PathObject> children = new ArrayList<>(pathObject.getChildObjects());
+				if (tiles != null && !pathObject.isDetection()) {
+					int index = (int)objectCount;
+					List<PathObject> remainingChildren = new ArrayList<>(children.size());
+					for (int i = 0; i < children.size(); i++) {
+						var child = children.get(i);
+						if (DetectionTiles.canDefer(child))
+							tiles.add(child, index, i);
+						else
+							remainingChildren.add(child);
+					}
+					children = remainingChildren;
+				}
+				add(pathObject, children.size());
+				if (!children.isEmpty())
+					stack.push(children.iterator());
+			}
+			flushBlock();
+			out.writeInt(0);
+		}
+
+		private void add(PathObject pathObject, int nChildren) throws IOException {
+			if (coreIndices.containsKey(pathObject))
+				coreIndices.put(pathObject, (int)objectCount);
+			objectCount++;
+			block.add(pathObject);
+			blockChildCounts.add(nChildren);
+			if (block.size() >= BLOCK_SIZE)
+				flushBlock();
+		}
+
+		private void writeGrid(TMAGrid grid) throws IOException {
+			if (grid == null) {
+				out.writeInt(GRID_NONE);
+				return;
+			}
+			var cores = grid.getTMACoreList();
+			if (grid instanceof DefaultTMAGrid && cores.stream().allMatch(c -> coreIndices.get(c) >= 0)) {
+				out.writeInt(GRID_INDEXED);
+				out.writeInt(grid.getGridWidth());
+				out.writeInt(cores.size());
+				for (var core : cores)
+					out.writeInt(coreIndices.get(core));
+			} else {
+				logger.debug("TMA grid will be serialized");
+				out.writeInt(GRID_SERIALIZED);
+				byte[] bytes = serialize(grid);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+
+		private void flushBlock() throws IOException {
+			if (block.isEmpty())
+				return;
+
+			int n = block.size();
+			byte[] kinds = new byte[n];
+			int[] classes = new int[n];
+			byte[] flags = new byte[n];
+			int[] layouts = new int[n];
+			for (int i = 0; i < n; i++) {
+				var pathObject = block.get(i);
+				kinds[i] = getKind(pathObject);
+				if (kinds[i] == KIND_SERIALIZED) {
+					classes[i] = -1;
+					layouts[i] = -1;
+					continue;
+				}
+				classes[i] = kinds[i] == KIND_ROOT ? -1 : getClassIndex(pathObject.getPathClass());
+				flags[i] = (byte)getFlags(pathObject, kinds[i]);
+				layouts[i] = pathObject.hasMeasurements() ? getLayoutIndex(pathObject.getMeasurementList()) : -1;
+			}
+
+			var buf = buffer.reset();
+
+			// Write any new table entries
+			buf.putInt(pendingClasses.size());
+			for (var pathClass : pendingClasses) {
+				buf.putInt(getClassIndex(pathClass.getParentClass()));
+				buf.putString(pathClass.getName());
+				Integer color = pathClass.getColor();
+				buf.putBoolean(color != null);
+				buf.putInt(color == null ? 0 : color.intValue());
+			}
+			pendingClasses.clear();
+			buf.putInt(pendingNames.size());
+			for (var name : pendingNames)
+				buf.putString(name);
+			pendingNames.clear();
+			buf.putInt(pendingLayouts.size());
+			for (var layout : pendingLayouts) {
+				buf.putInt(layout.names.length);
+				buf.putInts(layout.names, layout.names.length);
+			}
+			pendingLayouts.clear();
+
+			// Write the main columns
+			buf.putInt(n);
+			buf.putBytes(kinds, n);
+			buf.putInts(blockChildCounts.values, n);
+			buf.putInts(classes, n);
+			buf.putBytes(flags, n);
+
+			// Write optional properties
+			for (int i = 0; i < n; i++) {
+				if ((flags[i] & FLAG_NAME) != 0)
+					buf.putString(block.get(i).getName());
+			}
+			for (int i = 0; i < n; i++) {
+				if ((flags[i] & FLAG_COLOR) != 0)
+					buf.putInt(block.get(i).getColorRGB());
+			}
+			for (int i = 0; i < n; i++) {
+				if ((flags[i] & FLAG_PROBABILITY) != 0)
+					buf.putDouble(block.get(i).getClassProbability());
+			}
+			for (int i = 0; i < n; i++) {
+				if ((flags[i] & FLAG_DESCRIPTION) != 0)
+					buf.putString(((PathAnnotationObject)block.get(i)).getDescription());
+			}
+			for (int i = 0; i < n; i++) {
+				if ((flags[i] & FLAG_METADATA) != 0) {
+					var map = ((TMACoreObject)block.get(i)).getMetadataMap();
+					buf.putInt(map.size());
+					for (Entry<String, String> entry : map.entrySet()) {
+						buf.putString(entry.getKey());
+						buf.putString(entry.getValue());
+					}
+				}
+			}
+
+			writeROIs(buf, kinds, flags);
+			writeMeasurements(buf, layouts);
+
+			// Write any objects that require serialization
+			for (int i = 0; i < n; i++) {
+				if (kinds[i] == KIND_SERIALIZED) {
+					byte[] bytes = serialize(block.get(i));
+					buf.putInt(bytes.length);
+					buf.putBytes(bytes, bytes.length);
+				}
+			}
+
+			out.writeInt(buf.size());
+			out.write(buf.array(), 0, buf.size());
+
+			block.clear();
+			blockChildCounts.clear();
+		}
+
+
+		private void writeROIs(BlockBuffer buf, byte[] kinds, byte[] flags) throws IOException {
+			var types = new ByteColumn();
+			var planes = new IntColumn();
+			var sizes = new IntColumn();
+			var doubles = new DoubleColumn();
+			var floats = new FloatColumn();
+			var serialized = new ArrayList<byte[]>();
+			for (int i = 0; i < kinds.length; i++) {
+				var pathObject = block.get(i);
+				if (kinds[i] == KIND_ROOT || kinds[i] == KIND_SERIALIZED)
+					addROI(null, types, planes, sizes, doubles, floats, serialized);
+				else
+					addROI(pathObject.getROI(), types, planes, sizes, doubles, floats, serialized);
+				if ((flags[i] & FLAG_NUCLEUS) != 0)
+					addROI(((PathCellObject)pathObject).getNucleusROI(), types, planes, sizes, doubles, floats, serialized);
+			}
+			buf.putInt(types.size);
+			buf.putBytes(types.values, types.size);
+			buf.putInts(planes.values, planes.size);
+			buf.putInt(sizes.size);
+			buf.putInts(sizes.values, sizes.size);
+			buf.putInt(doubles.size);
+			buf.putDoubles(doubles.values, doubles.size);
+			buf.putInt(floats.size);
+			buf.putFloats(floats.values, floats.size);
+			for (byte[] bytes : serialized) {
+				buf.putInt(bytes.length);
+				buf.putBytes(bytes, bytes.length);
+			}
+		}
+
+		private static void addROI(ROI roi, ByteColumn types, IntColumn planes, IntColumn sizes, DoubleColumn doubles, FloatColumn floats, List<byte[]> serialized) throws IOException {
+			byte type = getROIType(roi);
+			types.add(type);
+			if (roi == null) {
+				planes.add(-1);
+				planes.add(0);
+				planes.add(0);
+				return;
+			}
+			planes.add(roi.getC());
+			planes.add(roi.getZ());
+			planes.add(roi.getT());
+			switch (type) {
+			case ROI_RECTANGLE:
+			case ROI_ELLIPSE:
+				doubles.add(roi.getBoundsX());
+				doubles.add(roi.getBoundsY());
+				doubles.add(roi.getBoundsWidth());
+				doubles.add(roi.getBoundsHeight());
+				break;
+			case ROI_LINE:
+				var line = (LineROI)roi;
+				doubles.add(line.getX1());
+				doubles.add(line.getY1());
+				doubles.add(line.getX2());
+				doubles.add(line.getY2());
+				break;
+			case ROI_POINTS:
+			case ROI_POLYGON:
+			case ROI_POLYLINE:
+				var points = roi.getPolygonPoints();
+				sizes.add(points.size());
+				for (Point2 p : points)
+					floats.add((float)p.getX());
+				for (Point2 p : points)
+					floats.add((float)p.getY());
+				break;
+			case ROI_AREA:
+				addAreaRings(roi, sizes, floats);
+				break;
+			case ROI_SERIALIZED:
+				serialized.add(serialize(roi));
+				break;
+			default:
+				break;
+			}
+		}
+
+		/**
+		 * Add the flattened rings of an area, storing the number of rings followed by the length of each ring.
+		 */
+		private static void addAreaRings(ROI roi, IntColumn sizes, FloatColumn floats) {
+			var ringSizes = new IntColumn();
+			var ringX = new FloatColumn();
+			var ringY = new FloatColumn();
+			int start = 0;
+			var iter = roi.getShape().getPathIterator(null, 0.5);
+			double[] seg = new double[6];
+			while (!iter.isDone()) {
+				int type = iter.currentSegment(seg);
+				if (type != PathIterator.SEG_MOVETO && type != PathIterator.SEG_LINETO && type != PathIterator.SEG_CLOSE)
+					throw new IllegalArgumentException("Invalid area " + roi + " - only line connections are allowed");
+				// Moving or closing completes any current ring
+				if (type != PathIterator.SEG_LINETO && ringX.size > start) {
+					ringSizes.add(ringX.size - start);
+					start = ringX.size;
+				}
+				if (type != PathIterator.SEG_CLOSE) {
+					ringX.add((float)seg[0]);
+					ringY.add((float)seg[1]);
+				}
+				iter.next();
+			}
+			if (ringX.size > start)
+				ringSizes.add(ringX.size - start);
+
+			sizes.add(ringSizes.size);
+			start = 0;
+			for (int r = 0; r < ringSizes.size; r++) {
+				int len = ringSizes.values[r];
+				sizes.add(len);
+				floats.addAll(ringX.values, start, len);
+				floats.addAll(ringY.values, start, len);
+				start += len;
+			}
+		}
+
+		/**
+		 * Write measurements grouped by layout, in order of first appearance within the block.
+		 * Each group is stored column-wise, as floats if this is lossless or doubles otherwise.
+		 */
+		private void writeMeasurements(BlockBuffer buf, int[] layouts) {
+			int n = layouts.length;
+			buf.putInts(layouts, n);
+
+			boolean[] done = new boolean[n];
+			int[] members = new int[n];
+			for (int i = 0; i < n; i++) {
+				if (layouts[i] < 0 || done[i])
+					continue;
+				int layout = layouts[i];
+				int k = 0;
+				for (int j = i; j < n; j++) {
+					if (layouts[j] == layout) {
+						members[k++] = j;
+						done[j] = true;
+					}
+				}
+				int m = block.get(i).getMeasurementList().size();
+				double[] values = new double[m * k];
+				boolean isFloat = true;
+				for (int o = 0; o < k; o++) {
+					var list = block.get(members[o]).getMeasurementList();
+					for (int c = 0; c < m; c++) {
+						double val = list.getMeasurementValue(c);
+						values[c * k + o] = val;
+						if (isFloat && (double)(float)val != val && !Double.isNaN(val))
+							isFloat = false;
+					}
+				}
+				buf.putBoolean(isFloat);
+				if (isFloat) {
+					float[] floatValues = new float[values.length];
+					for (int v = 0; v < values.length; v++)
+						floatValues[v] = (float)values[v];
+					buf.putFloats(floatValues, floatValues.length);
+				} else
+					buf.putDoubles(values, values.length);
+			}
+		}
+
+
+		private int getClassIndex(PathClass pathClass) {
+			if (pathClass == null)
+				return -1;
+			Integer ind = classTable.get(pathClass);
+			if (ind == null) {
+				// Ensure parents are always written before children
+				getClassIndex(pathClass.getParentClass());
+				ind = classTable.size();
+				classTable.put(pathClass, ind);
+				pendingClasses.add(pathClass);
+			}
+			return ind;
+		}
+
+		private int getNameIndex(String name) {
+			Integer ind = nameTable.get(name);
+			if (ind == null) {
+				ind = nameTable.size();
+				nameTable.put(name, ind);
+				pendingNames.add(name);
+			}
+			return ind;
+		}
+
+		private int getLayoutIndex(MeasurementList list) {
+			// Most objects share measurements with the previous one, so check this first
+			int m = list.size();
+			if (lastLayout != null && lastLayout.names.length == m) {
+				boolean same = true;
+				for (int i = 0; i < m; i++) {
+					if (!lastLayout.nameStrings[i].equals(list.getMeasurementName(i))) {
+						same = false;
+						break;
+					}
+				}
+				if (same)
+					return layoutTable.get(lastLayout);
+			}
+			int[] names = new int[m];
+			String[] nameStrings = new String[m];
+			for (int i = 0; i < m; i++) {
+				nameStrings[i] = list.getMeasurementName(i);
+				names[i] = getNameIndex(nameStrings[i]);
+			}
+			var layout = new Layout(names, nameStrings);
+			Integer ind = layoutTable.get(layout);
+			if (ind == null) {
+				ind = layoutTable.size();
+				layoutTable.put(layout, ind);
+				pendingLayouts.add(layout);
+			}
+			lastLayout = layout;
+			return ind;
+		}
+
+		private static int getFlags(PathObject pathObject, byte kind) {
+			int flags = 0;
+			if (pathObject.getName() != null)
+				flags |= FLAG_NAME;
+			if (pathObject.getColorRGB() != null)
+				flags |= FLAG_COLOR;
+			if (kind == KIND_ROOT)
+				return flags;
+			if (!Double.isNaN(pathObject.getClassProbability()))
+				flags |= FLAG_PROBABILITY;
+			if (pathObject.isLocked())
+				flags |= FLAG_LOCKED;
+			if (kind == KIND_ANNOTATION && ((PathAnnotationObject)pathObject).getDescription() != null)
+				flags |= FLAG_DESCRIPTION;
+			if (kind == KIND_TMA_CORE) {
+				var core = (TMACoreObject)pathObject;
+				if (!core.getMetadataKeys().isEmpty())
+					flags |= FLAG_METADATA;
+				if (core.isMissing())
+					flags |= FLAG_MISSING;
+			}
+			if (kind == KIND_CELL && ((PathCellObject)pathObject).hasNucleus())
+				flags |= FLAG_NUCLEUS;
+			return flags;
+		}
+
+	}
+
+
+	/**
+	 * Get the kind of an object. Only the standard object classes are supported directly;
+	 * anything else (including objects without ROIs) requires serialization.
+	 */
+	private static byte getKind(PathObject pathObject) {
+		var cls = pathObject.getClass();
+		if (cls == PathRootObject.class)
+			return KIND_ROOT;
+		if (pathObject.getROI() == null)
+			return KIND_SERIALIZED;
+		if (cls == PathDetectionObject.class)
+			return KIND_DETECTION;
+		if (cls == PathCellObject.class)
+			return KIND_CELL;
+		if (cls == PathAnnotationObject.class)
+			return KIND_ANNOTATION;
+		if (cls == PathTileObject.class)
+			return KIND_TILE;
+		if (cls == TMACoreObject.class)
+			return KIND_TMA_CORE;
+		return KIND_SERIALIZED;
+	}
+
+	private static byte getROIType(ROI roi) {
+		if (roi == null)
+			return ROI_NONE;
+		var cls = roi.getClass();
+		if (cls == PolygonROI.class)
+			return ROI_POLYGON;
+		if (cls == RectangleROI.class)
+			return ROI_RECTANGLE;
+		if (cls == EllipseROI.class)
+			return ROI_ELLIPSE;
+		if (roi instanceof AreaROI)
+			return ROI_AREA;
+		if (cls == PointsROI.class)
+			return ROI_POINTS;
+		if (cls == LineROI.class)
+			return ROI_LINE;
+		if (cls == PolylineROI.class)
+			return ROI_POLYLINE;
+		return ROI_SERIALIZED;
+	}
+
+
+	/**
+	 * Detections grouped into spatial tiles according to their centroids, along with the indices of their parents
+	 * and their positions within the parents' child lists.
+	 */
+	private static class DetectionTiles {
+
+		private final Map<TileKey, Tile> tiles = new LinkedHashMap<>();
+
+		/**
+		 * Detections can be tiled if they have a ROI, and contain only other detections.
+		 */
+		static boolean canDefer(PathObject pathObject) {
+			return pathObject.hasROI() && containsOnlyDetections(pathObject);
+		}
+
+		private static boolean containsOnlyDetections(PathObject pathObject) {
+			if (!pathObject.isDetection())
+				return false;
+			if (pathObject.hasChildren()) {
+				for (var child : pathObject.getChildObjects()) {
+					if (!containsOnlyDetections(child))
+						return false;
+				}
+			}
+			return true;
+		}
+
+		void add(PathObject pathObject, int parentIndex, int position) {
+			var roi = pathObject.getROI();
+			var key = new TileKey(roi.getZ(), roi.getT(),
+					(int)Math.floor(roi.getCentroidX() / DETECTION_TILE_SIZE),
+					(int)Math.floor(roi.getCentroidY() / DETECTION_TILE_SIZE));
+			tiles.computeIfAbsent(key, k -> new Tile()).add(pathObject, parentIndex, position);
+		}
+
+		/**
+		 * Write the number of tiles, followed by each tile's header and self-contained contents.
+		 */
+		void write(DataOutputStream out, BlockBuffer buffer) throws IOException {
+			out.writeInt(tiles.size());
+			var bytes = new ByteArrayOutputStream();
+			for (var entry : tiles.entrySet()) {
+				var key = entry.getKey();
+				var tile = entry.getValue();
+				int n = tile.pathObjects.size();
+
+				bytes.reset();
+				var tileOut = new DataOutputStream(bytes);
+				tileOut.writeInt(n);
+				for (int i = 0; i < n; i++)
+					tileOut.writeInt(tile.parents.values[i]);
+				for (int i = 0; i < n; i++)
+					tileOut.writeInt(tile.positions.values[i]);
+				new HierarchyWriter(bytes, buffer).writeObjects(tile.pathObjects, null);
+
+				int[] parents = Arrays.stream(tile.parents.values, 0, n).distinct().toArray();
+				out.writeInt(key.z);
+				out.writeInt(key.t);
+				out.writeDouble(tile.minX);
+				out.writeDouble(tile.minY);
+				out.writeDouble(tile.maxX);
+				out.writeDouble(tile.maxY);
+				out.writeInt(parents.length);
+				for (int p : parents)
+					out.writeInt(p);
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			}
+		}
+
+		private static class Tile {
+
+			private final List<PathObject> pathObjects = new ArrayList<>();
+			private final IntColumn parents = new IntColumn();
+			private final IntColumn positions = new IntColumn();
+			private double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+			private double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+
+			void add(PathObject pathObject, int parentIndex, int position) {
+				pathObjects.add(pathObject);
+				parents.add(parentIndex);
+				positions.add(position);
+				updateBounds(pathObject);
+			}
+
+			/**
+			 * Include the ROIs of the object and all its descendants in the bounds.
+			 */
+			private void updateBounds(PathObject pathObject) {
+				var roi = pathObject.getROI();
+				if (roi != null) {
+					minX = Math.min(minX, roi.getBoundsX());
+					minY = Math.min(minY, roi.getBoundsY());
+					maxX = Math.max(maxX, roi.getBoundsX() + roi.getBoundsWidth());
+					maxY = Math.max(maxY, roi.getBoundsY() + roi.getBoundsHeight());
+				}
+				if (pathObject.hasChildren()) {
+					for (var child : pathObject.getChildObjects())
+						updateBounds(child);
+				}
+			}
+
+		}
+
+	}
+
+	private static class TileKey {
+
+		private final int z, t, x, y;
+
+		TileKey(int z, int t, int x, int y) {
+			this.z = z;
+			this.t = t;
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((z * 31 + t) * 31 + x) * 31 + y;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TileKey))
+				return false;
+			var key = (TileKey)obj;
+			return z == key.z && t == key.t && x == key.x && y == key.y;
+		}
+
+	}
+
+	/**
+	 * Header information for a tile of detections within a stream, excluding its contents.
+	 */
+	private static class TileEntry {
+
+		private int z, t;
+		private double minX, minY, maxX, maxY;
+		private int[] parents;
+		private int length;
+		private long offset;
+		private boolean loaded = false;
+
+		static TileEntry read(DataInputStream in) throws IOException {
+			var entry = new TileEntry();
+			entry.z = in.readInt();
+			entry.t = in.readInt();
+			entry.minX = in.readDouble();
+			entry.minY = in.readDouble();
+			entry.maxX = in.readDouble();
+			entry.maxY = in.readDouble();
+			entry.parents = new int[in.readInt()];
+			for (int i = 0; i < entry.parents.length; i++)
+				entry.parents[i] = in.readInt();
+			entry.length = in.readInt();
+			return entry;
+		}
+
+		boolean overlaps(ImageRegion region) {
+			return z == region.getZ() && t == region.getT() &&
+					maxX >= region.getMinX() && minX <= region.getMaxX() &&
+					maxY >= region.getMinY() && minY <= region.getMaxY();
+		}
+
+		boolean hasParent(Set<Integer> indices) {
+			for (int p : parents) {
+				if (indices.contains(p))
+					return true;
+			}
+			return false;
+		}
+
+	}
+
+	/**
+	 * Detections read from a single tile, along with the indices of their parents and their positions within the parents' child lists.
+	 */
+	private static class TileContents {
+
+		private int[] parents;
+		private int[] positions;
+		private List<PathObject> pathObjects;
+
+		static TileContents read(ByteBuffer buf) throws IOException {
+			var contents = new TileContents();
+			int n = buf.getInt();
+			contents.parents = getInts(buf, n);
+			contents.positions = getInts(buf, n);
+			contents.pathObjects = readObjects(buf, n);
+			return contents;
+		}
+
+	}
+
+	/**
+	 * Write detections (along with their descendants) in a self-contained form that can be read with {@link #readDetections(ByteBuffer)}.
+	 * The detections should not have any other kinds of objects below them.
+	 *
+	 * @param stream
+	 * @param pathObjects
+	 * @throws IOException
+	 */
+	static void writeDetections(OutputStream stream, List<PathObject> pathObjects) throws IOException {
+		var out = new DataOutputStream(stream);
+		out.writeInt(pathObjects.size());
+		new HierarchyWriter(stream).writeObjects(pathObjects, null);
+	}
+
+	/**
+	 * Read detections written with {@link #writeDetections(OutputStream, List)}.
+	 * The detections are returned without a parent.
+	 *
+	 * @param buf
+	 * @return
+	 * @throws IOException
+	 */
+	static List<PathObject> readDetections(ByteBuffer buf) throws IOException {
+		return readObjects(buf, buf.getInt());
+	}
+
+	/**
+	 * Read a specified number of top-level objects (along with their descendants) from a series of blocks.
+	 */
+	private static List<PathObject> readObjects(ByteBuffer buf, int n) throws IOException {
+		var reader = new HierarchyReader(null);
+		reader.parents.push(reader.tempRoot);
+		reader.remaining.push(new int[] {n});
+		int blockSize;
+		while ((blockSize = buf.getInt()) > 0) {
+			var block = buf.slice();
+			block.limit(blockSize);
+			reader.readBlock(block);
+			buf.position(buf.position() + blockSize);
+		}
+		// Detach from the temporary parent, so the objects can be added efficiently elsewhere
+		List<PathObject> pathObjects = new ArrayList<>(reader.tempRoot.getChildObjects());
+		reader.tempRoot.clearPathObjects();
+		if (pathObjects.size() != n)
+			throw new IOException("Expected " + n + " detections, but found " + pathObjects.size());
+		return pathObjects;
+	}
+
+	/**
+	 * Loads tiles of detections from a file on demand.
+	 */
+	private static class TiledDetectionLoader implements DeferredObjectLoader {
+
+		private final RandomAccessFile file;
+		private final Cleanable cleanable;
+		private final List<TileEntry> tiles;
+
+		// Objects read up front, which may be parents of the tiled detections
+		private final List<PathObject> parentObjects;
+		private Map<PathObject, Integer> parentIndices;
+
+		private int nLoaded = 0;
+
+		TiledDetectionLoader(File file, List<TileEntry> tiles, List<PathObject> parentObjects) throws IOException {
+			this.file = new RandomAccessFile(file, "r");
+			this.cleanable = cleaner.register(this, new FileCloser(this.file));
+			this.tiles = tiles;
+			this.parentObjects = parentObjects;
+		}
+
+		@Override
+		public synchronized Collection<PathObject> loadObjectsForRegion(ImageRegion region) throws IOException {
+			return load(tile -> tile.overlaps(region));
+		}
+
+		@Override
+		public synchronized Collection<PathObject> loadDescendants(PathObject parent) throws IOException {
+			if (parentIndices == null) {
+				parentIndices = new IdentityHashMap<>();
+				for (int i = 0; i < parentObjects.size(); i++)
+					parentIndices.put(parentObjects.get(i), i);
+			}
+			// Detections are only tiled if they are children of other object types
+			Set<Integer> indices = new HashSet<>();
+			Deque<PathObject> toVisit = new ArrayDeque<>();
+			toVisit.add(parent);
+			while (!toVisit.isEmpty()) {
+				var pathObject = toVisit.pop();
+				if (pathObject.isDetection())
+					continue;
+				var index = parentIndices.get(pathObject);
+				if (index != null)
+					indices.add(index);
+				if (pathObject.hasChildren())
+					toVisit.addAll(pathObject.getChildObjects());
+			}
+			if (indices.isEmpty())
+				return Collections.emptyList();
+			return load(tile -> tile.hasParent(indices));
+		}
+
+		@Override
+		public synchronized Collection<PathObject> loadAll() throws IOException {
+			return load(tile -> true);
+		}
+
+		@Override
+		public synchronized boolean isComplete() {
+			return nLoaded == tiles.size();
+		}
+
+		private Collection<PathObject> load(Predicate<TileEntry> predicate) throws IOException {
+			if (isComplete())
+				return Collections.emptyList();
+			long startTime = System.currentTimeMillis();
+			List<PathObject> loaded = new ArrayList<>();
+			int nTiles = 0;
+			for (var tile : tiles) {
+				if (tile.loaded || !predicate.test(tile))
+					continue;
+				byte[] bytes = new byte[tile.length];
+				file.seek(tile.offset);
+				file.readFully(bytes);
+				var contents = TileContents.read(ByteBuffer.wrap(bytes));
+				Map<PathObject, List<PathObject>> map = new LinkedHashMap<>();
+				for (int i = 0; i < contents.parents.length; i++)
+					map.computeIfAbsent(parentObjects.get(contents.parents[i]), p -> new ArrayList<>()).add(contents.pathObjects.get(i));
+				for (var entry : map.entrySet())
+					entry.getKey().addPathObjects(entry.getValue());
+				loaded.addAll(contents.pathObjects);
+				tile.loaded = true;
+				nLoaded++;
+				nTiles++;
+			}
+			if (nTiles > 0) {
+				long endTime = System.currentTimeMillis();
+				logger.debug("{} detections loaded from {} tile(s) in {} ms ({} of {} tiles loaded)", loaded.size(), nTiles, endTime - startTime, nLoaded, tiles.size());
+			}
+			if (isComplete())
+				close();
+			return loaded;
+		}
+
+		@Override
+		public void close() {
+			cleanable.clean();
+		}
+
+	}
+
+	/**
+	 * Closes a file, without holding a reference to whatever was using it.
+	 */
+	private static class FileCloser implements Runnable {
+
+		private final RandomAccessFile file;
+
+		FileCloser(RandomAccessFile file) {
+			this.file = file;
+		}
+
+		@Override
+		public void run() {
+			try {
+				file.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close file: {}", e.getLocalizedMessage());
+			}
+		}
+
+	}
+
+	/**
+	 * Input stream that keeps track of its position, including any bytes that were skipped.
+	 */
+	static class CountingInputStream extends FilterInputStream {
+
+		private long position;
+
+		CountingInputStream(InputStream stream, long position) {
+			super(stream);
+			this.position = position;
+		}
+
+		long getPosition() {
+			return position;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				position++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				position += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+	}
+
+
+	private static class HierarchyReader {
+
+		private final DataInputStream in;
+		private byte[] bytes = new byte[0];
+
+		private final List<PathClass> classTable = new ArrayList<>();
+		private final List<String> nameTable = new ArrayList<>();
+		private final List<String[]> layoutTable = new ArrayList<>();
+
+		private final PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+		// Children of the root are added at the end, once any TMA grid is known
+		private final PathObject tempRoot = new PathRootObject();
+
+		// Parents of the objects still to be read, along with how many children they still need
+		private final Deque<PathObject> parents = new ArrayDeque<>();
+		private final Deque<int[]> remaining = new ArrayDeque<>();
+
+		// TMA cores, in case they are needed for a grid
+		private final Map<Integer, TMACoreObject> cores = new HashMap<>();
+		private int objectCount = 0;
+
+		// All objects that have been read, which may be parents of tiled detections
+		private final List<PathObject> pathObjects = new ArrayList<>();
+
+		private int version;
+
+		HierarchyReader(InputStream stream) {
+			this.in = stream == null ? null : new DataInputStream(stream);
+		}
+
+		PathObjectHierarchy read() throws IOException {
+			long startTime = System.currentTimeMillis();
+
+			readMain();
+
+			if (version >= 2) {
+				int nTiles = in.readInt();
+				Map<PathObject, PendingChildren> pending = new LinkedHashMap<>();
+				for (int i = 0; i < nTiles; i++) {
+					var entry = TileEntry.read(in);
+					byte[] tileBytes = new byte[entry.length];
+					in.readFully(tileBytes);
+					var contents = TileContents.read(ByteBuffer.wrap(tileBytes));
+					for (int j = 0; j < contents.parents.length; j++) {
+						pending.computeIfAbsent(pathObjects.get(contents.parents[j]), p -> new PendingChildren())
+							.add(contents.positions[j], contents.pathObjects.get(j));
+					}
+					objectCount += contents.pathObjects.size();
+				}
+				for (var entry : pending.entrySet())
+					entry.getValue().insertInto(entry.getKey());
+			}
+
+			long endTime = System.currentTimeMillis();
+			logger.debug("{} objects read in {} ms", objectCount, endTime - startTime);
+			return hierarchy;
+		}
+
+		PathObjectHierarchy readDeferred(File file, CountingInputStream stream) throws IOException {
+			long startTime = System.currentTimeMillis();
+
+			readMain();
+
+			int nTiles = version >= 2 ? in.readInt() : 0;
+			if (nTiles > 0) {
+				// Read the tile headers, but skip their contents
+				List<TileEntry> tiles = new ArrayList<>(nTiles);
+				for (int i = 0; i < nTiles; i++) {
+					var entry = TileEntry.read(in);
+					entry.offset = stream.getPosition();
+					skipFully(in, entry.length);
+					tiles.add(entry);
+				}
+				hierarchy.setDeferredObjectLoader(new TiledDetectionLoader(file, tiles, pathObjects));
+			}
+
+			long endTime = System.currentTimeMillis();
+			logger.debug("{} objects read in {} ms, {} tiles of detections deferred", objectCount, endTime - startTime, nTiles);
+			return hierarchy;
+		}
+
+		/**
+		 * Read all objects that aren't in tiles, along with any TMA grid.
+		 */
+		private void readMain() throws IOException {
+			int magic = in.readInt();
+			if (magic != MAGIC)
+				throw new IOException("Input stream does not contain a binary object hierarchy");
+			version = in.readInt();
+			if (version > VERSION)
+				throw new IOException("Unsupported hierarchy version " + version + " (maximum supported version is " + VERSION + ")");
+
+			int blockSize;
+			while ((blockSize = in.readInt()) > 0) {
+				if (bytes.length < blockSize)
+					bytes = new byte[blockSize];
+				in.readFully(bytes, 0, blockSize);
+				readBlock(ByteBuffer.wrap(bytes, 0, blockSize));
+			}
+
+			readGrid();
+
+			var rootChildren = new ArrayList<>(tempRoot.getChildObjects());
+			if (hierarchy.getTMAGrid() != null)
+				rootChildren.removeAll(hierarchy.getTMAGrid().getTMACoreList());
+			hierarchy.getRootObject().addPathObjects(rootChildren);
+		}
+
+		private void readGrid() throws IOException {
+			int gridType = in.readInt();
+			if (gridType == GRID_INDEXED) {
+				int width = in.readInt();
+				int n = in.readInt();
+				List<TMACoreObject> coreList = new ArrayList<>(n);
+				for (int i = 0; i < n; i++)
+					coreList.add(cores.get(in.readInt()));
+				hierarchy.setTMAGrid(new DefaultTMAGrid(coreList, width));
+			} else if (gridType == GRID_SERIALIZED) {
+				byte[] gridBytes = new byte[in.readInt()];
+				in.readFully(gridBytes);
+				var grid = (TMAGrid)deserialize(gridBytes);
+				// Serialized cores include their descendants, and replace any read previously
+				for (var core : cores.values()) {
+					if (core.getParent() == tempRoot)
+						tempRoot.removePathObject(core);
+				}
+				hierarchy.setTMAGrid(grid);
+			}
+		}
+
+		private void readBlock(ByteBuffer buf) throws IOException {
+			// Read new table entries
+			int nClasses = buf.getInt();
+			for (int i = 0; i < nClasses; i++) {
+				int parentIndex = buf.getInt();
+				String name = getString(buf);
+				boolean hasColor = buf.get() != 0;
+				int color = buf.getInt();
+				PathClass parent = parentIndex < 0 ? null : classTable.get(parentIndex);
+				PathClass pathClass = null;
+				if (name != null) {
+					if (parent == null)
+						pathClass = PathClassFactory.getPathClass(name, hasColor ? color : null);
+					else
+						pathClass = PathClassFactory.getDerivedPathClass(parent, name, hasColor ? color : null);
+				}
+				classTable.add(pathClass);
+			}
+			int nNames = buf.getInt();
+			for (int i = 0; i < nNames; i++)
+				nameTable.add(getString(buf));
+			int nLayouts = buf.getInt();
+			for (int i = 0; i < nLayouts; i++) {
+				String[] names = new String[buf.getInt()];
+				for (int j = 0; j < names.length; j++)
+					names[j] = nameTable.get(buf.getInt());
+				layoutTable.add(names);
+			}
+
+			// Read the main columns
+			int n = buf.getInt();
+			byte[] kinds = new byte[n];
+			buf.get(kinds);
+			int[] childCounts = getInts(buf, n);
+			int[] classes = getInts(buf, n);
+			byte[] flags = new byte[n];
+			buf.get(flags);
+
+			// Read optional properties
+			String[] names = new String[n];
+			Integer[] colors = new Integer[n];
+			double[] probabilities = new double[n];
+			String[] descriptions = new String[n];
+			List<Map<String, String>> metadata = new ArrayList<>();
+			Arrays.fill(probabilities, Double.NaN);
+			for (int i = 0; i < n; i++) {
+				if ((flags[i] & FLAG_NAME) != 0)
+					names[i] = getString(buf);
+			}
+			for (int i = 0; i < n; i++) {
+				if ((flags[i] & FLAG_COLOR) != 0)
+					colors[i] = buf.getInt();
+			}
+			for (int i = 0; i < n; i++) {
+				if ((flags[i] & FLAG_PROBABILITY) != 0)
+					probabilities[i] = buf.getDouble();
+			}
+			for (int i = 0; i < n; i++) {
+				if ((flags[i] & FLAG_DESCRIPTION) != 0)
+					descriptions[i] = getString(buf);
+			}
+			for (int i = 0; i < n; i++) {
+				if ((flags[i] & FLAG_METADATA) != 0) {
+					int size = buf.getInt();
+					Map<String, String> map = new HashMap<>();
+					for (int j = 0; j < size; j++)
+						map.put(getString(buf), getString(buf));
+					metadata.add(map);
+				}
+			}
+
+			ROI[] rois = readROIs(buf);
+			MeasurementList[] measurements = readMeasurements(buf, kinds);
+
+			// Create the objects
+			int roiIndex = 0;
+			int metadataIndex = 0;
+			for (int i = 0; i < n; i++) {
+				PathClass pathClass = classes[i] < 0 ? null : classTable.get(classes[i]);
+				ROI roi = rois[roiIndex++];
+				ROI nucleus = (flags[i] & FLAG_NUCLEUS) != 0 ? rois[roiIndex++] : null;
+				PathObject pathObject;
+				switch (kinds[i]) {
+				case KIND_ROOT:
+					pathObject = hierarchy.getRootObject();
+					if (measurements[i] != null)
+						addMeasurements(pathObject.getMeasurementList(), measurements[i]);
+					break;
+				case KIND_ANNOTATION:
+					pathObject = PathObjects.createAnnotationObject(roi, pathClass, measurements[i]);
+					if (descriptions[i] != null)
+						((PathAnnotationObject)pathObject).setDescription(descriptions[i]);
+					break;
+				case KIND_DETECTION:
+					pathObject = PathObjects.createDetectionObject(roi, pathClass, measurements[i]);
+					break;
+				case KIND_CELL:
+					pathObject = PathObjects.createCellObject(roi, nucleus, pathClass, measurements[i]);
+					break;
+				case KIND_TILE:
+					pathObject = PathObjects.createTileObject(roi, pathClass, measurements[i]);
+					break;
+				case KIND_TMA_CORE:
+					var core = new TMACoreObject();
+					core.setROI(roi);
+					core.setPathClass(pathClass);
+					core.setMissing((flags[i] & FLAG_MISSING) != 0);
+					if ((flags[i] & FLAG_METADATA) != 0) {
+						for (var entry : metadata.get(metadataIndex++).entrySet())
+							core.putMetadataValue(entry.getKey(), entry.getValue());
+					}
+					if (measurements[i] != null)
+						addMeasurements(core.getMeasurementList(), measurements[i]);
+					cores.put(objectCount, core);
+					pathObject = core;
+					break;
+				case KIND_SERIALIZED:
+					byte[] objectBytes = new byte[buf.getInt()];
+					buf.get(objectBytes);
+					pathObject = (PathObject)deserialize(objectBytes);
+					break;
+				default:
+					throw new IOException("Unknown object type " + kinds[i]);
+				}
+
+				if (kinds[i] != KIND_SERIALIZED) {
+					if (kinds[i] != KIND_ROOT) {
+						// Setting the class resets the color, so this needs to come first
+						if ((flags[i] & FLAG_PROBABILITY) != 0)
+							pathObject.setPathClass(pathClass, probabilities[i]);
+						pathObject.setLocked((flags[i] & FLAG_LOCKED) != 0);
+					}
+					pathObject.setName(names[i]);
+					pathObject.setColorRGB(colors[i]);
+				}
+
+				addToTree(pathObject, kinds[i] == KIND_ROOT, childCounts[i]);
+				pathObjects.add(pathObject);
+				objectCount++;
+			}
+		}
+
+		private void addToTree(PathObject pathObject, boolean isRoot, int nChildren) {
+			if (!isRoot) {
+				if (parents.isEmpty())
+					throw new IllegalStateException("No parent available for " + pathObject);
+				parents.peek().addPathObject(pathObject);
+				int[] count = remaining.peek();
+				if (--count[0] == 0) {
+					parents.pop();
+					remaining.pop();
+				}
+			}
+			if (nChildren > 0) {
+				parents.push(isRoot ? tempRoot : pathObject);
+				remaining.push(new int[] {nChildren});
+			}
+		}
+
+		private ROI[] readROIs(ByteBuffer buf) throws IOException {
+			int nROIs = buf.getInt();
+			byte[] types = new byte[nROIs];
+			buf.get(types);
+			int[] planes = getInts(buf, nROIs * 3);
+			int[] sizes = getInts(buf, buf.getInt());
+
+			int nDoubles = buf.getInt();
+			DoubleBuffer doubles = buf.asDoubleBuffer();
+			doubles.limit(nDoubles);
+			buf.position(buf.position() + nDoubles * Double.BYTES);
+
+			int nFloats = buf.getInt();
+			FloatBuffer floats = buf.asFloatBuffer();
+			floats.limit(nFloats);
+			buf.position(buf.position() + nFloats * Float.BYTES);
+
+			ROI[] rois = new ROI[nROIs];
+			int sizeIndex = 0;
+			for (int i = 0; i < nROIs; i++) {
+				var plane = ImagePlane.getPlaneWithChannel(planes[i*3], planes[i*3+1], planes[i*3+2]);
+				switch (types[i]) {
+				case ROI_NONE:
+					break;
+				case ROI_RECTANGLE:
+					rois[i] = ROIs.createRectangleROI(doubles.get(), doubles.get(), doubles.get(), doubles.get(), plane);
+					break;
+				case ROI_ELLIPSE:
+					rois[i] = ROIs.createEllipseROI(doubles.get(), doubles.get(), doubles.get(), doubles.get(), plane);
+					break;
+				case ROI_LINE:
+					rois[i] = ROIs.createLineROI(doubles.get(), doubles.get(), doubles.get(), doubles.get(), plane);
+					break;
+				case ROI_POINTS:
+					int len = sizes[sizeIndex++];
+					rois[i] = ROIs.createPointsROI(getFloats(floats, len), getFloats(floats, len), plane);
+					break;
+				case ROI_POLYGON:
+					len = sizes[sizeIndex++];
+					rois[i] = ROIs.createPolygonROI(getFloats(floats, len), getFloats(floats, len), plane);
+					break;
+				case ROI_POLYLINE:
+					len = sizes[sizeIndex++];
+					rois[i] = ROIs.createPolylineROI(getFloats(floats, len), getFloats(floats, len), plane);
+					break;
+				case ROI_AREA:
+					int nRings = sizes[sizeIndex++];
+					var path = new Path2D.Float();
+					for (int r = 0; r < nRings; r++) {
+						len = sizes[sizeIndex++];
+						float[] x = getFloats(floats, len);
+						float[] y = getFloats(floats, len);
+						path.moveTo(x[0], y[0]);
+						for (int v = 1; v < len; v++)
+							path.lineTo(x[v], y[v]);
+						path.closePath();
+					}
+					rois[i] = ROIs.createAreaROI(path, plane);
+					break;
+				case ROI_SERIALIZED:
+					// Serialized ROIs follow all the primitive data
+					break;
+				default:
+					throw new IOException("Unknown ROI type " + types[i]);
+				}
+			}
+			for (int i = 0; i < nROIs; i++) {
+				if (types[i] == ROI_SERIALIZED) {
+					byte[] roiBytes = new byte[buf.getInt()];
+					buf.get(roiBytes);
+					rois[i] = (ROI)deserialize(roiBytes);
+				}
+			}
+			return rois;
+		}
+
+		private MeasurementList[] readMeasurements(ByteBuffer buf, byte[] kinds) {
+			int n = kinds.length;
+			int[] layouts = getInts(buf, n);
+			MeasurementList[] lists = new MeasurementList[n];
+			for (int i = 0; i < n; i++) {
+				if (layouts[i] < 0 || lists[i] != null)
+					continue;
+				int layout = layouts[i];
+				String[] names = layoutTable.get(layout);
+				int m = names.length;
+				int k = 0;
+				for (int j = i; j < n; j++) {
+					if (layouts[j] == layout)
+						k++;
+				}
+				boolean isFloat = buf.get() != 0;
+				double[] values = new double[m * k];
+				if (isFloat) {
+					var floats = buf.asFloatBuffer();
+					for (int v = 0; v < values.length; v++)
+						values[v] = floats.get();
+					buf.position(buf.position() + values.length * Float.BYTES);
+				} else {
+					buf.asDoubleBuffer().get(values);
+					buf.position(buf.position() + values.length * Double.BYTES);
+				}
+				int o = 0;
+				for (int j = i; j < n; j++) {
+					if (layouts[j] != layout)
+						continue;
+					var list = createMeasurementList(kinds[j], m, isFloat);
+					for (int c = 0; c < m; c++)
+						list.addMeasurement(names[c], values[c * k + o]);
+					list.close();
+					lists[j] = list;
+					o++;
+				}
+			}
+			return lists;
+		}
+
+		/**
+		 * Create a measurement list of the type that would normally be used for an object,
+		 * unless this would cause values to be lost.
+		 */
+		private static MeasurementList createMeasurementList(byte kind, int capacity, boolean isFloat) {
+			switch (kind) {
+			case KIND_DETECTION:
+			case KIND_CELL:
+			case KIND_TILE:
+				return MeasurementListFactory.createMeasurementList(capacity, isFloat ? MeasurementList.TYPE.FLOAT : MeasurementList.TYPE.DOUBLE);
+			default:
+				return MeasurementListFactory.createMeasurementList(capacity, MeasurementList.TYPE.GENERAL);
+			}
+		}
+
+		private static void addMeasurements(MeasurementList target, MeasurementList source) {
+			for (int i = 0; i < source.size(); i++)
+				target.putMeasurement(source.getMeasurementName(i), source.getMeasurementValue(i));
+			target.close();
+		}
+
+	}
+
+
+	/**
+	 * Tiled detections to be inserted into a parent's child list, at the positions they were originally written.
+	 */
+	private static class PendingChildren {
+
+		private final IntColumn positions = new IntColumn();
+		private final List<PathObject> children = new ArrayList<>();
+
+		void add(int position, PathObject pathObject) {
+			positions.add(position);
+			children.add(pathObject);
+		}
+
+		void insertInto(PathObject parent) {
+			int n = children.size();
+			long[] order = new long[n];
+			for (int i = 0; i < n; i++)
+				order[i] = ((long)positions.values[i] << 32) | i;
+			Arrays.sort(order);
+
+			List<PathObject> existing = parent.hasChildren() ? new ArrayList<>(parent.getChildObjects()) : Collections.emptyList();
+			List<PathObject> merged = new ArrayList<>(existing.size() + n);
+			int e = 0;
+			for (long o : order) {
+				int position = (int)(o >>> 32);
+				while (merged.size() < position && e < existing.size())
+					merged.add(existing.get(e++));
+				merged.add(children.get((int)o));
+			}
+			while (e < existing.size())
+				merged.add(existing.get(e++));
+			parent.clearPathObjects();
+			parent.addPathObjects(merged);
+		}
+
+	}
+
+
+	private static int[] getInts(ByteBuffer buf, int n) {
+		int[] values = new int[n];
+		IntBuffer ints = buf.asIntBuffer();
+		ints.get(values);
+		buf.position(buf.position() + n * Integer.BYTES);
+		return values;
+	}
+
+	private static float[] getFloats(FloatBuffer floats, int n) {
+		float[] values = new float[n];
+		floats.get(values);
+		return values;
+	}
+
+	private static String getString(ByteBuffer buf) {
+		int len = buf.getInt();
+		if (len < 0)
+			return null;
+		String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+		buf.position(buf.position() + len);
+		return s;
+	}
+
+
+	/**
+	 * Measurement names for a group of objects, both as indices into the name table and as strings.
+	 */
+	private static class Layout {
+
+		private final int[] names;
+		private final String[] nameStrings;
+		private final int hash;
+
+		Layout(int[] names, String[] nameStrings) {
+			this.names = names;
+			this.nameStrings = nameStrings;
+			this.hash = Arrays.hashCode(names);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Layout && Arrays.equals(names, ((Layout)obj).names);
+		}
+
+	}
+
+
+	/**
+	 * Growable buffer used to encode a single block.
+	 */
+	private static class BlockBuffer {
+
+		private ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+
+		BlockBuffer reset() {
+			buffer.clear();
+			return this;
+		}
+
+		private void ensureCapacity(int n) {
+			if (buffer.remaining() >= n)
+				return;
+			long capacity = Math.max(buffer.capacity() * 2L, (long)buffer.position() + n);
+			if (capacity > Integer.MAX_VALUE - 8)
+				throw new IllegalStateException("Block is too large to write");
+			var temp = ByteBuffer.allocate((int)capacity);
+			buffer.flip();
+			temp.put(buffer);
+			buffer = temp;
+		}
+
+		int size() {
+			return buffer.position();
+		}
+
+		byte[] array() {
+			return buffer.array();
+		}
+
+		void putBoolean(boolean value) {
+			ensureCapacity(1);
+			buffer.put(value ? (byte)1 : (byte)0);
+		}
+
+		void putInt(int value) {
+			ensureCapacity(Integer.BYTES);
+			buffer.putInt(value);
+		}
+
+		void putDouble(double value) {
+			ensureCapacity(Double.BYTES);
+			buffer.putDouble(value);
+		}
+
+		void putString(String value) {
+			if (value == null) {
+				putInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			putBytes(bytes, bytes.length);
+		}
+
+		void putBytes(byte[] values, int n) {
+			ensureCapacity(n);
+			buffer.put(values, 0, n);
+		}
+
+		void putInts(int[] values, int n) {
+			ensureCapacity(n * Integer.BYTES);
+			buffer.asIntBuffer().put(values, 0, n);
+			buffer.position(buffer.position() + n * Integer.BYTES);
+		}
+
+		void putFloats(float[] values, int n) {
+			ensureCapacity(n * Float.BYTES);
+			buffer.asFloatBuffer().put(values, 0, n);
+			buffer.position(buffer.position() + n * Float.BYTES);
+		}
+
+		void putDoubles(double[] values, int n) {
+			ensureCapacity(n * Double.BYTES);
+			buffer.asDoubleBuffer().put(values, 0, n);
+			buffer.position(buffer.position() + n * Double.BYTES);
+		}
+
+	}
+
+
+	private static class ByteColumn {
+
+		private byte[] values = new byte[BLOCK_SIZE];
+		private int size = 0;
+
+		void add(byte value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+	}
+
+	private static class IntColumn {
+
+		private int[] values = new int[16];
+		private int size = 0;
+
+		void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+	}
+
+	private static class FloatColumn {
+
+		private float[] values = new float[16];
+		private int size = 0;
+
+		void add(float value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		void addAll(float[] array, int offset, int n) {
+			if (size + n > values.length)
+				values = Arrays.copyOf(values, Math.max(size + n, values.length * 2));
+			System.arraycopy(array, offset, values, size, n);
+			size += n;
+		}
+
+	}
+
+	private static class DoubleColumn {
+
+		private double[] values = new double[16];
+		private int size = 0;
+
+		void add(double value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+	}
+
+}
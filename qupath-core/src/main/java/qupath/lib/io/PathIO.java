@@ -25,6 +25,10 @@ package qupath.lib.io;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -66,7 +70,84 @@ public class PathIO {
 	
 	
 	/**
-	 * Read the server path from a serialized file, if present.  This is assumed to be the first line within the file.
+	 * Identifier for the binary data file format ('QPDT').
+	 * Files written before this was introduced start with the Java serialization stream header instead.
+	 */
+	private static final int DATA_MAGIC = 0x51504454;
+	
+	/**
+	 * Version of the data file format.
+	 * Version 1.0 was the first, version 2 switched to integers and includes Locale information - both of these used Java serialization throughout.
+	 * Version 3 stores the object hierarchy using {@link HierarchyBinaryIO}.
+	 */
+	private static final int DATA_VERSION = 3;
+	
+	/**
+	 * Header at the start of any Java serialization stream, used to identify legacy data files.
+	 */
+	private static final int SERIALIZATION_MAGIC = 0xACED0005;
+	
+	private static volatile boolean deferDetectionLoading = false;
+	
+	private static volatile boolean useColumnarMeasurements = false;
+	
+	
+	/**
+	 * Request that detections are only loaded when they are needed whenever image data is read from a file, 
+	 * rather than all being loaded immediately.
+	 * <p>
+	 * This can make opening data files containing very large numbers of detections much faster and reduce memory use, 
+	 * since detections are loaded only for the regions that are actually requested from the hierarchy.
+	 * However, the data file must not be modified until everything has been loaded.
+	 * 
+	 * @param defer
+	 * 
+	 * @see PathObjectHierarchy#hasDeferredObjects()
+	 */
+	public static void setDeferDetectionLoading(final boolean defer) {
+		deferDetectionLoading = defer;
+	}
+	
+	/**
+	 * Returns true if detections should only be loaded when needed whenever image data is read from a file.
+	 * 
+	 * @return
+	 * 
+	 * @see #setDeferDetectionLoading(boolean)
+	 */
+	public static boolean getDeferDetectionLoading() {
+		return deferDetectionLoading;
+	}
+	
+	/**
+	 * Request that detection measurements are stored in columns shared by the entire hierarchy whenever 
+	 * image data is read from a file, rather than in a separate list for each detection.
+	 * <p>
+	 * This greatly reduces the memory needed for images with many detections, and makes computing histograms 
+	 * or exporting a single measurement for all detections faster.
+	 * 
+	 * @param useColumns
+	 * 
+	 * @see PathObjectHierarchy#setUseColumnarMeasurements(boolean)
+	 */
+	public static void setUseColumnarMeasurements(final boolean useColumns) {
+		useColumnarMeasurements = useColumns;
+	}
+	
+	/**
+	 * Returns true if detection measurements should be stored in columns whenever image data is read from a file.
+	 * 
+	 * @return
+	 * 
+	 * @see #setUseColumnarMeasurements(boolean)
+	 */
+	public static boolean getUseColumnarMeasurements() {
+		return useColumnarMeasurements;
+	}
+	
+	
+	/**
+	 * Read the server path from a data file, if present.  This is assumed to be the first entry within the file.
 	 * @param file
 	 * @return The server path that is stored within the file, or null if no path could be found.
 	 * @throws IOException 
@@ -76,7 +157,14 @@ public class PathIO {
 	public static String readSerializedServerPath(final File file) throws FileNotFoundException, IOException, ClassNotFoundException {
 		String serverPath = null;
 		try (FileInputStream fileIn = new FileInputStream(file)) {
-			ObjectInputStream inStream = new ObjectInputStream(new BufferedInputStream(fileIn));
+			var stream = new BufferedInputStream(fileIn);
+			if (isBinaryDataStream(stream)) {
+				var inStream = new DataInputStream(stream);
+				inStream.readInt();
+				inStream.readInt();
+				return inStream.readUTF();
+			}
+			ObjectInputStream inStream = new ObjectInputStream(stream);
 			// Check the first line, then read the server path if it is valid
 			String firstLine = inStream.readUTF();
 			if (firstLine.startsWith("Data file version")) {
@@ -87,154 +175,242 @@ public class PathIO {
 		return serverPath;
 	}
 	
-	private static <T> ImageData<T> readImageDataSerialized(final File file, ImageData<T> imageData, ImageServer<T> server, Class<T> cls) throws FileNotFoundException, IOException {
-		if (file == null)
-			return null;
-		logger.info("Reading data from {}...", file.getName());
-		try (FileInputStream stream = new FileInputStream(file)) {
-			imageData = readImageDataSerialized(stream, imageData, server, cls);	
-			// Set the last saved path (actually the path from which this was opened)
-			if (imageData != null)
-				imageData.setLastSavedPath(file.getAbsolutePath(), true);
-			return imageData;
-//		} catch (IOException e) {
-//			logger.error("Error reading ImageData from file", e);
-//			return null;
+	/**
+	 * Check whether a stream starts with the binary data file identifier, without consuming any bytes.
+	 * @param stream
+	 * @return true if the stream contains binary data, false if it should be treated as a legacy (serialized) data file
+	 * @throws IOException
+	 */
+	private static boolean isBinaryDataStream(final BufferedInputStream stream) throws IOException {
+		stream.mark(4);
+		int magic = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = stream.read();
+			if (b < 0)
+				break;
+			magic = (magic << 8) | b;
 		}
+		stream.reset();
+		if (magic == DATA_MAGIC)
+			return true;
+		if (magic != SERIALIZATION_MAGIC)
+			logger.warn("Unknown data file format - will attempt to read as serialized data");
+		return false;
 	}
 	
-	@SuppressWarnings("unchecked")
-	private static <T> ImageData<T> readImageDataSerialized(final InputStream stream, ImageData<T> imageData, ImageServer<T> server, Class<T> cls) throws IOException {
+	/**
+	 * Contents read from a data file, used to create or update an {@link ImageData}.
+	 */
+	private static class ImageDataContents {
 		
-		long startTime = System.currentTimeMillis();
+		private String serverPath = null;
+		private PathObjectHierarchy hierarchy = null;
+		private ImageData.ImageType imageType = null;
+		private ColorDeconvolutionStains stains = null;
+		private Workflow workflow = null;
+		private Map<String, Object> propertyMap = null;
+		
+		/**
+		 * Accept an object read using Java serialization, if it is relevant.
+		 * @param input
+		 * @return false if the end of the contents has been reached, true otherwise
+		 */
+		@SuppressWarnings("unchecked")
+		private boolean accept(Object input) {
+			if (input instanceof PathObjectHierarchy)
+				hierarchy = (PathObjectHierarchy)input;
+			else if (input instanceof ImageData.ImageType)
+				imageType = (ImageData.ImageType)input;
+			else if (input instanceof String && "EOF".equals(input))
+				return false;
+			else if (input instanceof ColorDeconvolutionStains)
+				stains = (ColorDeconvolutionStains)input;
+			else if (input instanceof Workflow)
+				workflow = (Workflow)input;
+			else if (input instanceof Map)
+				propertyMap = (Map<String, Object>)input;
+			else if (input == null) {
+				logger.debug("Null object will be skipped");
+			} else
+				logger.warn("Unsupported object of class {} will be skipped: {}", input.getClass().getName(), input);
+			return true;
+		}
+		
+	}
+	
+	private static ImageDataContents readContentsSerialized(final InputStream stream) throws IOException {
 		Locale locale = Locale.getDefault(Category.FORMAT);
-		boolean localeChanged = false;
 
-		try (ObjectInputStream inStream = new ObjectInputStream(new BufferedInputStream(stream))) {
-			String serverPath = null;
-			PathObjectHierarchy hierarchy = null;
-			ImageData.ImageType imageType = null;
-			ColorDeconvolutionStains stains = null;
-			Workflow workflow = null;
-			Map<String, Object> propertyMap = null;
+		var contents = new ImageDataContents();
+		try (ObjectInputStream inStream = new ObjectInputStream(stream)) {
 
 			String firstLine = inStream.readUTF();
-			//				int versionNumber = -1;
 			if (!firstLine.startsWith("Data file version")) {
 				logger.error("Input stream does not contain valid QuPath data!");
 			}
-			//				else {
-			//					// Could try to parse version number... although frankly, at this time, we don't really care...
-			//					try {
-			//						versionNumber = NumberFormat.getInstance(Locale.US).parse(firstLine.substring("Data file version".length()).trim()).intValue();
-			//					} catch (Exception e) {
-			//						logger.warn("Unable to parse version number from {}", firstLine);
-			//					}
-			//				}
-
-			serverPath = (String)inStream.readObject();
-			serverPath = serverPath.substring("Image path: ".length()).trim();
 
+			String serverPath = (String)inStream.readObject();
+			contents.serverPath = serverPath.substring("Image path: ".length()).trim();
 
-			while (true) {
-				//					logger.debug("Starting read: " + inStream.available());
-				try {
-					// Try to read a relevant object from the stream
-					Object input = inStream.readObject();
-					logger.debug("Read: {}", input);
-
-					// If we have a Locale, then set it
-					if (input instanceof Locale) {
-						if (input != locale) {
-							Locale.setDefault(Category.FORMAT, (Locale)input);
-							localeChanged = true;
-						}
-					} else if (input instanceof PathObjectHierarchy)
-						hierarchy = (PathObjectHierarchy)input;
-					else if (input instanceof ImageData.ImageType)
-						imageType = (ImageData.ImageType)input;
-					else if (input instanceof String && "EOF".equals(input))  {
-						//							if (serverPath == null) // serverPath should be first string
-						//								serverPath = (String)input;
-						//							else if ("EOF".equals(input)) {
-						break;
-						//							}
-					}
-					else if (input instanceof ColorDeconvolutionStains)
-						stains = (ColorDeconvolutionStains)input;
-					else if (input instanceof Workflow)
-						workflow = (Workflow)input;
-					else if (input instanceof Map)
-						propertyMap = (Map<String, Object>)input;
-					else if (input == null) {
-						logger.debug("Null object will be skipped");
-					} else
-						logger.warn("Unsupported object of class {} will be skipped: {}", input.getClass().getName(), input);
+			readObjects(inStream, contents);
+			
+			// TODO: Make this less clumsy... but for now we need to ensure we have a fully-initialized hierarchy (which deserialization alone doesn't achieve)
+			if (contents.hierarchy != null) {
+				PathObjectHierarchy hierarchy2 = new PathObjectHierarchy();
+				hierarchy2.setHierarchy(contents.hierarchy);
+				contents.hierarchy = hierarchy2;
+			}
+		} catch (ClassNotFoundException e1) {
+			logger.warn("Class not found reading image data", e1);
+		} finally {
+			Locale.setDefault(Category.FORMAT, locale);
+		}
+		return contents;
+	}
+	
+	/**
+	 * Read objects from a Java serialization stream until the EOF marker is found.
+	 * The default format Locale may be changed while reading; it is the responsibility of the caller to reset this.
+	 * @param inStream
+	 * @param contents
+	 * @throws IOException
+	 */
+	private static void readObjects(final ObjectInputStream inStream, final ImageDataContents contents) throws IOException {
+		while (true) {
+			try {
+				// Try to read a relevant object from the stream
+				Object input = inStream.readObject();
+				logger.debug("Read: {}", input);
 
-				} catch (ClassNotFoundException e) {
-					logger.error("Unable to find class", e);
-				} catch (EOFException e) {
-					// Try to recover from EOFExceptions - we may already have enough info
-					logger.error("Reached end of file...");
-					if (hierarchy == null)
-						e.printStackTrace();
+				// If we have a Locale, then set it
+				if (input instanceof Locale) {
+					if (input != Locale.getDefault(Category.FORMAT))
+						Locale.setDefault(Category.FORMAT, (Locale)input);
+				} else if (!contents.accept(input))
 					break;
-				}
+			} catch (ClassNotFoundException e) {
+				logger.error("Unable to find class", e);
+			} catch (EOFException e) {
+				// Try to recover from EOFExceptions - we may already have enough info
+				logger.error("Reached end of file...");
+				if (contents.hierarchy == null)
+					e.printStackTrace();
+				break;
 			}
-
-			// Create an entirely new ImageData if necessary
-			if (imageData == null || !(imageData.getServer().equals(server) || imageData.getServerPath().equals(serverPath))) {
-				// Create a new server if we need to
+		}
+	}
+	
+	private static ImageDataContents readContentsBinary(final InputStream stream) throws IOException {
+		var contents = new ImageDataContents();
+		var inStream = new DataInputStream(stream);
+		readPropertiesBinary(inStream, contents);
+		contents.hierarchy = HierarchyBinaryIO.readHierarchy(inStream);
+		return contents;
+	}
+	
+	/**
+	 * Read everything from a binary data file apart from the object hierarchy.
+	 * @param inStream
+	 * @param contents
+	 * @throws IOException
+	 */
+	private static void readPropertiesBinary(final DataInputStream inStream, final ImageDataContents contents) throws IOException {
+		Locale locale = Locale.getDefault(Category.FORMAT);
+		try {
+			inStream.readInt();
+			int version = inStream.readInt();
+			if (version > DATA_VERSION)
+				throw new IOException("Unsupported data file version " + version + " (maximum supported version is " + DATA_VERSION + ")");
+			contents.serverPath = inStream.readUTF();
+			
+			// Image properties are stored as serialized objects
+			byte[] propertyBytes = new byte[inStream.readInt()];
+			inStream.readFully(propertyBytes);
+			try (var propertyStream = new ObjectInputStream(new ByteArrayInputStream(propertyBytes))) {
+				readObjects(propertyStream, contents);
+			}
+		} finally {
+			Locale.setDefault(Category.FORMAT, locale);
+		}
+	}
+	
+	/**
+	 * Read the contents of a data file, deferring the loading of detections if the file format supports it.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static ImageDataContents readContentsDeferred(final File file) throws IOException {
+		var contents = new ImageDataContents();
+		long offset;
+		try (var stream = new BufferedInputStream(new FileInputStream(file))) {
+			if (!isBinaryDataStream(stream))
+				return readContentsSerialized(stream);
+			var countingStream = new HierarchyBinaryIO.CountingInputStream(stream, 0L);
+			readPropertiesBinary(new DataInputStream(countingStream), contents);
+			offset = countingStream.getPosition();
+		}
+		contents.hierarchy = HierarchyBinaryIO.readHierarchyDeferred(file, offset);
+		return contents;
+	}
+	
+	private static ImageDataContents readContents(final InputStream stream) throws IOException {
+		var bufferedStream = new BufferedInputStream(stream);
+		if (isBinaryDataStream(bufferedStream))
+			return readContentsBinary(bufferedStream);
+		return readContentsSerialized(bufferedStream);
+	}
+	
+	private static <T> ImageData<T> readImageDataImpl(final ImageDataContents contents, ImageData<T> imageData, ImageServer<T> server, Class<T> cls) throws IOException {
+		
+		long startTime = System.currentTimeMillis();
+		
+		String serverPath = contents.serverPath;
+		PathObjectHierarchy hierarchy = contents.hierarchy;
+		// Any store is taken over if the hierarchy is copied into an existing ImageData
+		if (hierarchy != null && useColumnarMeasurements)
+			hierarchy.setUseColumnarMeasurements(true);
+		
+		// Create an entirely new ImageData if necessary
+		if (imageData == null || !(imageData.getServer().equals(server) || imageData.getServerPath().equals(serverPath))) {
+			// Create a new server if we need to
+			if (server == null) {
+				try {
+					server = ImageServerProvider.buildServer(serverPath, cls);
+				} catch (Exception e) {
+					logger.error(e.getLocalizedMessage());
+				};
 				if (server == null) {
-					try {
-						server = ImageServerProvider.buildServer(serverPath, cls);
-					} catch (Exception e) {
-						logger.error(e.getLocalizedMessage());
-					};
-					if (server == null) {
-						logger.error("Warning: Unable to create server for path " + serverPath);
-						//							throw new RuntimeException("Warning: Unable to create server for path " + serverPath);
-					}
+					logger.error("Warning: Unable to create server for path " + serverPath);
 				}
-				// TODO: Make this less clumsy... but for now we need to ensure we have a fully-initialized hierarchy (which deserialization alone doesn't achieve)
-				PathObjectHierarchy hierarchy2 = new PathObjectHierarchy();
-				hierarchy2.setHierarchy(hierarchy);
-				hierarchy = hierarchy2;
-
-				imageData = new ImageData<>(server, hierarchy, imageType);
-			} else {
-				if (imageType != null)
-					imageData.setImageType(imageType);
-				// Set the new hierarchy
-				imageData.getHierarchy().setHierarchy(hierarchy);
 			}
-			// Set the other properties we have just read
-			if (workflow != null) {
-				imageData.getHistoryWorkflow().clear();
-				imageData.getHistoryWorkflow().addSteps(workflow.getSteps());
-			}
-			if (stains != null) {
-				imageData.setColorDeconvolutionStains(stains);
-			}
-			if (propertyMap != null) {
-				for (Entry<String, Object> entry : propertyMap.entrySet())
-					imageData.setProperty(entry.getKey(), entry.getValue());
-			}
-
-			long endTime = System.currentTimeMillis();
+			imageData = new ImageData<>(server, hierarchy, contents.imageType);
+		} else {
+			if (contents.imageType != null)
+				imageData.setImageType(contents.imageType);
+			// Set the new hierarchy
+			if (hierarchy != null)
+				imageData.getHierarchy().setHierarchy(hierarchy);
+		}
+		// Set the other properties we have just read
+		if (contents.workflow != null) {
+			imageData.getHistoryWorkflow().clear();
+			imageData.getHistoryWorkflow().addSteps(contents.workflow.getSteps());
+		}
+		if (contents.stains != null) {
+			imageData.setColorDeconvolutionStains(contents.stains);
+		}
+		if (contents.propertyMap != null) {
+			for (Entry<String, Object> entry : contents.propertyMap.entrySet())
+				imageData.setProperty(entry.getKey(), entry.getValue());
+		}
 
-			//				if (hierarchy == null) {
-			//					logger.error(String.format("%s does not contain a valid QUPath object hierarchy!", file.getAbsolutePath()));
-			//					return null;
-			//				}
-			logger.debug(String.format("Hierarchy with %d object(s) read in %.2f seconds", hierarchy.nObjects(), (endTime - startTime)/1000.));
+		long endTime = System.currentTimeMillis();
+		if (imageData.getHierarchy().hasDeferredObjects())
+			logger.debug(String.format("Hierarchy read in %.2f seconds, detections will be loaded when needed", (endTime - startTime)/1000.));
+		else
+			logger.debug(String.format("Hierarchy with %d object(s) read in %.2f seconds", imageData.getHierarchy().nObjects(), (endTime - startTime)/1000.));
 
-		} catch (ClassNotFoundException e1) {
-			logger.warn("Class not found reading image data", e1);
-		} finally {
-			if (localeChanged)
-				Locale.setDefault(Category.FORMAT, locale);
-		}
 		return imageData;
 	}
 	
@@ -262,6 +438,8 @@ public class PathIO {
 	
 	/**
 	 * Read ImageData from an InputStream into an existing ImageData object, or creating a new one if required.
+	 * <p>
+	 * Both the current binary format and legacy (serialized) data files are supported.
 	 * 
 	 * @param stream
 	 * @param imageData
@@ -273,12 +451,14 @@ public class PathIO {
 	 * @throws IOException
 	 */
 	public static <T> ImageData<T> readImageData(final InputStream stream, ImageData<T> imageData, ImageServer<T> server, Class<T> cls) throws IOException {
-		return readImageDataSerialized(stream, imageData, server, cls);
+		return readImageDataImpl(readContents(stream), imageData, server, cls);
 	}
 
 	
 	/**
 	 * Read ImageData from a File into an existing ImageData object, or create a new one if required.
+	 * <p>
+	 * If {@link #getDeferDetectionLoading()} is true, detections may be loaded from the file only when they are needed.
 	 * 
 	 * @param file
 	 * @param imageData
@@ -289,7 +469,22 @@ public class PathIO {
 	 * @throws IOException 
 	 */
 	public static <T> ImageData<T> readImageData(final File file, ImageData<T> imageData, ImageServer<T> server, Class<T> cls) throws IOException {
-		return readImageDataSerialized(file, imageData, server, cls);
+		if (file == null)
+			return null;
+		logger.info("Reading data from {}...", file.getName());
+		ImageDataContents contents;
+		if (deferDetectionLoading)
+			contents = readContentsDeferred(file);
+		else {
+			try (FileInputStream stream = new FileInputStream(file)) {
+				contents = readContents(stream);
+			}
+		}
+		imageData = readImageDataImpl(contents, imageData, server, cls);
+		// Set the last saved path (actually the path from which this was opened)
+		if (imageData != null)
+			imageData.setLastSavedPath(file.getAbsolutePath(), true);
+		return imageData;
 	}
 	
 	
@@ -302,73 +497,79 @@ public class PathIO {
 	public static void writeImageData(final File file, final ImageData<?> imageData) throws FileNotFoundException, IOException {
 		File backup = null;
 		
+		// Detections might still need to be read from the existing file
+		imageData.getHierarchy().loadDeferredObjects();
+		
+		// Backup any existing file... just in case of disaster
+		if (file.exists()) {
+			File fileCopy = new File(file.toURI());
+			backup = new File(fileCopy.getAbsolutePath() + ".backup");
+			fileCopy.renameTo(backup);
+		}
+		
 		try (var stream = new FileOutputStream(file)) {
-
-			// Backup any existing file... just in case of disaster
-			if (file.exists()) {
-				File fileCopy = new File(file.toURI());
-				backup = new File(fileCopy.getAbsolutePath() + ".backup");
-				fileCopy.renameTo(backup);
-			}
-			
-			writeImageDataSerialized(stream, imageData);
-			
-			// Remember the saved path
-			imageData.setLastSavedPath(file.getAbsolutePath(), true);
-			
-			// Delete the backup file
-			if (backup != null && !backup.equals(file))
-				backup.delete();
+			writeImageDataBinary(stream, imageData);
 		}
+			
+		// Remember the saved path
+		imageData.setLastSavedPath(file.getAbsolutePath(), true);
+		
+		// Delete the backup file
+		if (backup != null && !backup.equals(file))
+			backup.delete();
 	}
 	
 	
 	public static void writeImageData(final OutputStream stream, final ImageData<?> imageData) throws IOException {
-		writeImageDataSerialized(stream, imageData);
+		writeImageDataBinary(stream, imageData);
 	}
 	
 
-	private static void writeImageDataSerialized(final OutputStream stream, final ImageData<?> imageData) throws IOException {
+	private static void writeImageDataBinary(final OutputStream stream, final ImageData<?> imageData) throws IOException {
 				
 		try (OutputStream outputStream = new BufferedOutputStream(stream)) {
 			long startTime = System.currentTimeMillis();
 			
-			ObjectOutputStream outStream = new ObjectOutputStream(outputStream);
-			
-			// Write the identifier
-			// Version 1.0 was the first...
-			// Version 2 switched to integers, and includes Locale information
-			outStream.writeUTF("Data file version 2");
+			var outStream = new DataOutputStream(outputStream);
 			
-			// Write the image path
-			outStream.writeObject("Image path: " + imageData.getServerPath());
+			// Write the identifier & image path
+			outStream.writeInt(DATA_MAGIC);
+			outStream.writeInt(DATA_VERSION);
+			outStream.writeUTF(imageData.getServerPath());
 			
-			// Write the current locale
-			outStream.writeObject(Locale.getDefault(Category.FORMAT));
-			
-			// Write the rest of the main image metadata
-			outStream.writeObject(imageData.getImageType());
-			outStream.writeObject(imageData.getColorDeconvolutionStains());
-			outStream.writeObject(imageData.getHistoryWorkflow());
+			// Write the main image metadata & properties as (small) serialized objects
+			var propertyBytes = new ByteArrayOutputStream();
+			try (var propertyStream = new ObjectOutputStream(propertyBytes)) {
+				// Write the current locale
+				propertyStream.writeObject(Locale.getDefault(Category.FORMAT));
+				
+				// Write the rest of the main image metadata
+				propertyStream.writeObject(imageData.getImageType());
+				propertyStream.writeObject(imageData.getColorDeconvolutionStains());
+				propertyStream.writeObject(imageData.getHistoryWorkflow());
+				
+				// Write any remaining (serializable) properties
+				Map<String, Object> map = new HashMap<>();
+				for (Entry<String, Object> entry : imageData.getProperties().entrySet()) {
+					if (entry.getValue() instanceof Serializable)
+						map.put(entry.getKey(), entry.getValue());
+					else
+						logger.error("Property not serializable and will not be saved!  Key: " + entry.getKey() + ", Value: " + entry.getValue());
+				}
+				propertyStream.writeObject(map);
+				
+				// Write EOF marker
+				propertyStream.writeObject("EOF");
+			}
+			outStream.writeInt(propertyBytes.size());
+			propertyBytes.writeTo(outStream);
 			
-			// Write the rest of the main image metadata
+			// Write the object hierarchy
 			PathObjectHierarchy hierarchy = imageData.getHierarchy();
 			logger.info(String.format("Writing object hierarchy with %d object(s)...", hierarchy.nObjects()));
-			outStream.writeObject(hierarchy);
-			
-			// Write any remaining (serializable) properties
-			Map<String, Object> map = new HashMap<>();
-			for (Entry<String, Object> entry : imageData.getProperties().entrySet()) {
-				if (entry.getValue() instanceof Serializable)
-					map.put(entry.getKey(), entry.getValue());
-				else
-					logger.error("Property not serializable and will not be saved!  Key: " + entry.getKey() + ", Value: " + entry.getValue());
-			}
-			if (map != null)
-				outStream.writeObject(map);
+			HierarchyBinaryIO.writeHierarchy(outStream, hierarchy);
 			
-			// Write EOF marker
-			outStream.writeObject("EOF");
+			outStream.flush();
 			
 			long endTime = System.currentTimeMillis();
 			logger.info(String.format("Image data written in %.2f seconds", (endTime - startTime)/1000.));
@@ -400,16 +601,35 @@ public class PathIO {
 	 * @return
 	 */
 	public static PathObjectHierarchy readHierarchy(final InputStream fileIn) throws IOException {
+		var stream = new BufferedInputStream(fileIn);
+		if (isBinaryDataStream(stream)) {
+			var inStream = new DataInputStream(stream);
+			inStream.readInt();
+			inStream.readInt();
+			inStream.readUTF();
+			// Skip the image properties
+			int nBytes = inStream.readInt();
+			while (nBytes > 0) {
+				int skipped = inStream.skipBytes(nBytes);
+				if (skipped <= 0)
+					throw new EOFException("Unexpected end of data file");
+				nBytes -= skipped;
+			}
+			return HierarchyBinaryIO.readHierarchy(inStream);
+		}
+		return readHierarchySerialized(stream);
+	}
+	
+	private static PathObjectHierarchy readHierarchySerialized(final InputStream stream) throws IOException {
 
 		Locale locale = Locale.getDefault(Category.FORMAT);
 		boolean localeChanged = false;
 
-		try (ObjectInputStream inStream = new ObjectInputStream(new BufferedInputStream(fileIn))) {
+		try (ObjectInputStream inStream = new ObjectInputStream(stream)) {
 			if (!inStream.readUTF().startsWith("Data file version")) {
 				logger.error("Input stream is not from a valid QuPath data file!");
 			}
 			while (true) {
-				//					logger.debug("Starting read: " + inStream.available());
 				try {
 					// Try to read a relevant object from the stream
 					Object input = inStream.readObject();
@@ -0,0 +1,701 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.measurements;
+
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage for the measurements of many objects, using one primitive column per measurement name.
+ * <p>
+ * Each {@link MeasurementList} created by the store is a lightweight view of a single row,
+ * which avoids the overhead of creating separate arrays (and name lists) for every object.
+ * It also means that all the values for a single measurement are stored together, which is
+ * much more efficient whenever that measurement is needed for many objects
+ * (e.g. to compute a histogram, apply a classifier or export a table).
+ * <p>
+ * When an object is discarded, its list can be returned to the store with {@link #releaseMeasurementList(MeasurementList)}; 
+ * the row is then reused by the next list that is created.
+ * <p>
+ * Views may be read from multiple threads.  As with the other numeric lists, it is up to the caller
+ * to ensure that a single list isn't modified by multiple threads at the same time, but different lists
+ * from the same store can be safely modified in parallel.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public final class ColumnarMeasurementStore {
+
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final MeasurementList.TYPE type;
+
+	private final Map<String, Column> columnMap = new ConcurrentHashMap<>();
+	private final List<Column> columns = new ArrayList<>();
+
+	private final Map<List<String>, Schema> schemas = new HashMap<>();
+	private final Schema emptySchema;
+
+	private int nRows = 0;
+	
+	// Rows that have been released & may be reused
+	private int[] freeRows = new int[0];
+	private int nFreeRows = 0;
+
+	/**
+	 * Create a new store.
+	 *
+	 * @param type the type of values to store; {@link MeasurementList.TYPE#DOUBLE} gives double precision,
+	 *             while anything else is stored as floats (which is generally sufficient for detections)
+	 */
+	public ColumnarMeasurementStore(MeasurementList.TYPE type) {
+		this.type = type == MeasurementList.TYPE.DOUBLE ? type : MeasurementList.TYPE.FLOAT;
+		this.emptySchema = getSchema(Collections.emptyList());
+	}
+
+	/**
+	 * Get the type of values stored, either {@link MeasurementList.TYPE#FLOAT} or {@link MeasurementList.TYPE#DOUBLE}.
+	 *
+	 * @return
+	 */
+	public MeasurementList.TYPE getType() {
+		return type;
+	}
+
+	/**
+	 * Create a new, empty measurement list backed by this store.
+	 *
+	 * @return
+	 */
+	public MeasurementList createMeasurementList() {
+		int row;
+		synchronized (this) {
+			if (nFreeRows > 0)
+				row = freeRows[--nFreeRows];
+			else
+				row = nRows++;
+		}
+		return new ColumnarMeasurementList(this, row);
+	}
+
+	/**
+	 * Create a new measurement list backed by this store, containing the same measurements as an existing list.
+	 *
+	 * @param list
+	 * @return
+	 */
+	public MeasurementList createMeasurementList(MeasurementList list) {
+		var newList = (ColumnarMeasurementList)createMeasurementList();
+		int n = list.size();
+		if (n == 0)
+			return newList;
+		// Duplicate names aren't supported, so only keep the first of each
+		List<String> names = new ArrayList<>(new LinkedHashSet<>(list.getMeasurementNames()));
+		Schema schema = getSchema(names);
+		for (int i = 0; i < schema.columns.length; i++)
+			schema.columns[i].set(newList.row, list.getMeasurementValue(schema.names.get(i)));
+		newList.schema = schema;
+		return newList;
+	}
+
+	/**
+	 * Release a measurement list backed by this store, so that its row can be reused.
+	 * <p>
+	 * This should be called when the object that owns the list is discarded.  A standalone copy of the list is returned, 
+	 * which can be used if the object is needed again; the original list becomes empty, and can no longer be modified.
+	 *
+	 * @param list
+	 * @return a standalone copy of the list, or the original list if it is not backed by this store
+	 */
+	public MeasurementList releaseMeasurementList(MeasurementList list) {
+		if (!isBackedByStore(list))
+			return list;
+		var view = (ColumnarMeasurementList)list;
+		MeasurementList copy;
+		int row;
+		synchronized (view) {
+			row = view.row;
+			if (row < 0)
+				return view.toStandaloneList();
+			copy = view.toStandaloneList();
+			// Clear the values so that they don't appear in the columns
+			for (Column column : view.schema.columns)
+				column.set(row, Double.NaN);
+			view.schema = emptySchema;
+			view.row = -1;
+		}
+		synchronized (this) {
+			if (nFreeRows == freeRows.length)
+				freeRows = Arrays.copyOf(freeRows, Math.max(16, nFreeRows * 2));
+			freeRows[nFreeRows++] = row;
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns true if a measurement list is a view backed by this store.
+	 *
+	 * @param list
+	 * @return
+	 */
+	public boolean isBackedByStore(MeasurementList list) {
+		return list instanceof ColumnarMeasurementList && ((ColumnarMeasurementList)list).store == this;
+	}
+
+	/**
+	 * Get the type of the store that backs a measurement list.
+	 * 
+	 * @param list
+	 * @return the type, or null if the list is not backed by any store
+	 */
+	static MeasurementList.TYPE getStoreType(MeasurementList list) {
+		if (list instanceof ColumnarMeasurementList)
+			return ((ColumnarMeasurementList)list).store.type;
+		return null;
+	}
+
+	/**
+	 * Get the total number of rows, including those of any lists that have been released.
+	 *
+	 * @return
+	 */
+	public synchronized int getRowCount() {
+		return nRows;
+	}
+
+	/**
+	 * Get the names of all the measurement columns in the store.
+	 * Not every list will necessarily contain every measurement.
+	 *
+	 * @return
+	 */
+	public synchronized List<String> getColumnNames() {
+		List<String> names = new ArrayList<>();
+		for (Column column : columns)
+			names.add(column.name);
+		return names;
+	}
+
+	/**
+	 * Get the values of a named measurement for many measurement lists.
+	 * <p>
+	 * Lists backed by a store are read directly from the column, which only needs to be found once for all the lists that 
+	 * share the same measurement names; any other lists are queried by name.
+	 *
+	 * @param name the measurement name
+	 * @param lists the measurement lists
+	 * @param values optional array to store the output; this must be at least as long as the number of lists
+	 * @return the values, with NaN wherever a list does not contain the measurement
+	 */
+	public static double[] getValues(String name, List<? extends MeasurementList> lists, double[] values) {
+		int n = lists.size();
+		if (values == null || values.length < n)
+			values = new double[n];
+		Schema lastSchema = null;
+		Column column = null;
+		for (int i = 0; i < n; i++) {
+			var list = lists.get(i);
+			if (list instanceof ColumnarMeasurementList) {
+				var view = (ColumnarMeasurementList)list;
+				Schema schema = view.schema;
+				if (schema != lastSchema) {
+					int ind = schema.indexOf(name);
+					column = ind < 0 ? null : schema.columns[ind];
+					lastSchema = schema;
+				}
+				int row = view.row;
+				values[i] = column == null || row < 0 ? Double.NaN : column.get(row);
+			} else
+				values[i] = list.getMeasurementValue(name);
+		}
+		return values;
+	}
+
+	/**
+	 * Get all the values for a measurement column, in row order.
+	 * This includes NaN for lists that don't contain the measurement, and for any rows that have been released.
+	 *
+	 * @param name
+	 * @return the values, or null if there is no column with the specified name
+	 */
+	public double[] getColumnValues(String name) {
+		Column column = columnMap.get(name);
+		if (column == null)
+			return null;
+		int n = getRowCount();
+		double[] values = new double[n];
+		column.getValues(values, n);
+		return values;
+	}
+
+	private Column getColumn(String name) {
+		Column column = columnMap.get(name);
+		if (column != null)
+			return column;
+		synchronized (this) {
+			column = columnMap.get(name);
+			if (column == null) {
+				column = type == MeasurementList.TYPE.DOUBLE ? new DoubleColumn(name) : new FloatColumn(name);
+				columns.add(column);
+				columnMap.put(name, column);
+			}
+			return column;
+		}
+	}
+
+	/**
+	 * Get a shared schema for the specified measurement names, creating columns if necessary.
+	 *
+	 * @param names
+	 * @return
+	 */
+	private Schema getSchema(List<String> names) {
+		synchronized (schemas) {
+			Schema schema = schemas.get(names);
+			if (schema == null) {
+				schema = new Schema(this, names);
+				schemas.put(schema.names, schema);
+			}
+			return schema;
+		}
+	}
+
+
+	/**
+	 * The measurement names (and corresponding columns) used by a list.
+	 * These are shared between all lists with the same names in the same order.
+	 */
+	private static class Schema {
+
+		private final ColumnarMeasurementStore store;
+		private final List<String> names;
+		private final Column[] columns;
+		private final Map<String, Integer> positions = new HashMap<>();
+
+		// Cache the schemas resulting from adding a measurement, since lists are usually populated in the same order
+		private final Map<String, Schema> addedSchemas = new ConcurrentHashMap<>();
+
+		Schema(ColumnarMeasurementStore store, List<String> names) {
+			this.store = store;
+			this.names = Collections.unmodifiableList(new ArrayList<>(names));
+			this.columns = new Column[names.size()];
+			for (int i = 0; i < columns.length; i++) {
+				String name = names.get(i);
+				columns[i] = store.getColumn(name);
+				positions.put(name, i);
+			}
+		}
+
+		int indexOf(String name) {
+			Integer ind = positions.get(name);
+			return ind == null ? -1 : ind;
+		}
+
+		Schema withAdded(String name) {
+			return addedSchemas.computeIfAbsent(name, n -> {
+				List<String> newNames = new ArrayList<>(names);
+				newNames.add(n);
+				return store.getSchema(newNames);
+			});
+		}
+
+		Schema withRemoved(Collection<String> toRemove) {
+			List<String> newNames = new ArrayList<>(names);
+			if (!newNames.removeAll(toRemove))
+				return this;
+			return store.getSchema(newNames);
+		}
+
+	}
+
+
+	private static abstract class Column {
+
+		protected final String name;
+
+		Column(String name) {
+			this.name = name;
+		}
+
+		abstract double get(int row);
+
+		abstract void set(int row, double value);
+
+		abstract void getValues(double[] values, int n);
+
+	}
+
+
+	private static class FloatColumn extends Column {
+
+		private volatile float[][] chunks = new float[0][];
+
+		FloatColumn(String name) {
+			super(name);
+		}
+
+		@Override
+		double get(int row) {
+			float[][] chunks = this.chunks;
+			int c = row >>> CHUNK_BITS;
+			if (c >= chunks.length || chunks[c] == null)
+				return Double.NaN;
+			return chunks[c][row & CHUNK_MASK];
+		}
+
+		@Override
+		void set(int row, double value) {
+			getChunk(row >>> CHUNK_BITS)[row & CHUNK_MASK] = (float)value;
+		}
+
+		private float[] getChunk(int c) {
+			float[][] chunks = this.chunks;
+			if (c < chunks.length && chunks[c] != null)
+				return chunks[c];
+			synchronized (this) {
+				chunks = this.chunks;
+				if (c >= chunks.length)
+					chunks = Arrays.copyOf(chunks, Math.max(c + 1, chunks.length * 2));
+				else
+					chunks = chunks.clone();
+				if (chunks[c] == null) {
+					chunks[c] = new float[CHUNK_SIZE];
+					Arrays.fill(chunks[c], Float.NaN);
+				}
+				this.chunks = chunks;
+				return chunks[c];
+			}
+		}
+
+		@Override
+		void getValues(double[] values, int n) {
+			float[][] chunks = this.chunks;
+			for (int c = 0; c * CHUNK_SIZE < n; c++) {
+				int start = c * CHUNK_SIZE;
+				int end = Math.min(n, start + CHUNK_SIZE);
+				float[] chunk = c < chunks.length ? chunks[c] : null;
+				if (chunk == null)
+					Arrays.fill(values, start, end, Double.NaN);
+				else {
+					for (int i = start; i < end; i++)
+						values[i] = chunk[i - start];
+				}
+			}
+		}
+
+	}
+
+
+	private static class DoubleColumn extends Column {
+
+		private volatile double[][] chunks = new double[0][];
+
+		DoubleColumn(String name) {
+			super(name);
+		}
+
+		@Override
+		double get(int row) {
+			double[][] chunks = this.chunks;
+			int c = row >>> CHUNK_BITS;
+			if (c >= chunks.length || chunks[c] == null)
+				return Double.NaN;
+			return chunks[c][row & CHUNK_MASK];
+		}
+
+		@Override
+		void set(int row, double value) {
+			getChunk(row >>> CHUNK_BITS)[row & CHUNK_MASK] = value;
+		}
+
+		private double[] getChunk(int c) {
+			double[][] chunks = this.chunks;
+			if (c < chunks.length && chunks[c] != null)
+				return chunks[c];
+			synchronized (this) {
+				chunks = this.chunks;
+				if (c >= chunks.length)
+					chunks = Arrays.copyOf(chunks, Math.max(c + 1, chunks.length * 2));
+				else
+					chunks = chunks.clone();
+				if (chunks[c] == null) {
+					chunks[c] = new double[CHUNK_SIZE];
+					Arrays.fill(chunks[c], Double.NaN);
+				}
+				this.chunks = chunks;
+				return chunks[c];
+			}
+		}
+
+		@Override
+		void getValues(double[] values, int n) {
+			double[][] chunks = this.chunks;
+			for (int c = 0; c * CHUNK_SIZE < n; c++) {
+				int start = c * CHUNK_SIZE;
+				int end = Math.min(n, start + CHUNK_SIZE);
+				double[] chunk = c < chunks.length ? chunks[c] : null;
+				if (chunk == null)
+					Arrays.fill(values, start, end, Double.NaN);
+				else
+					System.arraycopy(chunk, 0, values, start, end - start);
+			}
+		}
+
+	}
+
+
+	/**
+	 * A MeasurementList that is a view of a single row within a store.
+	 * <p>
+	 * Unlike other lists, each measurement name can only occur once; adding a measurement with an existing name
+	 * replaces the previous value.
+	 */
+	private static class ColumnarMeasurementList implements MeasurementList {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient ColumnarMeasurementStore store;
+		// Row within the store, or -1 if the list has been released
+		private transient volatile int row;
+		private transient volatile Schema schema;
+
+		ColumnarMeasurementList(ColumnarMeasurementStore store, int row) {
+			this.store = store;
+			this.row = row;
+			this.schema = store.emptySchema;
+		}
+
+		@Override
+		public boolean addMeasurement(String name, double value) {
+			putMeasurement(name, value);
+			return true;
+		}
+
+		/**
+		 * Put a measurement into the list.
+		 * Only the current value of the measurement is stored.
+		 */
+		@Override
+		public Measurement putMeasurement(Measurement measurement) {
+			String name = measurement.getName();
+			Schema schema = this.schema;
+			int ind = schema.indexOf(name);
+			Measurement previous = ind >= 0 ? new StoredMeasurement(name, schema.columns[ind].get(row)) : null;
+			putMeasurement(name, measurement.getValue());
+			return previous;
+		}
+
+		@Override
+		public void putMeasurement(String name, double value) {
+			if (row < 0)
+				throw new IllegalStateException("Measurement list has been released from its store");
+			Schema schema = this.schema;
+			int ind = schema.indexOf(name);
+			if (ind < 0) {
+				schema = schema.withAdded(name);
+				ind = schema.columns.length - 1;
+				// Set the value before updating the schema, so that readers never see a stale value
+				schema.columns[ind].set(row, value);
+				this.schema = schema;
+			} else
+				schema.columns[ind].set(row, value);
+		}
+
+		@Override
+		public List<String> getMeasurementNames() {
+			return schema.names;
+		}
+
+		@Override
+		public String getMeasurementName(int ind) {
+			return schema.names.get(ind);
+		}
+
+		@Override
+		public double getMeasurementValue(int ind) {
+			Schema schema = this.schema;
+			if (ind >= 0 && ind < schema.columns.length)
+				return schema.columns[ind].get(row);
+			return Double.NaN;
+		}
+
+		@Override
+		public double getMeasurementValue(String name) {
+			return getMeasurementValue(schema.indexOf(name));
+		}
+
+		@Override
+		public boolean containsAllNamedMeasurements(Collection<String> keys) {
+			Schema schema = this.schema;
+			return schema.names == keys || schema.positions.keySet().containsAll(keys);
+		}
+
+		@Override
+		public boolean containsNamedMeasurement(String name) {
+			return schema.positions.containsKey(name);
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return schema.columns.length == 0;
+		}
+
+		@Override
+		public int size() {
+			return schema.columns.length;
+		}
+
+		@Override
+		public boolean supportsDynamicMeasurements() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// Lists are always compact
+		}
+
+		@Override
+		public void removeMeasurements(String... measurementNames) {
+			Set<String> toRemove = new LinkedHashSet<>(Arrays.asList(measurementNames));
+			Schema previous = this.schema;
+			this.schema = previous.withRemoved(toRemove);
+			clearValues(previous, toRemove);
+		}
+
+		@Override
+		public void clear() {
+			Schema previous = this.schema;
+			this.schema = store.emptySchema;
+			clearValues(previous, previous.names);
+		}
+		
+		/**
+		 * Set the values of the specified measurements to NaN for this list's row, as when the list is released, 
+		 * so that they no longer appear in the columns of the store.
+		 * Synchronized with the release of the list, so that a row is never modified after it has been reused.
+		 */
+		private synchronized void clearValues(Schema schema, Collection<String> names) {
+			int row = this.row;
+			if (row < 0)
+				return;
+			for (String name : names) {
+				int ind = schema.indexOf(name);
+				if (ind >= 0)
+					schema.columns[ind].set(row, Double.NaN);
+			}
+		}
+
+		/**
+		 * Serialize as a standalone list, since the store itself is not serializable.
+		 *
+		 * @return
+		 * @throws ObjectStreamException
+		 */
+		private Object writeReplace() throws ObjectStreamException {
+			return toStandaloneList();
+		}
+		
+		/**
+		 * Create a copy of this list that is not backed by the store, using the same type of values.
+		 * @return
+		 */
+		MeasurementList toStandaloneList() {
+			Schema schema = this.schema;
+			int row = this.row;
+			var list = MeasurementListFactory.createMeasurementList(schema.columns.length, store.type);
+			for (int i = 0; i < schema.columns.length; i++)
+				list.addMeasurement(schema.names.get(i), row < 0 ? Double.NaN : schema.columns[i].get(row));
+			list.close();
+			return list;
+		}
+
+		@Override
+		public String toString() {
+			Schema schema = this.schema;
+			StringBuilder sb = new StringBuilder();
+			int n = schema.columns.length;
+			sb.append("[");
+			for (int i = 0; i < n; i++) {
+				sb.append(schema.names.get(i)).append(": ").append(schema.columns[i].get(row));
+				if (i < n - 1)
+					sb.append(", ");
+			}
+			sb.append("]");
+			return sb.toString();
+		}
+
+	}
+	
+	
+	/**
+	 * Measurement returned when a value is replaced, containing the previous value.
+	 */
+	private static class StoredMeasurement implements Measurement {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final String name;
+		private final double value;
+		
+		StoredMeasurement(String name, double value) {
+			this.name = name;
+			this.value = value;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public double getValue() {
+			return value;
+		}
+
+		@Deprecated
+		@Override
+		public boolean isDynamic() {
+			return false;
+		}
+		
+		@Override
+		public String toString() {
+			return name + ": " + value;
+		}
+		
+	}
+
+}
@@ -46,5 +46,23 @@ public class MeasurementListFactory {
 			return new DefaultMeasurementList(capacity);
 		}
 	}
+	
+	/**
+	 * Get the type of a measurement list, i.e. the type that should be used to create a new list 
+	 * that can store the same values without loss of precision.
+	 * 
+	 * @param list
+	 * @return
+	 */
+	public static MeasurementList.TYPE getType(MeasurementList list) {
+		if (list instanceof NumericMeasurementList.FloatList)
+			return MeasurementList.TYPE.FLOAT;
+		if (list instanceof NumericMeasurementList.DoubleList)
+			return MeasurementList.TYPE.DOUBLE;
+		var columnarType = ColumnarMeasurementStore.getStoreType(list);
+		if (columnarType != null)
+			return columnarType;
+		return MeasurementList.TYPE.GENERAL;
+	}
 
 }
@@ -23,6 +23,11 @@
 
 package qupath.lib.measurements;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -32,7 +37,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,40 +67,112 @@ class NumericMeasurementList {
 	
 	final private static Logger logger = LoggerFactory.getLogger(NumericMeasurementList.class);
 	
-	private static Map<List<String>, NameMap> namesPool = Collections.synchronizedMap(new WeakHashMap<>());
+	/**
+	 * Pool of shared name tables, so that lists with the same measurements can use the same names and lookup map.
+	 * Entries are removed once no list is using them any more.
+	 */
+	private static final Map<List<String>, NameMapReference> namesPool = new ConcurrentHashMap<>();
+	private static final ReferenceQueue<NameMap> namesQueue = new ReferenceQueue<>();
 	
 
+	/**
+	 * Immutable table of measurement names, along with a map for fast lookup by name.
+	 */
 	private static class NameMap {
 		
-		private List<String> names;
-		private Map<String, Integer> map;
+		private final List<String> names;
+		private final Map<String, Integer> map;
 		
 		NameMap(List<String> names) {
 			this.names = Collections.unmodifiableList(new ArrayList<>(names)); // Make a defensive copy
-			createHashMap();
-		}
-		
-		private void createHashMap() {
-			map = new HashMap<>();
+			var map = new HashMap<String, Integer>();
 			int i = 0;
-			for (String s : names) {
-				map.put(s, i);
+			for (String s : this.names) {
+				// Keep the first index, for consistency with indexOf
+				map.putIfAbsent(s, i);
 				i++;
 			}
+			this.map = map;
 		}
 		
 		List<String> getNames() {
 			return names;
 		}
 		
-		Map<String, Integer> getMap() {
-			return map;
+		int indexOf(String name) {
+			Integer ind = map.get(name);
+			return ind == null ? -1 : ind;
+		}
+		
+		boolean contains(String name) {
+			return map.containsKey(name);
+		}
+		
+		boolean containsAll(Collection<String> names) {
+			return map.keySet().containsAll(names);
+		}
+		
+	}
+	
+	
+	/**
+	 * Weak reference to a NameMap, which retains its key so that it can be removed from the pool once cleared.
+	 */
+	private static class NameMapReference extends WeakReference<NameMap> {
+		
+		private final List<String> key;
+		
+		NameMapReference(NameMap nameMap) {
+			super(nameMap, namesQueue);
+			this.key = nameMap.getNames();
 		}
 		
 	}
 	
 	
+	/**
+	 * Get a shared NameMap containing the specified names, creating one if necessary.
+	 * 
+	 * @param names
+	 * @return
+	 */
+	private static NameMap internNames(List<String> names) {
+		purgeNames();
+		NameMapReference ref = namesPool.get(names);
+		NameMap nameMap = ref == null ? null : ref.get();
+		if (nameMap != null)
+			return nameMap;
+		
+		nameMap = new NameMap(names);
+		NameMapReference newRef = new NameMapReference(nameMap);
+		while (true) {
+			ref = namesPool.putIfAbsent(nameMap.getNames(), newRef);
+			if (ref == null)
+				return nameMap;
+			NameMap existing = ref.get();
+			if (existing != null)
+				return existing;
+			if (namesPool.replace(nameMap.getNames(), ref, newRef))
+				return nameMap;
+		}
+	}
+	
+	private static void purgeNames() {
+		Reference<? extends NameMap> ref;
+		while ((ref = namesQueue.poll()) != null) {
+			var nameRef = (NameMapReference)ref;
+			namesPool.remove(nameRef.key, nameRef);
+		}
+	}
+	
+	
 	
+	/**
+	 * Base class for numeric lists.
+	 * <p>
+	 * Once a list is closed, its names are stored in an immutable shared NameMap, and reads don't require any locking.
+	 * Modifications are synchronized on the list, since they may need to reopen it.
+	 */
 	private static abstract class AbstractNumericMeasurementList implements MeasurementList {
 		
 		private static final long serialVersionUID = 1L;
@@ -105,7 +182,7 @@ class NumericMeasurementList {
 		List<String> names;
 		boolean isClosed = false;
 
-		private Map<String, Integer> map; // Optional map for fast measurement lookup
+		private transient NameMap nameMap; // Shared names, available only when the list is closed
 
 		AbstractNumericMeasurementList(int capacity) {
 			names = new ArrayList<>(capacity);
@@ -124,25 +201,24 @@ class NumericMeasurementList {
 		}
 
 		@Override
-		public void close() {
+		public synchronized void close() {
 			if (isClosed())
 				return;
 			compactStorage();
-			// Try to get a shared list & map
-			synchronized(namesPool) {
-				NameMap nameMap = namesPool.get(names);
-				if (nameMap == null) {
-					nameMap = new NameMap(this.names);
-					namesPool.put(nameMap.names, nameMap);
-//					logger.info("CREATED");
-				}
-//				else
-//					logger.info("Using....");					
-				this.names = nameMap.getNames();
-				this.map = nameMap.getMap();
-			}
+			// Get a shared list & map
+			nameMap = internNames(names);
+			names = nameMap.getNames();
 			isClosed = true;
 		}
+		
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			// Restore the shared names, which aren't serialized
+			if (isClosed) {
+				nameMap = internNames(names);
+				names = nameMap.getNames();
+			}
+		}
 
 		@Override
 		public boolean isEmpty() {
@@ -156,10 +232,9 @@ class NumericMeasurementList {
 		 */
 		int getMeasurementIndex(String name) {
 			// Read from map, if possible
-			if (map != null) {
-				Integer ind = map.get(name);
-				return ind == null ? -1 : ind;
-			}
+			NameMap nameMap = this.nameMap;
+			if (nameMap != null)
+				return nameMap.indexOf(name);
 			return names.indexOf(name);
 		}
 		
@@ -175,7 +250,10 @@ class NumericMeasurementList {
 		}
 
 		@Override
-		public synchronized List<String> getMeasurementNames() {
+		public List<String> getMeasurementNames() {
+			NameMap nameMap = this.nameMap;
+			if (nameMap != null)
+				return nameMap.getNames();
 			return Collections.unmodifiableList(names);
 		}
 		
@@ -188,6 +266,9 @@ class NumericMeasurementList {
 		public boolean containsAllNamedMeasurements(Collection<String> measurementNames) {
 			if (!isClosed)
 				logger.debug("containsAllNamedMeasurements called on open NumericMeasurementList - consider closing list earlier for efficiency");
+			NameMap nameMap = this.nameMap;
+			if (nameMap != null)
+				return nameMap.getNames() == measurementNames || nameMap.containsAll(measurementNames);
 			return names == measurementNames || names.equals(measurementNames) || names.containsAll(measurementNames);
 		}		
 		
@@ -195,6 +276,9 @@ class NumericMeasurementList {
 		public boolean containsNamedMeasurement(String measurementName) {
 			if (!isClosed)
 				logger.trace("containsNamedMeasurement called on open NumericMeasurementList - consider closing list earlier for efficiency");
+			NameMap nameMap = this.nameMap;
+			if (nameMap != null)
+				return nameMap.contains(measurementName);
 			return names.contains(measurementName);
 		}
 
@@ -204,7 +288,7 @@ class NumericMeasurementList {
 		}
 		
 		@Override
-		public void clear() {
+		public synchronized void clear() {
 			ensureListOpen();
 			names.clear();
 			compactStorage();
@@ -213,7 +297,7 @@ class NumericMeasurementList {
 		void ensureListOpen() {
 			if (isClosed()) {
 				isClosed = false;
-				map = null;
+				nameMap = null;
 				names = new ArrayList<>(names);				
 			}
 		}
@@ -253,7 +337,7 @@ class NumericMeasurementList {
 		
 		
 		@Override
-		public Measurement putMeasurement(Measurement measurement) {
+		public synchronized Measurement putMeasurement(Measurement measurement) {
 			if (measurement.isDynamic())
 				throw new UnsupportedOperationException("This MeasurementList does not support dynamic measurements");
 			ensureListOpen();
@@ -347,7 +431,7 @@ class NumericMeasurementList {
 		@Override
 		protected void setValue(int index, double value) {
 			ensureArraySize(index + 1);
-			values[index] = (float)value;
+			values[index] = value;
 		}
 		
 		@Override
@@ -358,7 +442,7 @@ class NumericMeasurementList {
 		}
 
 		@Override
-		public void removeMeasurements(String... measurementNames) {
+		public synchronized void removeMeasurements(String... measurementNames) {
 			ensureListOpen();
 			for (String name : measurementNames) {
 				int ind = getMeasurementIndex(name);
@@ -413,7 +497,7 @@ class NumericMeasurementList {
 
 		
 		@Override
-		public void removeMeasurements(String... measurementNames) {
+		public synchronized void removeMeasurements(String... measurementNames) {
 			ensureListOpen();
 			for (String name : measurementNames) {
 				int ind = getMeasurementIndex(name);
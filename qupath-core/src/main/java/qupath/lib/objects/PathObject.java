@@ -148,7 +148,20 @@ public abstract class PathObject implements Externalizable {
 			measurements = createEmptyMeasurementList();
 		return measurements;
 	}
-	
+
+	/**
+	 * Set the MeasurementList for this object, replacing any existing list.
+	 * <p>
+	 * This is mostly useful to move measurements into a more efficient storage format,
+	 * e.g. a {@link qupath.lib.measurements.ColumnarMeasurementStore};
+	 * in most other cases, {@link #getMeasurementList()} should be used to add measurements to the existing list.
+	 *
+	 * @param measurements the new list, or null if a new empty list should be created whenever one is next requested
+	 */
+	public void setMeasurementList(MeasurementList measurements) {
+		this.measurements = measurements;
+	}
+
 	/**
 	 * Create a new MeasurementList of the preferred type for this object.
 	 * 
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.objects.hierarchy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Combines several {@link DeferredObjectLoader}s, so that a hierarchy can load objects from more than one source.
+ * Each loader is closed and removed as soon as it has loaded everything.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+class CompositeObjectLoader implements DeferredObjectLoader {
+	
+	final private static Logger logger = LoggerFactory.getLogger(CompositeObjectLoader.class);
+	
+	private final List<DeferredObjectLoader> loaders = new ArrayList<>();
+	
+	CompositeObjectLoader(final DeferredObjectLoader... loaders) {
+		for (var loader : loaders)
+			add(loader);
+	}
+	
+	/**
+	 * Add another loader.  If this is itself a composite, its loaders are added instead.
+	 * @param loader
+	 */
+	synchronized void add(final DeferredObjectLoader loader) {
+		if (loader instanceof CompositeObjectLoader) {
+			for (var temp : ((CompositeObjectLoader)loader).loaders)
+				add(temp);
+		} else if (!loaders.contains(loader))
+			loaders.add(loader);
+	}
+	
+	@Override
+	public synchronized Collection<PathObject> loadObjectsForRegion(final ImageRegion region) throws IOException {
+		return load(loader -> loader.loadObjectsForRegion(region));
+	}
+
+	@Override
+	public synchronized Collection<PathObject> loadDescendants(final PathObject parent) throws IOException {
+		return load(loader -> loader.loadDescendants(parent));
+	}
+
+	@Override
+	public synchronized Collection<PathObject> loadAll() throws IOException {
+		return load(DeferredObjectLoader::loadAll);
+	}
+	
+	private Collection<PathObject> load(final LoadFunction fun) throws IOException {
+		List<PathObject> loaded = new ArrayList<>();
+		Iterator<DeferredObjectLoader> iter = loaders.iterator();
+		while (iter.hasNext()) {
+			var loader = iter.next();
+			loaded.addAll(fun.load(loader));
+			if (loader.isComplete()) {
+				iter.remove();
+				closeQuietly(loader);
+			}
+		}
+		return loaded;
+	}
+
+	@Override
+	public synchronized boolean isComplete() {
+		for (var loader : loaders) {
+			if (!loader.isComplete())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		for (var loader : loaders)
+			closeQuietly(loader);
+		loaders.clear();
+	}
+	
+	private static void closeQuietly(final DeferredObjectLoader loader) {
+		try {
+			loader.close();
+		} catch (IOException e) {
+			logger.warn("Error closing object loader: {}", e.getLocalizedMessage());
+		}
+	}
+	
+	
+	@FunctionalInterface
+	private static interface LoadFunction {
+		
+		Collection<PathObject> load(DeferredObjectLoader loader) throws IOException;
+		
+	}
+
+}
@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Source of detection objects that belong to a {@link PathObjectHierarchy}, but which are only read when they are first needed.
+ * <p>
+ * Each loaded object is added directly to its parent, which is already in the hierarchy.
+ * The hierarchy is then responsible for updating its spatial cache; no events are fired, since from the
+ * point of view of any listener the objects were there all along.
+ * <p>
+ * Implementations are only called by the hierarchy while holding its lock.
+ *
+ * @author Pete Bankhead
+ *
+ * @see PathObjectHierarchy#setDeferredObjectLoader(DeferredObjectLoader)
+ */
+public interface DeferredObjectLoader extends Closeable {
+
+	/**
+	 * Load all objects whose bounding boxes may overlap the specified region.
+	 *
+	 * @param region
+	 * @return the top-level objects that have been added to the hierarchy (along with any descendants)
+	 * @throws IOException
+	 */
+	public Collection<PathObject> loadObjectsForRegion(ImageRegion region) throws IOException;
+
+	/**
+	 * Load all objects that should be descendants of the specified parent object.
+	 *
+	 * @param parent
+	 * @return the top-level objects that have been added to the hierarchy (along with any descendants)
+	 * @throws IOException
+	 */
+	public Collection<PathObject> loadDescendants(PathObject parent) throws IOException;
+
+	/**
+	 * Load all remaining objects.
+	 *
+	 * @return the top-level objects that have been added to the hierarchy (along with any descendants)
+	 * @throws IOException
+	 */
+	public Collection<PathObject> loadAll() throws IOException;
+
+	/**
+	 * Returns true if all objects have been loaded, and so the loader is no longer required.
+	 *
+	 * @return
+	 */
+	public boolean isComplete();
+
+}
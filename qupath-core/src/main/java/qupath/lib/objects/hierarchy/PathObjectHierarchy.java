@@ -23,7 +23,9 @@
 
 package qupath.lib.objects.hierarchy;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -33,11 +35,16 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 import java.util.Vector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.lib.measurements.ColumnarMeasurementStore;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathDetectionObject;
 import qupath.lib.objects.PathObject;
@@ -62,6 +69,19 @@ import qupath.lib.roi.interfaces.ROI;
  * Note: Be cautious when deserializing - it may not result in a hierarchy in a valid state.
  * As a workaround, you can construct a new PathObjectHierarchy and call setHierarchy(deserializedHierarchy) to
  * ensure that you have a properly-constructed hierarchy with the same data within it.
+ * <p>
+ * Detection objects may also be loaded on demand, using a {@link DeferredObjectLoader}.
+ * In this case, any method that queries objects by region loads only the detections required for that region, 
+ * while methods that enumerate all objects, or which change the structure of the hierarchy, load everything that 
+ * might be affected first.  Note that accessing child objects directly (e.g. via {@link PathObject#getChildObjects()}) 
+ * does not cause any objects to be loaded; {@link #loadDeferredObjects(PathObject)} should be called first if this matters.
+ * <p>
+ * Access is controlled by a read/write lock, so that methods that only query the hierarchy can be called from multiple 
+ * threads concurrently.  Methods that modify the hierarchy are applied atomically, and fire their events before 
+ * releasing the lock, so that listeners are notified in the order in which changes were made and see a consistent state.
+ * <p>
+ * Optionally, detection measurements can be stored in columns shared by the entire hierarchy 
+ * (see {@link #setUseColumnarMeasurements(boolean)}), which is much more memory-efficient when there are many detections.
  * 
  * @author Pete Bankhead
  *
@@ -100,6 +120,17 @@ public final class PathObjectHierarchy implements Serializable {
 
 	// Cache enabling faster access of objects according to location
 	transient private PathObjectTileCache tileCache = new PathObjectTileCache(this);
+	
+	// Optional source of detections that haven't been loaded yet
+	transient private volatile DeferredObjectLoader deferredLoader = null;
+	
+	// Lock shared by all readers, but only a single writer
+	transient private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+	transient private final Lock r = rwl.readLock();
+	transient private final Lock w = rwl.writeLock();
+
+	// Optional shared storage for detection measurements
+	transient private volatile ColumnarMeasurementStore measurementStore = null;
 
 	
 	public PathObjectHierarchy() {
@@ -112,8 +143,13 @@ public final class PathObjectHierarchy implements Serializable {
 	 * 
 	 * @return
 	 */
-	public synchronized boolean isEmpty() {
-		return (tmaGrid == null || tmaGrid.nCores() == 0) && !rootObject.hasChildren();// && featureMaps.isEmpty();
+	public boolean isEmpty() {
+		r.lock();
+		try {
+			return (tmaGrid == null || tmaGrid.nCores() == 0) && !rootObject.hasChildren() && deferredLoader == null;// && featureMaps.isEmpty();
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	public void addPathObjectListener(PathObjectHierarchyListener listener) {
@@ -128,8 +164,13 @@ public final class PathObjectHierarchy implements Serializable {
 		return rootObject;
 	}
 		
-	public synchronized TMAGrid getTMAGrid() {
-		return tmaGrid;
+	public TMAGrid getTMAGrid() {
+		r.lock();
+		try {
+			return tmaGrid;
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	public PathObjectSelectionModel getSelectionModel() {
@@ -150,31 +191,52 @@ public final class PathObjectHierarchy implements Serializable {
 //		this.changing = changing;
 //	}
 	
-	public synchronized void setTMAGrid(TMAGrid tmaGrid) {
-		clearTMAGrid();
-		if (tmaGrid == null)
-			return;
-		this.tmaGrid = tmaGrid;
-		updateTMAHierarchy();
+	public void setTMAGrid(TMAGrid tmaGrid) {
+		w.lock();
+		try {
+			// Objects may be reassigned to cores, so everything needs to be present
+			loadDeferredObjects();
+			clearTMAGrid();
+			if (tmaGrid == null)
+				return;
+			this.tmaGrid = tmaGrid;
+			updateTMAHierarchy();
+		} finally {
+			w.unlock();
+		}
 	}
 	
 	// TODO: Improve TMA grid modification whenever many detection objects already exist
-	synchronized void clearTMAGrid() {
-		if (tmaGrid == null)
-			return;
-		removeObjects(new ArrayList<>(tmaGrid.getTMACoreList()), true);
-//		for (TMACoreObject core : tmaGrid.getTMACoreList())
-//			removeObject(core, true);
-//		this.tmaGrid = null;
-		// Notify listeners of changes
-		fireHierarchyChangedEvent(getRootObject());
+	void clearTMAGrid() {
+		w.lock();
+		try {
+			if (tmaGrid == null)
+				return;
+			removeObjects(new ArrayList<>(tmaGrid.getTMACoreList()), true);
+//			for (TMACoreObject core : tmaGrid.getTMACoreList())
+//				removeObject(core, true);
+//			this.tmaGrid = null;
+			// Notify listeners of changes
+			fireHierarchyChangedEvent(getRootObject());
+		} finally {
+			w.unlock();
+		}
 	}
 	
-	public synchronized boolean removeObject(PathObject pathObject, boolean keepChildren) {
+	public boolean removeObject(PathObject pathObject, boolean keepChildren) {
 		return removeObject(pathObject, keepChildren, true);
 	}
 	
-	public synchronized boolean removeObject(PathObject pathObject, boolean keepChildren, boolean fireEvent) {
+	public boolean removeObject(PathObject pathObject, boolean keepChildren, boolean fireEvent) {
+		w.lock();
+		try {
+			return removeObjectImpl(pathObject, keepChildren, fireEvent);
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	private boolean removeObjectImpl(PathObject pathObject, boolean keepChildren, boolean fireEvent) {
 		// Check the object is within the hierarchy & has a valid parent (from which it can be removed)
 		PathObject pathObjectParent = pathObject.getParent();
 		if (!inHierarchy(pathObject) || pathObjectParent == null) {
@@ -182,10 +244,15 @@ public final class PathObjectHierarchy implements Serializable {
 			return false;
 		}
 
+		// Any children that haven't been loaded yet would otherwise be lost
+		if (keepChildren)
+			loadDeferredObjects(pathObject);
+
 		// Can't keep children if there aren't any
 		boolean hasChildren = pathObject.hasChildren();
 		
 		pathObjectParent.removePathObject(pathObject);
+		releaseMeasurements(pathObject, !keepChildren);
 
 		// Assign the children to the parent object, if necessary
 		if (keepChildren && hasChildren) {
@@ -210,12 +277,26 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param pathObjects
 	 * @param keepChildren
 	 */
-	public synchronized void removeObjects(Collection<? extends PathObject> pathObjects, boolean keepChildren) {
+	public void removeObjects(Collection<? extends PathObject> pathObjects, boolean keepChildren) {
 		
 		if (pathObjects.isEmpty())
 			return;
 		
+		w.lock();
+		try {
+			removeObjectsImpl(pathObjects, keepChildren);
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	private void removeObjectsImpl(Collection<? extends PathObject> pathObjects, boolean keepChildren) {
+		
 		List<PathObject> pathObjectSet = new ArrayList<>(pathObjects);
+		if (keepChildren && deferredLoader != null) {
+			for (PathObject pathObject : pathObjectSet)
+				loadDeferredObjects(pathObject);
+		}
 		pathObjectSet.sort((o1, o2) -> Integer.compare(o2.getLevel(), o1.getLevel()));
 		
 		// Determine the parents for each object
@@ -240,6 +321,8 @@ public final class PathObjectHierarchy implements Serializable {
 			PathObject parent = entry.getKey();
 			List<PathObject> children = entry.getValue();
 			parent.removePathObjects(children);
+			for (PathObject child : children)
+				releaseMeasurements(child, !keepChildren);
 			if (keepChildren) {
 				for (PathObject child : children) {
 					if (child.hasChildren()) {
@@ -261,7 +344,7 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param pathObject
 	 * @return
 	 */
-	private synchronized boolean inHierarchy(PathObject pathObject) { // made private as only called here
+	private boolean inHierarchy(PathObject pathObject) { // made private as only called here
 		if (pathObject == null)
 			return false;
 		while (pathObject.getParent() != null)
@@ -270,7 +353,7 @@ public final class PathObjectHierarchy implements Serializable {
 	}
 	
 	
-	private synchronized void updateTMAHierarchy() {
+	private void updateTMAHierarchy() {
 		if (tmaGrid == null)
 			return;
 
@@ -309,14 +392,19 @@ public final class PathObjectHierarchy implements Serializable {
 //J		return true;
 //J	}
 	
-	// TODO: Be very cautious about this!!!!  Use of tileCache inside a synchronized method might lead to deadlocks?
-	private synchronized boolean addPathObjectToList(PathObject pathObjectParent, PathObject pathObject, boolean avoidDuplicates, boolean fireChangeEvents) {
+	// TODO: Be very cautious about this!!!!  Use of tileCache while holding the write lock might lead to deadlocks?
+	private boolean addPathObjectToList(PathObject pathObjectParent, PathObject pathObject, boolean avoidDuplicates, boolean fireChangeEvents) {
 		
 		if (pathObject != null && !pathObject.isDetection())
 			logger.trace("Adding {} to hierarchy", pathObject);
 		
 		// Get all the annotations that might be a parent of this object
 		var region = ImageRegion.createInstance(pathObject.getROI());
+		
+		// Detections within the region might need to be reassigned to a new annotation, so must be available
+		if (!pathObject.isDetection())
+			loadDeferredObjects(null, region);
+
 		Collection<PathObject> tempSet = new HashSet<>();
 		tempSet.add(getRootObject());
 		tileCache.getObjectsForRegion(PathAnnotationObject.class, region, tempSet, true);
@@ -392,7 +480,7 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param avoidDuplicates
 	 * @return
 	 */
-	public synchronized boolean addPathObject(PathObject pathObject, boolean avoidDuplicates) {
+	public boolean addPathObject(PathObject pathObject, boolean avoidDuplicates) {
 		return addPathObject(pathObject, avoidDuplicates, true);
 	}
 	
@@ -405,46 +493,70 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param fireUpdate
 	 * @return
 	 */
-	public synchronized boolean addPathObjectBelowParent(PathObject pathObjectParent, PathObject pathObject, boolean avoidDuplicates, boolean fireUpdate) {
+	public boolean addPathObjectBelowParent(PathObject pathObjectParent, PathObject pathObject, boolean avoidDuplicates, boolean fireUpdate) {
 		if (pathObjectParent == null)
 			return addPathObject(pathObject, avoidDuplicates, fireUpdate);
-		else
+		w.lock();
+		try {
 			return addPathObjectToList(pathObjectParent, pathObject, avoidDuplicates, fireUpdate);
+		} finally {
+			w.unlock();
+		}
 	}
 	
-	public synchronized boolean addPathObject(PathObject pathObject, boolean avoidDuplicates, boolean fireUpdate) {
+	public boolean addPathObject(PathObject pathObject, boolean avoidDuplicates, boolean fireUpdate) {
 		if (pathObject == getRootObject() || !pathObject.hasROI())
 			return false;
-		return addPathObjectToList(getRootObject(), pathObject, avoidDuplicates, fireUpdate);
+		w.lock();
+		try {
+			return addPathObjectToList(getRootObject(), pathObject, avoidDuplicates, fireUpdate);
+		} finally {
+			w.unlock();
+		}
 	}
 	
-	public synchronized boolean addPathObjects(Collection<? extends PathObject> pathObjects, boolean avoidDuplicates) {
-		boolean changes = false;
-		int n = pathObjects.size();
-		int counter = 0;
-		for (PathObject pathObject : pathObjects) {
-			if (n > 10000) {
-				if (counter % 1000 == 0)
+	public boolean addPathObjects(Collection<? extends PathObject> pathObjects, boolean avoidDuplicates) {
+		w.lock();
+		try {
+			boolean changes = false;
+			int n = pathObjects.size();
+			int counter = 0;
+			for (PathObject pathObject : pathObjects) {
+				if (n > 10000) {
+					if (counter % 1000 == 0)
+						logger.debug("Adding {} of {}", counter, n);
+				} else if (n > 1000 && counter % 100 == 0)
 					logger.debug("Adding {} of {}", counter, n);
-			} else if (n > 1000 && counter % 100 == 0)
-				logger.debug("Adding {} of {}", counter, n);
-			changes = addPathObjectToList(getRootObject(), pathObject, avoidDuplicates, false) || changes;
-			counter++;
+				changes = addPathObjectToList(getRootObject(), pathObject, avoidDuplicates, false) || changes;
+				counter++;
+			}
+			if (changes)
+				fireHierarchyChangedEvent(getRootObject());
+//				fireChangeEvent(getRootObject());
+			return changes;
+		} finally {
+			w.unlock();
 		}
-		if (changes)
-			fireHierarchyChangedEvent(getRootObject());
-//			fireChangeEvent(getRootObject());
-		return changes;
 	}
 	
-	public synchronized void clearAll() {
-		getRootObject().clearPathObjects();
-		tmaGrid = null;
-		fireHierarchyChangedEvent(getRootObject());
+	public void clearAll() {
+		w.lock();
+		try {
+			closeDeferredObjectLoader();
+			getRootObject().clearPathObjects();
+			tmaGrid = null;
+			// Removed objects keep their views of the old store, so it's simplest to start again
+			var store = measurementStore;
+			if (store != null)
+				measurementStore = new ColumnarMeasurementStore(store.getType());
+			fireHierarchyChangedEvent(getRootObject());
+		} finally {
+			w.unlock();
+		}
 	}
 	
 	
-	private synchronized void addPathObjectsRecursively(PathObject pathObject, Collection<PathObject> pathObjects, Class<? extends PathObject> cls) {
+	private void addPathObjectsRecursively(PathObject pathObject, Collection<PathObject> pathObjects, Class<? extends PathObject> cls) {
 		// Prefer to iterate through long lists and process as we go, rather than handle one object per method call
 		addPathObjectsRecursively(Collections.singleton(pathObject), pathObjects, cls);
 	}
@@ -460,7 +572,7 @@ public final class PathObjectHierarchy implements Serializable {
 		}
 	}
 
-	public synchronized Collection<PathObject> getPointObjects(Class<? extends PathObject> cls) {
+	public Collection<PathObject> getPointObjects(Class<? extends PathObject> cls) {
 		Collection<PathObject> pathObjects = getObjects(null, cls);
 		if (!pathObjects.isEmpty()) {
 			Iterator<PathObject> iter = pathObjects.iterator();
@@ -504,7 +616,13 @@ public final class PathObjectHierarchy implements Serializable {
 			return pathObjects;
 		}
 		
-		addPathObjectsRecursively(getRootObject(), pathObjects, cls);
+		loadDeferredObjects(cls, null);
+		r.lock();
+		try {
+			addPathObjectsRecursively(getRootObject(), pathObjects, cls);
+		} finally {
+			r.unlock();
+		}
 		return pathObjects;
 	}
 	
@@ -516,12 +634,20 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param cls
 	 * @return
 	 */
-	public synchronized List<PathObject> getDescendantObjects(PathObject pathObject, List<PathObject> pathObjects, Class<? extends PathObject> cls) {
+	public List<PathObject> getDescendantObjects(PathObject pathObject, List<PathObject> pathObjects, Class<? extends PathObject> cls) {
 		if (pathObjects == null)
 			pathObjects = new ArrayList<>();
-		if (pathObject == null || !pathObject.hasChildren())
+		if (pathObject == null)
 			return pathObjects;
-		addPathObjectsRecursively(pathObject.getChildObjects(), pathObjects, cls);
+		if (mayBeDeferred(cls))
+			loadDeferredObjects(pathObject);
+		r.lock();
+		try {
+			if (pathObject.hasChildren())
+				addPathObjectsRecursively(pathObject.getChildObjects(), pathObjects, cls);
+		} finally {
+			r.unlock();
+		}
 		return pathObjects;
 	}
 	
@@ -531,10 +657,15 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param pathObject
 	 */
 	public void updateObject(PathObject pathObject) {
-		if (inHierarchy(pathObject))
-			removeObject(pathObject, true, false);
-		addPathObject(pathObject, true, false);
-		fireObjectsChangedEvent(this, Collections.singletonList(pathObject), false);
+		w.lock();
+		try {
+			if (inHierarchy(pathObject))
+				removeObject(pathObject, true, false);
+			addPathObject(pathObject, true, false);
+			fireObjectsChangedEvent(this, Collections.singletonList(pathObject), false);
+		} finally {
+			w.unlock();
+		}
 	}
 	
 	
@@ -544,25 +675,65 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param list - optional list into which the objects should be added (may be null)
 	 * @return
 	 */
-	public synchronized List<PathObject> getFlattenedObjectList(List<PathObject> list) {
-		if (list == null)
-			list = new ArrayList<>(nObjects());
-		getObjects(list, PathObject.class);
-		return list;
+	public List<PathObject> getFlattenedObjectList(List<PathObject> list) {
+		loadDeferredObjects();
+		r.lock();
+		try {
+			if (list == null)
+				list = new ArrayList<>(PathObjectTools.countDescendants(getRootObject()));
+			addPathObjectsRecursively(getRootObject(), list, PathObject.class);
+			return list;
+		} finally {
+			r.unlock();
+		}
 	}
 	
 	
-	public synchronized int nObjects() {
-		int count = PathObjectTools.countDescendants(getRootObject());
-		return count;
+	public int nObjects() {
+		loadDeferredObjects();
+		r.lock();
+		try {
+			return PathObjectTools.countDescendants(getRootObject());
+		} finally {
+			r.unlock();
+		}
 	}
 	
-	public synchronized void setHierarchy(PathObjectHierarchy hierarchy) {
+	public void setHierarchy(PathObjectHierarchy hierarchy) {
 		if (this == hierarchy)
 			return;
-		rootObject = hierarchy.getRootObject();
-		tmaGrid = hierarchy.tmaGrid;
-		fireHierarchyChangedEvent(rootObject);
+		w.lock();
+		try {
+			// Take over any objects still to be loaded, since they belong to the new root
+			DeferredObjectLoader loader;
+			TMAGrid tmaGrid;
+			ColumnarMeasurementStore store;
+			// A deserialized hierarchy won't have a lock, but then it also can't be accessed from elsewhere
+			Lock otherLock = hierarchy.w;
+			if (otherLock != null)
+				otherLock.lock();
+			try {
+				loader = hierarchy.deferredLoader;
+				hierarchy.deferredLoader = null;
+				tmaGrid = hierarchy.tmaGrid;
+				store = hierarchy.measurementStore;
+			} finally {
+				if (otherLock != null)
+					otherLock.unlock();
+			}
+			closeDeferredObjectLoader();
+			deferredLoader = loader;
+			rootObject = hierarchy.getRootObject();
+			this.tmaGrid = tmaGrid;
+			// Take over the measurement store of the new objects if there is one, otherwise start again if needed
+			if (store != null)
+				measurementStore = store;
+			else if (measurementStore != null)
+				measurementStore = new ColumnarMeasurementStore(measurementStore.getType());
+			fireHierarchyChangedEvent(rootObject);
+		} finally {
+			w.unlock();
+		}
 	}
 	
 	/**
@@ -577,7 +748,9 @@ public final class PathObjectHierarchy implements Serializable {
 		if (roi.isEmpty() || !roi.isArea())
 			return Collections.emptyList();
 		
-		Collection<PathObject> pathObjects = tileCache.getObjectsForRegion(cls, ImageRegion.createInstance(roi), new HashSet<>(), true);
+		var region = ImageRegion.createInstance(roi);
+		loadDeferredObjects(cls, region);
+		Collection<PathObject> pathObjects = tileCache.getObjectsForRegion(cls, region, new HashSet<>(), true);
 		return filterObjectsForROI(roi, pathObjects);
 	}
 	
@@ -605,71 +778,417 @@ public final class PathObjectHierarchy implements Serializable {
 	
 	/**
 	 * Get the objects within a specified region.
+	 * <p>
+	 * If detections are being loaded on demand, any that might overlap the region are loaded first.
+	 * 
 	 * @param cls
 	 * @param region
 	 * @param pathObjects
 	 * @return
 	 */
 	public Collection<PathObject> getObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region, Collection<PathObject> pathObjects) {
+		loadDeferredObjects(cls, region);
 		return tileCache.getObjectsForRegion(cls, region, pathObjects, true);
 	}
 	
 	public boolean hasObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region) {
+		loadDeferredObjects(cls, region);
 		return tileCache.hasObjectsForRegion(cls, region, true);
 	}
+
+	/**
+	 * Get statistics describing how the spatial cache used by {@link #getObjectsForRegion(Class, ImageRegion, Collection)}
+	 * has been maintained, e.g. how often it has been rebuilt.
+	 *
+	 * @return
+	 */
+	public SpatialCacheStatistics getSpatialCacheStatistics() {
+		return tileCache.getStatistics();
+	}
+
+	
+	/**
+	 * Set whether the measurements of detection objects should be stored in columns shared by the entire hierarchy, 
+	 * rather than in a separate list for each object.
+	 * <p>
+	 * This greatly reduces the memory required for each detection, and makes it much faster to access 
+	 * the values of a single measurement for many detections (see {@link #getColumnarMeasurementStore()}).
+	 * When turned on, the measurement lists of all current detections are replaced by views of the store.
+	 * Detections that are added to the hierarchy later, or for which a measurement change event is fired, 
+	 * are moved into the store at that point - so any references to their previous measurement lists should not be retained.
+	 * <p>
+	 * The store uses single-precision values if all detections currently do so (the default), or double-precision otherwise.
+	 * When detections are removed from the hierarchy, they are given a separate measurement list again and their rows in the 
+	 * store are reused.
+	 * <p>
+	 * Calling this method with {@code true} when a store is already in use replaces it by a new (compact) store.
+	 * Calling it with {@code false} returns every detection to a separate measurement list.
+	 * 
+	 * @param useColumns
+	 * 
+	 * @see ColumnarMeasurementStore#getValues(String, List, double[])
+	 */
+	public void setUseColumnarMeasurements(boolean useColumns) {
+		w.lock();
+		try {
+			var detections = PathObjectTools.getFlattenedObjectList(getRootObject(), null, false)
+					.stream().filter(p -> p.isDetection()).collect(Collectors.toList());
+			if (useColumns) {
+				// Only use floats if that won't lose any precision
+				var type = MeasurementList.TYPE.FLOAT;
+				for (PathObject pathObject : detections) {
+					if (pathObject.nMeasurements() > 0 && MeasurementListFactory.getType(pathObject.getMeasurementList()) != MeasurementList.TYPE.FLOAT) {
+						type = MeasurementList.TYPE.DOUBLE;
+						break;
+					}
+				}
+				var store = new ColumnarMeasurementStore(type);
+				for (PathObject pathObject : detections)
+					pathObject.setMeasurementList(store.createMeasurementList(pathObject.getMeasurementList()));
+				measurementStore = store;
+			} else if (measurementStore != null) {
+				var store = measurementStore;
+				measurementStore = null;
+				for (PathObject pathObject : detections)
+					releaseMeasurements(store, pathObject, false);
+			}
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Get the store used for detection measurements, if columnar measurements are turned on.
+	 * 
+	 * @return the store, or null if each detection has its own measurement list
+	 * @see #setUseColumnarMeasurements(boolean)
+	 */
+	public ColumnarMeasurementStore getColumnarMeasurementStore() {
+		return measurementStore;
+	}
 	
+	/**
+	 * Give a detection that has been removed from the hierarchy a separate measurement list, 
+	 * so that its row in the store can be reused.
+	 * 
+	 * @param pathObject
+	 * @param includeDescendants
+	 */
+	private void releaseMeasurements(PathObject pathObject, boolean includeDescendants) {
+		var store = measurementStore;
+		if (store != null)
+			releaseMeasurements(store, pathObject, includeDescendants);
+	}
+	
+	private static void releaseMeasurements(ColumnarMeasurementStore store, PathObject pathObject, boolean includeDescendants) {
+		if (pathObject.isDetection()) {
+			var list = pathObject.getMeasurementList();
+			if (store.isBackedByStore(list))
+				pathObject.setMeasurementList(store.releaseMeasurementList(list));
+		}
+		if (includeDescendants && pathObject.hasChildren()) {
+			for (PathObject child : pathObject.getChildObjects())
+				releaseMeasurements(store, child, true);
+		}
+	}
 	
-	synchronized void fireObjectRemovedEvent(Object source, PathObject pathObject, PathObject previousParent) {
+	/**
+	 * Move the measurements of any detections into the store, if they aren't there already.
+	 * 
+	 * @param store
+	 * @param pathObject
+	 * @param includeDescendants
+	 */
+	private static void adoptMeasurements(ColumnarMeasurementStore store, PathObject pathObject, boolean includeDescendants) {
+		if (pathObject == null)
+			return;
+		if (pathObject.isDetection() && pathObject.nMeasurements() > 0) {
+			var list = pathObject.getMeasurementList();
+			if (!store.isBackedByStore(list))
+				pathObject.setMeasurementList(store.createMeasurementList(list));
+		}
+		if (includeDescendants && pathObject.hasChildren()) {
+			for (PathObject child : pathObject.getChildObjects())
+				adoptMeasurements(store, child, true);
+		}
+	}
+
+	
+	/**
+	 * Set a loader that provides detection objects belonging to this hierarchy only when they are first required.
+	 * Any existing loader is closed, and any objects it had not yet loaded are discarded.
+	 * <p>
+	 * The loader is closed and removed automatically once it has loaded everything.
+	 * 
+	 * @param loader
+	 * 
+	 * @see #hasDeferredObjects()
+	 */
+	public void setDeferredObjectLoader(DeferredObjectLoader loader) {
+		w.lock();
+		try {
+			if (deferredLoader == loader)
+				return;
+			closeDeferredObjectLoader();
+			deferredLoader = loader;
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Add a loader that provides detection objects belonging to this hierarchy only when they are first required.
+	 * Unlike {@link #setDeferredObjectLoader(DeferredObjectLoader)}, any existing loader is retained and 
+	 * objects will be loaded from both.
+	 * 
+	 * @param loader
+	 */
+	public void addDeferredObjectLoader(DeferredObjectLoader loader) {
+		w.lock();
+		try {
+			if (deferredLoader == null || deferredLoader == loader)
+				deferredLoader = loader;
+			else if (deferredLoader instanceof CompositeObjectLoader)
+				((CompositeObjectLoader)deferredLoader).add(loader);
+			else
+				deferredLoader = new CompositeObjectLoader(deferredLoader, loader);
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Run a task that modifies child objects directly, rather than through this hierarchy, while holding the hierarchy's write lock.
+	 * <p>
+	 * This ensures that objects can't be loaded on demand by another thread while the task is running.
+	 * No events are fired.
+	 * 
+	 * @param runnable
+	 */
+	public void runWithWriteLock(Runnable runnable) {
+		w.lock();
+		try {
+			runnable.run();
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Returns true if some objects belonging to this hierarchy have not yet been loaded.
+	 * 
+	 * @return
+	 * 
+	 * @see #setDeferredObjectLoader(DeferredObjectLoader)
+	 */
+	public boolean hasDeferredObjects() {
+		return deferredLoader != null;
+	}
+	
+	/**
+	 * Ensure all objects belonging to this hierarchy have been loaded.
+	 * This should be called before writing the hierarchy, or before any operation that needs to visit every object.
+	 * 
+	 * @throws UncheckedIOException if objects could not be loaded
+	 */
+	public void loadDeferredObjects() {
+		if (deferredLoader == null)
+			return;
+		w.lock();
+		try {
+			var loader = deferredLoader;
+			if (loader == null)
+				return;
+			try {
+				addDeferredObjects(loader.loadAll());
+			} catch (IOException e) {
+				throw new UncheckedIOException("Unable to load objects", e);
+			}
+			closeDeferredObjectLoader();
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Ensure all objects that should be descendants of the specified object have been loaded.
+	 * This should be called before directly modifying the child objects of any object within this hierarchy.
+	 * 
+	 * @param pathObject
+	 * @throws UncheckedIOException if objects could not be loaded
+	 */
+	public void loadDeferredObjects(PathObject pathObject) {
+		if (deferredLoader == null || pathObject == null || pathObject.isDetection())
+			return;
+		if (pathObject.isRootObject()) {
+			loadDeferredObjects();
+			return;
+		}
+		w.lock();
+		try {
+			var loader = deferredLoader;
+			if (loader == null)
+				return;
+			try {
+				addDeferredObjects(loader.loadDescendants(pathObject));
+			} catch (IOException e) {
+				throw new UncheckedIOException("Unable to load objects", e);
+			}
+			if (loader.isComplete())
+				closeDeferredObjectLoader();
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Load any deferred objects that may be relevant to a query, logging (rather than throwing) any exception.
+	 * 
+	 * @param cls the class of objects requested
+	 * @param region the region requested, or null if the entire image is requested
+	 */
+	private void loadDeferredObjects(Class<? extends PathObject> cls, ImageRegion region) {
+		if (deferredLoader == null || !mayBeDeferred(cls))
+			return;
+		w.lock();
+		try {
+			var loader = deferredLoader;
+			if (loader == null)
+				return;
+			try {
+				addDeferredObjects(region == null ? loader.loadAll() : loader.loadObjectsForRegion(region));
+			} catch (IOException e) {
+				logger.error("Unable to load objects for " + (region == null ? "image" : region), e);
+				return;
+			}
+			if (loader.isComplete())
+				closeDeferredObjectLoader();
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Only detections are loaded on demand, and they can't have any other kind of object below them.
+	 */
+	private static boolean mayBeDeferred(Class<? extends PathObject> cls) {
+		return cls == null || cls.isAssignableFrom(PathDetectionObject.class) || PathDetectionObject.class.isAssignableFrom(cls);
+	}
+	
+	/**
+	 * Handle objects that have just been attached to their parents by a {@link DeferredObjectLoader}.
+	 * Objects whose parents have since been removed from the hierarchy are discarded.
+	 * 
+	 * @param pathObjects
+	 */
+	private void addDeferredObjects(Collection<PathObject> pathObjects) {
+		if (pathObjects.isEmpty())
+			return;
+		Map<PathObject, List<PathObject>> map = new HashMap<>();
+		for (PathObject pathObject : pathObjects)
+			map.computeIfAbsent(pathObject.getParent(), p -> new ArrayList<>()).add(pathObject);
+		List<PathObject> toCache = new ArrayList<>(pathObjects.size());
+		for (Entry<PathObject, List<PathObject>> entry : map.entrySet()) {
+			if (inHierarchy(entry.getKey()))
+				toCache.addAll(entry.getValue());
+			else
+				entry.getKey().removePathObjects(entry.getValue());
+		}
+		tileCache.addObjects(toCache);
+		var store = measurementStore;
+		if (store != null) {
+			for (PathObject pathObject : toCache)
+				adoptMeasurements(store, pathObject, false);
+		}
+		logger.debug("{} objects loaded on demand", toCache.size());
+	}
+	
+	private void closeDeferredObjectLoader() {
+		var loader = deferredLoader;
+		if (loader == null)
+			return;
+		deferredLoader = null;
+		try {
+			loader.close();
+		} catch (IOException e) {
+			logger.warn("Error closing object loader: {}", e.getLocalizedMessage());
+		}
+	}
+	
+	
+	void fireObjectRemovedEvent(Object source, PathObject pathObject, PathObject previousParent) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createObjectRemovedEvent(source, this, previousParent, pathObject);
 		fireEvent(event);
 	}
 
-	synchronized void fireObjectAddedEvent(Object source, PathObject pathObject) {
+	void fireObjectAddedEvent(Object source, PathObject pathObject) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createObjectAddedEvent(source, this, pathObject.getParent(), pathObject);
 		fireEvent(event);
 	}
 	
 	
-	public synchronized void fireObjectMeasurementsChangedEvent(Object source, Collection<PathObject> pathObjects) {
+	public void fireObjectMeasurementsChangedEvent(Object source, Collection<PathObject> pathObjects) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createObjectsChangedEvent(source, this, HierarchyEventType.CHANGE_MEASUREMENTS, pathObjects, false);
 		fireEvent(event);
 	}
 	
-	public synchronized void fireObjectClassificationsChangedEvent(Object source, Collection<PathObject> pathObjects) {
+	public void fireObjectClassificationsChangedEvent(Object source, Collection<PathObject> pathObjects) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createObjectsChangedEvent(source, this, HierarchyEventType.CHANGE_CLASSIFICATION, pathObjects, false);
 		fireEvent(event);
 	}
 	
 
-	public synchronized void fireObjectsChangedEvent(Object source, Collection<? extends PathObject> pathObjects) {
+	public void fireObjectsChangedEvent(Object source, Collection<? extends PathObject> pathObjects) {
 		fireObjectsChangedEvent(source, pathObjects, false);
 	}
 
-	public synchronized void fireObjectsChangedEvent(Object source, Collection<? extends PathObject> pathObjects, boolean isChanging) {
+	public void fireObjectsChangedEvent(Object source, Collection<? extends PathObject> pathObjects, boolean isChanging) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createObjectsChangedEvent(source, this, HierarchyEventType.CHANGE_OTHER, pathObjects, isChanging);
 		fireEvent(event);
 	}
 	
-	public synchronized void fireHierarchyChangedEvent(Object source, PathObject pathObject) {
+	public void fireHierarchyChangedEvent(Object source, PathObject pathObject) {
 		PathObjectHierarchyEvent event = PathObjectHierarchyEvent.createStructureChangeEvent(source, this, pathObject);
 		fireEvent(event);
 	}
 
-	public synchronized void fireHierarchyChangedEvent(Object source) {
+	public void fireHierarchyChangedEvent(Object source) {
 		fireHierarchyChangedEvent(source, getRootObject());
 	}
 	
 	
+	/**
+	 * Notify listeners of an event.
+	 * The write lock is held throughout, so that events are received in the same order as the changes were made.
+	 * 
+	 * @param event
+	 */
 	void fireEvent(PathObjectHierarchyEvent event) {
-		if (listeners != null) {
-			for (PathObjectHierarchyListener listener : listeners.toArray(new PathObjectHierarchyListener[0]))
-				listener.hierarchyChanged(event);
+		w.lock();
+		try {
+			var store = measurementStore;
+			if (store != null) {
+				if (event.getEventType() == HierarchyEventType.OTHER_STRUCTURE_CHANGE)
+					adoptMeasurements(store, event.getStructureChangeBase(), true);
+				else if (event.getEventType() == HierarchyEventType.ADDED || event.isObjectMeasurementEvent()) {
+					for (PathObject pathObject : event.getChangedObjects())
+						adoptMeasurements(store, pathObject, event.getEventType() == HierarchyEventType.ADDED);
+				}
+			}
+			if (listeners != null) {
+				for (PathObjectHierarchyListener listener : listeners.toArray(new PathObjectHierarchyListener[0]))
+					listener.hierarchyChanged(event);
+			}
+		} finally {
+			w.unlock();
 		}
 	}
 	
 	
 	@Override
 	public String toString() {
+		if (deferredLoader != null)
+			return "Hierarchy: " + PathObjectTools.countDescendants(getRootObject()) + " objects loaded";
 		return "Hierarchy: " + nObjects() + " objects";
 	}
 	
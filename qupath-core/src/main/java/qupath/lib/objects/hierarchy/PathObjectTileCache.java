@@ -23,6 +23,7 @@
 
 package qupath.lib.objects.hierarchy;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -30,9 +31,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
 
 import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
 import org.locationtech.jts.algorithm.locate.PointOnGeometryLocator;
@@ -45,8 +50,8 @@ import org.locationtech.jts.geom.Location;
 import org.locationtech.jts.geom.Polygonal;
 import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
-import org.locationtech.jts.index.SpatialIndex;
 import org.locationtech.jts.index.quadtree.Quadtree;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,7 +60,6 @@ import qupath.lib.objects.TemporaryObject;
 import qupath.lib.objects.helpers.PathObjectTools;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
 import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
-import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent.HierarchyEventType;
 import qupath.lib.regions.ImageRegion;
 import qupath.lib.roi.interfaces.ROI;
 
@@ -67,6 +71,13 @@ import qupath.lib.roi.interfaces.ROI;
  * In practice, the cache itself is constructed lazily whenever a request is made 
  * through getObjectsForRegion, so as to avoid rebuilding it too often when the hierarchy
  * is changing a lot.
+ * <p>
+ * Once constructed, the cache is updated incrementally.  Objects of each class are stored in a bulk-loaded STRtree, 
+ * while objects added or moved since then are stored in a (much smaller) Quadtree.
+ * The STRtree is rebuilt whenever the number of changes becomes a sizeable fraction of the total number of objects.
+ * <p>
+ * Objects removed from the hierarchy without a specific event (e.g. because their parent was removed) are 
+ * filtered out when found during a query, and then removed from the cache.
  * 
  * @author Pete Bankhead
  *
@@ -83,19 +94,25 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	private final static Envelope MAX_ENVELOPE = new Envelope(-Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE);
 	
 	/**
-	 * Keep a map of envelopes per ROI; ROIs should be immutable.
+	 * Minimum number of changes for a single class before its STRtree is rebuilt.
+	 */
+	private final static int MIN_CHANGES_FOR_BULK_LOAD = 2048;
+	
+	/**
+	 * Fraction of the objects of a single class that must have changed before its STRtree is rebuilt.
 	 */
-	private Map<ROI, Envelope> envelopeMap = new WeakHashMap<>();
+	private final static double MIN_CHANGED_FRACTION_FOR_BULK_LOAD = 0.25;
 	
 	/**
-	 * Keep a map of envelopes per object, because potentially an object might have its ROI replaced behind our back...
+	 * Number of envelopes above which these should be computed in parallel.
+	 * This can be expensive for polygons.
 	 */
-	private Map<PathObject, Envelope> lastEnvelopeMap = new WeakHashMap<>();
+	private final static int MIN_PARALLEL_ENVELOPES = 1000;
 	
 	/**
 	 * Store a spatial index according to the class of PathObject.
 	 */
-	private Map<Class<? extends PathObject>, SpatialIndex> map = new HashMap<>();
+	private Map<Class<? extends PathObject>, ClassIndex> map = new HashMap<>();
 	
 	/**
 	 * Map to cache Geometries, specifically for annotations.
@@ -105,7 +122,23 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 //	final private static Map<ROI, Coordinate> centroidMap = Collections.synchronizedMap(new WeakHashMap<>());
 
 	private PathObjectHierarchy hierarchy;
-	private boolean isActive = false;
+	private volatile boolean isActive = false;
+	
+	/**
+	 * Objects found during a query that are no longer within the hierarchy, and so should be removed.
+	 */
+	private final Queue<PathObject> detachedObjects = new ConcurrentLinkedQueue<>();
+	
+	/*
+	 * Counts used for statistics; these are only modified while holding the write lock.
+	 */
+	private long nFullRebuilds = 0;
+	private long nBulkLoads = 0;
+	private long nIncrementalUpdates = 0;
+	private long nInserted = 0;
+	private long nRemoved = 0;
+	private long lastRebuildMillis = 0;
+	private long totalRebuildMillis = 0;
 	
 	private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
     private final Lock r = rwl.readLock();
@@ -118,36 +151,39 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 			hierarchy.addPathObjectListener(this);
 	}
 	
+	/**
+	 * Discard the cache, so that it will be constructed from scratch when it is next needed.
+	 */
 	public void resetCache() {
 		isActive = false;
 		logger.trace("Cache reset!");
 	}
 	
-//	int cacheCounter = 0;
-
-	private void constructCache(Class<? extends PathObject> limitToClass) {
+	private void constructCache() {
 		w.lock();
 		try {
-	//		logger.info("Skipping cache reconstruction...");
+			// Another thread may have constructed the cache while we were waiting
+			if (isActive)
+				return;
 			long startTime = System.currentTimeMillis();
+			map.clear();
+			detachedObjects.clear();
 			isActive = true;
-			if (limitToClass == null)
-				map.clear();
-			else
-				map.remove(limitToClass);
-			addToCache(hierarchy.getRootObject(), true, limitToClass);
+			int n = addToCache(hierarchy.getRootObject(), true);
+			flush(null);
 			long endTime = System.currentTimeMillis();
-			logger.debug("Cache reconstructed in " + (endTime - startTime)/1000.);
+			lastRebuildMillis = endTime - startTime;
+			totalRebuildMillis += lastRebuildMillis;
+			nFullRebuilds++;
+			logger.debug("Cache reconstructed for {} objects in {} ms", n, lastRebuildMillis);
 		} finally {
 			w.unlock();
 		}
-//		cacheCounter += (endTime - startTime);
-//		logger.info("Cache count: " + (cacheCounter)/1000.);
 	}
 	
 	private void ensureCacheConstructed() {
 		if (!isActive())
-			constructCache(null);
+			constructCache();
 	}
 	
 	// TRUE if the cache has been constructed
@@ -157,32 +193,67 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	
 	/**
 	 * Add a PathObject to the cache, optionally including children.
+	 * If the object is already in the cache, it is only updated if its ROI has changed.
+	 * <p>
+	 * This doesn't acquire the lock, and the changes are not visible to queries until {@link #flush(PathObject)} is called.
 	 * 
 	 * @param pathObject
 	 * @param includeChildren
+	 * @return the number of objects with ROIs that were visited, whether or not they were already in the cache
 	 */
-	private void addToCache(PathObject pathObject, boolean includeChildren, Class<? extends PathObject> limitToClass) {
-		// If the cache isn't active, we can ignore this... it will be constructed when it is needed
-		if (!isActive())
-			return;
-
+	private int addToCache(PathObject pathObject, boolean includeChildren) {
+		int n = 0;
 		if (pathObject.hasROI()) {
-			Class<? extends PathObject> cls = pathObject.getClass();
-			if (limitToClass == null || cls == limitToClass) {
-				SpatialIndex mapObjects = map.get(cls);
-				if (mapObjects == null) {
-					mapObjects = createSpatialIndex();
-					map.put(cls, mapObjects);
-				}
-				Envelope envelope = getEnvelope(pathObject);
-				mapObjects.insert(envelope, pathObject);
-			}
+			getClassIndex(pathObject.getClass()).insert(pathObject);
+			n++;
 		}
 		
 		// Add the children
 		if (includeChildren && !(pathObject instanceof TemporaryObject) && pathObject.hasChildren()) {
 			for (PathObject child : pathObject.getChildObjects().toArray(PathObject[]::new))
-				addToCache(child, includeChildren, limitToClass);
+				n += addToCache(child, includeChildren);
+		}
+		return n;
+	}
+	
+	private ClassIndex getClassIndex(Class<? extends PathObject> cls) {
+		ClassIndex index = map.get(cls);
+		if (index == null) {
+			index = new ClassIndex();
+			map.put(cls, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * Apply any pending changes to the spatial indexes.
+	 * This doesn't acquire the lock.
+	 * 
+	 * @param root the current root object, used to identify objects no longer in the hierarchy if indexes are rebuilt; 
+	 *             may be null if all objects are known to be in the hierarchy
+	 */
+	private void flush(PathObject root) {
+		for (ClassIndex index : map.values())
+			index.flush(root);
+	}
+
+	/**
+	 * Add objects (and their descendants) that have been attached to the hierarchy without firing any events,
+	 * e.g. because they were loaded on demand.
+	 * 
+	 * @param pathObjects
+	 */
+	void addObjects(Collection<? extends PathObject> pathObjects) {
+		// If the cache isn't active, we can ignore this... it will be constructed when it is needed
+		if (!isActive())
+			return;
+		w.lock();
+		try {
+			for (PathObject pathObject : pathObjects)
+				addToCache(pathObject, true);
+			flush(hierarchy.getRootObject());
+		} finally {
+			w.unlock();
 		}
 	}
 
@@ -294,34 +365,41 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	}
 	
 	
-	private SpatialIndex createSpatialIndex() {
-		return new Quadtree();
-//		return new STRtree();
+	private static Envelope createEnvelope(ROI roi) {
+		return new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(),
+				roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight());
 	}
 	
-	private Envelope getEnvelope(PathObject pathObject) {
-		var envelope = getEnvelope(pathObject.getROI());
-		lastEnvelopeMap.put(pathObject, envelope);
-		return envelope;
+	private static Envelope getEnvelope(ImageRegion region) {
+		return new Envelope(region.getMinX(), region.getMaxX(),
+				region.getMinY(), region.getMaxY());
 	}
 	
-	private Envelope getEnvelope(ROI roi) {
-		var envelope = envelopeMap.get(roi);
-		if (envelope == null) {
-			envelope = new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(),
-					roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight());
-			envelopeMap.put(roi, envelope);
-		}
-		return envelope;
+	/**
+	 * Compute envelopes for all entries that don't have them, in parallel if there are many.
+	 * Calculating the bounds of a ROI can be expensive, especially for polygons.
+	 * 
+	 * @param entries
+	 */
+	private static void computeEnvelopes(List<IndexEntry> entries) {
+		var stream = entries.size() >= MIN_PARALLEL_ENVELOPES ? entries.parallelStream() : entries.stream();
+		stream.filter(e -> e.envelope == null).forEach(e -> e.envelope = createEnvelope(e.roi));
 	}
 	
-	private Envelope getEnvelope(ImageRegion region) {
-		return new Envelope(region.getMinX(), region.getMaxX(),
-				region.getMinY(), region.getMaxY());
+	/**
+	 * Check if an object is a descendant of the specified root object.
+	 * 
+	 * @param pathObject
+	 * @param root
+	 * @return
+	 */
+	private static boolean isInHierarchy(PathObject pathObject, PathObject root) {
+		while (pathObject.getParent() != null)
+			pathObject = pathObject.getParent();
+		return pathObject == root;
 	}
 	
 	
-	
 	/**
 	 * This doesn't acquire the lock! The locking is done first.
 	 * 
@@ -329,48 +407,97 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	 * @param removeChildren
 	 */
 	private void removeFromCache(PathObject pathObject, boolean removeChildren) {
-		// If the cache isn't active, then nothing to remove
-		if (!isActive())
+		ClassIndex index = map.get(pathObject.getClass());
+		if (index != null && index.remove(pathObject))
+			logger.trace("Removed {} from cache", pathObject);
+		// Remove the children
+		if (removeChildren && !(pathObject instanceof TemporaryObject)) {
+			for (PathObject child : pathObject.getChildObjects())
+				removeFromCache(child, removeChildren);
+		}
+	}
+	
+	/**
+	 * Update the cache for an object and all its descendants, after a change in the hierarchy structure.
+	 * If the object is the root, any objects that are no longer in the hierarchy are also removed.
+	 * <p>
+	 * This doesn't acquire the lock! The locking is done first.
+	 * 
+	 * @param pathObject
+	 */
+	private void updateDescendants(PathObject pathObject) {
+		PathObject root = hierarchy.getRootObject();
+		if (pathObject == null)
+			pathObject = root;
+		// If the object has itself been removed, its descendants are dealt with lazily
+		if (!isInHierarchy(pathObject, root))
 			return;
-		
-		SpatialIndex mapObjects = map.get(pathObject.getClass());
-		
-		// We can remove objects from a Quadtree
-		if (mapObjects instanceof Quadtree) {
-			Envelope envelope = lastEnvelopeMap.get(pathObject);
-			envelope = MAX_ENVELOPE;
-//				System.err.println("Before: " + mapObjects.query(MAX_ENVELOPE).size());
-			if (envelope != null) {
-				if (mapObjects.remove(envelope, pathObject)) {
-					logger.debug("Removed {} from cache", pathObject);
-				} else
-					logger.debug("Unable to remove {} from cache", pathObject);
-			} else {
-				logger.debug("No envelope found for {}", pathObject);					
-			}
-//				System.err.println("After: " + mapObjects.query(MAX_ENVELOPE).size());
-			// Remove the children
-			if (removeChildren) {
-				for (PathObject child : pathObject.getChildObjects())
-					removeFromCache(child, removeChildren);
-			}
-		} else if (mapObjects instanceof SpatialIndex && !removeChildren) {
-			// We can't remove objects from a STRtree, but since we're just removing one object we can rebuild only the cache for this class
-			constructCache(pathObject.getClass());
-		} else {
-			// If we need to remove multiple objects, better to just rebuild the entire cache
-			constructCache(null);
+		int n = addToCache(pathObject, true);
+		if (pathObject == root) {
+			if (n == 0)
+				map.clear();
+			else if (n < size())
+				removeDetachedObjects(root);
 		}
+		flush(root);
 	}
 	
+	/**
+	 * Remove all objects from the cache that are no longer in the hierarchy.
+	 * This doesn't acquire the lock! The locking is done first.
+	 * 
+	 * @param root
+	 */
+	private void removeDetachedObjects(PathObject root) {
+		for (ClassIndex index : map.values()) {
+			for (PathObject pathObject : index.getDetachedObjects(root))
+				index.remove(pathObject);
+		}
+	}
 	
-//	/**
-//	 * Add a PathObject to the cache.  Child objects are not added.
-//	 * @param pathObject
-//	 */
-//	private void addToCache(PathObject pathObject) {
-//		addToCache(pathObject, false);
-//	}
+	/**
+	 * Remove objects that were found to be detached during a query.
+	 * This doesn't acquire the lock! The locking is done first.
+	 */
+	private void removeQueuedDetachedObjects() {
+		if (detachedObjects.isEmpty())
+			return;
+		PathObject root = hierarchy.getRootObject();
+		PathObject pathObject;
+		while ((pathObject = detachedObjects.poll()) != null) {
+			// Check again, since the object might have been added back
+			if (!isInHierarchy(pathObject, root))
+				removeFromCache(pathObject, false);
+		}
+	}
+	
+	/**
+	 * Remove objects that were found to be detached during a query, if the write lock is immediately available.
+	 * Otherwise this will happen during the next update.
+	 */
+	private void tryToRemoveQueuedDetachedObjects() {
+		if (detachedObjects.isEmpty() || !w.tryLock())
+			return;
+		try {
+			removeQueuedDetachedObjects();
+			flush(null);
+		} finally {
+			w.unlock();
+		}
+	}
+	
+	/**
+	 * Total number of objects in the cache.
+	 * This doesn't acquire the lock.
+	 * 
+	 * @return
+	 */
+	private int size() {
+		int n = 0;
+		for (ClassIndex index : map.values())
+			n += index.size();
+		return n;
+	}
 	
 	
 	/**
@@ -398,35 +525,38 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		
 		int z = region == null ? -1 : region.getZ();
 		int t = region == null ? -1 : region.getT();
+		PathObject root = hierarchy.getRootObject();
 		r.lock();
 		try {
+			List<PathObject> list = new ArrayList<>();
 			// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-			for (Entry<Class<? extends PathObject>, SpatialIndex> entry : map.entrySet()) {
+			for (Entry<Class<? extends PathObject>, ClassIndex> entry : map.entrySet()) {
 				if (cls == null || (includeSubclasses && cls.isAssignableFrom(entry.getKey())) || cls.isInstance(entry.getKey())) {
-					if (entry.getValue() != null) {
-						var list = entry.getValue().query(envelope);
-						if (pathObjects == null)
-							pathObjects = new HashSet<PathObject>();
-						
-						// Add all objects that have a parent, i.e. might be in the hierarchy
-						for (PathObject pathObject : (List<PathObject>)list) {
-							var roi = pathObject.getROI();
-							if (roi == null || region == null || (roi.getZ() == z && roi.getT() == t)) {
-								if (pathObject.getParent() != null || pathObject.isRootObject())
-									pathObjects.add(pathObject);
-							}
+					list.clear();
+					entry.getValue().query(envelope, list);
+					if (pathObjects == null)
+						pathObjects = new HashSet<PathObject>();
+					
+					// Add all objects that are still in the hierarchy
+					for (PathObject pathObject : list) {
+						var roi = pathObject.getROI();
+						if (roi == null || region == null || (roi.getZ() == z && roi.getT() == t)) {
+							if (isInHierarchy(pathObject, root))
+								pathObjects.add(pathObject);
+							else
+								detachedObjects.add(pathObject);
 						}
 					}
-//						pathObjects = entry.getValue().getObjectsForRegion(region, pathObjects);
 				}
 			}
-	//		logger.info("Objects for " + region + ": " + (pathObjects == null ? 0 : pathObjects.size()));
-			if (pathObjects == null)
-				return Collections.emptySet();
-			return pathObjects;
 		} finally {
 			r.unlock();
 		}
+		tryToRemoveQueuedDetachedObjects();
+	//		logger.info("Objects for " + region + ": " + (pathObjects == null ? 0 : pathObjects.size()));
+		if (pathObjects == null)
+			return Collections.emptySet();
+		return pathObjects;
 	}
 	
 	public boolean hasObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region, boolean includeSubclasses) {
@@ -436,19 +566,19 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		
 		int z = region == null ? -1 : region.getZ();
 		int t = region == null ? -1 : region.getT();
+		PathObject root = hierarchy.getRootObject();
 		r.lock();
 		try {
+			List<PathObject> list = new ArrayList<>();
 			// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-			for (Entry<Class<? extends PathObject>, SpatialIndex> entry : map.entrySet()) {
+			for (Entry<Class<? extends PathObject>, ClassIndex> entry : map.entrySet()) {
 				if (cls == null || cls.isInstance(entry.getKey()) || (includeSubclasses && cls.isAssignableFrom(entry.getKey()))) {
-					if (entry.getValue() != null) {
-						var list = (List<PathObject>)entry.getValue().query(envelope);
-						if (list.stream().anyMatch(p -> p.hasROI() && 
-								(region == null || (p.getROI().getZ() == z && p.getROI().getT() == t))))
-							return true;
-//						if (entry.getValue().hasObjectsForRegion(region))
-//							return true;
-					}
+					list.clear();
+					entry.getValue().query(envelope, list);
+					if (list.stream().anyMatch(p -> p.hasROI() && 
+							(region == null || (p.getROI().getZ() == z && p.getROI().getT() == t)) &&
+							isInHierarchy(p, root)))
+						return true;
 				}
 			}
 			return false;
@@ -457,63 +587,236 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 		}
 	}
 	
-//	public synchronized Collection<PathObject> getObjectsForRegion(Class<? extends PathObject> cls, Rectangle region, Collection<PathObject> pathObjects) {
-//		ensureCacheConstructed();
-//		
-//		if (pathObjects == null)
-//			pathObjects = new HashSet<>();
-//		
-//		// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-//		if (cls == null) {
-//			for (Class<? extends PathObject> tempClass : map.keySet())
-//				getObjectsForRegion(tempClass, region, pathObjects);
-//			return pathObjects;
-//		}
-//		
-//		// Extract the map for the type
-//		PathObjectTileMap mapObjects = map.get(cls);
-//		if (mapObjects == null)
-//			return pathObjects;
-//		
-//		// Get the objects
-//		return mapObjects.getObjectsForRegion(region, pathObjects);
-//	}
-	
+	/**
+	 * Get a snapshot of statistics describing how the cache has been maintained.
+	 * 
+	 * @return
+	 */
+	SpatialCacheStatistics getStatistics() {
+		r.lock();
+		try {
+			return new SpatialCacheStatistics(isActive ? size() : 0,
+					nFullRebuilds, nBulkLoads, nIncrementalUpdates,
+					nInserted, nRemoved,
+					lastRebuildMillis, totalRebuildMillis);
+		} finally {
+			r.unlock();
+		}
+	}
 	
 
-//	@Override
-//	public void pathObjectChanged(PathObjectHierarchy pathObjectHierarchy, PathObject pathObject) {
-//		// Remove, then re-add the object - ignoring children (which shouldn't be changed, as no structural change is associated with this event)
-//		removeFromCache(pathObject, false);
-//		addToCache(pathObject, false);
-//	}
-
-
 	@Override
 	public void hierarchyChanged(final PathObjectHierarchyEvent event) {
+		// If the cache isn't active, we can ignore this... it will be constructed when it is needed
+		if (!isActive())
+			return;
 		w.lock();
 		try {
-			boolean singleChange = event.getChangedObjects().size() == 1;
-			PathObject singleObject = singleChange ? event.getChangedObjects().get(0) : null;
-			if (singleChange && event.getEventType() == HierarchyEventType.ADDED) {
-				removeFromCache(singleObject, false);
-				addToCache(singleObject, false, singleObject.getClass());
-			} else if (singleChange && event.getEventType() == HierarchyEventType.REMOVED) {
-				removeFromCache(singleObject, false);
-			} else if (event.getEventType() == HierarchyEventType.OTHER_STRUCTURE_CHANGE) {// || event.getEventType() == HierarchyEventType.CHANGE_OTHER) {
-//				if (singleChange && !singleObject.isRootObject()) {
-//					removeFromCache(singleObject, false);
-//					addToCache(singleObject, false, singleObject.getClass());					
-//				} else
-//				System.err.println(event);
-				if (!event.isChanging())
-					resetCache();
+			if (!isActive())
+				return;
+			removeQueuedDetachedObjects();
+			switch (event.getEventType()) {
+			case ADDED:
+				for (PathObject pathObject : event.getChangedObjects())
+					updateDescendants(pathObject);
+				break;
+			case REMOVED:
+				// Any children will either have been moved elsewhere, or removed along with the object
+				PathObject rootObject = hierarchy.getRootObject();
+				for (PathObject pathObject : event.getChangedObjects()) {
+					if (!isInHierarchy(pathObject, rootObject))
+						removeFromCache(pathObject, true);
+				}
+				flush(null);
+				break;
+			case OTHER_STRUCTURE_CHANGE:
+				// Wait until changes are complete
+				if (event.isChanging())
+					return;
+				updateDescendants(event.getStructureChangeBase());
+				break;
+			case CHANGE_OTHER:
+				// Objects may have had their ROIs changed, and so need to be moved
+				PathObject root = hierarchy.getRootObject();
+				for (PathObject pathObject : event.getChangedObjects()) {
+					if (isInHierarchy(pathObject, root))
+						addToCache(pathObject, false);
+					else
+						removeFromCache(pathObject, false);
+				}
+				flush(root);
+				break;
+			default:
+				// Classification & measurement changes don't influence the cache
+				return;
 			}
+			nIncrementalUpdates++;
 		} finally {
 			w.unlock();
 		}
-//		else if (event.getEventType() == HierarchyEventType.OBJECT_CHANGE)
-//			resetCache(); // TODO: Check if full change is necessary for object change events			
+	}
+	
+	
+	/**
+	 * An object stored in the cache, along with the ROI that was used to index it.
+	 */
+	private static class IndexEntry {
+		
+		private final PathObject pathObject;
+		private final ROI roi;
+		private Envelope envelope;
+		private boolean inBulkIndex = false;
+		
+		IndexEntry(PathObject pathObject, ROI roi) {
+			this.pathObject = pathObject;
+			this.roi = roi;
+		}
+		
+	}
+	
+	
+	/**
+	 * Spatial index for objects of a single class.
+	 * <p>
+	 * Most objects are stored in an STRtree, which is efficient to query but can't be modified once built.
+	 * Objects added later are stored in a Quadtree, while objects removed from the STRtree are 
+	 * filtered out from the query results.
+	 * When the number of changes becomes too large, a new STRtree is built containing all the objects.
+	 * <p>
+	 * Inserted objects are pending until {@link #flush(PathObject)} is called, so that large batches can be bulk-loaded.
+	 */
+	private class ClassIndex {
+		
+		private final Map<PathObject, IndexEntry> entries = new HashMap<>();
+		private final List<IndexEntry> pending = new ArrayList<>();
+		private final Set<PathObject> removedFromBulkIndex = new HashSet<>();
+		
+		private STRtree bulkIndex;
+		private Quadtree deltaIndex = new Quadtree();
+		private int nDelta = 0;
+		
+		int size() {
+			return entries.size();
+		}
+		
+		/**
+		 * Insert an object, or update it if its ROI has changed since it was last inserted.
+		 * 
+		 * @param pathObject
+		 * @return true if the index was changed
+		 */
+		boolean insert(PathObject pathObject) {
+			ROI roi = pathObject.getROI();
+			IndexEntry previous = entries.get(pathObject);
+			if (previous != null) {
+				if (previous.roi == roi)
+					return false;
+				remove(pathObject);
+			}
+			IndexEntry entry = new IndexEntry(pathObject, roi);
+			entries.put(pathObject, entry);
+			pending.add(entry);
+			nInserted++;
+			return true;
+		}
+		
+		/**
+		 * Remove an object.
+		 * 
+		 * @param pathObject
+		 * @return true if the object was found in the index
+		 */
+		boolean remove(PathObject pathObject) {
+			IndexEntry entry = entries.remove(pathObject);
+			if (entry == null)
+				return false;
+			if (entry.inBulkIndex)
+				removedFromBulkIndex.add(pathObject);
+			else if (entry.envelope != null) {
+				deltaIndex.remove(entry.envelope, pathObject);
+				nDelta--;
+			}
+			// Pending entries will be skipped whenever they are flushed
+			nRemoved++;
+			return true;
+		}
+		
+		List<PathObject> getDetachedObjects(PathObject root) {
+			return entries.keySet().stream().filter(p -> !isInHierarchy(p, root)).collect(Collectors.toList());
+		}
+		
+		/**
+		 * Add pending objects to the index, bulk-loading a new STRtree if there have been many changes.
+		 * 
+		 * @param root if not null, objects that are not descendants of this will be removed if a new STRtree is built
+		 */
+		void flush(PathObject root) {
+			int nChanges = pending.size() + nDelta + removedFromBulkIndex.size();
+			if (nChanges == 0)
+				return;
+			if (nChanges >= MIN_CHANGES_FOR_BULK_LOAD && nChanges >= entries.size() * MIN_CHANGED_FRACTION_FOR_BULK_LOAD) {
+				bulkLoad(root);
+			} else if (!pending.isEmpty()) {
+				computeEnvelopes(pending);
+				for (IndexEntry entry : pending) {
+					// Skip entries that were removed or replaced before they could be added
+					if (entries.get(entry.pathObject) == entry) {
+						deltaIndex.insert(entry.envelope, entry.pathObject);
+						nDelta++;
+					}
+				}
+				pending.clear();
+			}
+		}
+		
+		private void bulkLoad(PathObject root) {
+			if (root != null) {
+				for (PathObject pathObject : getDetachedObjects(root))
+					remove(pathObject);
+			}
+			List<IndexEntry> list = new ArrayList<>(entries.values());
+			computeEnvelopes(list);
+			if (list.isEmpty())
+				bulkIndex = null;
+			else {
+				STRtree tree = new STRtree();
+				for (IndexEntry entry : list) {
+					tree.insert(entry.envelope, entry.pathObject);
+					entry.inBulkIndex = true;
+				}
+				tree.build();
+				bulkIndex = tree;
+			}
+			deltaIndex = new Quadtree();
+			nDelta = 0;
+			pending.clear();
+			removedFromBulkIndex.clear();
+			nBulkLoads++;
+		}
+		
+		/**
+		 * Add all objects with envelopes intersecting the specified envelope to a list.
+		 * The list may contain some additional objects as well, but this is expected to be a small number.
+		 * 
+		 * @param envelope
+		 * @param list
+		 */
+		@SuppressWarnings("unchecked")
+		void query(Envelope envelope, List<PathObject> list) {
+			if (bulkIndex != null) {
+				if (removedFromBulkIndex.isEmpty())
+					list.addAll(bulkIndex.query(envelope));
+				else {
+					for (PathObject pathObject : (List<PathObject>)bulkIndex.query(envelope)) {
+						if (!removedFromBulkIndex.contains(pathObject))
+							list.add(pathObject);
+					}
+				}
+			}
+			if (nDelta > 0)
+				list.addAll(deltaIndex.query(envelope));
+		}
+		
 	}
 	
 }
@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+/**
+ * Snapshot of statistics describing how the spatial cache of a {@link PathObjectHierarchy} has been maintained.
+ * <p>
+ * This is mostly useful to check whether the cache is being rebuilt more often than it should be.
+ * 
+ * @author Pete Bankhead
+ * 
+ * @see PathObjectHierarchy#getSpatialCacheStatistics()
+ */
+public class SpatialCacheStatistics {
+	
+	private final int nObjects;
+	private final long nFullRebuilds;
+	private final long nBulkLoads;
+	private final long nIncrementalUpdates;
+	private final long nInserted;
+	private final long nRemoved;
+	private final long lastRebuildMillis;
+	private final long totalRebuildMillis;
+	
+	SpatialCacheStatistics(int nObjects, long nFullRebuilds, long nBulkLoads, long nIncrementalUpdates,
+			long nInserted, long nRemoved, long lastRebuildMillis, long totalRebuildMillis) {
+		this.nObjects = nObjects;
+		this.nFullRebuilds = nFullRebuilds;
+		this.nBulkLoads = nBulkLoads;
+		this.nIncrementalUpdates = nIncrementalUpdates;
+		this.nInserted = nInserted;
+		this.nRemoved = nRemoved;
+		this.lastRebuildMillis = lastRebuildMillis;
+		this.totalRebuildMillis = totalRebuildMillis;
+	}
+	
+	/**
+	 * Number of objects currently in the cache.
+	 * This may include some objects that have been removed from the hierarchy, but which the cache hasn't yet noticed.
+	 * @return
+	 */
+	public int getObjectCount() {
+		return nObjects;
+	}
+	
+	/**
+	 * Number of times the cache has been constructed from scratch, by traversing the entire hierarchy.
+	 * @return
+	 */
+	public long getFullRebuildCount() {
+		return nFullRebuilds;
+	}
+	
+	/**
+	 * Number of times a spatial index has been bulk-loaded for a single class of object.
+	 * This occurs during a full rebuild, or when many changes have been made.
+	 * @return
+	 */
+	public long getBulkLoadCount() {
+		return nBulkLoads;
+	}
+	
+	/**
+	 * Number of hierarchy events that have been applied to the cache as incremental updates.
+	 * @return
+	 */
+	public long getIncrementalUpdateCount() {
+		return nIncrementalUpdates;
+	}
+	
+	/**
+	 * Total number of objects inserted into the cache, including those inserted during a full rebuild.
+	 * @return
+	 */
+	public long getInsertedCount() {
+		return nInserted;
+	}
+	
+	/**
+	 * Total number of objects removed from the cache.
+	 * @return
+	 */
+	public long getRemovedCount() {
+		return nRemoved;
+	}
+	
+	/**
+	 * Time taken for the most recent full rebuild, in milliseconds.
+	 * @return
+	 */
+	public long getLastRebuildMillis() {
+		return lastRebuildMillis;
+	}
+	
+	/**
+	 * Total time taken for all full rebuilds, in milliseconds.
+	 * @return
+	 */
+	public long getTotalRebuildMillis() {
+		return totalRebuildMillis;
+	}
+	
+	@Override
+	public String toString() {
+		return "Spatial cache: " + nObjects + " objects, " + 
+				nFullRebuilds + " full rebuilds (" + totalRebuildMillis + " ms, last " + lastRebuildMillis + " ms), " +
+				nBulkLoads + " bulk loads, " + nIncrementalUpdates + " incremental updates, " + 
+				nInserted + " inserted, " + nRemoved + " removed";
+	}
+
+}
@@ -24,18 +24,12 @@
 package qupath.lib.plugins;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import qupath.lib.common.SimpleThreadFactory;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathObject;
@@ -46,7 +40,10 @@ import qupath.lib.objects.hierarchy.PathObjectHierarchy;
  * Abstract PluginRunner to help with the creation of plugin runners for specific circumstances,
  * e.g. running through a GUI, or from a command line only.
  * 
- * Note!  This makes use of a static threadpool, which will be reused by all inheriting classes.
+ * Note!  Tasks are run using a shared {@link PluginScheduler}, which will be reused by all inheriting classes.
+ * Each call to run tasks waits for them to complete, but tasks from runners used on different threads at the same time 
+ * (e.g. for different images of a project) share the scheduler's threads.  If tasks are run from within a task that is 
+ * itself running on the scheduler, they are run directly on the current thread instead.
  * 
  * @author Pete Bankhead
  *
@@ -56,18 +53,16 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	
 	final private static Logger logger = LoggerFactory.getLogger(AbstractPluginRunner.class);
 
-	private static int numThreadsRequested = Runtime.getRuntime().availableProcessors();
-	private static int counter = 0;
+	/**
+	 * Interval at which to check whether the progress monitor has been cancelled while waiting for tasks.
+	 */
+	private static final long POLL_INTERVAL_MILLIS = 100L;
 
-	private static ExecutorService pool;
-	private ExecutorCompletionService<Runnable> service;
+	private static int numThreadsRequested = Runtime.getRuntime().availableProcessors();
 
-	private Map<Future<Runnable>, Runnable> pendingTasks = new HashMap<>();
-	
 	private boolean batchMode = false;
-	private SimpleProgressMonitor monitor;
 	
-	private boolean tasksCancelled = false;
+	private volatile boolean tasksCancelled = false;
 	
 	protected AbstractPluginRunner(final boolean batchMode) {
 		this.batchMode = batchMode;
@@ -91,13 +86,14 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	 * 
 	 * @param n
 	 */
-	public synchronized static void setNumThreadsRequested(int n) {
-		if (numThreadsRequested == n)
-			return;
-		numThreadsRequested = n;
-		// Need to shutdown the pool for this to take effect
-		if (pool != null)
-			pool.shutdown();
+	public static void setNumThreadsRequested(int n) {
+		synchronized (AbstractPluginRunner.class) {
+			if (numThreadsRequested == n)
+				return;
+			numThreadsRequested = n;
+		}
+		// Running tasks are unaffected, but new tasks will use the updated number of threads
+		PluginScheduler.getInstance().setParallelism(getNumThreads());
 	}
 	
 	/**
@@ -171,7 +167,7 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	 * @see qupath.lib.plugins.PluginRunner#runTasks(java.util.Collection)
 	 */
 	@Override
-	public synchronized void runTasks(Collection<Runnable> tasks) {
+	public void runTasks(Collection<Runnable> tasks) {
 		
 		if (tasks.isEmpty())
 			return;
@@ -179,26 +175,55 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 		// Reset cancelled status
 		tasksCancelled = false;
 		
-		// Ensure we have a pool
-		if (pool == null || pool.isShutdown()) {
-			int n = getNumThreads();
-			pool = Executors.newFixedThreadPool(n, new SimpleThreadFactory("plugin-runner-"+(+counter)+"-", false));
-			logger.debug("New threadpool created with {} threads", n);
-			service = new ExecutorCompletionService<>(pool);
-		} else if (service == null)
-			service = new ExecutorCompletionService<>(pool);
-		
-		monitor = makeProgressMonitor();
+		SimpleProgressMonitor monitor = makeProgressMonitor();
 		monitor.startMonitoring(null, tasks.size(), true);
-		for (Runnable task : tasks) {
-			Future<Runnable> future = service.submit(task, task);
-			pendingTasks.put(future, task);
+		
+		// A plugin run from within another plugin's task mustn't wait for the threads that are already busy waiting for it
+		if (PluginScheduler.isRunningTask()) {
+			runTasksDirectly(tasks, monitor);
+			return;
+		}
+		
+		// Tasks share threads with those of any other runners using the scheduler at the same time
+		int priority = batchMode ? PluginScheduler.PRIORITY_LOW : PluginScheduler.PRIORITY_HIGH;
+		long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+		PluginScheduler.Job job = PluginScheduler.getInstance().submit(tasks, priority, memoryBudget, AbstractPluginRunner::estimateMemory);
+		awaitCompletion(job, monitor);
+	}
+	
+	/**
+	 * Run tasks one at a time on the current thread, including their post-processing.
+	 */
+	private void runTasksDirectly(final Collection<Runnable> tasks, final SimpleProgressMonitor monitor) {
+		try {
+			for (Runnable runnable : tasks) {
+				if (monitor.cancelled() || Thread.currentThread().isInterrupted()) {
+					tasksCancelled = true;
+					break;
+				}
+				runnable.run();
+				if (runnable instanceof PathTask)
+					postProcess(runnable);
+				updateMonitor(monitor, runnable);
+			}
+			monitor.pluginCompleted("Tasks completed!");
+		} catch (Exception e) {
+			logger.error("Error running plugin: {}", e.getLocalizedMessage(), e);
+			monitor.pluginCompleted("Completed with error " + e.getLocalizedMessage());
 		}
-		// TODO: See if this needs to be shutdown here, or there's a better way..?
-		// In any case, it was inhibiting application shutdown just letting it be...
-		pool.shutdown();
-		if (!pendingTasks.isEmpty())
-			awaitCompletion();
+	}
+	
+	/**
+	 * Estimate the memory required to run a task, in bytes.
+	 * This is used to limit how many tasks for the same image run at the same time.
+	 * 
+	 * @param task
+	 * @return
+	 */
+	static long estimateMemory(final Runnable task) {
+		if (task instanceof DetectionPluginTools.DetectionRunnable)
+			return ((DetectionPluginTools.DetectionRunnable<?>)task).estimateMemory();
+		return 0L;
 	}
 	
 	
@@ -212,62 +237,50 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 
 	
 	/**
-	 * Await the completion of currently-running tasks, notifying any listener if necessary.
+	 * Await the completion of tasks submitted as a job, notifying any listener if necessary.
 	 */
-	protected void awaitCompletion() {
+	private void awaitCompletion(final PluginScheduler.Job job, final SimpleProgressMonitor monitor) {
 		try {
-			while (!pendingTasks.isEmpty()) {
-				Future<Runnable> future = null;
-				// Check if the monitor has been cancelled; if so, do any post processing if a task is available and otherwise cancel remaining ones
-				if (!tasksCancelled && monitor != null && monitor.cancelled() && (future = service.poll()) == null) {
-					// Cancel all enqueued tasks
-					for (Future<?> entry : pendingTasks.keySet().toArray(new Future<?>[0])) {
-						if (entry.cancel(true)) {
-							pendingTasks.remove(entry);
-							monitor.updateProgress(1, "", null);
-						} else
-							logger.debug("Cancel returned false for {}", entry);
-					}
+			while (true) {
+				// Check if the monitor has been cancelled; if so, cancel remaining tasks for this job only
+				if (!tasksCancelled && monitor.cancelled()) {
+					int nRemoved = job.cancel();
+					if (nRemoved > 0)
+						monitor.updateProgress(nRemoved, "", null);
 					tasksCancelled = true;
 				}
-				future = future == null ? service.take() : future;
-//				logger.warn("Future: {}", future);
+				boolean isDone = job.isDone();
+				PluginScheduler.Completion completion = job.poll(isDone ? 0L : POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				if (completion == null) {
+					if (isDone)
+						break;
+					continue;
+				}
+				if (completion.getError() != null)
+					throw new ExecutionException(completion.getError());
 				// If the task finished without being cancelled, run post-processing if required & update the progress monitor
-				if (!future.isCancelled()) {
-					Runnable runnable = future.get();
-					PathTask task = runnable instanceof PathTask ? (PathTask)runnable : null;
-					if (task != null) {
-						// Do post-processing if necessary - this includes updating the monitor
+				if (!completion.wasCancelled()) {
+					Runnable runnable = completion.getTask();
+					if (runnable instanceof PathTask)
 						postProcess(runnable);
-					} else {
-						updateMonitor(task);
-					}
-				}
-				pendingTasks.remove(future);
+					updateMonitor(monitor, runnable);
+				} else
+					monitor.updateProgress(1, "", null);
 			}
-			if (monitor != null)
-				monitor.pluginCompleted("Tasks completed!");
+			monitor.pluginCompleted("Tasks completed!");
 		} catch (InterruptedException e) {
 			logger.error("Plugin interrupted: {}", e.getLocalizedMessage(), e);
+			job.cancel();
 			monitor.pluginCompleted("Completed with error " + e.getLocalizedMessage());
 		} catch (ExecutionException e) {
 			logger.error("Error running plugin: {}", e.getLocalizedMessage(), e);
-//			Throwable e2 = e;
-//			while ((e2 = e2.getCause()) != null) {
-//				e2 = e2.fillInStackTrace();
-//				logger.error("CAUSING Error running plugin: {}", e2.getLocalizedMessage(), e2);
-//			}
-//			e.printStackTrace();
-			if (pool != null)
-				pool.shutdownNow();
+			// Only the tasks for this job are affected - any others using the scheduler continue
+			job.cancel();
 			monitor.pluginCompleted("Completed with error " + e.getLocalizedMessage());
 		} catch (Exception e) {
 			logger.error("Error running plugin: {}", e.getLocalizedMessage(), e);
-			if (pool != null)
-				pool.shutdownNow();
+			job.cancel();
 			monitor.pluginCompleted("Completed with error " + e.getLocalizedMessage());
-		} finally {
-			pendingTasks.clear();
 		}
 	}
 
@@ -275,8 +288,8 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	/**
 	 * Perform post-processing after a task has complete.
 	 * 
-	 * This is necessary to call the taskComplete method (if the Runnable is an instance of PathTask),
-	 * and also to update any progress monitor.
+	 * This is necessary to call the taskComplete method (if the Runnable is an instance of PathTask).
+	 * The progress monitor is updated once this method returns.
 	 * 
 	 * Note: Subclasses may choose to override this method so that it is called on a particular thread
 	 * (e.g. with Platform.runLater() or SwingUtilities.invokeLater).
@@ -288,15 +301,10 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 		if (task != null) {
 			task.taskComplete();
 		}
-//		runnable.getClass().getSimpleName()
-//		System.err.println("Updating monitor from post processing");
-		updateMonitor(task);
 	}
 	
-	private void updateMonitor(final PathTask task) {
-		if (monitor == null)
-			return;
-		String text = task == null ? "Completed" : task.getLastResultsDescription();
+	private static void updateMonitor(final SimpleProgressMonitor monitor, final Runnable runnable) {
+		String text = runnable instanceof PathTask ? ((PathTask)runnable).getLastResultsDescription() : "Completed";
 		monitor.updateProgress(1, text, null);
 	}
 	
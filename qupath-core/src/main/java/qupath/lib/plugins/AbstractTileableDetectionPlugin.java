@@ -115,6 +115,8 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 		ImmutableDimension sizePreferred = new ImmutableDimension(preferred, preferred);
 		ImmutableDimension sizeMax = new ImmutableDimension(max, max);
 		
+		// Any existing children that haven't been loaded yet would otherwise reappear later
+		imageData.getHierarchy().loadDeferredObjects(parentObject);
 		parentObject.clearPathObjects();
 		
 		// No tasks to complete
@@ -124,21 +126,22 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 		
 		// Exactly one task to complete
 		if (pathROIs.size() == 1 && pathROIs.iterator().next() == parentObject.getROI()) {
-			tasks.add(DetectionPluginTools.createRunnableTask(createDetector(imageData, params), getParameterList(imageData), imageData, parentObject));
+			tasks.add(DetectionPluginTools.createRunnableTask(createDetector(imageData, params), getParameterList(imageData), imageData, parentObject, parentObject.getROI(), 0, downsampleFactor));
 			return;
 		}
 		
 		List<ParallelTileObject> tileList = new ArrayList<>();
 		AtomicInteger countdown = new AtomicInteger(pathROIs.size());
+		DetectionSpill spill = DetectionPluginTools.getStreamDetections() ? new DetectionSpill(imageData.getHierarchy()) : null;
 		for (ROI pathROI : pathROIs) {
-			ParallelTileObject tile = new ParallelTileObject(pathROI, imageData.getHierarchy(), countdown);
+			ParallelTileObject tile = new ParallelTileObject(pathROI, imageData.getHierarchy(), countdown, spill);
 			parentObject.addPathObject(tile);
 			for (ParallelTileObject tileTemp : tileList) {
 				if (tileTemp.suggestNeighbor(tile))
 					tile.suggestNeighbor(tileTemp);
 			}
 			tileList.add(tile);
-			tasks.add(DetectionPluginTools.createRunnableTask(createDetector(imageData, params), params, imageData, tile));
+			tasks.add(DetectionPluginTools.createRunnableTask(createDetector(imageData, params), params, imageData, tile, tile.getROI(), 0, downsampleFactor));
 		}
 		imageData.getHierarchy().fireHierarchyChangedEvent(this);
 	}
@@ -41,6 +41,7 @@ import org.slf4j.LoggerFactory;
 
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathROIObject;
 import qupath.lib.plugins.parameters.ParameterList;
@@ -67,9 +68,55 @@ import qupath.lib.roi.interfaces.ROI;
  */
 public class DetectionPluginTools {
 	
+	private static volatile boolean streamDetections = false;
+	
+	/**
+	 * Request that detections made using {@link ParallelTileObject}s are written to a temporary file as soon as each tile is complete, 
+	 * rather than being kept in memory until all tiles are complete.
+	 * <p>
+	 * The detections are then loaded on demand, e.g. when a region is viewed.  This means that the memory needed 
+	 * to detect objects across a large image depends upon the number of tiles being processed at any one time, rather than 
+	 * the total number of objects.
+	 * 
+	 * @param stream
+	 * 
+	 * @see qupath.lib.io.DetectionSpillStore
+	 */
+	public static void setStreamDetections(final boolean stream) {
+		streamDetections = stream;
+	}
+	
+	/**
+	 * Returns true if detections made using {@link ParallelTileObject}s should be written to a temporary file as each tile is complete.
+	 * 
+	 * @return
+	 * 
+	 * @see #setStreamDetections(boolean)
+	 */
+	public static boolean getStreamDetections() {
+		return streamDetections;
+	}
+	
 	
 	public static <T> Runnable createRunnableTask(final ObjectDetector<T> task, final ParameterList params, final ImageData<T> imageData, final PathObject parentObject, final ROI pathROI, final int overlapAmount) {
-		return new DetectionRunnable<>(task, params, imageData, parentObject, pathROI, overlapAmount);
+		return createRunnableTask(task, params, imageData, parentObject, pathROI, overlapAmount, 1.0);
+	}
+
+	/**
+	 * Create a task to run a detector, specifying the downsample at which the detector is expected to request pixels.
+	 * This is used to estimate the memory the task requires when scheduling it.
+	 * 
+	 * @param task
+	 * @param params
+	 * @param imageData
+	 * @param parentObject
+	 * @param pathROI
+	 * @param overlapAmount
+	 * @param downsample
+	 * @return
+	 */
+	public static <T> Runnable createRunnableTask(final ObjectDetector<T> task, final ParameterList params, final ImageData<T> imageData, final PathObject parentObject, final ROI pathROI, final int overlapAmount, final double downsample) {
+		return new DetectionRunnable<>(task, params, imageData, parentObject, pathROI, overlapAmount, downsample);
 	}
 
 
@@ -89,15 +136,32 @@ public class DetectionPluginTools {
 		private ImageData<T> imageData;
 		private String result;
 		private int overlapAmount;
+		private double downsample;
 		private Collection<PathObject> pathObjectsDetected;
 
-		public DetectionRunnable(final ObjectDetector<T> detector, final ParameterList params, final ImageData<T> imageData, final PathObject parentObject, final ROI pathROI, final int overlapAmount) {
+		public DetectionRunnable(final ObjectDetector<T> detector, final ParameterList params, final ImageData<T> imageData, final PathObject parentObject, final ROI pathROI, final int overlapAmount, final double downsample) {
 			this.detector = detector;
 			this.params = params;
 			this.parentObject = parentObject;
 			this.imageData = imageData;
 			this.pathROI = pathROI;
 			this.overlapAmount = overlapAmount;
+			this.downsample = downsample;
+		}
+
+
+		/**
+		 * Estimate the memory required to read the pixels for this task at the requested downsample, in bytes.
+		 * @return
+		 */
+		long estimateMemory() {
+			ImageServer<T> server = imageData == null ? null : imageData.getServer();
+			if (server == null || pathROI == null)
+				return 0L;
+			double pad = overlapAmount * 2;
+			double d = Math.max(1.0, downsample);
+			double nPixels = Math.ceil((pathROI.getBoundsWidth() + pad) / d) * Math.ceil((pathROI.getBoundsHeight() + pad) / d);
+			return (long)(nPixels * server.nChannels() * Math.max(1, server.getBitsPerPixel() / 8));
 		}
 
 
@@ -148,6 +212,8 @@ public class DetectionPluginTools {
 		public void taskComplete() {
 			if (parentObject.getROI() == pathROI) {
 				if (!Thread.currentThread().isInterrupted()) {
+					// Any existing children that haven't been loaded yet would otherwise reappear later
+					imageData.getHierarchy().loadDeferredObjects(parentObject);
 					parentObject.clearPathObjects();
 					tryToSetObjectLock(parentObject, false); // Try to unlock the parent
 				}
@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package qupath.lib.plugins;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.io.DetectionSpillStore;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Helper class used by {@link ParallelTileObject}s to move completed detections out of memory during a run.
+ * <p>
+ * Detections are written to a {@link DetectionSpillStore}, which is added to the hierarchy so that the detections 
+ * are loaded again only when they are needed.
+ * 
+ * @author Pete Bankhead
+ *
+ */
+class DetectionSpill {
+	
+	final private static Logger logger = LoggerFactory.getLogger(DetectionSpill.class);
+	
+	private final PathObjectHierarchy hierarchy;
+	// Only accessed while holding the hierarchy's write lock
+	private DetectionSpillStore store;
+	private volatile boolean hasSpilled = false;
+	
+	DetectionSpill(final PathObjectHierarchy hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+	
+	/**
+	 * Write detections to the store, so that they will be added to the parent when needed.
+	 * <p>
+	 * This holds the hierarchy's write lock, since the hierarchy may otherwise close the store (after loading everything 
+	 * on another thread) between the detections being written and the store being registered.
+	 * 
+	 * @param parent the object to which the detections should eventually be added
+	 * @param pathObjects the detections, which should not currently have a parent in the hierarchy
+	 * @return true if the detections were written, false if they should be kept in memory instead
+	 */
+	boolean spill(final PathObject parent, final Collection<PathObject> pathObjects) {
+		boolean[] written = new boolean[1];
+		hierarchy.runWithWriteLock(() -> written[0] = write(parent, pathObjects));
+		return written[0];
+	}
+	
+	private boolean write(final PathObject parent, final Collection<PathObject> pathObjects) {
+		try {
+			// The hierarchy closes the store if it ever loads everything, in which case we need a new one
+			if (store == null || store.isClosed())
+				store = DetectionSpillStore.createTemporary();
+			store.add(parent, pathObjects);
+		} catch (IOException e) {
+			logger.warn("Unable to write detections to disk: {}", e.getLocalizedMessage());
+			return false;
+		}
+		hierarchy.addDeferredObjectLoader(store);
+		hasSpilled = true;
+		return true;
+	}
+	
+	/**
+	 * Returns true if any detections have been written to the store.
+	 * @return
+	 */
+	boolean hasSpilled() {
+		return hasSpilled;
+	}
+
+}
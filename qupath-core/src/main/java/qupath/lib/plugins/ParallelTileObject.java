@@ -26,13 +26,22 @@ package qupath.lib.plugins;
 import java.awt.geom.Area;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.TopologyException;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,18 +71,42 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 
 	final private static Logger logger = LoggerFactory.getLogger(ParallelTileObject.class);
 
+	/**
+	 * Minimum proportion of the area of the smaller object that must be overlapped for one of two objects to be removed.
+	 */
+	private static final double OVERLAP_THRESHOLD = 0.1;
+
+	/**
+	 * Minimum number of objects in a tile before overlaps are computed in parallel.
+	 */
+	private static final int MIN_PARALLEL_OBJECTS = 64;
+
 	AtomicInteger countdown;
 	boolean isProcessing = false;
 	boolean isComplete = false;
 	Rectangle2D bounds;
 	PathObjectHierarchy hierarchy;
 	Map<ParallelTileObject, Rectangle2D> map = new HashMap<>();
+	DetectionSpill spill;
 
 	ParallelTileObject(final ROI pathROI, final PathObjectHierarchy hierarchy, final AtomicInteger countdown) {
+		this(pathROI, hierarchy, countdown, null);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pathROI
+	 * @param hierarchy
+	 * @param countdown shared countdown of incomplete tiles
+	 * @param spill if not null, detections are moved out of memory as soon as all overlaps with neighboring tiles have been resolved
+	 */
+	ParallelTileObject(final ROI pathROI, final PathObjectHierarchy hierarchy, final AtomicInteger countdown, final DetectionSpill spill) {
 		super(pathROI);
 		this.bounds = getBounds2D(pathROI);
 		this.hierarchy = hierarchy;
 		this.countdown = countdown;
+		this.spill = spill;
 		setColorRGB(ColorTools.makeRGB(128, 128, 128));
 	}
 
@@ -164,52 +197,8 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 			List<PathObject> listThat = pto.getObjectsForRegion(entry.getValue());
 
 			// Only need to compare potential overlaps if both lists are non-empty
-			if (!listThis.isEmpty() && !listThat.isEmpty()) {
-
-				Iterator<PathObject> iterThis = listThis.iterator();
-				while (iterThis.hasNext()) {
-					PathObject pathObjectNew = iterThis.next();
-					PathArea pathAreaNew = (PathArea)pathObjectNew.getROI();
-					Area areaNew = PathROIToolsAwt.getArea(pathAreaNew);
-
-					Iterator<PathObject> iterThat = listThat.iterator();
-					while (iterThat.hasNext()) {
-						PathObject pathObjectOld = iterThat.next();
-						PathArea pathAreaOld = (PathArea)pathObjectOld.getROI();
-						// Check if the existing area intersects the bounds
-						if (!areaNew.intersects(getBounds2D(pathAreaOld)))
-							continue;
-						// If the bounds are intersected, check for an actual intersection between the areas
-						Area temp = PathROIToolsAwt.getArea(pathAreaOld);
-						temp.intersect(areaNew);
-						if (temp.isEmpty())
-							continue;
-						// We have an intersection, but it may be minimal... check this
-						double intersectionArea = ROIs.createAreaROI(temp, ImagePlane.getDefaultPlane()).getArea();
-						double threshold = 0.1;
-						// We do have an intersection - keep the object with the larger area if the intersection is a 'reasonable' proportion of the smaller area
-						// Here, reasonable is defined as 10%
-						if (pathAreaNew.getArea() > pathAreaOld.getArea()) {
-							if (intersectionArea < pathAreaOld.getArea() * threshold)
-								continue;
-							pto.removePathObject(pathObjectOld);
-							//								iterThat.remove();
-							//								logger.info("Removing from old");
-							nRemoved++;
-						}
-						else {
-							if (intersectionArea < pathAreaNew.getArea() * threshold)
-								continue;
-							removePathObject(pathObjectNew);
-							//								iterThis.remove();
-							//								logger.info("Removing from new");
-							nRemoved++;
-							break;
-						}
-					}
-				}
-
-			}
+			if (!listThis.isEmpty() && !listThat.isEmpty())
+				nRemoved += resolveOverlaps(listThis, this, listThat, pto);
 
 			// Remove the neighbor from the map
 			iterMap.remove();
@@ -227,6 +216,117 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 	}
 
 
+	/**
+	 * Resolve overlaps between objects detected in two adjacent tiles.
+	 * <p>
+	 * Where objects intersect by at least 10% of the area of the smaller object, the smaller object is removed.
+	 * Candidate pairs are found using a spatial index of the objects in the second tile, and intersection areas are
+	 * calculated from JTS geometries.  This is done in parallel if there are many objects, before the objects are
+	 * removed sequentially.
+	 * 
+	 * @param listNew objects from the tile that has just completed
+	 * @param parentNew the tile containing listNew
+	 * @param listOld objects from a neighboring tile
+	 * @param parentOld the tile containing listOld
+	 * @return the number of objects removed
+	 */
+	static int resolveOverlaps(final List<PathObject> listNew, final PathObject parentNew, final List<PathObject> listOld, final PathObject parentOld) {
+		// Store indices rather than objects, so that overlaps can be checked in the order of listOld
+		STRtree tree = new STRtree();
+		for (int i = 0; i < listOld.size(); i++)
+			tree.insert(getEnvelope(listOld.get(i).getROI()), i);
+		tree.build();
+
+		// Compute intersections - this only reads the objects, so may be done in parallel
+		Map<PathObject, Geometry> geometryCache = new ConcurrentHashMap<>();
+		var stream = listNew.size() >= MIN_PARALLEL_OBJECTS ? listNew.parallelStream() : listNew.stream();
+		List<List<Overlap>> overlaps = stream
+				.map(pathObjectNew -> findOverlaps(pathObjectNew, tree, listOld, geometryCache))
+				.collect(Collectors.toList());
+
+		// Remove objects with substantial overlaps, keeping the object with the larger area
+		int nRemoved = 0;
+		Set<PathObject> removedOld = new HashSet<>();
+		for (int i = 0; i < listNew.size(); i++) {
+			PathObject pathObjectNew = listNew.get(i);
+			double areaNew = ((PathArea)pathObjectNew.getROI()).getArea();
+			for (Overlap overlap : overlaps.get(i)) {
+				if (removedOld.contains(overlap.pathObject))
+					continue;
+				double areaOld = ((PathArea)overlap.pathObject.getROI()).getArea();
+				// We do have an intersection - keep the object with the larger area if the intersection is a 'reasonable' proportion of the smaller area
+				if (areaNew > areaOld) {
+					if (overlap.intersectionArea < areaOld * OVERLAP_THRESHOLD)
+						continue;
+					parentOld.removePathObject(overlap.pathObject);
+					removedOld.add(overlap.pathObject);
+					nRemoved++;
+				} else {
+					if (overlap.intersectionArea < areaNew * OVERLAP_THRESHOLD)
+						continue;
+					parentNew.removePathObject(pathObjectNew);
+					nRemoved++;
+					break;
+				}
+			}
+		}
+		return nRemoved;
+	}
+
+
+	/**
+	 * Find all the objects in listOld with a non-empty intersection with the specified object, in the order 
+	 * in which they occur in listOld.
+	 * <p>
+	 * The tree contains indices into listOld.  These are sorted, because the tree returns them in the order 
+	 * of its nodes rather than the order in which they were inserted.
+	 */
+	private static List<Overlap> findOverlaps(final PathObject pathObjectNew, final STRtree tree, final List<PathObject> listOld, final Map<PathObject, Geometry> geometryCache) {
+		ROI roiNew = pathObjectNew.getROI();
+		@SuppressWarnings("unchecked")
+		List<Integer> candidates = tree.query(getEnvelope(roiNew));
+		if (candidates.isEmpty())
+			return Collections.emptyList();
+		Collections.sort(candidates);
+		Geometry geometryNew = roiNew.getGeometry();
+		List<Overlap> overlaps = new ArrayList<>();
+		for (int ind : candidates) {
+			PathObject pathObjectOld = listOld.get(ind);
+			Geometry geometryOld = geometryCache.computeIfAbsent(pathObjectOld, p -> p.getROI().getGeometry());
+			if (!geometryNew.intersects(geometryOld))
+				continue;
+			double intersectionArea;
+			try {
+				intersectionArea = geometryNew.intersection(geometryOld).getArea();
+			} catch (TopologyException e) {
+				// Fall back to using AWT if the geometries are invalid
+				logger.debug("Unable to compute intersection with JTS: {}", e.getLocalizedMessage());
+				Area temp = PathROIToolsAwt.getArea(pathObjectOld.getROI());
+				temp.intersect(PathROIToolsAwt.getArea(roiNew));
+				if (temp.isEmpty())
+					continue;
+				intersectionArea = ROIs.createAreaROI(temp, ImagePlane.getDefaultPlane()).getArea();
+			}
+			if (intersectionArea > 0)
+				overlaps.add(new Overlap(pathObjectOld, intersectionArea));
+		}
+		return overlaps;
+	}
+
+
+	private static class Overlap {
+
+		private final PathObject pathObject;
+		private final double intersectionArea;
+
+		Overlap(final PathObject pathObject, final double intersectionArea) {
+			this.pathObject = pathObject;
+			this.intersectionArea = intersectionArea;
+		}
+
+	}
+
+
 	/**
 	 * Get all the objects whose bounding box intersects with a specified region
 	 * @param region
@@ -247,22 +347,28 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 
 	boolean checkAllTestsComplete() {
 		if (map.isEmpty() && getParent() != null) {
+			// Detections can't change any more, so they can be moved out of memory if required
+			if (spill != null && hasChildren() && spill.spill(getParent(), new ArrayList<>(getChildObjects())))
+				clearPathObjects();
 			if (countdown == null) {
 				hierarchy.removeObject(this, true);
 			} else if (countdown.decrementAndGet() == 0) {
 				PathObject parent = getParent();
-				List<PathObject> parallelObjects = new ArrayList<>();
-				for (PathObject temp : parent.getChildObjects()) {
-					if (temp instanceof ParallelTileObject) {
-						parallelObjects.add(temp);
+				// Detections may be loaded into the parent by another thread, so hold the lock while updating its children
+				hierarchy.runWithWriteLock(() -> {
+					List<PathObject> parallelObjects = new ArrayList<>();
+					for (PathObject temp : parent.getChildObjects()) {
+						if (temp instanceof ParallelTileObject) {
+							parallelObjects.add(temp);
+						}
 					}
-				}
-				parent.removePathObjects(parallelObjects);
-				for (PathObject temp : parallelObjects)
-					parent.addPathObjects(temp.getChildObjects());
+					parent.removePathObjects(parallelObjects);
+					for (PathObject temp : parallelObjects)
+						parent.addPathObjects(temp.getChildObjects());
 
-				if (parent.hasChildren() && parent instanceof PathROIObject)
-					((PathROIObject)parent).setLocked(true);
+					if ((parent.hasChildren() || (spill != null && spill.hasSpilled())) && parent instanceof PathROIObject)
+						((PathROIObject)parent).setLocked(true);
+				});
 
 				hierarchy.fireHierarchyChangedEvent(parent);
 			}
@@ -282,6 +388,12 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 	}
 
 
+	private static Envelope getEnvelope(final ROI pathROI) {
+		return new Envelope(pathROI.getBoundsX(), pathROI.getBoundsX() + pathROI.getBoundsWidth(),
+				pathROI.getBoundsY(), pathROI.getBoundsY() + pathROI.getBoundsHeight());
+	}
+
+
 	private static Rectangle2D getBounds2D(final ROI pathROI) {
 		return new Rectangle2D.Double(pathROI.getBoundsX(), pathROI.getBoundsY(), pathROI.getBoundsWidth(), pathROI.getBoundsHeight());
 	}
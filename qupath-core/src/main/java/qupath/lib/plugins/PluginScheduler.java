@@ -0,0 +1,426 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.SimpleThreadFactory;
+
+/**
+ * Long-lived scheduler for running plugin tasks, shared by all plugin runners.
+ * <p>
+ * Tasks are submitted as part of a {@link Job}, typically one for each call to run a plugin.
+ * All jobs share the same long-lived threads, so these don't need to be created for every run.
+ * Where jobs are submitted at the same time (e.g. by runners on different threads), their tasks are interleaved 
+ * so that spare threads can be used for one job while another has only a few tasks remaining.
+ * <p>
+ * The number of tasks running at any time is limited to the parallelism of the pool, with the next task
+ * chosen from the job with the highest priority - and, for jobs with the same priority, the job with
+ * the fewest running tasks.  Each job may also have a memory budget, which limits how many of its tasks
+ * may run at the same time according to their estimated memory requirements.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class PluginScheduler {
+
+	final private static Logger logger = LoggerFactory.getLogger(PluginScheduler.class);
+
+	/**
+	 * Default priority for jobs.
+	 */
+	public static final int PRIORITY_NORMAL = 0;
+
+	/**
+	 * Priority for jobs that aren't time-critical, e.g. batch processing.
+	 */
+	public static final int PRIORITY_LOW = -10;
+
+	/**
+	 * Priority for jobs where the user is waiting, e.g. interactive commands.
+	 */
+	public static final int PRIORITY_HIGH = 10;
+
+	private static PluginScheduler instance;
+
+	// Flag set while the current thread is running a task, so that nested runs can be detected
+	private static final ThreadLocal<Boolean> runningTask = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+	private ThreadPoolExecutor pool;
+	private int parallelism;
+
+	private final List<Job> jobs = new ArrayList<>();
+	private int nRunning = 0;
+	private long jobCounter = 0;
+	private long dispatchCounter = 0;
+
+	/**
+	 * Create a scheduler with the specified parallelism.
+	 * @param parallelism
+	 */
+	public PluginScheduler(final int parallelism) {
+		setParallelism(parallelism);
+	}
+
+	/**
+	 * Get the shared scheduler used by plugin runners.
+	 * @return
+	 */
+	public static synchronized PluginScheduler getInstance() {
+		if (instance == null)
+			instance = new PluginScheduler(AbstractPluginRunner.getNumThreads());
+		return instance;
+	}
+
+	/**
+	 * Set the maximum number of tasks to run in parallel.
+	 * Tasks that are already running will be unaffected, but new tasks will be run using a new pool.
+	 *
+	 * @param parallelism
+	 */
+	public synchronized void setParallelism(final int parallelism) {
+		int n = Math.max(1, parallelism);
+		if (pool != null && this.parallelism == n)
+			return;
+		if (pool != null)
+			pool.shutdown();
+		this.parallelism = n;
+		// Tasks never fork, so a plain pool is sufficient - with threads released when idle
+		pool = new ThreadPoolExecutor(n, n, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new SimpleThreadFactory("plugin-runner-", true));
+		pool.allowCoreThreadTimeOut(true);
+		logger.debug("Plugin scheduler parallelism set to {}", n);
+		dispatch();
+	}
+
+	/**
+	 * Get the maximum number of tasks to run in parallel.
+	 * @return
+	 */
+	public synchronized int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Submit tasks to be run.  This returns immediately, with the tasks being run in the background.
+	 *
+	 * @param tasks the tasks to run
+	 * @param priority the job priority; tasks from jobs with a higher priority are started first
+	 * @param memoryBudget maximum total estimated memory (in bytes) for tasks in this job that are running at the same time,
+	 *                     or &lt;= 0 if there is no limit
+	 * @param memoryEstimator function to estimate the memory required for a task, in bytes; may be null if memoryBudget &lt;= 0
+	 * @return the job, which can be used to wait for tasks to complete or to cancel them
+	 */
+	public synchronized Job submit(final Collection<? extends Runnable> tasks, final int priority, final long memoryBudget, final ToLongFunction<Runnable> memoryEstimator) {
+		var job = new Job(tasks, priority, memoryBudget, memoryEstimator, jobCounter++);
+		if (!job.queued.isEmpty())
+			jobs.add(job);
+		dispatch();
+		return job;
+	}
+
+	/**
+	 * Start as many queued tasks as possible, up to the parallelism of the pool.
+	 */
+	private synchronized void dispatch() {
+		while (nRunning < parallelism) {
+			Job job = nextJob();
+			if (job == null)
+				return;
+			Runnable task = job.queued.poll();
+			long memory = job.estimateMemory(task);
+			job.nRunning++;
+			job.memoryRunning += memory;
+			job.lastDispatched = dispatchCounter++;
+			nRunning++;
+			if (job.queued.isEmpty())
+				jobs.remove(job);
+			var currentPool = pool;
+			currentPool.execute(() -> runTask(job, task, memory));
+		}
+	}
+
+	/**
+	 * Choose the job from which the next task should be started.
+	 * This is the job with the highest priority; ties are resolved by choosing the job with the fewest running tasks,
+	 * and then the job that least recently had a task started.
+	 */
+	private Job nextJob() {
+		Job best = null;
+		for (Job job : jobs) {
+			if (job.queued.isEmpty() || !job.canStart(job.queued.peek()))
+				continue;
+			if (best == null || compareJobs(job, best) < 0)
+				best = job;
+		}
+		return best;
+	}
+
+	private static int compareJobs(final Job job1, final Job job2) {
+		int cmp = -Integer.compare(job1.priority, job2.priority);
+		if (cmp == 0)
+			cmp = Integer.compare(job1.nRunning, job2.nRunning);
+		if (cmp == 0)
+			cmp = Long.compare(job1.lastDispatched, job2.lastDispatched);
+		if (cmp == 0)
+			cmp = Long.compare(job1.id, job2.id);
+		return cmp;
+	}
+
+	private void runTask(final Job job, final Runnable task, final long memory) {
+		Throwable error = null;
+		synchronized (job) {
+			job.runningThreads.add(Thread.currentThread());
+		}
+		runningTask.set(Boolean.TRUE);
+		try {
+			if (!job.isCancelled())
+				task.run();
+		} catch (Throwable t) {
+			error = t;
+		} finally {
+			runningTask.set(Boolean.FALSE);
+			synchronized (job) {
+				job.runningThreads.remove(Thread.currentThread());
+				// Don't let a cancellation affect later tasks run by this thread
+				Thread.interrupted();
+			}
+			synchronized (this) {
+				job.nRunning--;
+				job.memoryRunning -= memory;
+				nRunning--;
+			}
+			job.taskFinished(task, error);
+			dispatch();
+		}
+	}
+
+	/**
+	 * Returns true if the current thread is running a task for a scheduler.
+	 * <p>
+	 * Tasks started from such a thread should be run directly, since waiting for them to run on the same pool 
+	 * could deadlock if all its threads were waiting in the same way.
+	 * 
+	 * @return
+	 */
+	public static boolean isRunningTask() {
+		return runningTask.get();
+	}
+
+	private synchronized void removeJob(final Job job) {
+		jobs.remove(job);
+	}
+
+	/**
+	 * Get the number of tasks currently running.
+	 * @return
+	 */
+	public synchronized int getRunningTaskCount() {
+		return nRunning;
+	}
+
+
+	/**
+	 * A collection of tasks submitted together to a {@link PluginScheduler}.
+	 */
+	public class Job {
+
+		private final long id;
+		private final int priority;
+		private final long memoryBudget;
+		private final ToLongFunction<Runnable> memoryEstimator;
+
+		private final int nTasks;
+		// Guarded by the scheduler
+		private final Deque<Runnable> queued;
+		private int nRunning = 0;
+		private long memoryRunning = 0;
+		private long lastDispatched = -1;
+
+		// Guarded by the job
+		private final Set<Thread> runningThreads = new HashSet<>();
+		private int nFinished = 0;
+		private boolean cancelled = false;
+
+		private final BlockingQueue<Completion> completed = new LinkedBlockingQueue<>();
+
+		private Job(final Collection<? extends Runnable> tasks, final int priority, final long memoryBudget, final ToLongFunction<Runnable> memoryEstimator, final long id) {
+			this.queued = new ArrayDeque<>(tasks);
+			this.nTasks = tasks.size();
+			this.priority = priority;
+			this.memoryBudget = memoryBudget;
+			this.memoryEstimator = memoryEstimator;
+			this.id = id;
+		}
+
+		private long estimateMemory(final Runnable task) {
+			if (memoryBudget <= 0 || memoryEstimator == null)
+				return 0L;
+			return Math.max(0L, memoryEstimator.applyAsLong(task));
+		}
+
+		/**
+		 * Check if a task can be started within the memory budget.
+		 * At least one task is always permitted to run, even if it exceeds the budget.
+		 */
+		private boolean canStart(final Runnable task) {
+			if (memoryBudget <= 0 || nRunning == 0)
+				return true;
+			return memoryRunning + estimateMemory(task) <= memoryBudget;
+		}
+
+		private void taskFinished(final Runnable task, final Throwable error) {
+			// Queue the completion first, so that it is available whenever isDone() returns true
+			synchronized (this) {
+				completed.add(new Completion(task, error, cancelled));
+				nFinished++;
+			}
+		}
+
+		/**
+		 * Get the priority of the job.
+		 * @return
+		 */
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * Get the total number of tasks in the job.
+		 * @return
+		 */
+		public int getTaskCount() {
+			return nTasks;
+		}
+
+		/**
+		 * Cancel the job.  Any tasks that have not yet started will be removed, and any that are running will be interrupted.
+		 * Tasks from other jobs are unaffected.
+		 *
+		 * @return the number of tasks that were removed before they started
+		 */
+		public int cancel() {
+			List<Runnable> removed;
+			synchronized (PluginScheduler.this) {
+				removed = new ArrayList<>(queued);
+				queued.clear();
+				removeJob(this);
+			}
+			synchronized (this) {
+				cancelled = true;
+				nFinished += removed.size();
+				for (Thread thread : runningThreads)
+					thread.interrupt();
+			}
+			return removed.size();
+		}
+
+		/**
+		 * Check if the job has been cancelled.
+		 * @return
+		 */
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Check if all tasks have either finished or been removed following cancellation.
+		 * If this returns true, completions for all tasks that finished are available from {@link #poll(long, TimeUnit)}.
+		 * @return
+		 */
+		public synchronized boolean isDone() {
+			return nFinished >= nTasks;
+		}
+
+		/**
+		 * Wait for the next task to finish.
+		 * Each finished task is returned only once, in the order in which the tasks finished.
+		 *
+		 * @param timeout
+		 * @param unit
+		 * @return the next completion, or null if no task finished within the timeout
+		 * @throws InterruptedException
+		 */
+		public Completion poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+			return completed.poll(timeout, unit);
+		}
+
+	}
+
+
+	/**
+	 * Information about a task that has finished running.
+	 */
+	public static class Completion {
+
+		private final Runnable task;
+		private final Throwable error;
+		private final boolean cancelled;
+
+		private Completion(final Runnable task, final Throwable error, final boolean cancelled) {
+			this.task = task;
+			this.error = error;
+			this.cancelled = cancelled;
+		}
+
+		/**
+		 * Get the task that finished.
+		 * @return
+		 */
+		public Runnable getTask() {
+			return task;
+		}
+
+		/**
+		 * Get any exception thrown by the task.
+		 * @return the exception, or null if the task completed normally
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		/**
+		 * Check if the job was cancelled before the task finished.
+		 * @return
+		 */
+		public boolean wasCancelled() {
+			return cancelled;
+		}
+
+	}
+
+}
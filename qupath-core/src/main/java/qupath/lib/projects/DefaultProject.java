@@ -759,8 +759,9 @@ class DefaultProject implements Project<BufferedImage> {
 				return null;
 			ImageData<BufferedImage> imageData = null;
 			if (Files.exists(path)) {
-				try (var stream = Files.newInputStream(path)) {
-					imageData = PathIO.readImageData(stream, null, server, BufferedImage.class);
+				try {
+					// Read from the file (rather than a stream), so that detections can be loaded on demand if requested
+					imageData = PathIO.readImageData(path.toFile(), null, server, BufferedImage.class);
 					imageData.setLastSavedPath(path.toString(), true);
 					return imageData;
 				} catch (IOException e) {
@@ -776,6 +777,9 @@ class DefaultProject implements Project<BufferedImage> {
 			var pathEntry = getEntryPath(true);
 			var pathData = getImageDataPath();
 			
+			// Detections might still need to be read from the existing file
+			imageData.getHierarchy().loadDeferredObjects();
+			
 			// If we already have a file, back it up first
 			var pathBackup = Paths.get(pathData.toString() + ".bkp");
 			if (Files.exists(pathData))
@@ -79,7 +79,7 @@ public class PolylineROI extends AbstractPathROI implements PathLine, Translatab
 		this(x, y, c, z, t, true);
 	}
 	
-	private PolylineROI(final float[] x, final float[] y, final int c, final int z, final int t, boolean copyVertices) {
+	PolylineROI(final float[] x, final float[] y, final int c, final int z, final int t, boolean copyVertices) {
 		super(c, z, t);
 		this.vertices = VerticesFactory.createVertices(x, y, copyVertices);
 	}
@@ -103,5 +103,48 @@ public class ROIs {
 	public static PathArea createAreaROI(Shape shape, ImagePlane plane) {
 		return new AWTAreaROI(shape, plane.getC(), plane.getZ(), plane.getT());
 	}
+	
+	/**
+	 * Create a points ROI from arrays of x and y coordinates.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param plane
+	 * @return
+	 */
+	public static PathPoints createPointsROI(float[] x, float[] y, ImagePlane plane) {
+		return new PointsROI(x, y, plane.getC(), plane.getZ(), plane.getT());
+	}
+	
+	/**
+	 * Create a polygon ROI from arrays of vertex coordinates.
+	 * <p>
+	 * The arrays are used directly, without copying, and should not be modified afterwards.
+	 * This avoids creating intermediate {@link Point2} objects whenever many ROIs need to be created, e.g. when reading from a file.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param plane
+	 * @return
+	 */
+	public static PolygonROI createPolygonROI(float[] x, float[] y, ImagePlane plane) {
+		return new PolygonROI(x, y, plane.getC(), plane.getZ(), plane.getT(), false);
+	}
+	
+	/**
+	 * Create a polyline ROI from arrays of vertex coordinates.
+	 * <p>
+	 * The arrays are used directly, without copying, and should not be modified afterwards.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param plane
+	 * @return
+	 * 
+	 * @see #createPolygonROI(float[], float[], ImagePlane)
+	 */
+	public static PolylineROI createPolylineROI(float[] x, float[] y, ImagePlane plane) {
+		return new PolylineROI(x, y, plane.getC(), plane.getZ(), plane.getT(), false);
+	}
 
 }
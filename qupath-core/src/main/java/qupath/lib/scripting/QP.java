@@ -93,7 +93,8 @@ public class QP {
 	final public static ImageData.ImageType FLUORESCENCE = ImageData.ImageType.FLUORESCENCE;
 	final public static ImageData.ImageType OTHER = ImageData.ImageType.OTHER;
 	
-	private static WeakHashMap<Thread, ImageData<?>> batchImageData = new WeakHashMap<>();
+	// Synchronized, since scripts may be run for several images at the same time on different threads
+	private static Map<Thread, ImageData<?>> batchImageData = Collections.synchronizedMap(new WeakHashMap<>());
 	
 	
 	/**
@@ -0,0 +1,172 @@
+package qupath.lib.images.servers;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import qupath.lib.regions.RegionRequest;
+
+public class TestAbstractTileableImageServer {
+
+	@Test
+	public void testParallelTileReading() throws IOException {
+		for (boolean isRGB : new boolean[] {true, false}) {
+			var serverSequential = new SyntheticTileServer(isRGB, 1);
+			var serverParallel = new SyntheticTileServer(isRGB, 8);
+
+			for (double downsample : new double[] {1.0, 2.0, 4.0}) {
+				// Use a region that doesn't align with tile boundaries
+				var request = RegionRequest.createInstance(serverSequential.getPath(), downsample, 100, 150, 1500, 1100);
+				var imgSequential = serverSequential.readBufferedImage(request);
+				var imgParallel = serverParallel.readBufferedImage(request);
+				assertImagesEqual(imgSequential, imgParallel);
+			}
+			assertTrue(serverParallel.maxConcurrentReads.get() <= 8);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testParallelTileReadingException() throws IOException {
+		var server = new SyntheticTileServer(false, 4);
+		server.failTileX = 256;
+		server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1.0, 0, 0, 1024, 1024));
+	}
+
+	private static void assertImagesEqual(BufferedImage img1, BufferedImage img2) {
+		assertEquals(img1.getWidth(), img2.getWidth());
+		assertEquals(img1.getHeight(), img2.getHeight());
+		int w = img1.getWidth();
+		int h = img1.getHeight();
+		for (int b = 0; b < img1.getRaster().getNumBands(); b++) {
+			int[] samples1 = img1.getRaster().getSamples(0, 0, w, h, b, (int[])null);
+			int[] samples2 = img2.getRaster().getSamples(0, 0, w, h, b, (int[])null);
+			assertArrayEquals(samples1, samples2);
+		}
+	}
+
+
+	/**
+	 * Server that generates tiles with values determined by pixel coordinates.
+	 */
+	static class SyntheticTileServer extends AbstractTileableImageServer {
+
+		private final ImageServerMetadata metadata;
+		private final int maxParallel;
+
+		private final AtomicInteger concurrentReads = new AtomicInteger();
+		private final AtomicInteger maxConcurrentReads = new AtomicInteger();
+
+		private int failTileX = -1;
+
+		SyntheticTileServer(boolean isRGB, int maxParallel) {
+			this.maxParallel = maxParallel;
+			this.metadata = new ImageServerMetadata.Builder(getClass(), "synthetic-" + isRGB + "-" + maxParallel, 2048, 2048)
+					.rgb(isRGB)
+					.bitDepth(isRGB ? 8 : 16)
+					.channels(isRGB ? ImageChannel.getDefaultRGBChannels() : Collections.singletonList(ImageChannel.getInstance("Channel 1", ImageChannel.getDefaultChannelColor(0))))
+					.preferredTileSize(256, 256)
+					.levelsFromDownsamples(1, 4)
+					.build();
+		}
+
+		@Override
+		public void close() {}
+
+		@Override
+		protected int getMaxParallelTileRequests() {
+			return maxParallel;
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			int n = concurrentReads.incrementAndGet();
+			maxConcurrentReads.accumulateAndGet(n, Math::max);
+			try {
+				if (tileRequest.getTileX() == failTileX)
+					throw new IOException("Unable to read " + tileRequest);
+				int w = tileRequest.getTileWidth();
+				int h = tileRequest.getTileHeight();
+				var img = new BufferedImage(w, h, isRGB() ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_USHORT_GRAY);
+				var raster = img.getRaster();
+				for (int y = 0; y < h; y++) {
+					for (int x = 0; x < w; x++) {
+						int val = (tileRequest.getTileX() + x) * 7 + (tileRequest.getTileY() + y) * 13 + tileRequest.getLevel();
+						for (int b = 0; b < raster.getNumBands(); b++)
+							raster.setSample(x, y, b, (val + b * 31) % 256);
+					}
+				}
+				return img;
+			} finally {
+				concurrentReads.decrementAndGet();
+			}
+		}
+
+		@Override
+		public String getPath() {
+			return metadata.getPath();
+		}
+
+		@Override
+		public String getShortServerName() {
+			return getPath();
+		}
+
+		@Override
+		public String getServerType() {
+			return "Synthetic";
+		}
+
+		@Override
+		public List<String> getSubImageList() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String getSubImagePath(String imageName) {
+			throw new IllegalArgumentException("No sub-images available");
+		}
+
+		@Override
+		public List<String> getAssociatedImageList() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public BufferedImage getAssociatedImage(String name) {
+			return null;
+		}
+
+		@Override
+		public String getDisplayedImageName() {
+			return getPath();
+		}
+
+		@Override
+		public boolean containsSubImages() {
+			return false;
+		}
+
+		@Override
+		public boolean usesBaseServer(ImageServer<?> server) {
+			return this == server;
+		}
+
+		@Override
+		public boolean isEmptyRegion(RegionRequest request) {
+			return false;
+		}
+
+		@Override
+		public ImageServerMetadata getOriginalMetadata() {
+			return metadata;
+		}
+
+	}
+
+}
@@ -0,0 +1,311 @@
+package qupath.lib.images.servers;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpServer;
+
+import qupath.lib.awt.color.model.ColorModelFactory;
+import qupath.lib.regions.RegionRequest;
+
+public class TestDiskTileCache {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpServer httpServer;
+	private AtomicInteger httpRequestCount = new AtomicInteger();
+
+	@Before
+	public void startServer() throws IOException {
+		// Stand-in for a remote server, providing RGB tiles as PNG images
+		httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		httpServer.createContext("/tile", exchange -> {
+			httpRequestCount.incrementAndGet();
+			String[] parts = exchange.getRequestURI().getQuery().split(",");
+			int x = Integer.parseInt(parts[0]);
+			int y = Integer.parseInt(parts[1]);
+			int w = Integer.parseInt(parts[2]);
+			int h = Integer.parseInt(parts[3]);
+			var img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			for (int yy = 0; yy < h; yy++) {
+				for (int xx = 0; xx < w; xx++)
+					img.setRGB(xx, yy, (x + xx) * 31 + (y + yy) * 17);
+			}
+			var bytes = new ByteArrayOutputStream();
+			ImageIO.write(img, "PNG", bytes);
+			exchange.getResponseHeaders().add("Content-Type", "image/png");
+			exchange.sendResponseHeaders(200, bytes.size());
+			try (OutputStream stream = exchange.getResponseBody()) {
+				bytes.writeTo(stream);
+			}
+		});
+		httpServer.start();
+	}
+
+	@After
+	public void stopServer() {
+		httpServer.stop(0);
+		ImageServerProvider.setDiskTileCache(null);
+	}
+
+	@Test
+	public void testRemoteTilesCached() throws Exception {
+		File dir = folder.newFolder("tiles");
+		String baseURL = "http://localhost:" + httpServer.getAddress().getPort() + "/tile";
+		var cache = new DiskTileCache(dir, 100L * 1024L * 1024L);
+		ImageServerProvider.setDiskTileCache(cache);
+
+		var server = new RemoteTileServer(baseURL);
+		var request = RegionRequest.createInstance(server.getPath(), 1.0, 0, 0, 1024, 768);
+		var img = server.readBufferedImage(request);
+		int nRequests = httpRequestCount.get();
+		assertEquals(server.getTiles(request).size(), nRequests);
+
+		// Wait for the tiles to be written, then 'restart' by creating a new cache & server
+		cache.close();
+		assertTrue(cache.awaitTermination(10000));
+		cache = new DiskTileCache(dir, 100L * 1024L * 1024L);
+		assertTrue(cache.awaitIndex(10000));
+		assertEquals(nRequests, cache.size());
+		ImageServerProvider.setDiskTileCache(cache);
+
+		var img2 = new RemoteTileServer(baseURL).readBufferedImage(request);
+		assertEquals(nRequests, httpRequestCount.get());
+		assertArrayEquals(
+				img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth()),
+				img2.getRGB(0, 0, img2.getWidth(), img2.getHeight(), null, 0, img2.getWidth()));
+		cache.close();
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		File dir = folder.newFolder("tiles");
+		var img = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+		long tileBytes = 64 * 64 * 3;
+		var cache = new DiskTileCache(dir, tileBytes * 10 + 1000);
+		for (int i = 0; i < 20; i++)
+			cache.put("test", RegionRequest.createInstance("test", 1.0, i * 64, 0, 64, 64), img);
+		cache.close();
+		assertTrue(cache.awaitTermination(10000));
+		assertTrue(cache.size() <= 10);
+		assertTrue(cache.getSizeBytes() <= cache.getMaxSizeBytes());
+		try (var stream = Files.walk(dir.toPath())) {
+			assertEquals(cache.size(), stream.filter(p -> p.toString().endsWith(".tile")).count());
+		}
+		// The most recent tile should be retained
+		assertNotNull(cache.get("test", RegionRequest.createInstance("test", 1.0, 19 * 64, 0, 64, 64)));
+		assertNull(cache.get("test", RegionRequest.createInstance("test", 1.0, 0, 0, 64, 64)));
+	}
+
+	@Test
+	public void testResize() throws Exception {
+		File dir = folder.newFolder("tiles");
+		var img = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+		long tileBytes = 64 * 64 * 3;
+		var cache = new DiskTileCache(dir, tileBytes * 100);
+		for (int i = 0; i < 20; i++)
+			cache.put("test", RegionRequest.createInstance("test", 1.0, i * 64, 0, 64, 64), img);
+		cache.close();
+		assertTrue(cache.awaitTermination(10000));
+		assertEquals(20, cache.size());
+		
+		// Reading a tile should record its access time without writing it again
+		var cache2 = new DiskTileCache(dir, tileBytes * 100);
+		assertTrue(cache2.awaitIndex(10000));
+		var first = RegionRequest.createInstance("test", 1.0, 0, 0, 64, 64);
+		assertNotNull(cache2.get("test", first));
+		
+		// Shrinking the cache should remove the least recently used tiles, but keep the one just read
+		cache2.setMaxSizeBytes(tileBytes * 10 + 1000);
+		assertEquals(tileBytes * 10 + 1000, cache2.getMaxSizeBytes());
+		cache2.close();
+		assertTrue(cache2.awaitTermination(10000));
+		assertTrue(cache2.size() <= 10);
+		assertNotNull(cache2.get("test", first));
+		
+		// The access order should be retained when the cache is reopened
+		var cache3 = new DiskTileCache(dir, tileBytes * 5 + 1000);
+		assertTrue(cache3.awaitIndex(10000));
+		assertTrue(cache3.size() <= 5);
+		assertNotNull(cache3.get("test", first));
+		cache3.close();
+	}
+
+	@Test
+	public void testCustomImageTypes() throws Exception {
+		var cache = new DiskTileCache(folder.newFolder("tiles"), 100L * 1024L * 1024L);
+		var colorModel = ColorModelFactory.createProbabilityColorModel(32, 3, false, 0xff0000, 0x00ff00, 0x0000ff);
+		var img = new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(32, 16), false, null);
+		var raster = img.getRaster();
+		for (int b = 0; b < 3; b++) {
+			for (int y = 0; y < 16; y++) {
+				for (int x = 0; x < 32; x++)
+					raster.setSample(x, y, b, x * 0.5f - y * b);
+			}
+		}
+		var request = RegionRequest.createInstance("float", 1.0, 0, 0, 32, 16);
+		cache.put("float", request, img);
+		cache.close();
+		assertTrue(cache.awaitTermination(10000));
+		var img2 = cache.get("float", request);
+		assertNotNull(img2);
+		assertSame(colorModel, img2.getColorModel());
+		for (int b = 0; b < 3; b++)
+			assertArrayEquals(
+					raster.getSamples(0, 0, 32, 16, b, (float[])null),
+					img2.getRaster().getSamples(0, 0, 32, 16, b, (float[])null), 0f);
+	}
+
+	@Test
+	public void testIntegerImageTypes() throws Exception {
+		var cache = new DiskTileCache(folder.newFolder("tiles"), 100L * 1024L * 1024L);
+		int[] types = {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_ARGB};
+		var images = new BufferedImage[types.length];
+		for (int i = 0; i < types.length; i++) {
+			var img = new BufferedImage(40, 24, types[i]);
+			var raster = img.getRaster();
+			int max = (1 << raster.getSampleModel().getSampleSize(0)) - 1;
+			for (int b = 0; b < raster.getNumBands(); b++) {
+				for (int y = 0; y < 24; y++) {
+					for (int x = 0; x < 40; x++)
+						raster.setSample(x, y, b, (x * 1031 + y * 257 + b * 71) % (max + 1));
+				}
+			}
+			images[i] = img;
+			cache.put("type" + types[i], RegionRequest.createInstance("type" + types[i], 1.0, 0, 0, 40, 24), img);
+		}
+		cache.close();
+		assertTrue(cache.awaitTermination(10000));
+		for (int i = 0; i < types.length; i++) {
+			var request = RegionRequest.createInstance("type" + types[i], 1.0, 0, 0, 40, 24);
+			var raster = images[i].getRaster();
+			var img2 = cache.get("type" + types[i], request);
+			assertNotNull(img2);
+			assertEquals(types[i], img2.getType());
+			for (int b = 0; b < raster.getNumBands(); b++)
+				assertArrayEquals(
+						raster.getSamples(0, 0, 40, 24, b, (int[])null),
+						img2.getRaster().getSamples(0, 0, 40, 24, b, (int[])null));
+			// Tiles should not remain open after reading, so can be removed
+			cache.clearCacheForServer("type" + types[i]);
+			assertNull(cache.get("type" + types[i], request));
+		}
+	}
+
+	/**
+	 * Server that requests tiles from the stand-in HTTP server.
+	 */
+	static class RemoteTileServer extends AbstractTileableImageServer {
+
+		private final String baseURL;
+		private final ImageServerMetadata metadata;
+
+		RemoteTileServer(String baseURL) {
+			this.baseURL = baseURL;
+			this.metadata = new ImageServerMetadata.Builder(getClass(), baseURL, 2048, 2048)
+					.rgb(true)
+					.bitDepth(8)
+					.channels(ImageChannel.getDefaultRGBChannels())
+					.preferredTileSize(256, 256)
+					.levelsFromDownsamples(1)
+					.build();
+		}
+
+		@Override
+		public void close() {}
+
+		@Override
+		protected boolean useDiskTileCache() {
+			return true;
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			var url = new URL(String.format("%s?%d,%d,%d,%d", baseURL,
+					tileRequest.getTileX(), tileRequest.getTileY(), tileRequest.getTileWidth(), tileRequest.getTileHeight()));
+			return ImageIO.read(url);
+		}
+
+		@Override
+		public String getPath() {
+			return baseURL;
+		}
+
+		@Override
+		public String getShortServerName() {
+			return baseURL;
+		}
+
+		@Override
+		public String getServerType() {
+			return "Remote test server";
+		}
+
+		@Override
+		public List<String> getSubImageList() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String getSubImagePath(String imageName) {
+			throw new IllegalArgumentException("No sub-images available");
+		}
+
+		@Override
+		public List<String> getAssociatedImageList() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public BufferedImage getAssociatedImage(String name) {
+			return null;
+		}
+
+		@Override
+		public String getDisplayedImageName() {
+			return baseURL;
+		}
+
+		@Override
+		public boolean containsSubImages() {
+			return false;
+		}
+
+		@Override
+		public boolean usesBaseServer(ImageServer<?> server) {
+			return this == server;
+		}
+
+		@Override
+		public boolean isEmptyRegion(RegionRequest request) {
+			return false;
+		}
+
+		@Override
+		public ImageServerMetadata getOriginalMetadata() {
+			return metadata;
+		}
+
+	}
+
+}
@@ -0,0 +1,124 @@
+package qupath.lib.io;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+
+public class TestDetectionSpillStore {
+
+	@Test
+	public void testLoadOnDemand() throws Exception {
+		var plane = ImagePlane.getDefaultPlane();
+		var hierarchy = new PathObjectHierarchy();
+		var annotation1 = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, plane));
+		var annotation2 = PathObjects.createAnnotationObject(ROIs.createRectangleROI(5000, 0, 1000, 1000, plane));
+		hierarchy.addPathObject(annotation1, false, true);
+		hierarchy.addPathObject(annotation2, false, true);
+
+		var store = DetectionSpillStore.createTemporary();
+		store.add(annotation1, createCells(0, 0, 100));
+		store.add(annotation1, createCells(500, 0, 50));
+		store.add(annotation2, createCells(5000, 0, 20));
+		assertEquals(170, store.getPendingCount());
+		assertFalse(annotation1.hasChildren());
+		hierarchy.addDeferredObjectLoader(store);
+
+		// Only the batch overlapping the region should be loaded
+		var cells = hierarchy.getObjectsForRegion(PathDetectionObject.class, ImageRegion.createInstance(0, 0, 100, 100, 0, 0), null);
+		assertFalse(cells.isEmpty());
+		assertEquals(100, annotation1.nChildObjects());
+		assertEquals(70, store.getPendingCount());
+		var cell = (PathCellObject)annotation1.getChildObjects().iterator().next();
+		assertNotNull(cell.getNucleusROI());
+		assertEquals(2, cell.getMeasurementList().size());
+		assertEquals(cell.getROI().getCentroidX(), cell.getMeasurementList().getMeasurementValue("x"), 1e-3);
+
+		// Loading descendants should only affect the relevant parent
+		hierarchy.loadDeferredObjects(annotation2);
+		assertEquals(20, annotation2.nChildObjects());
+		assertEquals(100, annotation1.nChildObjects());
+
+		// Loading everything should close the store
+		assertEquals(170, hierarchy.getDetectionObjects().size());
+		assertEquals(150, annotation1.nChildObjects());
+		assertTrue(store.isClosed());
+		assertFalse(hierarchy.hasDeferredObjects());
+	}
+
+	@Test
+	public void testMultipleLoaders() throws Exception {
+		var plane = ImagePlane.getDefaultPlane();
+		var hierarchy = new PathObjectHierarchy();
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, plane));
+		hierarchy.addPathObject(annotation, false, true);
+
+		var store1 = DetectionSpillStore.createTemporary();
+		store1.add(annotation, createCells(0, 0, 10));
+		var store2 = DetectionSpillStore.createTemporary();
+		store2.add(annotation, createCells(0, 500, 10));
+		hierarchy.addDeferredObjectLoader(store1);
+		hierarchy.addDeferredObjectLoader(store2);
+
+		// Loaders should be removed as they become complete
+		hierarchy.getObjectsForRegion(PathDetectionObject.class, ImageRegion.createInstance(0, 0, 100, 100, 0, 0), null);
+		assertEquals(10, annotation.nChildObjects());
+		assertTrue(store1.isClosed());
+		assertFalse(store2.isClosed());
+		assertTrue(hierarchy.hasDeferredObjects());
+
+		hierarchy.loadDeferredObjects(annotation);
+		assertEquals(20, annotation.nChildObjects());
+		assertTrue(store2.isClosed());
+		assertFalse(hierarchy.hasDeferredObjects());
+	}
+
+	@Test
+	public void testClosed() throws Exception {
+		var store = DetectionSpillStore.createTemporary();
+		var parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 100, 100, ImagePlane.getDefaultPlane()));
+		store.add(parent, createCells(0, 0, 5));
+		store.close();
+		assertTrue(store.isComplete());
+		assertTrue(store.loadAll().isEmpty());
+		try {
+			store.add(parent, createCells(0, 0, 5));
+			fail("Adding to a closed store should fail");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private static List<PathObject> createCells(double x, double y, int n) {
+		var plane = ImagePlane.getDefaultPlane();
+		List<PathObject> cells = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			double cx = x + (i % 10) * 20;
+			double cy = y + (i / 10) * 20;
+			MeasurementList measurements = MeasurementListFactory.createMeasurementList(2, MeasurementList.TYPE.FLOAT);
+			measurements.putMeasurement("x", cx + 8);
+			measurements.putMeasurement("y", cy + 8);
+			measurements.close();
+			cells.add(PathObjects.createCellObject(
+					ROIs.createEllipseROI(cx, cy, 16, 16, plane),
+					ROIs.createEllipseROI(cx + 4, cy + 4, 8, 8, plane),
+					null, measurements));
+		}
+		return cells;
+	}
+
+}
@@ -0,0 +1,284 @@
+package qupath.lib.io;
+
+import static org.junit.Assert.*;
+
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Locale.Category;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.TMACoreObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.helpers.PathObjectTools;
+import qupath.lib.objects.hierarchy.DefaultTMAGrid;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.AreaROI;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.roi.interfaces.ROI;
+
+public class TestHierarchyBinaryIO {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		var hierarchy = createHierarchy();
+		var bytes = new ByteArrayOutputStream();
+		HierarchyBinaryIO.writeHierarchy(bytes, hierarchy);
+		var hierarchy2 = HierarchyBinaryIO.readHierarchy(new ByteArrayInputStream(bytes.toByteArray()));
+		assertHierarchiesEqual(hierarchy, hierarchy2);
+	}
+
+	@Test
+	public void testLegacyImport() throws IOException {
+		var hierarchy = createHierarchy();
+		var bytes = new ByteArrayOutputStream();
+		try (var stream = new ObjectOutputStream(bytes)) {
+			stream.writeUTF("Data file version 2");
+			stream.writeObject("Image path: test");
+			stream.writeObject(Locale.getDefault(Category.FORMAT));
+			stream.writeObject(hierarchy);
+			stream.writeObject("EOF");
+		}
+		var hierarchy2 = PathIO.readHierarchy(new ByteArrayInputStream(bytes.toByteArray()));
+		assertHierarchiesEqual(hierarchy, hierarchy2);
+	}
+
+	@Test
+	public void testSmallerThanSerialization() throws IOException {
+		var hierarchy = createHierarchy();
+		var bytesBinary = new ByteArrayOutputStream();
+		HierarchyBinaryIO.writeHierarchy(bytesBinary, hierarchy);
+		var bytesSerialized = new ByteArrayOutputStream();
+		try (var stream = new ObjectOutputStream(bytesSerialized)) {
+			stream.writeObject(hierarchy);
+		}
+		assertTrue(bytesBinary.size() < bytesSerialized.size() / 2);
+	}
+
+
+	@Test
+	public void testDeferredLoading() throws IOException {
+		var hierarchy = createHierarchy();
+		int nObjects = hierarchy.nObjects();
+		int nDetections = hierarchy.getDetectionObjects().size();
+		File file = writeWithOffset(hierarchy, 100);
+
+		var hierarchy2 = HierarchyBinaryIO.readHierarchyDeferred(file, 100);
+		assertTrue(hierarchy2.hasDeferredObjects());
+		assertEquals(hierarchy.getAnnotationObjects().size(), hierarchy2.getAnnotationObjects().size());
+		assertEquals(hierarchy.getTMAGrid().nCores(), hierarchy2.getTMAGrid().nCores());
+		assertTrue(PathObjectTools.countDescendants(hierarchy2.getRootObject()) < nObjects - nDetections / 2);
+
+		// Requesting a region should only load detections nearby
+		var region = ImageRegion.createInstance(1100, 900, 50, 50, 0, 0);
+		// (The spatial cache can return extra objects nearby, so only compare those that really overlap)
+		var detections = hierarchy.getObjectsForRegion(PathDetectionObject.class, region, new HashSet<>());
+		var detections2 = hierarchy2.getObjectsForRegion(PathDetectionObject.class, region, new HashSet<>());
+		detections.removeIf(p -> !overlaps(p.getROI(), region));
+		detections2.removeIf(p -> !overlaps(p.getROI(), region));
+		assertFalse(detections.isEmpty());
+		assertEquals(detections.size(), detections2.size());
+		assertTrue(hierarchy2.hasDeferredObjects());
+		assertTrue(PathObjectTools.countDescendants(hierarchy2.getRootObject()) < nObjects);
+		for (var detection : detections2)
+			assertTrue(PathObjectTools.isAncestor(detection, hierarchy2.getRootObject()));
+
+		// Enumerating all detections should load everything
+		assertEquals(nDetections, hierarchy2.getDetectionObjects().size());
+		assertFalse(hierarchy2.hasDeferredObjects());
+		assertEquals(nObjects, hierarchy2.nObjects());
+	}
+
+	@Test
+	public void testDeferredLoadingKeepsChildren() throws IOException {
+		var hierarchy = createHierarchy();
+		var annotation = hierarchy.getAnnotationObjects().stream().filter(p -> "Polygon".equals(p.getName())).findFirst().get();
+		int nChildren = annotation.nChildObjects();
+		int nRootChildren = hierarchy.getRootObject().nChildObjects();
+		assertTrue(nChildren > 0);
+		File file = writeWithOffset(hierarchy, 0);
+
+		// Removing a parent, while keeping its children, should not lose detections that weren't yet loaded
+		var hierarchy2 = HierarchyBinaryIO.readHierarchyDeferred(file, 0);
+		var annotation2 = hierarchy2.getAnnotationObjects().stream().filter(p -> "Polygon".equals(p.getName())).findFirst().get();
+		hierarchy2.removeObject(annotation2, true);
+		assertEquals(nRootChildren - 1 + nChildren, hierarchy2.getRootObject().nChildObjects());
+		assertEquals(hierarchy.nObjects() - 1, hierarchy2.nObjects());
+
+		// Removing a parent with its children should discard detections that weren't yet loaded
+		var hierarchy3 = HierarchyBinaryIO.readHierarchyDeferred(file, 0);
+		var annotation3 = hierarchy3.getAnnotationObjects().stream().filter(p -> "Polygon".equals(p.getName())).findFirst().get();
+		hierarchy3.removeObject(annotation3, false);
+		assertEquals(hierarchy.nObjects() - 1 - nChildren, hierarchy3.nObjects());
+	}
+
+	private static boolean overlaps(ROI roi, ImageRegion region) {
+		return roi.getBoundsX() <= region.getMaxX() && roi.getBoundsX() + roi.getBoundsWidth() >= region.getMinX() &&
+				roi.getBoundsY() <= region.getMaxY() && roi.getBoundsY() + roi.getBoundsHeight() >= region.getMinY();
+	}
+
+	private File writeWithOffset(PathObjectHierarchy hierarchy, int offset) throws IOException {
+		File file = folder.newFile();
+		try (var stream = new FileOutputStream(file)) {
+			stream.write(new byte[offset]);
+			HierarchyBinaryIO.writeHierarchy(stream, hierarchy);
+		}
+		return file;
+	}
+
+
+	private static PathObjectHierarchy createHierarchy() {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+
+		// TMA grid with metadata
+		List<TMACoreObject> cores = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			var core = new TMACoreObject((i % 2) * 2000 + 1000, (i / 2) * 2000 + 1000, 1800, i == 3);
+			core.setName("Core " + i);
+			core.setUniqueID("ID-" + i);
+			cores.add(core);
+		}
+		hierarchy.setTMAGrid(new DefaultTMAGrid(cores, 2));
+
+		// Annotations with different ROIs & properties
+		PathClass tumor = PathClassFactory.getPathClass("Tumor");
+		PathClass positive = PathClassFactory.getPositive(tumor, null);
+		var annotation = (PathAnnotationObject)PathObjects.createAnnotationObject(
+				ROIs.createPolygonROI(Arrays.asList(new Point2(100, 100), new Point2(1500, 120.5), new Point2(800, 1500)), plane), tumor);
+		annotation.setName("Polygon");
+		annotation.setDescription("A description");
+		annotation.setLocked(true);
+		annotation.getMeasurementList().putMeasurement("Annotation value", Math.PI);
+		hierarchy.addPathObject(annotation, false);
+
+		var area = new Area(new Rectangle2D.Double(5000, 5000, 1000, 1000));
+		area.subtract(new Area(new Ellipse2D.Double(5200, 5200, 200, 300)));
+		hierarchy.addPathObject(PathObjects.createAnnotationObject(ROIs.createAreaROI(area, plane)), false);
+		var rectangle = PathObjects.createAnnotationObject(ROIs.createRectangleROI(7000.25, 7000, 500, 300, ImagePlane.getPlane(1, 2)));
+		rectangle.setColorRGB(0xff0000);
+		hierarchy.addPathObject(rectangle, false);
+		hierarchy.addPathObject(PathObjects.createAnnotationObject(ROIs.createEllipseROI(9000, 9000, 100, 50, plane)), false);
+		hierarchy.addPathObject(PathObjects.createAnnotationObject(ROIs.createLineROI(1, 2, 3000, 4000, plane)), false);
+		hierarchy.addPathObject(PathObjects.createAnnotationObject(ROIs.createPolylineROI(Arrays.asList(new Point2(10, 10), new Point2(20, 30)), plane)), false);
+		hierarchy.addPathObject(PathObjects.createAnnotationObject(ROIs.createPointsROI(Arrays.asList(new Point2(10, 10), new Point2(20, 30), new Point2(25, 3)), plane)), false);
+
+		// Enough cells & detections to require multiple blocks
+		List<PathObject> detections = new ArrayList<>();
+		int n = HierarchyBinaryIO.BLOCK_SIZE + 100;
+		for (int i = 0; i < n; i++) {
+			double x = 200 + (i % 100) * 10;
+			double y = 200 + (i / 100) * 10 % 1000;
+			ROI nucleus = ROIs.createEllipseROI(x, y, 4, 4, plane);
+			ROI cell = ROIs.createPolygonROI(Arrays.asList(new Point2(x-2, y-2), new Point2(x+6, y-2), new Point2(x+6, y+6.5)), plane);
+			MeasurementList list = MeasurementListFactory.createMeasurementList(3, MeasurementList.TYPE.FLOAT);
+			list.addMeasurement("Area", i * 0.5);
+			list.addMeasurement("Intensity", i % 7);
+			if (i % 3 == 0)
+				list.addMeasurement("Extra", Double.NaN);
+			list.close();
+			var cellObject = PathObjects.createCellObject(cell, i % 5 == 0 ? null : nucleus, i % 2 == 0 ? positive : tumor, list);
+			if (i % 11 == 0)
+				cellObject.setPathClass(positive, 0.75);
+			detections.add(cellObject);
+		}
+		for (int i = 0; i < 50; i++) {
+			MeasurementList list = MeasurementListFactory.createMeasurementList(1, MeasurementList.TYPE.DOUBLE);
+			list.addMeasurement("Precise", 1.0 + i * 1e-12);
+			list.close();
+			detections.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(1000 + i, 1000, 5, 5, plane), null, list));
+		}
+		hierarchy.addPathObjects(detections, false);
+		return hierarchy;
+	}
+
+
+	private static void assertHierarchiesEqual(PathObjectHierarchy expected, PathObjectHierarchy actual) {
+		assertEquals(expected.getTMAGrid().nCores(), actual.getTMAGrid().nCores());
+		assertEquals(expected.getTMAGrid().getGridWidth(), actual.getTMAGrid().getGridWidth());
+		for (int i = 0; i < expected.getTMAGrid().nCores(); i++) {
+			var core = expected.getTMAGrid().getTMACore(i);
+			var core2 = actual.getTMAGrid().getTMACore(i);
+			assertEquals(core.getUniqueID(), core2.getUniqueID());
+			assertEquals(core.isMissing(), core2.isMissing());
+			assertEquals(core.getName(), core2.getName());
+		}
+		var list = PathObjectTools.getFlattenedObjectList(expected.getRootObject(), null, true);
+		var list2 = PathObjectTools.getFlattenedObjectList(actual.getRootObject(), null, true);
+		assertEquals(list.size(), list2.size());
+		for (int i = 0; i < list.size(); i++)
+			assertObjectsEqual(list.get(i), list2.get(i));
+	}
+
+	private static void assertObjectsEqual(PathObject expected, PathObject actual) {
+		assertEquals(expected.getClass(), actual.getClass());
+		assertEquals(expected.getLevel(), actual.getLevel());
+		assertEquals(expected.nChildObjects(), actual.nChildObjects());
+		assertSame(expected.getPathClass(), actual.getPathClass());
+		assertEquals(expected.getClassProbability(), actual.getClassProbability(), 0.0);
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getColorRGB(), actual.getColorRGB());
+		assertEquals(expected.isLocked(), actual.isLocked());
+		assertROIsEqual(expected.getROI(), actual.getROI());
+		if (expected instanceof PathCellObject)
+			assertROIsEqual(((PathCellObject)expected).getNucleusROI(), ((PathCellObject)actual).getNucleusROI());
+		if (expected instanceof PathAnnotationObject)
+			assertEquals(((PathAnnotationObject)expected).getDescription(), ((PathAnnotationObject)actual).getDescription());
+		var measurements = expected.getMeasurementList();
+		var measurements2 = actual.getMeasurementList();
+		assertEquals(measurements.getMeasurementNames(), measurements2.getMeasurementNames());
+		for (int i = 0; i < measurements.size(); i++)
+			assertEquals(measurements.getMeasurementValue(i), measurements2.getMeasurementValue(i), 0.0);
+	}
+
+	private static void assertROIsEqual(ROI expected, ROI actual) {
+		if (expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertEquals(expected.getRoiType(), actual.getRoiType());
+		assertEquals(expected.getC(), actual.getC());
+		assertEquals(expected.getZ(), actual.getZ());
+		assertEquals(expected.getT(), actual.getT());
+		assertEquals(expected.getBoundsX(), actual.getBoundsX(), 1e-6);
+		assertEquals(expected.getBoundsY(), actual.getBoundsY(), 1e-6);
+		assertEquals(expected.getBoundsWidth(), actual.getBoundsWidth(), 1e-6);
+		assertEquals(expected.getBoundsHeight(), actual.getBoundsHeight(), 1e-6);
+		if (expected instanceof AreaROI) {
+			// Areas are flattened & stored as floats, so vertices can differ slightly
+			double area = ((PathArea)expected).getArea();
+			assertEquals(area, ((PathArea)actual).getArea(), area * 1e-6);
+		} else
+			assertEquals(expected.getPolygonPoints(), actual.getPolygonPoints());
+	}
+
+}
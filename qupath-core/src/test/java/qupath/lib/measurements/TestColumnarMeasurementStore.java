@@ -0,0 +1,208 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.measurements;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import qupath.lib.analysis.stats.Histogram;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+public class TestColumnarMeasurementStore {
+
+	@Test
+	public void testLists() throws IOException, ClassNotFoundException {
+		var store = new ColumnarMeasurementStore(MeasurementList.TYPE.FLOAT);
+		List<MeasurementList> lists = new ArrayList<>();
+		for (int i = 0; i < 10000; i++) {
+			var list = store.createMeasurementList();
+			list.addMeasurement("A", i);
+			if (i % 2 == 0)
+				list.addMeasurement("B", i * 2);
+			lists.add(list);
+		}
+		assertEquals(10000, store.getRowCount());
+		assertEquals(Arrays.asList("A", "B"), store.getColumnNames());
+
+		var list = lists.get(10);
+		assertEquals(Arrays.asList("A", "B"), list.getMeasurementNames());
+		assertEquals(20, list.getMeasurementValue("B"), 0.0);
+		assertTrue(Double.isNaN(lists.get(11).getMeasurementValue("B")));
+		// Lists with the same names should share the same name list
+		assertSame(list.getMeasurementNames(), lists.get(12).getMeasurementNames());
+
+		// Adding an existing measurement replaces the value
+		list.addMeasurement("A", -1);
+		assertEquals(2, list.size());
+		assertEquals(-1, list.getMeasurementValue(0), 0.0);
+
+		list.removeMeasurements("A");
+		assertEquals(Arrays.asList("B"), list.getMeasurementNames());
+		assertEquals(20, list.getMeasurementValue(0), 0.0);
+		assertFalse(list.containsNamedMeasurement("A"));
+		// Removed values shouldn't remain in the columns
+		assertTrue(Double.isNaN(store.getColumnValues("A")[10]));
+		assertEquals(12, store.getColumnValues("A")[12], 0.0);
+
+		double[] values = ColumnarMeasurementStore.getValues("B", lists, null);
+		for (int i = 0; i < values.length; i++) {
+			if (i % 2 == 0)
+				assertEquals(i * 2, values[i], 0.0);
+			else
+				assertTrue(Double.isNaN(values[i]));
+		}
+		assertEquals(values[100], store.getColumnValues("B")[100], 0.0);
+
+		// Serialization should give a standalone copy
+		var bytes = new ByteArrayOutputStream();
+		try (var stream = new ObjectOutputStream(bytes)) {
+			stream.writeObject(list);
+		}
+		try (var stream = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			var copy = (MeasurementList)stream.readObject();
+			assertFalse(store.isBackedByStore(copy));
+			assertEquals(list.getMeasurementNames(), copy.getMeasurementNames());
+			assertEquals(20, copy.getMeasurementValue("B"), 0.0);
+		}
+
+		list.clear();
+		assertTrue(list.isEmpty());
+		assertTrue(Double.isNaN(store.getColumnValues("B")[10]));
+		assertEquals(24, store.getColumnValues("B")[12], 0.0);
+		
+		// Released rows should be cleared & reused
+		var released = lists.get(20);
+		var copy = store.releaseMeasurementList(released);
+		assertFalse(store.isBackedByStore(copy));
+		assertEquals(40, copy.getMeasurementValue("B"), 0.0);
+		assertTrue(released.isEmpty());
+		assertTrue(Double.isNaN(store.getColumnValues("B")[20]));
+		var reused = store.createMeasurementList();
+		assertEquals(10000, store.getRowCount());
+		assertTrue(reused.isEmpty());
+		reused.addMeasurement("A", 5);
+		assertEquals(5, reused.getMeasurementValue("A"), 0.0);
+		assertEquals(5, store.getColumnValues("A")[20], 0.0);
+		assertTrue(Double.isNaN(released.getMeasurementValue("A")));
+		try {
+			released.addMeasurement("A", 1);
+			fail("Released list should not be modifiable");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testHierarchy() {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(i * 10, 0, 5, 5, plane));
+			detection.getMeasurementList().putMeasurement("Index", i);
+			detections.add(detection);
+		}
+		hierarchy.addPathObjects(detections.subList(0, 50), false);
+
+		hierarchy.setUseColumnarMeasurements(true);
+		var store = hierarchy.getColumnarMeasurementStore();
+		assertNotNull(store);
+		for (var detection : detections.subList(0, 50))
+			assertTrue(store.isBackedByStore(detection.getMeasurementList()));
+
+		// New detections should be moved into the store when added
+		hierarchy.addPathObjects(detections.subList(50, 100), false);
+		for (int i = 0; i < detections.size(); i++) {
+			var detection = detections.get(i);
+			assertTrue(store.isBackedByStore(detection.getMeasurementList()));
+			assertEquals(i, detection.getMeasurementList().getMeasurementValue("Index"), 0.0);
+		}
+
+		// Removed detections should have their own lists again, & their rows reused
+		int nRows = store.getRowCount();
+		var removed = detections.subList(90, 100);
+		hierarchy.removeObjects(removed, false);
+		for (int i = 90; i < 100; i++) {
+			var detection = detections.get(i);
+			assertFalse(store.isBackedByStore(detection.getMeasurementList()));
+			assertEquals(i, detection.getMeasurementList().getMeasurementValue("Index"), 0.0);
+		}
+		hierarchy.removeObject(detections.get(0), false);
+		assertFalse(store.isBackedByStore(detections.get(0).getMeasurementList()));
+		hierarchy.addPathObjects(removed, false);
+		assertEquals(nRows, store.getRowCount());
+		for (int i = 90; i < 100; i++)
+			assertTrue(store.isBackedByStore(detections.get(i).getMeasurementList()));
+		
+		double[] values = Histogram.getMeasurementValues(detections, "Index");
+		for (int i = 0; i < detections.size(); i++)
+			assertEquals(i, values[i], 0.0);
+
+		hierarchy.setUseColumnarMeasurements(false);
+		assertNull(hierarchy.getColumnarMeasurementStore());
+		for (int i = 0; i < detections.size(); i++) {
+			var detection = detections.get(i);
+			assertFalse(store.isBackedByStore(detection.getMeasurementList()));
+			assertEquals(MeasurementList.TYPE.FLOAT, MeasurementListFactory.getType(detection.getMeasurementList()));
+			assertEquals(i, detection.getMeasurementList().getMeasurementValue("Index"), 0.0);
+		}
+	}
+	
+	@Test
+	public void testHierarchyDoubleMeasurements() {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(0, 0, 5, 5, plane));
+		detection.setMeasurementList(MeasurementListFactory.createMeasurementList(1, MeasurementList.TYPE.DOUBLE));
+		double value = 1.0 + 1e-12;
+		detection.getMeasurementList().putMeasurement("Precise", value);
+		hierarchy.addPathObject(detection, false);
+		
+		// Double precision should be retained
+		hierarchy.setUseColumnarMeasurements(true);
+		var store = hierarchy.getColumnarMeasurementStore();
+		assertEquals(MeasurementList.TYPE.DOUBLE, store.getType());
+		assertTrue(store.isBackedByStore(detection.getMeasurementList()));
+		assertEquals(value, detection.getMeasurementList().getMeasurementValue("Precise"), 0.0);
+		
+		hierarchy.setUseColumnarMeasurements(false);
+		assertEquals(MeasurementList.TYPE.DOUBLE, MeasurementListFactory.getType(detection.getMeasurementList()));
+		assertEquals(value, detection.getMeasurementList().getMeasurementValue("Precise"), 0.0);
+	}
+
+}
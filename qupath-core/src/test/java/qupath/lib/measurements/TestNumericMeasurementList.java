@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.measurements;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class TestNumericMeasurementList {
+
+	@Test
+	public void testDoublePrecision() {
+		var list = MeasurementListFactory.createMeasurementList(0, MeasurementList.TYPE.DOUBLE);
+		double value = 1.0 + 1e-12;
+		list.addMeasurement("A", value);
+		list.putMeasurement("B", value);
+		list.close();
+		assertEquals(value, list.getMeasurementValue("A"), 0.0);
+		assertEquals(value, list.getMeasurementValue("B"), 0.0);
+	}
+
+	@Test
+	public void testSharedNames() throws Exception {
+		List<String> names = Arrays.asList("A", "B", "C");
+		// Close lists concurrently, and check they end up sharing the same names
+		List<MeasurementList> lists = IntStream.range(0, 1000).parallel().mapToObj(i -> {
+			var list = MeasurementListFactory.createMeasurementList(3, MeasurementList.TYPE.FLOAT);
+			for (String name : names)
+				list.addMeasurement(name, i);
+			list.close();
+			return list;
+		}).collect(Collectors.toList());
+		var first = lists.get(0).getMeasurementNames();
+		for (var list : lists) {
+			assertSame(first, list.getMeasurementNames());
+			assertTrue(list.containsNamedMeasurement("B"));
+			assertTrue(list.containsAllNamedMeasurements(names));
+		}
+		assertEquals(999, lists.get(999).getMeasurementValue("C"), 0.0);
+
+		// Modifying a list should not affect the others
+		var list = lists.get(10);
+		list.putMeasurement("D", 5);
+		list.removeMeasurements("A");
+		assertEquals(Arrays.asList("B", "C", "D"), list.getMeasurementNames());
+		assertEquals(10, list.getMeasurementValue("B"), 0.0);
+		assertEquals(5, list.getMeasurementValue("D"), 0.0);
+		assertEquals(names, lists.get(11).getMeasurementNames());
+		assertFalse(lists.get(11).containsNamedMeasurement("D"));
+
+		// Deserialized lists should be closed, and share the same names again
+		var copy = serializeAndDeserialize(lists.get(20));
+		assertSame(first, copy.getMeasurementNames());
+		assertEquals(20, copy.getMeasurementValue("A"), 0.0);
+	}
+
+	private static MeasurementList serializeAndDeserialize(MeasurementList list) throws IOException, ClassNotFoundException {
+		var bytes = new ByteArrayOutputStream();
+		try (var stream = new ObjectOutputStream(bytes)) {
+			stream.writeObject(list);
+		}
+		try (var stream = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			return (MeasurementList)stream.readObject();
+		}
+	}
+
+}
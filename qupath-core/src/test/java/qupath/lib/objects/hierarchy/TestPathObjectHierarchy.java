@@ -26,8 +26,14 @@ package qupath.lib.objects.hierarchy;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
@@ -151,6 +157,48 @@ public class TestPathObjectHierarchy {
 
 	}
 	
+	@Test
+	public void test_ConcurrentAccess() throws Exception {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, plane));
+		hierarchy.addPathObject(annotation, false);
+		
+		// Record the number of objects whenever an event is fired - this should always increase
+		List<Integer> counts = new ArrayList<>();
+		hierarchy.addPathObjectListener(e -> counts.add(e.getHierarchy().nObjects()));
+		
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		AtomicBoolean done = new AtomicBoolean(false);
+		List<Future<?>> readers = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			readers.add(pool.submit(() -> {
+				while (!done.get()) {
+					// Objects are always added in pairs, which should be seen atomically
+					assertEquals(0, hierarchy.getDetectionObjects().size() % 2);
+					assertEquals(0, hierarchy.getDescendantObjects(annotation, null, null).size() % 2);
+					assertEquals(1, hierarchy.nObjects() % 2);
+				}
+				return null;
+			}));
+		}
+		for (int i = 0; i < 200; i++) {
+			hierarchy.addPathObjects(Arrays.asList(
+					PathObjects.createDetectionObject(ROIs.createRectangleROI(i, i, 5, 5, plane)),
+					PathObjects.createDetectionObject(ROIs.createRectangleROI(i, i + 10, 5, 5, plane))), false);
+		}
+		done.set(true);
+		for (var reader : readers)
+			reader.get();
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		
+		assertEquals(401, hierarchy.nObjects());
+		assertEquals(200, counts.size());
+		for (int i = 0; i < counts.size(); i++)
+			assertEquals(3 + i * 2, counts.get(i).intValue());
+	}
+	
 }
 
 // Helper classes for testing
@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.PathROIObject;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+public class TestPathObjectTileCache {
+
+	private Random random = new Random(100L);
+
+	@Test
+	public void testIncrementalUpdates() {
+		var hierarchy = new PathObjectHierarchy();
+		var plane = ImagePlane.getDefaultPlane();
+
+		// Create annotations, each containing detections
+		List<PathObject> annotations = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(i * 1000, 0, 1000, 1000, plane));
+			annotation.addPathObjects(createDetections(i * 1000, 0, 1000, 1000, 2000));
+			annotations.add(annotation);
+		}
+		hierarchy.addPathObjects(annotations, false);
+		checkRegions(hierarchy);
+		assertEquals(1, hierarchy.getSpatialCacheStatistics().getFullRebuildCount());
+
+		// Add detections to one annotation, as a detection plugin would
+		var parent = annotations.get(1);
+		parent.clearPathObjects();
+		parent.addPathObjects(createDetections(1000, 0, 1000, 1000, 500));
+		hierarchy.fireHierarchyChangedEvent(this, parent);
+		checkRegions(hierarchy);
+
+		// Add & remove individual objects
+		var annotation = PathObjects.createAnnotationObject(ROIs.createEllipseROI(4500, 500, 200, 200, plane));
+		hierarchy.addPathObject(annotation, false);
+		checkRegions(hierarchy);
+		hierarchy.removeObject(annotations.get(0), false);
+		checkRegions(hierarchy);
+		hierarchy.removeObject(annotations.get(2), true);
+		checkRegions(hierarchy);
+
+		// Move an object
+		var detection = annotations.get(3).getChildObjects().iterator().next();
+		((PathROIObject)detection).setROI(ROIs.createRectangleROI(5000, 5000, 10, 10, plane));
+		hierarchy.updateObject(detection);
+		checkRegions(hierarchy);
+		assertTrue(hierarchy.getObjectsForRegion(null, ImageRegion.createInstance(4990, 4990, 100, 100, 0, 0), null).contains(detection));
+
+		// Add enough objects for a new bulk-loaded index to be required
+		long nBulkLoads = hierarchy.getSpatialCacheStatistics().getBulkLoadCount();
+		hierarchy.addPathObjects(createDetections(0, 2000, 4000, 1000, 5000), false);
+		checkRegions(hierarchy);
+		assertTrue(hierarchy.getSpatialCacheStatistics().getBulkLoadCount() > nBulkLoads);
+
+		// Remove many objects at once
+		var toRemove = hierarchy.getObjects(null, null).stream().filter(p -> random.nextBoolean()).collect(Collectors.toList());
+		hierarchy.removeObjects(toRemove, false);
+		checkRegions(hierarchy);
+
+		assertEquals(1, hierarchy.getSpatialCacheStatistics().getFullRebuildCount());
+
+		hierarchy.clearAll();
+		checkRegions(hierarchy);
+		assertEquals(0, hierarchy.getSpatialCacheStatistics().getObjectCount());
+	}
+
+	private List<PathObject> createDetections(double x, double y, double width, double height, int n) {
+		var plane = ImagePlane.getDefaultPlane();
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			double xx = x + random.nextDouble() * (width - 10);
+			double yy = y + random.nextDouble() * (height - 10);
+			detections.add(PathObjects.createDetectionObject(ROIs.createEllipseROI(xx, yy, 10, 10, plane)));
+		}
+		return detections;
+	}
+
+	/**
+	 * Check that the objects found for random regions match those found by checking every object.
+	 * @param hierarchy
+	 */
+	private void checkRegions(PathObjectHierarchy hierarchy) {
+		List<PathObject> allObjects = hierarchy.getFlattenedObjectList(null);
+		for (int i = 0; i < 20; i++) {
+			var region = ImageRegion.createInstance(random.nextInt(5000), random.nextInt(3000), random.nextInt(1000) + 1, random.nextInt(1000) + 1, 0, 0);
+			Set<PathObject> expected = allObjects.stream().filter(p -> p.hasROI() && overlaps(p.getROI(), region)).collect(Collectors.toSet());
+			Set<PathObject> found = hierarchy.getObjectsForRegion(null, region, new HashSet<>())
+					.stream().filter(p -> overlaps(p.getROI(), region)).collect(Collectors.toSet());
+			assertEquals(expected, found);
+		}
+		assertEquals(allObjects.stream().filter(p -> p.hasROI()).collect(Collectors.toSet()),
+				hierarchy.getObjectsForRegion(null, null, new HashSet<>()));
+	}
+
+	private static boolean overlaps(ROI roi, ImageRegion region) {
+		return roi.getBoundsX() <= region.getMaxX() && roi.getBoundsX() + roi.getBoundsWidth() >= region.getMinX() &&
+				roi.getBoundsY() <= region.getMaxY() && roi.getBoundsY() + roi.getBoundsHeight() >= region.getMinY();
+	}
+
+}
@@ -0,0 +1,246 @@
+package qupath.lib.plugins;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.DeferredObjectLoader;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+public class TestParallelTileObject {
+
+	@Test
+	public void testResolveOverlaps() {
+		var plane = ImagePlane.getDefaultPlane();
+		var parentNew = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 100, 100, plane));
+		var parentOld = PathObjects.createAnnotationObject(ROIs.createRectangleROI(50, 0, 100, 100, plane));
+
+		// Substantial overlap, new object larger - old object should be removed
+		var newLarge = addDetection(parentNew, ROIs.createEllipseROI(60, 10, 20, 20, plane));
+		var oldSmall = addDetection(parentOld, ROIs.createEllipseROI(62, 12, 10, 10, plane));
+		// Substantial overlap, old object larger - new object should be removed
+		var newSmall = addDetection(parentNew, ROIs.createRectangleROI(60, 50, 10, 10, plane));
+		var oldLarge = addDetection(parentOld, ROIs.createRectangleROI(58, 48, 20, 20, plane));
+		// Bounding boxes intersect, but the ellipses don't
+		var newCorner = addDetection(parentNew, ROIs.createEllipseROI(80, 80, 10, 10, plane));
+		var oldCorner = addDetection(parentOld, ROIs.createEllipseROI(89, 89, 10, 10, plane));
+		// Minimal overlap - both should be kept
+		var newEdge = addDetection(parentNew, ROIs.createRectangleROI(60, 30, 10, 10, plane));
+		var oldEdge = addDetection(parentOld, ROIs.createRectangleROI(69.5, 30, 10, 10, plane));
+
+		int nRemoved = ParallelTileObject.resolveOverlaps(
+				new ArrayList<>(parentNew.getChildObjects()), parentNew,
+				new ArrayList<>(parentOld.getChildObjects()), parentOld);
+
+		assertEquals(2, nRemoved);
+		assertTrue(parentNew.getChildObjects().containsAll(List.of(newLarge, newCorner, newEdge)));
+		assertFalse(parentNew.getChildObjects().contains(newSmall));
+		assertTrue(parentOld.getChildObjects().containsAll(List.of(oldLarge, oldCorner, oldEdge)));
+		assertFalse(parentOld.getChildObjects().contains(oldSmall));
+	}
+
+	@Test
+	public void testResolveOverlapsOrder() {
+		// New object overlaps a smaller and a larger old object; overlaps should be resolved in the order of the old objects,
+		// even though the spatial index returns the larger object first (since it is further left)
+		var plane = ImagePlane.getDefaultPlane();
+		for (boolean smallerFirst : new boolean[] {true, false}) {
+			var parentNew = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 100, 100, plane));
+			var parentOld = PathObjects.createAnnotationObject(ROIs.createRectangleROI(50, 0, 100, 100, plane));
+			var pathObjectNew = addDetection(parentNew, ROIs.createRectangleROI(60, 10, 20, 20, plane));
+			var oldSmaller = PathObjects.createDetectionObject(ROIs.createRectangleROI(75, 12, 10, 10, plane));
+			var oldLarger = PathObjects.createDetectionObject(ROIs.createRectangleROI(55, 5, 30, 30, plane));
+			var listOld = smallerFirst ? List.of(oldSmaller, oldLarger) : List.of(oldLarger, oldSmaller);
+			parentOld.addPathObjects(listOld);
+
+			int nRemoved = ParallelTileObject.resolveOverlaps(
+					new ArrayList<>(parentNew.getChildObjects()), parentNew,
+					listOld, parentOld);
+
+			// The smaller object is only removed if it is checked before the new object is removed
+			assertFalse(parentNew.getChildObjects().contains(pathObjectNew));
+			assertTrue(parentOld.getChildObjects().contains(oldLarger));
+			assertEquals(smallerFirst ? 2 : 1, nRemoved);
+			assertEquals(!smallerFirst, parentOld.getChildObjects().contains(oldSmaller));
+		}
+	}
+
+	@Test
+	public void testResolveOverlapsParallel() {
+		// Enough objects to compute intersections in parallel; each new object overlaps a smaller old one
+		var plane = ImagePlane.getDefaultPlane();
+		var parentNew = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, plane));
+		var parentOld = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, plane));
+		int n = 0;
+		for (int y = 0; y < 1000; y += 50) {
+			for (int x = 0; x < 1000; x += 50) {
+				addDetection(parentNew, ROIs.createEllipseROI(x, y, 40, 40, plane));
+				addDetection(parentOld, ROIs.createEllipseROI(x + 5, y + 5, 30, 30, plane));
+				n++;
+			}
+		}
+		int nRemoved = ParallelTileObject.resolveOverlaps(
+				new ArrayList<>(parentNew.getChildObjects()), parentNew,
+				new ArrayList<>(parentOld.getChildObjects()), parentOld);
+		assertEquals(n, nRemoved);
+		assertEquals(n, parentNew.nChildObjects());
+		assertEquals(0, parentOld.nChildObjects());
+	}
+
+	@Test
+	public void testSpillDetections() {
+		// Detections should be moved out of memory once overlaps are resolved, and loaded when needed
+		var plane = ImagePlane.getDefaultPlane();
+		var hierarchy = new PathObjectHierarchy();
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 200, 100, plane));
+		hierarchy.addPathObject(annotation, false, true);
+		var spill = new DetectionSpill(hierarchy);
+		var countdown = new AtomicInteger(2);
+		var tile1 = new ParallelTileObject(ROIs.createRectangleROI(0, 0, 110, 100, plane), hierarchy, countdown, spill);
+		var tile2 = new ParallelTileObject(ROIs.createRectangleROI(90, 0, 110, 100, plane), hierarchy, countdown, spill);
+		annotation.addPathObject(tile1);
+		annotation.addPathObject(tile2);
+		assertTrue(tile1.suggestNeighbor(tile2));
+		assertTrue(tile2.suggestNeighbor(tile1));
+
+		addDetection(tile1, ROIs.createEllipseROI(10, 10, 20, 20, plane));
+		addDetection(tile1, ROIs.createEllipseROI(92, 10, 16, 16, plane));
+		addDetection(tile2, ROIs.createEllipseROI(150, 10, 20, 20, plane));
+		addDetection(tile2, ROIs.createEllipseROI(91, 11, 14, 14, plane));
+
+		// Tile 1 can't be spilled until overlaps with tile 2 are resolved
+		tile1.setComplete();
+		assertFalse(spill.hasSpilled());
+		assertEquals(2, tile1.nChildObjects());
+		tile2.setComplete();
+		assertTrue(spill.hasSpilled());
+		assertFalse(annotation.getChildObjects().contains(tile1));
+		assertFalse(annotation.getChildObjects().contains(tile2));
+		assertTrue(hierarchy.hasDeferredObjects());
+
+		assertEquals(3, hierarchy.getDetectionObjects().size());
+		assertEquals(3, annotation.nChildObjects());
+		assertFalse(hierarchy.hasDeferredObjects());
+	}
+
+	@Test
+	public void testSpillDetectionsWhileQuerying() throws Exception {
+		// Detections may be loaded while a region is requested on another thread, and tiles shouldn't be replaced at the same time
+		var plane = ImagePlane.getDefaultPlane();
+		var hierarchy = new PathObjectHierarchy();
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 200, 100, plane));
+		hierarchy.addPathObject(annotation, false, true);
+		var spill = new DetectionSpill(hierarchy);
+		var countdown = new AtomicInteger(2);
+		var tile1 = new ParallelTileObject(ROIs.createRectangleROI(0, 0, 100, 100, plane), hierarchy, countdown, spill);
+		var tile2 = new ParallelTileObject(ROIs.createRectangleROI(100, 0, 100, 100, plane), hierarchy, countdown, spill);
+		annotation.addPathObject(tile1);
+		annotation.addPathObject(tile2);
+		addDetection(tile1, ROIs.createEllipseROI(10, 10, 20, 20, plane));
+		addDetection(tile1, ROIs.createEllipseROI(50, 50, 20, 20, plane));
+		tile1.setComplete();
+		assertTrue(spill.hasSpilled());
+
+		// Loader that blocks while loading a region, and checks whether the tiles are replaced in the meantime
+		var loading = new Semaphore(0);
+		var tilesPresent = new AtomicBoolean(false);
+		hierarchy.addDeferredObjectLoader(new DeferredObjectLoader() {
+			@Override
+			public Collection<PathObject> loadObjectsForRegion(ImageRegion region) throws IOException {
+				loading.release();
+				try {
+					Thread.sleep(500L);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				tilesPresent.set(annotation.getChildObjects().contains(tile2));
+				return Collections.emptyList();
+			}
+
+			@Override
+			public Collection<PathObject> loadDescendants(PathObject parent) {
+				return Collections.emptyList();
+			}
+
+			@Override
+			public Collection<PathObject> loadAll() {
+				return Collections.emptyList();
+			}
+
+			@Override
+			public boolean isComplete() {
+				return false;
+			}
+
+			@Override
+			public void close() {}
+		});
+
+		var pool = Executors.newSingleThreadExecutor();
+		var future = pool.submit(() -> hierarchy.getObjectsForRegion(PathDetectionObject.class, ImageRegion.createInstance(0, 0, 200, 100, 0, 0), null));
+		assertTrue(loading.tryAcquire(10, TimeUnit.SECONDS));
+		tile2.setComplete();
+		future.get(10, TimeUnit.SECONDS);
+		pool.shutdown();
+		assertTrue(tilesPresent.get());
+
+		assertFalse(annotation.getChildObjects().contains(tile1));
+		assertFalse(annotation.getChildObjects().contains(tile2));
+		assertEquals(2, hierarchy.getDetectionObjects().size());
+		assertEquals(2, annotation.nChildObjects());
+	}
+
+	@Test
+	public void testSpillWhileQuerying() throws Exception {
+		// Loading everything closes the store, which mustn't happen while more detections are being written
+		var plane = ImagePlane.getDefaultPlane();
+		var hierarchy = new PathObjectHierarchy();
+		var annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 1000, 1000, plane));
+		hierarchy.addPathObject(annotation, false, true);
+		var spill = new DetectionSpill(hierarchy);
+		var region = ImageRegion.createInstance(0, 0, 1000, 1000, 0, 0);
+
+		var running = new AtomicBoolean(true);
+		var pool = Executors.newSingleThreadExecutor();
+		var future = pool.submit(() -> {
+			while (running.get())
+				hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null);
+			return null;
+		});
+		int n = 2000;
+		for (int i = 0; i < n; i++) {
+			var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(i % 900, i % 900, 5, 5, plane));
+			assertTrue(spill.spill(annotation, List.of(detection)));
+		}
+		running.set(false);
+		future.get(10, TimeUnit.SECONDS);
+		pool.shutdown();
+
+		assertEquals(n, hierarchy.getDetectionObjects().size());
+	}
+
+	private static PathObject addDetection(final PathObject parent, final ROI roi) {
+		var detection = PathObjects.createDetectionObject(roi);
+		parent.addPathObject(detection);
+		return detection;
+	}
+
+}
@@ -0,0 +1,179 @@
+package qupath.lib.plugins;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+public class TestPluginScheduler {
+
+	@Test
+	public void testInterleaving() throws Exception {
+		// With one thread, tasks from two jobs of equal priority should alternate
+		var scheduler = new PluginScheduler(1);
+		var latch = new CountDownLatch(1);
+		var order = Collections.synchronizedList(new ArrayList<String>());
+		// Block the scheduler until both jobs are submitted
+		var blocker = scheduler.submit(Collections.singletonList(() -> await(latch)), PluginScheduler.PRIORITY_NORMAL, 0, null);
+		var job1 = scheduler.submit(createTasks("a", 3, order), PluginScheduler.PRIORITY_NORMAL, 0, null);
+		var job2 = scheduler.submit(createTasks("b", 3, order), PluginScheduler.PRIORITY_NORMAL, 0, null);
+		latch.countDown();
+		awaitDone(blocker, job1, job2);
+		assertEquals(List.of("a0", "b0", "a1", "b1", "a2", "b2"), order);
+	}
+
+	@Test
+	public void testPriority() throws Exception {
+		var scheduler = new PluginScheduler(1);
+		var latch = new CountDownLatch(1);
+		var order = Collections.synchronizedList(new ArrayList<String>());
+		var blocker = scheduler.submit(Collections.singletonList(() -> await(latch)), PluginScheduler.PRIORITY_NORMAL, 0, null);
+		var jobLow = scheduler.submit(createTasks("low", 2, order), PluginScheduler.PRIORITY_LOW, 0, null);
+		var jobHigh = scheduler.submit(createTasks("high", 2, order), PluginScheduler.PRIORITY_HIGH, 0, null);
+		latch.countDown();
+		awaitDone(blocker, jobLow, jobHigh);
+		assertEquals(List.of("high0", "high1", "low0", "low1"), order);
+	}
+
+	@Test
+	public void testMemoryBudget() throws Exception {
+		// Only one task should run at a time if two would exceed the budget
+		var scheduler = new PluginScheduler(4);
+		var running = new AtomicInteger();
+		var maxRunning = new AtomicInteger();
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			tasks.add(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(5L);
+				} catch (InterruptedException e) {
+					return;
+				}
+				running.decrementAndGet();
+			});
+		}
+		var job = scheduler.submit(tasks, PluginScheduler.PRIORITY_NORMAL, 100, t -> 60);
+		awaitDone(job);
+		assertEquals(1, maxRunning.get());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		var scheduler = new PluginScheduler(1);
+		var latch = new CountDownLatch(1);
+		var order = Collections.synchronizedList(new ArrayList<String>());
+		var blocker = scheduler.submit(Collections.singletonList(() -> await(latch)), PluginScheduler.PRIORITY_NORMAL, 0, null);
+		var job1 = scheduler.submit(createTasks("a", 3, order), PluginScheduler.PRIORITY_NORMAL, 0, null);
+		var job2 = scheduler.submit(createTasks("b", 3, order), PluginScheduler.PRIORITY_NORMAL, 0, null);
+
+		// Cancelling one job shouldn't affect the other
+		assertEquals(3, job1.cancel());
+		assertTrue(job1.isCancelled());
+		assertTrue(job1.isDone());
+		latch.countDown();
+		awaitDone(blocker, job2);
+		assertEquals(List.of("b0", "b1", "b2"), order);
+		assertFalse(job2.isCancelled());
+
+		// Completions should be reported for all tasks that ran
+		int n = 0;
+		while (job2.poll(0, TimeUnit.MILLISECONDS) != null)
+			n++;
+		assertEquals(3, n);
+	}
+
+	@Test
+	public void testError() throws Exception {
+		var scheduler = new PluginScheduler(2);
+		var job = scheduler.submit(Collections.singletonList(() -> {
+			throw new IllegalStateException("Expected");
+		}), PluginScheduler.PRIORITY_NORMAL, 0, null);
+		var completion = job.poll(5, TimeUnit.SECONDS);
+		assertNotNull(completion);
+		assertTrue(completion.getError() instanceof IllegalStateException);
+		assertTrue(job.isDone());
+	}
+
+	@Test
+	public void testNestedRun() throws Exception {
+		// Running tasks from within a scheduler task should not wait for a thread that can never become free
+		var server = new ImageIoImageServer("image", "image", new BufferedImage(64, 64, BufferedImage.TYPE_BYTE_GRAY));
+		var imageData = new ImageData<>(server);
+		var scheduler = PluginScheduler.getInstance();
+		int parallelism = scheduler.getParallelism();
+		scheduler.setParallelism(1);
+		var count = new AtomicInteger();
+		var thread = new Thread(() -> {
+			new CommandLinePluginRunner<>(imageData, true).runTasks(Collections.singletonList(() -> {
+				assertTrue(PluginScheduler.isRunningTask());
+				List<Runnable> inner = new ArrayList<>();
+				for (int i = 0; i < 3; i++)
+					inner.add(() -> count.incrementAndGet());
+				new CommandLinePluginRunner<>(imageData, true).runTasks(inner);
+			}));
+		});
+		try {
+			thread.start();
+			thread.join(5000L);
+			assertFalse(thread.isAlive());
+			assertEquals(3, count.get());
+			assertFalse(PluginScheduler.isRunningTask());
+		} finally {
+			scheduler.setParallelism(parallelism);
+		}
+	}
+
+	private static List<Runnable> createTasks(final String name, final int n, final List<String> order) {
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			String id = name + i;
+			tasks.add(() -> order.add(id));
+		}
+		return tasks;
+	}
+
+	@Test
+	public void testMemoryEstimate() {
+		var server = new ImageIoImageServer("image", "image", new BufferedImage(4096, 4096, BufferedImage.TYPE_BYTE_GRAY));
+		var imageData = new ImageData<>(server);
+		var roi = ROIs.createRectangleROI(0, 0, 2048, 1024, ImagePlane.getDefaultPlane());
+		var parent = PathObjects.createAnnotationObject(roi, null);
+		var task = DetectionPluginTools.createRunnableTask(null, null, imageData, parent, roi, 0);
+		assertEquals(2048L * 1024L, AbstractPluginRunner.estimateMemory(task));
+		// Pixels are expected to be read at the downsample the detector will use
+		task = DetectionPluginTools.createRunnableTask(null, null, imageData, parent, roi, 0, 4.0);
+		assertEquals(512L * 256L, AbstractPluginRunner.estimateMemory(task));
+	}
+
+	private static void await(final CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void awaitDone(final PluginScheduler.Job... jobs) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000L;
+		for (var job : jobs) {
+			while (!job.isDone() && System.currentTimeMillis() < end)
+				Thread.sleep(5L);
+			assertTrue(job.isDone());
+		}
+	}
+
+}
@@ -99,7 +99,7 @@ public class PixelClassificationOverlay extends AbstractOverlay implements PathO
     public void setLivePrediction(boolean livePrediction) {
     	this.livePrediction = livePrediction;
     	if (livePrediction)
-    		viewer.repaint();
+    		viewer.repaintOverlays();
     }
     
     
@@ -182,7 +182,23 @@ public class PixelClassificationOverlay extends AbstractOverlay implements PathO
         // For now, bind the display to the display of detections
         if (!viewer.getOverlayOptions().getShowPixelClassification())
             return;
-
+        paintClassification(g2d, imageRegion, downsampleFactor, imageData, useAnnotationMask, livePrediction);
+    }
+    
+    /**
+     * Capture the viewer options &amp; current settings, so that painting in the background isn't affected by later changes.
+     */
+    @Override
+    public OverlaySnapshot createSnapshot() {
+        var imageData = this.imageData;
+        if (!viewer.getOverlayOptions().getShowPixelClassification() || imageData == null)
+            return (g2d, imageRegion, downsampleFactor, paintCompletely) -> {};
+        boolean useAnnotationMask = this.useAnnotationMask;
+        boolean livePrediction = this.livePrediction;
+        return (g2d, imageRegion, downsampleFactor, paintCompletely) -> paintClassification(g2d, imageRegion, downsampleFactor, imageData, useAnnotationMask, livePrediction);
+    }
+    
+    private void paintClassification(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, ImageData<BufferedImage> imageData, boolean useAnnotationMask, boolean livePrediction) {
         if (imageData == null)
             return;
         
@@ -347,7 +363,7 @@ public class PixelClassificationOverlay extends AbstractOverlay implements PathO
     	if (useMask)
     		this.pendingRequests.clear();
     	if (viewer != null)
-    		viewer.repaint();
+    		viewer.repaintOverlays();
     }
     
     public boolean useAnnotationMask() {
@@ -368,7 +384,7 @@ public class PixelClassificationOverlay extends AbstractOverlay implements PathO
                 try {
                 	BufferedImage imgResult = classifierServer.readBufferedImage(tile.getRegionRequest());
                     getCachedRGBImage(tile.getRegionRequest(), imgResult);
-                    viewer.repaint();
+                    viewer.repaintOverlays();
                     Platform.runLater(() -> updateAnnotationMeasurements());
                 } catch (Exception e) {
                    logger.error("Error requesting tile classification", e);
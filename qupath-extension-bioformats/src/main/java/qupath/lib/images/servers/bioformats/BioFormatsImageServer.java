@@ -47,6 +47,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.imageio.ImageIO;
 
 import org.slf4j.Logger;
@@ -157,6 +158,30 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 	 */
 	private static BioFormatsReaderManager manager = new BioFormatsReaderManager();
 	
+	/**
+	 * Minimum number of tiles to read before deciding whether the reader is slow enough for tiles to be cached on disk.
+	 */
+	private static int MIN_TILES_FOR_DISK_CACHE_DECISION = 8;
+	
+	/**
+	 * Average time per pixel (in nanoseconds) above which tiles will be cached on disk.
+	 * Reading uncompressed pixels from a memory-mapped file is typically well below this, 
+	 * while decoding tiles that are heavily compressed (e.g. JPEG 2000) is usually far above.
+	 */
+	private static double MIN_NANOS_PER_PIXEL_FOR_DISK_CACHE = 20.0;
+	
+	/**
+	 * Total time spent reading tiles, and the total number of pixels read, used to determine whether the reader is slow.
+	 */
+	private AtomicLong tileReadNanos = new AtomicLong();
+	private AtomicLong tileReadPixels = new AtomicLong();
+	private AtomicLong tileReadCount = new AtomicLong();
+	
+	/**
+	 * Whether the reader has been found to be slow enough to use the disk tile cache, or null if this is not yet known.
+	 */
+	private volatile Boolean isSlowReader = null;
+	
 //	/**
 //	 * Try to parallelize multichannel requests (experimental!)
 //	 */
@@ -533,7 +558,47 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 	public boolean willParallelize() {
 		return options.requestParallelization() && getWidth() > 8192 && getHeight() > 8192 && manager.getMemoizationFileSize(this) < 1024L*1024L * 10L;
 	}
+
+	/**
+	 * Tiles are only read in parallel if {@link #willParallelize()} returns true;
+	 * otherwise all requests would be synchronized on the primary reader anyway.
+	 */
+	@Override
+	protected int getMaxParallelTileRequests() {
+		return willParallelize() ? super.getMaxParallelTileRequests() : 1;
+	}
 	
+	/**
+	 * Some formats are expensive to decode, so permit tiles to be cached persistently - 
+	 * but only if requested in the {@link BioFormatsServerOptions} and tiles have been found to be slow to read.
+	 * Otherwise, copying fast tiles to disk would only add overhead.
+	 */
+	@Override
+	protected boolean useDiskTileCache() {
+		return options.requestDiskTileCache() && isSlowReader();
+	}
+	
+	/**
+	 * Check whether the average time to read a tile pixel is high enough for the disk tile cache to help.
+	 * This is decided once enough tiles have been read, and returns false until then.
+	 * 
+	 * @return
+	 */
+	private boolean isSlowReader() {
+		Boolean isSlow = isSlowReader;
+		if (isSlow != null)
+			return isSlow.booleanValue();
+		if (tileReadCount.get() < MIN_TILES_FOR_DISK_CACHE_DECISION)
+			return false;
+		long nPixels = tileReadPixels.get();
+		double nanosPerPixel = nPixels == 0 ? 0 : (double)tileReadNanos.get() / nPixels;
+		isSlow = Boolean.valueOf(nanosPerPixel > MIN_NANOS_PER_PIXEL_FOR_DISK_CACHE);
+		logger.debug("Average tile read time {} ns per pixel for {} - disk tile cache {}", 
+				GeneralTools.formatNumber(nanosPerPixel, 2), filePath, isSlow.booleanValue() ? "enabled" : "disabled");
+		isSlowReader = isSlow;
+		return isSlow.booleanValue();
+	}
+
 	
 	/**
 	 * Get a BufferedImageReader for use by the current thread.
@@ -563,6 +628,17 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 
 	@Override
 	public BufferedImage readTile(TileRequest tileRequest) {
+		long startTime = System.nanoTime();
+		BufferedImage img = readTileFromReader(tileRequest);
+		if (img != null && isSlowReader == null) {
+			tileReadNanos.addAndGet(System.nanoTime() - startTime);
+			tileReadPixels.addAndGet((long)img.getWidth() * img.getHeight() * img.getRaster().getNumBands());
+			tileReadCount.incrementAndGet();
+		}
+		return img;
+	}
+	
+	private BufferedImage readTileFromReader(TileRequest tileRequest) {
 
 		int level = tileRequest.getLevel();
 		
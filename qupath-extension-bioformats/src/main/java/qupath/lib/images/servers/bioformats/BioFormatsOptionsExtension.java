@@ -78,6 +78,7 @@ public class BioFormatsOptionsExtension implements QuPathExtension {
 		// Create persistent properties
 		BooleanProperty enableBioformats = PathPrefs.createPersistentPreference("bfEnableBioformats", options.bioformatsEnabled());
 		BooleanProperty useParallelization = PathPrefs.createPersistentPreference("bfUseParallization", options.requestParallelization());
+		BooleanProperty useDiskTileCache = PathPrefs.createPersistentPreference("bfUseDiskTileCache", options.requestDiskTileCache());
 		IntegerProperty memoizationTimeMillis = PathPrefs.createPersistentPreference("bfMemoizationTimeMS", options.getMemoizationTimeMillis());
 //		BooleanProperty parallelizeMultichannel = PathPrefs.createPersistentPreference("bfParallelizeMultichannel", options.requestParallelizeMultichannel());
 
@@ -91,6 +92,7 @@ public class BioFormatsOptionsExtension implements QuPathExtension {
 		options.setPathMemoization(pathMemoization.get());
 		options.setBioformatsEnabled(enableBioformats.get());
 		options.setRequestParallelization(useParallelization.get());
+		options.setRequestDiskTileCache(useDiskTileCache.get());
 		options.setMemoizationTimeMillis(memoizationTimeMillis.get());
 //		options.setRequestParallelizeMultichannel(parallelizeMultichannel.get());
 		options.setRequestChannelZCorrectionVSI(requestChannelZCorrectionVSI.get());
@@ -100,6 +102,7 @@ public class BioFormatsOptionsExtension implements QuPathExtension {
 		// Listen for property changes
 		enableBioformats.addListener((v, o, n) -> options.setBioformatsEnabled(n));
 		useParallelization.addListener((v, o, n) -> options.setRequestParallelization(n));
+		useDiskTileCache.addListener((v, o, n) -> options.setRequestDiskTileCache(n));
 		memoizationTimeMillis.addListener((v, o, n) -> options.setMemoizationTimeMillis(n.intValue()));
 //		parallelizeMultichannel.addListener((v, o, n) -> options.setRequestParallelizeMultichannel(n));
 
@@ -113,6 +116,7 @@ public class BioFormatsOptionsExtension implements QuPathExtension {
 		PreferencePanel prefs = QuPathGUI.getInstance().getPreferencePanel();
 		prefs.addPropertyPreference(enableBioformats, Boolean.class, "Enable Bio-Formats", "Bio-Formats", "Allow QuPath to use Bio-Formats for image reading");
 		prefs.addPropertyPreference(useParallelization, Boolean.class, "Enable Bio-Formats tile parallelization", "Bio-Formats", "Enable reading image tiles in parallel when using Bio-Formats");
+		prefs.addPropertyPreference(useDiskTileCache, Boolean.class, "Cache slow Bio-Formats tiles on disk", "Bio-Formats", "Store tiles on disk if they are slow to read with Bio-Formats (e.g. because they are heavily compressed), so they can be read more quickly later");
 //		prefs.addPropertyPreference(parallelizeMultichannel, Boolean.class, "Enable Bio-Formats channel parallelization (experimental)", "Bio-Formats", "Request multiple image channels in parallel, even if parallelization of tiles is turned off - "
 //				+ "only relevant for multichannel images, and may fail for some image formats");
 		prefs.addPropertyPreference(memoizationTimeMillis, Integer.class, "Bio-Formats memoization time (ms)", "Bio-Formats", "Specify how long a file requires to open before Bio-Formats will create a .bfmemo file to improve performance (set < 0 to never use memoization)");
@@ -50,6 +50,8 @@ public class BioFormatsServerOptions {
 	
 	private boolean requestChannelZCorrectionVSI = false;
 	
+	private boolean requestDiskTileCache = true;
+	
 	private BioFormatsServerOptions() {}
 	
 	public String getPathMemoization() {
@@ -88,6 +90,21 @@ public class BioFormatsServerOptions {
 		this.requestChannelZCorrectionVSI = requestChannelZCorrectionVSI;
 	}
 	
+	/**
+	 * Request that tiles may be cached on disk, if they are found to be slow to read.
+	 * This also requires that a disk tile cache is available.
+	 * 
+	 * @return
+	 * @see qupath.lib.images.servers.ImageServerProvider#getDiskTileCache()
+	 */
+	public boolean requestDiskTileCache() {
+		return requestDiskTileCache;
+	}
+
+	public void setRequestDiskTileCache(final boolean requestDiskTileCache) {
+		this.requestDiskTileCache = requestDiskTileCache;
+	}
+	
 	public boolean requestParallelization() {
 		return requestParallelization;
 	}
@@ -307,6 +307,14 @@ public class OmeroWebImageServer extends AbstractTileableImageServer {
 		return originalMetadata;
 	}
 
+	/**
+	 * Every tile requires an HTTP request, so permit tiles to be cached persistently.
+	 */
+	@Override
+	protected boolean useDiskTileCache() {
+		return true;
+	}
+
 	@Override
 	protected BufferedImage readTile(TileRequest request) throws IOException {
 
@@ -25,8 +25,23 @@ package qupath.lib.display;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
 import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import qupath.lib.awt.color.ColorToolsAwt;
 import qupath.lib.awt.color.ColorTransformerAWT;
@@ -35,6 +50,7 @@ import qupath.lib.color.ColorDeconvolutionStains;
 import qupath.lib.color.ColorTransformer;
 import qupath.lib.color.ColorTransformer.ColorTransformMethod;
 import qupath.lib.common.ColorTools;
+import qupath.lib.common.SimpleThreadFactory;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
 
@@ -168,6 +184,38 @@ public interface ChannelDisplayInfo {
 	 */
 	public abstract int[] getRGB(BufferedImage img, int[] rgb, boolean useColorLUT);
 	
+	/**
+	 * Get the RGB values that would be used to display all the pixels of an image, combining this channel 
+	 * additively with any others.
+	 * <p>
+	 * This gives the same result as calling {@link #getRGB(BufferedImage, int[], boolean)} for this channel, 
+	 * followed by {@link #updateRGBAdditive(BufferedImage, int[], boolean)} for each additional channel in turn.
+	 * The default implementation converts one pixel at a time; implementations may override this to transform 
+	 * all the pixels in bulk.
+	 * 
+	 * @param img the input image
+	 * @param additionalChannels channels to combine additively with this one; may be empty
+	 * @param rgb optional array to store the output; a new array is created if this is null or too short
+	 * @param useColorLUT
+	 * @return the packed RGB values
+	 */
+	public default int[] getRGB(BufferedImage img, List<? extends ChannelDisplayInfo> additionalChannels, int[] rgb, boolean useColorLUT) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		if (rgb == null || rgb.length < w * h)
+			rgb = new int[w * h];
+		int ind = 0;
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int val = getRGB(img, x, y, useColorLUT);
+				for (ChannelDisplayInfo info : additionalChannels)
+					val = info.updateRGBAdditive(img, x, y, val, useColorLUT);
+				rgb[ind++] = val;
+			}
+		}
+		return rgb;
+	}
+	
 	/**
 	 * Update an existing pixel (packed RGB) additively using the color used to display a specified one
 	 * 
@@ -369,11 +417,21 @@ public interface ChannelDisplayInfo {
 			int r2 = ((rgbNew & ColorTools.MASK_RED) >> 16) + ((rgb & ColorTools.MASK_RED) >> 16);
 			int g2 = ((rgbNew & ColorTools.MASK_GREEN) >> 8) + ((rgb & ColorTools.MASK_GREEN) >> 8);
 			int b2 = (rgbNew & ColorTools.MASK_BLUE) + (rgb & ColorTools.MASK_BLUE);
-			return (do8BitRangeCheck(r2) << 16) + 
-					(do8BitRangeCheck(g2) << 8) + 
-					do8BitRangeCheck(b2);
+			// Keep the result opaque, as it is when a single channel is converted
+			return ColorTools.makeRGB(do8BitRangeCheck(r2), do8BitRangeCheck(g2), do8BitRangeCheck(b2));
 		}
 
+		@Override
+		public int[] getRGB(BufferedImage img, List<? extends ChannelDisplayInfo> additionalChannels, int[] rgb, boolean useColorLUT) {
+			int n = img.getWidth() * img.getHeight();
+			if (rgb == null || rgb.length < n)
+				rgb = new int[n];
+			rgb = getRGB(img, rgb, useColorLUT);
+			for (ChannelDisplayInfo info : additionalChannels)
+				info.updateRGBAdditive(img, rgb, useColorLUT);
+			return rgb;
+		}
+		
 		@Override
 		public String toString() {
 			return getName();
@@ -420,10 +478,32 @@ public interface ChannelDisplayInfo {
 		
 		protected static final DecimalFormat df = new DecimalFormat("#.##");
 		
+		/**
+		 * Buffer for pixel values when converting tiles to RGB, reused to avoid allocating a new array for every tile.
+		 * Tiles are usually the same size, so this rarely needs to be replaced.
+		 */
+		private static final ThreadLocal<float[]> valueBuffer = new ThreadLocal<>();
+		
 		
 		public AbstractSingleChannelInfo(final ImageData<BufferedImage> imageData) {
 			super(imageData);
 		}
+		
+		/**
+		 * Get a float array of exactly the specified length, reusing an existing array for the current thread if possible.
+		 * The contents are undefined, and the array must not be retained after use.
+		 * 
+		 * @param n
+		 * @return
+		 */
+		static float[] getValueBuffer(int n) {
+			float[] values = valueBuffer.get();
+			if (values == null || values.length != n) {
+				values = new float[n];
+				valueBuffer.set(values);
+			}
+			return values;
+		}
 
 		/**
 		 * Get a suitable RGB value for displaying a pixel with the specified value
@@ -433,16 +513,16 @@ public interface ChannelDisplayInfo {
 		 */
 		public abstract int getRGB(float value, boolean useColorLUT);
 				
-		private void updateRGBAdditive(float[] values, int[] rgb, boolean useColorLUT) {
-			int n = Math.min(values.length, rgb.length);
+		private void updateRGBAdditive(float[] values, int n, int[] rgb, boolean useColorLUT) {
+			n = Math.min(n, Math.min(values.length, rgb.length));
 			for (int i = 0; i < n; i++)
 				rgb[i] = updateRGBAdditive(values[i], rgb[i], useColorLUT);
 		}
 		
-		private int[] getRGB(float[] values, int[] rgb, boolean useColorLUT) {
-			int n = values.length;
+		private int[] getRGB(float[] values, int n, int[] rgb, boolean useColorLUT) {
+			n = Math.min(n, values.length);
 			if (rgb == null)
-				rgb = new int[values.length];
+				rgb = new int[n];
 			else if (rgb.length < n)
 				n = rgb.length;
 
@@ -473,9 +553,8 @@ public interface ChannelDisplayInfo {
 			int g2 = ((rgbNew & ColorTools.MASK_GREEN) >> 8) + ((rgb & ColorTools.MASK_GREEN) >> 8);
 			int b2 = (rgbNew & ColorTools.MASK_BLUE) + (rgb & ColorTools.MASK_BLUE);
 			
-			return (do8BitRangeCheck(r2) << 16) + 
-					(do8BitRangeCheck(g2) << 8) + 
-					do8BitRangeCheck(b2);
+			// Keep the result opaque, as it is when a single channel is converted
+			return ColorTools.makeRGB(do8BitRangeCheck(r2), do8BitRangeCheck(g2), do8BitRangeCheck(b2));
 		}
 		
 		@Override
@@ -486,9 +565,9 @@ public interface ChannelDisplayInfo {
 		
 		@Override
 		public int[] getRGB(BufferedImage img, int[] rgb, boolean useColorLUT) {
-			// TODO: Consider caching (but must be threadsafe)
-			float[] values = getValues(img, 0, 0, img.getWidth(), img.getHeight(), (float[])null);
-			int[] result = getRGB(values, rgb, useColorLUT);
+			int n = img.getWidth() * img.getHeight();
+			float[] values = getValues(img, 0, 0, img.getWidth(), img.getHeight(), getValueBuffer(n));
+			int[] result = getRGB(values, n, rgb, useColorLUT);
 			return result;
 		}
 		
@@ -496,9 +575,9 @@ public interface ChannelDisplayInfo {
 		public void updateRGBAdditive(BufferedImage img, int[] rgb, boolean useColorLUT) {
 			if (!isAdditive())
 				throw new UnsupportedOperationException(this + " does not support additive display");
-			// TODO: Consider caching (but must be threadsafe)
-			float[] values = getValues(img, 0, 0, img.getWidth(), img.getHeight(), (float[])null);
-			updateRGBAdditive(values, rgb, useColorLUT);
+			int n = img.getWidth() * img.getHeight();
+			float[] values = getValues(img, 0, 0, img.getWidth(), img.getHeight(), getValueBuffer(n));
+			updateRGBAdditive(values, n, rgb, useColorLUT);
 		}
 		
 		
@@ -1016,6 +1095,328 @@ public interface ChannelDisplayInfo {
 		public boolean isMutable() {
 			return false;
 		}
+		
+		/**
+		 * Buffers used when compositing channels, reused to avoid allocating new arrays for every tile.
+		 */
+		private static final ThreadLocal<CompositeBuffers> compositeBuffers = ThreadLocal.withInitial(CompositeBuffers::new);
+		
+		/**
+		 * Minimum number of pixels in an image before strips are processed in parallel.
+		 */
+		private static final int MIN_PARALLEL_PIXELS = 128 * 1024;
+		
+		/**
+		 * Number of threads used to help composite strips of large images.
+		 */
+		private static final int N_COMPOSITE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		
+		/**
+		 * Dedicated pool used to composite strips in parallel.
+		 * <p>
+		 * This is bounded and separate from the common ForkJoinPool, since compositing is usually requested 
+		 * from threads that are already part of another pool (e.g. when painting tiles). 
+		 * The calling thread always processes strips too, so progress never depends upon this pool being free.
+		 */
+		private static final ExecutorService compositePool = Executors.newFixedThreadPool(N_COMPOSITE_THREADS, new SimpleThreadFactory("channel-composite-", true));
+		
+		/**
+		 * Lookup table converting integer pixel values to 8-bit display values, for the current min &amp; max display range.
+		 */
+		transient private volatile DisplayLUT displayLUT;
+		
+		@Override
+		public int[] getRGB(BufferedImage img, int[] rgb, boolean useColorLUT) {
+			return getRGBComposite(img, Collections.singletonList(this), rgb, useColorLUT);
+		}
+		
+		/**
+		 * Combine this channel with others in a single pass using {@link #getRGBComposite(BufferedImage, List, int[], boolean)}, 
+		 * if they are all {@link DirectServerChannelInfo} channels.
+		 */
+		@Override
+		public int[] getRGB(BufferedImage img, List<? extends ChannelDisplayInfo> additionalChannels, int[] rgb, boolean useColorLUT) {
+			List<DirectServerChannelInfo> channels = new ArrayList<>(additionalChannels.size() + 1);
+			channels.add(this);
+			for (ChannelDisplayInfo info : additionalChannels) {
+				if (!(info instanceof DirectServerChannelInfo))
+					return super.getRGB(img, additionalChannels, rgb, useColorLUT);
+				channels.add((DirectServerChannelInfo)info);
+			}
+			return getRGBComposite(img, channels, rgb, useColorLUT);
+		}
+		
+		/**
+		 * Combine multiple channels additively to create a packed RGB image, using each channel's color LUT.
+		 * <p>
+		 * This gives the same result as calling {@link #getRGB(BufferedImage, int[], boolean)} for the first channel, 
+		 * followed by {@link #updateRGBAdditive(BufferedImage, int[], boolean)} for the others. 
+		 * However, the pixels are processed in strips of rows, and the color components of all channels are summed before being 
+		 * clipped and packed just once, so no large intermediate arrays are required.
+		 * <p>
+		 * For 8-bit and 16-bit images, pixel values are converted using a lookup table that is cached for each channel 
+		 * until its display range changes. Large images are split into strips that are processed in parallel, 
+		 * using the calling thread along with a small dedicated pool.
+		 * 
+		 * @param img the input image
+		 * @param channels the channels to combine
+		 * @param rgb optional array to store the output; a new array is created if this is null or too short
+		 * @param useColorLUT if false, each channel is displayed in grayscale (as when calling {@link #getRGB(float, boolean)})
+		 * @return the packed RGB values
+		 */
+		static int[] getRGBComposite(BufferedImage img, List<DirectServerChannelInfo> channels, int[] rgb, boolean useColorLUT) {
+			return getRGBComposite(img, channels, rgb, useColorLUT, img.getWidth() * img.getHeight() >= MIN_PARALLEL_PIXELS);
+		}
+		
+		/**
+		 * Combine multiple channels additively, optionally processing strips in parallel.
+		 * 
+		 * @param img
+		 * @param channels
+		 * @param rgb
+		 * @param useColorLUT
+		 * @param doParallel if true, strips may be processed using other threads; if false, all strips are processed sequentially on the calling thread
+		 * @return
+		 * @see #getRGBComposite(BufferedImage, List, int[], boolean)
+		 */
+		static int[] getRGBComposite(BufferedImage img, List<DirectServerChannelInfo> channels, int[] rgb, boolean useColorLUT, boolean doParallel) {
+			int w = img.getWidth();
+			int h = img.getHeight();
+			if (rgb == null || rgb.length < w * h)
+				rgb = new int[w * h];
+			
+			Raster raster = img.getRaster();
+			int dataType = raster.getDataBuffer().getDataType();
+			boolean useInts = dataType == DataBuffer.TYPE_BYTE || dataType == DataBuffer.TYPE_USHORT || 
+					dataType == DataBuffer.TYPE_SHORT || dataType == DataBuffer.TYPE_INT;
+			
+			// Use lookup tables for 8 & 16-bit images, where all possible values can be converted in advance
+			int lutLength = dataType == DataBuffer.TYPE_BYTE ? 256 : (dataType == DataBuffer.TYPE_USHORT ? 65536 : 0);
+			byte[][] displayLUTs = new byte[channels.size()][];
+			if (lutLength > 0) {
+				for (int c = 0; c < channels.size(); c++)
+					displayLUTs[c] = channels.get(c).getDisplayLUT(lutLength);
+			}
+			
+			// Process strips of rows, so that the buffers stay small
+			int nRows = Math.max(1, Math.min(h, CompositeBuffers.STRIP_PIXELS / Math.max(w, 1)));
+			int nStrips = (h + nRows - 1) / nRows;
+			int[] output = rgb;
+			AtomicInteger nextStrip = new AtomicInteger();
+			Runnable stripProcessor = () -> {
+				int s;
+				while ((s = nextStrip.getAndIncrement()) < nStrips) {
+					int y = s * nRows;
+					updateRGBComposite(raster, y, Math.min(nRows, h - y), channels, displayLUTs, useInts, useColorLUT, output);
+				}
+			};
+			if (!doParallel || nStrips == 1 || N_COMPOSITE_THREADS == 1) {
+				stripProcessor.run();
+				return rgb;
+			}
+			
+			// Use helper threads, but process strips on this thread too
+			int nHelpers = Math.min(N_COMPOSITE_THREADS, nStrips - 1);
+			List<Future<?>> futures = new ArrayList<>(nHelpers);
+			for (int i = 0; i < nHelpers; i++)
+				futures.add(compositePool.submit(stripProcessor));
+			stripProcessor.run();
+			
+			// All strips have now been claimed - wait for any still being processed
+			boolean interrupted = false;
+			for (Future<?> future : futures) {
+				// Helpers that haven't started have nothing left to do
+				if (future.cancel(false))
+					continue;
+				while (true) {
+					try {
+						future.get();
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					} catch (CancellationException e) {
+						break;
+					} catch (ExecutionException e) {
+						throw new RuntimeException(e.getCause());
+					}
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			return rgb;
+		}
+		
+		/**
+		 * Composite the channels for a strip of rows.
+		 */
+		private static void updateRGBComposite(Raster raster, int y, int hStrip, List<DirectServerChannelInfo> channels, byte[][] displayLUTs, boolean useInts, boolean useColorLUT, int[] rgb) {
+			int w = raster.getWidth();
+			int n = w * hStrip;
+			var buffers = compositeBuffers.get();
+			buffers.ensureSize(n);
+			long[] sums = buffers.sums;
+			long[] lut = buffers.lut;
+			
+			int nChannels = channels.size();
+			for (int c = 0; c < nChannels; c++) {
+				var info = channels.get(c);
+				float minDisplay = info.minDisplay;
+				float maxDisplay = info.maxDisplay;
+				// Channels after the first are skipped if they have no display range, as in updateRGBAdditive
+				if (c > 0 && maxDisplay == minDisplay)
+					continue;
+				info.updateSumLUT(lut, useColorLUT);
+				if (c == 0)
+					Arrays.fill(sums, 0, n, 0L);
+				byte[] displayLUT = displayLUTs[c];
+				if (displayLUT != null) {
+					int[] samples = getSamples(raster, y, hStrip, info.channel, buffers.intSamples);
+					for (int i = 0; i < n; i++)
+						sums[i] += lut[displayLUT[samples[i]] & 0xff];
+				} else {
+					float scale = 255.f / (maxDisplay - minDisplay);
+					if (useInts) {
+						int[] samples = getSamples(raster, y, hStrip, info.channel, buffers.intSamples);
+						for (int i = 0; i < n; i++)
+							sums[i] += lut[ColorTools.do8BitRangeCheck((samples[i] - minDisplay) * scale)];
+					} else {
+						float[] samples = raster.getSamples(0, y, w, hStrip, info.channel, buffers.floatSamples);
+						for (int i = 0; i < n; i++)
+							sums[i] += lut[ColorTools.do8BitRangeCheck((samples[i] - minDisplay) * scale)];
+					}
+				}
+			}
+			int ind = y * w;
+			for (int i = 0; i < n; i++) {
+				long sum = sums[i];
+				int r = (int)Math.min((sum >>> 42) & SUM_MASK, 255);
+				int g = (int)Math.min((sum >>> 21) & SUM_MASK, 255);
+				int b = (int)Math.min(sum & SUM_MASK, 255);
+				rgb[ind++] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+		
+		/**
+		 * Get a lookup table to convert integer pixel values to 8-bit display values, using the current display range.
+		 * The table is reused until the display range changes.
+		 * 
+		 * @param length number of possible pixel values (256 for 8-bit, 65536 for 16-bit)
+		 * @return
+		 */
+		private byte[] getDisplayLUT(int length) {
+			float minDisplay = this.minDisplay;
+			float maxDisplay = this.maxDisplay;
+			var lut = displayLUT;
+			if (lut != null && lut.matches(minDisplay, maxDisplay, length))
+				return lut.values;
+			lut = new DisplayLUT(minDisplay, maxDisplay, length);
+			displayLUT = lut;
+			return lut.values;
+		}
+		
+		
+		/**
+		 * Immutable lookup table for a specific display range.
+		 */
+		private static class DisplayLUT {
+			
+			private final float minDisplay;
+			private final float maxDisplay;
+			private final byte[] values;
+			
+			DisplayLUT(float minDisplay, float maxDisplay, int length) {
+				this.minDisplay = minDisplay;
+				this.maxDisplay = maxDisplay;
+				this.values = new byte[length];
+				// Use the same calculation as when converting individual values, so the result is identical
+				float scale = 255.f / (maxDisplay - minDisplay);
+				for (int i = 0; i < length; i++)
+					values[i] = (byte)ColorTools.do8BitRangeCheck((i - minDisplay) * scale);
+			}
+			
+			boolean matches(float minDisplay, float maxDisplay, int length) {
+				return this.minDisplay == minDisplay && this.maxDisplay == maxDisplay && values.length == length;
+			}
+			
+		}
+		
+		/**
+		 * Read integer samples for a strip of rows, accessing the data arrays directly for common sample models 
+		 * (which is much faster than requesting samples through the raster).
+		 * 
+		 * @param raster
+		 * @param y first row
+		 * @param h number of rows
+		 * @param band
+		 * @param samples array to store the output, with length at least the number of samples required
+		 * @return
+		 */
+		private static int[] getSamples(Raster raster, int y, int h, int band, int[] samples) {
+			var sampleModel = raster.getSampleModel();
+			var db = raster.getDataBuffer();
+			int w = raster.getWidth();
+			if (!(sampleModel instanceof ComponentSampleModel) || raster.getMinX() != 0 || raster.getMinY() != 0)
+				return raster.getSamples(0, y, w, h, band, samples);
+			var csm = (ComponentSampleModel)sampleModel;
+			int bank = csm.getBankIndices()[band];
+			int pixelStride = csm.getPixelStride();
+			int scanlineStride = csm.getScanlineStride();
+			int xOffset = -raster.getSampleModelTranslateX();
+			int yOffset = -raster.getSampleModelTranslateY();
+			int offset = db.getOffsets()[bank] + csm.getBandOffsets()[band] + xOffset * pixelStride;
+			int ind = 0;
+			for (int yy = y; yy < y + h; yy++) {
+				int start = offset + (yy + yOffset) * scanlineStride;
+				if (db instanceof DataBufferUShort) {
+					short[] data = ((DataBufferUShort)db).getData(bank);
+					for (int x = 0; x < w; x++)
+						samples[ind++] = data[start + x * pixelStride] & 0xffff;
+				} else if (db instanceof DataBufferByte) {
+					byte[] data = ((DataBufferByte)db).getData(bank);
+					for (int x = 0; x < w; x++)
+						samples[ind++] = data[start + x * pixelStride] & 0xff;
+				} else
+					return raster.getSamples(0, y, w, h, band, samples);
+			}
+			return samples;
+		}
+		
+		/**
+		 * Mask for one color component when summing packed values; 21 bits are used per component, 
+		 * so many thousands of channels can be added before any overflow.
+		 */
+		private static final long SUM_MASK = (1L << 21) - 1;
+		
+		/**
+		 * Update a lookup table to give the color for each 8-bit display value, with components 
+		 * packed so that they can be summed directly.
+		 */
+		private void updateSumLUT(long[] lut, boolean useColorLUT) {
+			for (int i = 0; i < 256; i++) {
+				int v = useColorLUT ? rgbLUT[i] : (i << 16) | (i << 8) | i;
+				lut[i] = ((long)((v >> 16) & 0xff) << 42) | ((long)((v >> 8) & 0xff) << 21) | (v & 0xff);
+			}
+		}
+		
+		
+		private static class CompositeBuffers {
+			
+			private static final int STRIP_PIXELS = 16 * 1024;
+			
+			private long[] sums = new long[0];
+			private long[] lut = new long[256];
+			private int[] intSamples = new int[0];
+			private float[] floatSamples = new float[0];
+			
+			void ensureSize(int n) {
+				if (sums.length >= n)
+					return;
+				sums = new long[n];
+				intSamples = new int[n];
+				floatSamples = new float[n];
+			}
+			
+		}
 
 		//	@Override
 		//	public int updateRGBAdditive(float value, int rgb) {
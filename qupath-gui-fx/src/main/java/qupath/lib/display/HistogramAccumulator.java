@@ -0,0 +1,249 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.display;
+
+import qupath.lib.analysis.stats.Histogram;
+
+/**
+ * Fixed-size histogram that can be updated incrementally, without needing to retain the values themselves.
+ * <p>
+ * The bins are initialized from the range of the first values added.  If later values fall outside this range,
+ * the bin width is doubled (merging pairs of adjacent bins) until they fit - so the counts are always exact,
+ * and the memory required is constant however many values are added.
+ * For integer values, the bin width is always a power of 2, so that bins never split an integer value.
+ * <p>
+ * Values may be added with a weight, so that pixels from images at different resolutions can be combined
+ * according to the area they represent.
+ *
+ * @author Pete Bankhead
+ *
+ */
+class HistogramAccumulator {
+
+	/**
+	 * Default number of bins.
+	 */
+	static final int DEFAULT_BINS = 1024;
+
+	private int nBins;
+	private boolean isInteger = true;
+	private double edgeMin = Double.NaN;
+	private double binWidth = Double.NaN;
+	private long[] counts;
+
+	private long nValues, nMissing;
+	private double sum, sumSquares;
+	private double minValue = Double.POSITIVE_INFINITY, maxValue = Double.NEGATIVE_INFINITY;
+
+	HistogramAccumulator() {
+		this(DEFAULT_BINS);
+	}
+
+	/**
+	 * Constructor.
+	 * @param nBins number of bins; this must be even, so that pairs of bins can be merged
+	 */
+	HistogramAccumulator(final int nBins) {
+		if (nBins < 2 || nBins % 2 != 0)
+			throw new IllegalArgumentException("Number of bins must be even and at least 2, but was " + nBins);
+		this.nBins = nBins;
+	}
+
+	/**
+	 * Add values to the histogram.
+	 * Non-finite values are counted as missing.
+	 *
+	 * @param values array containing the values
+	 * @param length number of values to use from the start of the array
+	 * @param weight weight to apply to each value
+	 */
+	synchronized void addValues(final float[] values, final int length, final long weight) {
+		// Determine the range of the values, to check if we need to expand the bins
+		double batchMin = Double.POSITIVE_INFINITY;
+		double batchMax = Double.NEGATIVE_INFINITY;
+		boolean batchInteger = true;
+		for (int i = 0; i < length; i++) {
+			float v = values[i];
+			if (!Float.isFinite(v))
+				continue;
+			if (v < batchMin)
+				batchMin = v;
+			if (v > batchMax)
+				batchMax = v;
+			if (batchInteger && v != (int)v)
+				batchInteger = false;
+		}
+		if (batchMin > batchMax) {
+			nMissing += length * weight;
+			return;
+		}
+
+		if (counts == null)
+			initializeBins(batchMin, batchMax, batchInteger);
+		else {
+			while (batchMin < edgeMin)
+				expandLower();
+			while (batchMax > getEdgeMax())
+				expandUpper();
+		}
+		isInteger = isInteger && batchInteger;
+
+		for (int i = 0; i < length; i++) {
+			float v = values[i];
+			if (!Float.isFinite(v)) {
+				nMissing += weight;
+				continue;
+			}
+			int bin = (int)((v - edgeMin) / binWidth);
+			if (bin >= nBins)
+				bin = nBins - 1;
+			counts[bin] += weight;
+			nValues += weight;
+			sum += (double)v * weight;
+			sumSquares += (double)v * v * weight;
+		}
+		if (batchMin < minValue)
+			minValue = batchMin;
+		if (batchMax > maxValue)
+			maxValue = batchMax;
+	}
+
+	/**
+	 * Remove values that were previously added to the histogram with the same weight, 
+	 * e.g. so that they can be replaced by values from a higher-resolution image.
+	 * <p>
+	 * Note that the minimum &amp; maximum values are not updated, since these can't be determined without the values 
+	 * that remain.
+	 *
+	 * @param values array containing the values
+	 * @param length number of values to use from the start of the array
+	 * @param weight weight that was applied to each value when it was added
+	 */
+	synchronized void removeValues(final float[] values, final int length, final long weight) {
+		for (int i = 0; i < length; i++) {
+			float v = values[i];
+			if (!Float.isFinite(v) || counts == null) {
+				nMissing -= weight;
+				continue;
+			}
+			int bin = (int)((v - edgeMin) / binWidth);
+			if (bin >= nBins)
+				bin = nBins - 1;
+			else if (bin < 0)
+				bin = 0;
+			counts[bin] -= weight;
+			nValues -= weight;
+			sum -= (double)v * weight;
+			sumSquares -= (double)v * v * weight;
+		}
+	}
+
+	private void initializeBins(final double min, final double max, final boolean isInteger) {
+		counts = new long[nBins];
+		if (isInteger) {
+			binWidth = 1;
+			while (binWidth * nBins < max - min + 1)
+				binWidth *= 2;
+			edgeMin = Math.floor(min / binWidth) * binWidth;
+			while (max >= getEdgeMax())
+				expandUpper();
+		} else {
+			binWidth = max > min ? (max - min) / nBins : 1;
+			edgeMin = min;
+		}
+	}
+
+	/**
+	 * Double the bin width, extending the range downwards.
+	 */
+	private void expandLower() {
+		long[] countsNew = new long[nBins];
+		int half = nBins / 2;
+		for (int i = 0; i < half; i++)
+			countsNew[half + i] = counts[2*i] + counts[2*i+1];
+		edgeMin -= nBins * binWidth;
+		binWidth *= 2;
+		counts = countsNew;
+	}
+
+	/**
+	 * Double the bin width, extending the range upwards.
+	 */
+	private void expandUpper() {
+		long[] countsNew = new long[nBins];
+		int half = nBins / 2;
+		for (int i = 0; i < half; i++)
+			countsNew[i] = counts[2*i] + counts[2*i+1];
+		binWidth *= 2;
+		counts = countsNew;
+	}
+
+	private double getEdgeMax() {
+		return edgeMin + nBins * binWidth;
+	}
+
+	/**
+	 * Get the total weight of all finite values that have been added.
+	 * @return
+	 */
+	synchronized long getCount() {
+		return nValues;
+	}
+
+	/**
+	 * Check whether all the values added so far are integers.
+	 * @return
+	 */
+	synchronized boolean isInteger() {
+		return isInteger;
+	}
+
+	/**
+	 * Create a histogram containing the current counts, omitting any empty bins at either end.
+	 * @return the histogram, or null if no finite values have been added
+	 */
+	synchronized Histogram toHistogram() {
+		if (counts == null)
+			return null;
+		int first = 0;
+		while (first < nBins - 1 && counts[first] == 0)
+			first++;
+		int last = nBins - 1;
+		while (last > first && counts[last] == 0)
+			last--;
+		int n = last - first + 1;
+		long[] countsTrimmed = new long[n];
+		System.arraycopy(counts, first, countsTrimmed, 0, n);
+		double[] edges = new double[n + 1];
+		for (int i = 0; i <= n; i++)
+			edges[i] = edgeMin + (first + i) * binWidth;
+		// For non-integer values, the bins don't need to extend beyond the data
+		if (!isInteger) {
+			edges[0] = minValue;
+			edges[n] = maxValue;
+		}
+		return new Histogram(edges, countsTrimmed, isInteger, nValues, nMissing, sum, sumSquares, minValue, maxValue);
+	}
+
+}
@@ -25,15 +25,29 @@ package qupath.lib.display;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -46,6 +60,7 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
 
+import javafx.application.Platform;
 import javafx.beans.binding.BooleanBinding;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.LongProperty;
@@ -55,6 +70,7 @@ import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import qupath.lib.analysis.stats.Histogram;
 import qupath.lib.color.ColorTransformer;
+import qupath.lib.common.SimpleThreadFactory;
 import qupath.lib.color.ColorTransformer.ColorTransformMethod;
 import qupath.lib.display.ChannelDisplayInfo.ModifiableChannelDisplayInfo;
 import qupath.lib.display.ChannelDisplayInfo.DirectServerChannelInfo;
@@ -64,6 +80,7 @@ import qupath.lib.gui.images.stores.AbstractImageRenderer;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.ImageRegion;
 
 /**
  * Class used to look after the color transforms that may be applied to an image,
@@ -104,6 +121,12 @@ public class ImageDisplay extends AbstractImageRenderer {
 	transient private Map<String, HistogramManager> cachedHistograms = Collections.synchronizedMap(new HashMap<>());
 	private HistogramManager histogramManager = null;
 	
+	// Channels for which the display range should be set automatically whenever the histogram becomes available
+	private Set<ChannelDisplayInfo> pendingAutoDisplayRange = Collections.synchronizedSet(new HashSet<>());
+	
+	// Buffer for RGB values when applying transforms, reused to avoid allocating a new array for every tile
+	private static final ThreadLocal<int[]> pixelBuffer = new ThreadLocal<>();
+	
 	private static BooleanProperty showAllRGBTransforms = PathPrefs.createPersistentPreference("showAllRGBTransforms", true);
 
 
@@ -139,17 +162,24 @@ public class ImageDisplay extends AbstractImageRenderer {
 		}
 		lastDisplayJSON = retainDisplaySettings ? toJSON() : null;
 		
+		// Store any histogram refinements for the previous image
+		if (histogramManager != null)
+			histogramManager.writeAsync(getHistogramPath(this.imageData));
+		
 		this.imageData = imageData;
 		updateChannelOptions(true);
 		updateHistogramMap();
 		if (imageData != null) {
 			// Load any existing color properties
-			loadChannelColorProperties();
+			if (loadChannelColorProperties())
+				pendingAutoDisplayRange.clear();
 			// Update from the last image, if required
-			if (lastDisplayJSON != null && !lastDisplayJSON.isEmpty())
+			if (lastDisplayJSON != null && !lastDisplayJSON.isEmpty()) {
 				updateFromJSON(lastDisplayJSON);
+				pendingAutoDisplayRange.clear();
+			}
 		}
-		changeTimestamp.set(System.currentTimeMillis());
+		updateChangeTimestamp();
 	}
 	
 
@@ -186,6 +216,16 @@ public class ImageDisplay extends AbstractImageRenderer {
 		return changeTimestamp.get();
 	}
 	
+	/**
+	 * Update the timestamp to indicate a change.
+	 * <p>
+	 * The timestamp is guaranteed to increase, even for multiple changes within the same millisecond - 
+	 * since it is used as part of the key when caching rendered tiles.
+	 */
+	private void updateChangeTimestamp() {
+		changeTimestamp.set(Math.max(System.currentTimeMillis(), changeTimestamp.get() + 1));
+	}
+	
 	/**
 	 * Timestamp for the most recent change.  This can be used to listen for 
 	 * display changes.
@@ -343,6 +383,7 @@ public class ImageDisplay extends AbstractImageRenderer {
 	 * @param maxDisplay
 	 */
 	public void setMinMaxDisplay(final ChannelDisplayInfo info , float minDisplay, float maxDisplay) {
+		pendingAutoDisplayRange.remove(info);
 		setMinMaxDisplay(info, minDisplay, maxDisplay, true);
 	}
 	
@@ -366,7 +407,7 @@ public class ImageDisplay extends AbstractImageRenderer {
 		}
 		// Store the current display settings in the ImageData
 		imageData.setProperty(PROPERTY_DISPLAY, toJSON(false));
-		changeTimestamp.set(System.currentTimeMillis());
+		updateChangeTimestamp();
 	}
 	
 
@@ -430,6 +471,21 @@ public class ImageDisplay extends AbstractImageRenderer {
 
 
 
+	/**
+	 * Returns true if the current settings mean that {@link #applyTransforms(BufferedImage, BufferedImage)} would only copy the input image.
+	 */
+	@Override
+	public boolean isIdentity() {
+		return isIdentity(selectedChannels);
+	}
+	
+	private static boolean isIdentity(List<ChannelDisplayInfo> selectedChannels) {
+		if (selectedChannels.size() != 1)
+			return false;
+		ChannelDisplayInfo info = selectedChannels.get(0);
+		return info == null || !info.doesSomething();
+	}
+	
 	/**
 	 * Apply the required transforms to a BufferedImage to get the appropriate display.
 	 * imgOutput should always be an RGB image (of some kind), or null if a new image should be created.
@@ -474,7 +530,7 @@ public class ImageDisplay extends AbstractImageRenderer {
 
 		// Check if we have any changes to make - if not, just copy the image
 		// Sometimes the first entry of selectedChannels was null... not sure why... this test is therefore to paper over the cracks...
-		if (selectedChannels.size() == 1 && (selectedChannels.get(0) == null || !selectedChannels.get(0).doesSomething())) {
+		if (isIdentity(selectedChannels)) {
 			if (imgInput == imgOutput) {
 				return imgOutput;
 			}
@@ -484,23 +540,15 @@ public class ImageDisplay extends AbstractImageRenderer {
 			return imgOutput;
 		}
 
-		// Loop through the channels & build up an image as needed
-		boolean firstChannel = true;
-
 		// TODO: DEAL WITH BGR POSSIBILITY...?  Currently forces RGB - may need to benchmark on Linux in case this is a performance issue
 		// The line below worked well for Java 7 & 8 on a Mac, but terribly (killing acceleration) for Java 6
 		//		int[] pixels = ((DataBufferInt)imgOutput.getRaster().getDataBuffer()).getData();
 		
-		// I don't know exactly why, but I can't set this to null if there are multiple channels displayed additively...
-		int[] pixels = selectedChannels.size() <= 1 ? null : new int[imgInput.getWidth() * imgInput.getHeight()];
-
-		for (ChannelDisplayInfo info : selectedChannels) {
-			if (firstChannel) {
-				pixels = info.getRGB(imgInput, pixels, !useGrayscaleLuts);
-				firstChannel = false;
-			} else
-				info.updateRGBAdditive(imgInput, pixels, !useGrayscaleLuts);
-		}
+		// Reuse the same array for each tile, since tiles are usually the same size
+		int[] pixels = getPixelBuffer(width * height);
+		
+		// Combine the channels additively, in a single pass if possible
+		pixels = selectedChannels.get(0).getRGB(imgInput, selectedChannels.subList(1, selectedChannels.size()), pixels, !useGrayscaleLuts);
 
 		imgOutput.getRaster().setDataElements(0, 0, imgOutput.getWidth(), imgOutput.getHeight(), pixels);
 		
@@ -514,6 +562,22 @@ public class ImageDisplay extends AbstractImageRenderer {
 	}
 
 
+	/**
+	 * Get an int array of exactly the specified length, reusing an existing array for the current thread if possible.
+	 * 
+	 * @param n
+	 * @return
+	 */
+	private static int[] getPixelBuffer(int n) {
+		int[] pixels = pixelBuffer.get();
+		if (pixels == null || pixels.length != n) {
+			pixels = new int[n];
+			pixelBuffer.set(pixels);
+		}
+		return pixels;
+	}
+
+
 	public String getTransformedValueAsString(BufferedImage img, int x, int y) {
 		if (selectedChannels == null || selectedChannels.isEmpty() || selectedChannels.get(0) == null)
 			return "";
@@ -541,23 +605,99 @@ public class ImageDisplay extends AbstractImageRenderer {
 
 
 	private void updateHistogramMap() {
+		pendingAutoDisplayRange.clear();
 		ImageServer<BufferedImage> server = imageData == null ? null : imageData.getServer();
 		if (server == null) {
 			histogramManager = null;
 			return;
 		}
 		
+		Path path = getHistogramPath(imageData);
 		histogramManager = cachedHistograms.get(server.getPath());
 		if (histogramManager == null) {
-			histogramManager = new HistogramManager(0L);
-//			histogramManager = new HistogramManager(server.getLastChangeTimestamp());
-			histogramManager.ensureChannels(server, channelOptions);
-			channelOptions.stream().forEach(channel -> autoSetDisplayRange(channel, false));
+			histogramManager = new HistogramManager(server);
+			histogramManager.read(path);
 			cachedHistograms.put(server.getPath(), histogramManager);
-		} else {
-			channelOptions.stream().forEach(channel -> autoSetDisplayRange(channel, false));
+		}
+		
+		// Histograms are computed in the background, so set the display range for each channel when it becomes available
+		var manager = histogramManager;
+		manager.ensureChannels(channelOptions).thenRun(() -> manager.writeAsync(path));
+		pendingAutoDisplayRange.addAll(channelOptions);
+		for (ChannelDisplayInfo channel : channelOptions) {
+			manager.getHistogramFuture(channel).thenAccept(h -> runOnApplicationThread(() -> histogramAvailable(manager, channel)));
+		}
+	}
+	
+	/**
+	 * Update the display range for a channel after its histogram has been computed.
+	 */
+	private void histogramAvailable(HistogramManager manager, ChannelDisplayInfo channel) {
+		if (manager != histogramManager || !channelOptions.contains(channel))
+			return;
+		Histogram histogram = manager.getHistogram(channel, false);
+		if (histogram == null)
+			return;
+		// If we have more than an 8-bit image, set the display range according to actual values
+		if (channel instanceof ModifiableChannelDisplayInfo) {
+			if (!histogram.isInteger() || channel.getMaxAllowed() > 255) {
+				((ModifiableChannelDisplayInfo)channel).setMinMaxAllowed(
+						(float)Math.min(0, histogram.getMinValue()), (float)histogram.getMaxValue());
+			}
+		}
+		if (pendingAutoDisplayRange.remove(channel)) {
+			autoSetDisplayRange(channel, histogram, PathPrefs.getAutoBrightnessContrastSaturationPercent()/100.0, false);
+			updateChangeTimestamp();
 		}
 	}
+	
+	private static void runOnApplicationThread(Runnable runnable) {
+		if (Platform.isFxApplicationThread())
+			runnable.run();
+		else {
+			try {
+				Platform.runLater(runnable);
+			} catch (IllegalStateException e) {
+				// JavaFX toolkit not initialized (e.g. if used from a script)
+				runnable.run();
+			}
+		}
+	}
+	
+	/**
+	 * Get the path where histograms should be stored for an image - which is alongside the server metadata, 
+	 * if the image data has been saved within a project.
+	 * 
+	 * @param imageData
+	 * @return the path, or null if the histograms should not be stored
+	 */
+	static Path getHistogramPath(ImageData<?> imageData) {
+		String savedPath = imageData == null ? null : imageData.getLastSavedPath();
+		if (savedPath == null)
+			return null;
+		Path dir = Paths.get(savedPath).getParent();
+		if (dir == null || !Files.exists(dir.resolve("server.json")))
+			return null;
+		return dir.resolve(HistogramManager.HISTOGRAM_FILE_NAME);
+	}
+	
+	/**
+	 * Notify the display that a tile is available, which may be used to refine the histograms 
+	 * if it has a higher resolution than was used to compute them originally.
+	 * <p>
+	 * This returns immediately, with any refinement being performed in the background.
+	 * 
+	 * @param serverPath
+	 * @param region
+	 * @param tile
+	 */
+	public void tileAvailable(String serverPath, ImageRegion region, BufferedImage tile) {
+		var manager = histogramManager;
+		var server = getServer();
+		if (manager == null || server == null || !server.getPath().equals(serverPath))
+			return;
+		manager.refine(region, tile);
+	}
 
 
 
@@ -605,16 +745,21 @@ public class ImageDisplay extends AbstractImageRenderer {
 		setMinMaxDisplay(info, (float)minDisplay, (float)maxDisplay, fireUpdate);
 	}
 
-	void autoSetDisplayRange(ChannelDisplayInfo info, boolean fireUpdate) {
-		autoSetDisplayRange(info, getHistogram(info), PathPrefs.getAutoBrightnessContrastSaturationPercent()/100.0, fireUpdate);
-	}
-
 	public void autoSetDisplayRange(ChannelDisplayInfo info) {
-		autoSetDisplayRange(info, getHistogram(info), PathPrefs.getAutoBrightnessContrastSaturationPercent()/100.0, true);
+		autoSetDisplayRange(info, PathPrefs.getAutoBrightnessContrastSaturationPercent()/100.0);
 	}
 	
+	/**
+	 * Set the display range for a channel automatically, waiting for the histogram to be computed if necessary.
+	 * 
+	 * @param info
+	 * @param saturation
+	 */
 	public void autoSetDisplayRange(ChannelDisplayInfo info, double saturation) {
-		autoSetDisplayRange(info, getHistogram(info), saturation, true);
+		pendingAutoDisplayRange.remove(info);
+		var manager = histogramManager;
+		Histogram histogram = info == null || manager == null ? null : manager.getHistogram(info, true);
+		autoSetDisplayRange(info, histogram, saturation, true);
 	}
 
 	
@@ -624,14 +769,19 @@ public class ImageDisplay extends AbstractImageRenderer {
 	
 
 	/**
-	 * Returns a histogram for a ChannelInfo, or none if no histogram is available (e.g. the channel is RGB)
+	 * Returns a histogram for a ChannelInfo, or null if no histogram is available (e.g. the channel is RGB).
+	 * <p>
+	 * If necessary, this waits for the coarse histogram to be computed from the lowest-resolution images. 
+	 * It does not wait for any refinement using higher-resolution tiles, but rather returns the histogram 
+	 * as it is currently - so later calls may return a more accurate histogram.
 	 * @param info
 	 * @return
 	 */
 	public Histogram getHistogram(ChannelDisplayInfo info) {
-		if (info == null || histogramManager == null)
+		var manager = histogramManager;
+		if (info == null || manager == null)
 			return null;
-		return histogramManager.getHistogram(getServer(), info);
+		return manager.getHistogram(info, true);
 	}
 
 	
@@ -743,23 +893,58 @@ public class ImageDisplay extends AbstractImageRenderer {
 	
 	
 	
+	/**
+	 * Helper class to compute &amp; cache histograms for the channels of an image.
+	 * <p>
+	 * Histograms are initially computed in the background from the lowest-resolution images (one per z-slice &amp; timepoint), 
+	 * with all channels processed in parallel.  They may then be refined using higher-resolution tiles as these 
+	 * become available, and stored alongside the server metadata of a project entry - so that they don't need to be 
+	 * computed again whenever the image is reopened.
+	 * <p>
+	 * Counts are stored using a fixed number of bins per channel, so the memory required does not depend 
+	 * upon the number of pixels.
+	 * Histograms for mutable channels (e.g. those depending upon stain vectors) are recomputed whenever they are requested.
+	 */
 	static class HistogramManager {
 		
-		private static int NUM_BINS = 1024;
+		private static final ExecutorService pool = Executors.newFixedThreadPool(
+				Math.max(1, Runtime.getRuntime().availableProcessors() / 2), new SimpleThreadFactory("histograms-", true));
 		
-		private Map<String, Histogram> map = Collections.synchronizedMap(new LinkedHashMap<>());
+		/**
+		 * Name of the file used to store histograms, alongside the server metadata.
+		 */
+		static final String HISTOGRAM_FILE_NAME = "histograms.json";
 		
-		private long timestamp;
+		private static final int VERSION = 1;
 		
-		HistogramManager(long timestamp) {
-			this.timestamp = timestamp;
-		}
+		/**
+		 * Maximum number of tiles that may be used to refine the histograms.
+		 */
+		static final int MAX_REFINEMENT_TILES = 2000;
 		
-		long getTimestamp() {
-			return timestamp;
+		/**
+		 * Maximum number of tiles that may be waiting to be used for refinement; any more will be skipped.
+		 */
+		private static final int MAX_PENDING_TILES = 4;
+		
+		private final ImageServer<BufferedImage> server;
+		
+		private final Map<String, CompletableFuture<HistogramAccumulator>> map = new ConcurrentHashMap<>();
+		private final Map<String, SingleChannelDisplayInfo> channels = new ConcurrentHashMap<>();
+		
+		private final Set<String> refinedTiles = ConcurrentHashMap.newKeySet();
+		// Pixels of the lowest-resolution images that have been replaced by refinement, for each z-slice &amp; timepoint
+		private final Map<Integer, BitSet> refinedPixels = new HashMap<>();
+		private final AtomicInteger pendingTiles = new AtomicInteger();
+		
+		private volatile double baseDownsample = Double.NaN;
+		private volatile boolean isChanged = false;
+		
+		HistogramManager(final ImageServer<BufferedImage> server) {
+			this.server = server;
 		}
 		
-		List<BufferedImage> getRequiredImages(final ImageServer<BufferedImage> server) {
+		List<BufferedImage> getRequiredImages() {
 			// Request default thumbnails (at lowest available resolution)
 			int nImages = server.nTimepoints() * server.nZSlices();
 			return IntStream.range(0, nImages).parallel().mapToObj(i -> {
@@ -778,80 +963,335 @@ public class ImageDisplay extends AbstractImageRenderer {
 			return channel.getClass().getName() + "::" + channel.getName();
 		}
 		
-		void ensureChannels(final ImageServer<BufferedImage> server, final List<ChannelDisplayInfo> channels) {
-//			if (timestamp != server.getLastChangeTimestamp()) {
-//				logger.warn("Timestamp changed for server!  Histograms will be rebuilt for {}", server.getPath());
-//				map.clear();
-//			}
+		/**
+		 * Request that histograms are computed for the specified channels, if they are not already available.
+		 * This returns immediately, with the histograms being computed in the background.
+		 * 
+		 * @param channels
+		 * @return a future that completes when all the histograms are available
+		 */
+		CompletableFuture<Void> ensureChannels(final List<ChannelDisplayInfo> channels) {
 			// Check what we might need to process
 			List<SingleChannelDisplayInfo> channelsToProcess = new ArrayList<>();
-			for (ChannelDisplayInfo channel : channels) {
-				if (map.containsKey(getKey(channel)))
+			List<CompletableFuture<HistogramAccumulator>> futures = new ArrayList<>();
+			synchronized (map) {
+				for (ChannelDisplayInfo channel : channels) {
+					String key = getKey(channel);
+					if (channel instanceof SingleChannelDisplayInfo)
+						this.channels.put(key, (SingleChannelDisplayInfo)channel);
+					var future = map.get(key);
+					if (future == null) {
+						if (channel instanceof SingleChannelDisplayInfo) {
+							channelsToProcess.add((SingleChannelDisplayInfo)channel);
+							continue;
+						}
+						future = CompletableFuture.completedFuture(null);
+						map.put(key, future);
+					}
+					futures.add(future);
+				}
+				if (!channelsToProcess.isEmpty()) {
+					logger.debug("Building {} histograms for {}", channelsToProcess.size(), server.getPath());
+					long startTime = System.currentTimeMillis();
+					
+					// Request the lowest-resolution images once, then process each channel in parallel
+					var images = CompletableFuture.supplyAsync(() -> getRequiredImages(), pool);
+					List<CompletableFuture<HistogramAccumulator>> newFutures = new ArrayList<>();
+					for (SingleChannelDisplayInfo channel : channelsToProcess) {
+						var future = images.thenApplyAsync(imgs -> buildHistogram(channel, imgs), pool);
+						map.put(getKey(channel), future);
+						newFutures.add(future);
+					}
+					CompletableFuture.allOf(newFutures.toArray(CompletableFuture[]::new)).whenComplete((v, e) -> {
+						if (e != null)
+							logger.error("Error building histograms for " + server.getPath(), e);
+						else
+							logger.debug("Histograms built in {} ms", (System.currentTimeMillis() - startTime));
+					});
+					futures.addAll(newFutures);
+				}
+			}
+			return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+		}
+		
+		private HistogramAccumulator buildHistogram(final SingleChannelDisplayInfo channel, final List<BufferedImage> images) {
+			var histogram = new HistogramAccumulator();
+			float[] values = null;
+			for (BufferedImage img : images) {
+				double downsample = (double)server.getWidth() / img.getWidth();
+				values = channel.getValues(img, 0, 0, img.getWidth(), img.getHeight(), values);
+				histogram.addValues(values, img.getWidth() * img.getHeight(), getWeight(downsample));
+				if (!(downsample <= baseDownsample))
+					baseDownsample = downsample;
+			}
+			if (!channel.isMutable())
+				isChanged = true;
+			return histogram;
+		}
+		
+		/**
+		 * Weight pixels by the area they represent in the full-resolution image, so that images at different 
+		 * resolutions can contribute to the same histogram.
+		 */
+		private static long getWeight(final double downsample) {
+			return Math.max(1L, Math.round(downsample * downsample));
+		}
+		
+		/**
+		 * Get the histogram for a channel.
+		 * 
+		 * @param channel
+		 * @param wait if true, wait for the histogram to be computed if necessary; otherwise return null if it is not yet available
+		 * @return
+		 */
+		Histogram getHistogram(final ChannelDisplayInfo channel, final boolean wait) {
+			// Always recompute histogram for mutable channels
+			if (channel instanceof SingleChannelDisplayInfo && ((SingleChannelDisplayInfo)channel).isMutable())
+				return buildHistogram((SingleChannelDisplayInfo)channel, getRequiredImages()).toHistogram();
+			var future = getHistogramFuture(channel);
+			if (!wait && !future.isDone())
+				return null;
+			try {
+				var histogram = future.get();
+				return histogram == null ? null : histogram.toHistogram();
+			} catch (InterruptedException | ExecutionException e) {
+				logger.warn("Unable to compute histogram for {}: {}", channel, e.getLocalizedMessage());
+				return null;
+			}
+		}
+		
+		/**
+		 * Get a future that completes when the histogram for a channel has been computed from the lowest-resolution images.
+		 * @param channel
+		 * @return
+		 */
+		CompletableFuture<HistogramAccumulator> getHistogramFuture(final ChannelDisplayInfo channel) {
+			String key = getKey(channel);
+			var future = map.get(key);
+			if (future == null) {
+				ensureChannels(Collections.singletonList(channel));
+				future = map.get(key);
+			}
+			return future;
+		}
+		
+		/**
+		 * Update the histograms using a higher-resolution tile, if the region it covers hasn't been refined already.
+		 * <p>
+		 * The pixels of the lowest-resolution image within the region are removed from the histograms, and replaced by 
+		 * the pixels of the tile - so that the total weight always corresponds to the area of the full-resolution image.
+		 * <p>
+		 * This returns immediately, with the tile being processed in the background - or skipped 
+		 * if too many tiles are already waiting.
+		 * 
+		 * @param region the region of the full-resolution image corresponding to the tile
+		 * @param tile
+		 * @return a future that completes when the tile has been processed, or null if the tile was skipped
+		 */
+		CompletableFuture<Void> refine(final ImageRegion region, final BufferedImage tile) {
+			if (tile == null || refinedTiles.size() >= MAX_REFINEMENT_TILES)
+				return null;
+			// Only use tiles with a higher resolution than was used originally
+			double baseDownsample = this.baseDownsample;
+			double downsample = (double)region.getWidth() / tile.getWidth();
+			if (!(downsample < baseDownsample / 1.5))
+				return null;
+			// Only refine channels where the initial histogram is complete
+			Map<SingleChannelDisplayInfo, HistogramAccumulator> toRefine = new LinkedHashMap<>();
+			for (var entry : channels.entrySet()) {
+				var channel = entry.getValue();
+				var future = map.get(entry.getKey());
+				if (channel.isMutable() || future == null || !future.isDone() || future.isCompletedExceptionally())
 					continue;
-				else if (channel instanceof SingleChannelDisplayInfo)
-					channelsToProcess.add((SingleChannelDisplayInfo)channel);
-				else
-					map.put(getKey(channel), null);
+				var histogram = future.join();
+				if (histogram != null)
+					toRefine.put(channel, histogram);
 			}
-			if (channelsToProcess.isEmpty())
-				return;
-			
-			logger.debug("Building {} histograms for {}", channelsToProcess.size(), server.getPath());
-			long startTime = System.currentTimeMillis();
-
-			// Request appropriate images to use for histogram
-			List<BufferedImage> imgList = getRequiredImages(server);
-			
-			// Count number of pixels
-			long nPixels = imgList.stream().mapToLong(img -> img.getWidth() * img.getHeight()).sum();
-			
-			if (nPixels > Integer.MAX_VALUE) {
-				logger.warn("Too many pixels required for histogram ({})!  Will truncate to the first {} values", nPixels, Integer.MAX_VALUE);
-				nPixels = Integer.MAX_VALUE;
+			if (toRefine.isEmpty())
+				return null;
+			if (pendingTiles.incrementAndGet() > MAX_PENDING_TILES) {
+				pendingTiles.decrementAndGet();
+				return null;
+			}
+			String key = String.format("%d,%d,%d,%d,%d,%d,%d", region.getX(), region.getY(), region.getWidth(), region.getHeight(), region.getZ(), region.getT(), tile.getWidth());
+			if (refinedTiles.contains(key) || !markRefined(region, baseDownsample)) {
+				pendingTiles.decrementAndGet();
+				return null;
 			}
-			float[] values = null; // Array needed for values for a particular channel
-			float[] pixels = null; // Array needed for all values if there are multiple thumbnails
-			if (imgList.size() > 1)
-				pixels = new float[(int)nPixels];
-			for (SingleChannelDisplayInfo channel : channelsToProcess) {
-				int counter = 0;
-				for (BufferedImage img : imgList) {
-					values = channel.getValues(img, 0, 0, img.getWidth(), img.getHeight(), values);
-					if (pixels != null) {
-						System.arraycopy(values, 0, pixels, counter, Math.min(values.length, Integer.MAX_VALUE-counter));
+			refinedTiles.add(key);
+			long weight = getWeight(downsample);
+			long baseWeight = getWeight(baseDownsample);
+			return CompletableFuture.runAsync(() -> {
+				try {
+					// Get the pixels of the lowest-resolution image that the tile replaces
+					BufferedImage imgBase = server.getDefaultThumbnail(region.getZ(), region.getT());
+					Rectangle bounds = getBaseBounds(region, baseDownsample).intersection(new Rectangle(imgBase.getWidth(), imgBase.getHeight()));
+					float[] values = null;
+					int n = tile.getWidth() * tile.getHeight();
+					for (var entry : toRefine.entrySet()) {
+						var channel = entry.getKey();
+						var histogram = entry.getValue();
+						if (!bounds.isEmpty()) {
+							values = channel.getValues(imgBase, bounds.x, bounds.y, bounds.width, bounds.height, values);
+							histogram.removeValues(values, bounds.width * bounds.height, baseWeight);
+						}
+						values = channel.getValues(tile, 0, 0, tile.getWidth(), tile.getHeight(), values);
+						histogram.addValues(values, n, weight);
 					}
-					counter += values.length;
-					if (counter >= Integer.MAX_VALUE)
-						break;
+					isChanged = true;
+				} catch (Exception e) {
+					logger.debug("Unable to refine histograms: {}", e.getLocalizedMessage());
+				} finally {
+					pendingTiles.decrementAndGet();
 				}
-				Histogram histogram = new Histogram(values, NUM_BINS);
-				
-				// If we have more than an 8-bit image, set the display range according to actual values
-				if (channel instanceof ModifiableChannelDisplayInfo) {
-					if (!histogram.isInteger() || channel.getMaxAllowed() > 255) {
-						((ModifiableChannelDisplayInfo)channel).setMinMaxAllowed(
-								(float)Math.min(0, histogram.getMinValue()), (float)histogram.getMaxValue());
+			}, pool);
+		}
+		
+		/**
+		 * Get the pixels of the lowest-resolution image corresponding to a region.
+		 * Boundaries are rounded, so that adjacent regions never share any pixels.
+		 */
+		private static Rectangle getBaseBounds(final ImageRegion region, final double baseDownsample) {
+			int x1 = (int)Math.round(region.getX() / baseDownsample);
+			int y1 = (int)Math.round(region.getY() / baseDownsample);
+			int x2 = (int)Math.round((region.getX() + region.getWidth()) / baseDownsample);
+			int y2 = (int)Math.round((region.getY() + region.getHeight()) / baseDownsample);
+			return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+		}
+		
+		/**
+		 * Record that the lowest-resolution pixels corresponding to a region have been refined.
+		 * @return true if the region was recorded, false if any of its pixels have been refined already
+		 */
+		private boolean markRefined(final ImageRegion region, final double baseDownsample) {
+			Rectangle bounds = getBaseBounds(region, baseDownsample);
+			int gridWidth = (int)Math.ceil(server.getWidth() / baseDownsample) + 1;
+			int gridHeight = (int)Math.ceil(server.getHeight() / baseDownsample) + 1;
+			bounds = bounds.intersection(new Rectangle(gridWidth, gridHeight));
+			if (bounds.isEmpty())
+				return false;
+			synchronized (refinedPixels) {
+				BitSet bits = refinedPixels.computeIfAbsent(region.getT() * server.nZSlices() + region.getZ(), i -> new BitSet());
+				for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+					int ind = y * gridWidth + bounds.x;
+					int next = bits.nextSetBit(ind);
+					if (next >= 0 && next < ind + bounds.width)
+						return false;
+				}
+				for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+					int ind = y * gridWidth + bounds.x;
+					bits.set(ind, ind + bounds.width);
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Check if the histograms have changed since they were last read or written.
+		 * @return
+		 */
+		boolean isChanged() {
+			return isChanged;
+		}
+		
+		/**
+		 * Read previously-stored histograms, if available.
+		 * Any histograms read in this way will not be recomputed.
+		 * 
+		 * @param path
+		 * @return true if histograms were read, false otherwise
+		 */
+		boolean read(final Path path) {
+			if (path == null || !Files.exists(path))
+				return false;
+			try (var reader = Files.newBufferedReader(path)) {
+				var stored = new Gson().fromJson(reader, StoredHistograms.class);
+				if (stored == null || stored.version != VERSION || !server.getPath().equals(stored.serverPath) || stored.histograms == null)
+					return false;
+				synchronized (map) {
+					for (var entry : stored.histograms.entrySet())
+						map.putIfAbsent(entry.getKey(), CompletableFuture.completedFuture(entry.getValue()));
+				}
+				baseDownsample = stored.baseDownsample;
+				if (stored.tiles != null) {
+					refinedTiles.addAll(stored.tiles);
+					for (String key : stored.tiles) {
+						String[] parts = key.split(",");
+						if (parts.length != 7)
+							continue;
+						int[] v = Arrays.stream(parts).mapToInt(Integer::parseInt).toArray();
+						markRefined(ImageRegion.createInstance(v[0], v[1], v[2], v[3], v[4], v[5]), baseDownsample);
 					}
 				}
-				
-				map.put(getKey(channel), histogram);
+				isChanged = false;
+				logger.debug("Read {} histograms from {}", stored.histograms.size(), path);
+				return true;
+			} catch (Exception e) {
+				logger.warn("Unable to read histograms from {}: {}", path, e.getLocalizedMessage());
+				return false;
 			}
-			long endTime = System.currentTimeMillis();
-			logger.debug("Histograms built in {} ms", (endTime - startTime));
 		}
 		
-		Histogram getHistogram(final ImageServer<BufferedImage> server, final ChannelDisplayInfo channel) {
-			if (channel instanceof SingleChannelDisplayInfo) {
-				// Always recompute histogram for mutable channels
-				if (((SingleChannelDisplayInfo)channel).isMutable()) {
-					map.remove(getKey(channel));
+		/**
+		 * Write all the completed histograms for immutable channels in the background.
+		 * 
+		 * @param path
+		 */
+		void writeAsync(final Path path) {
+			if (path == null || !isChanged)
+				return;
+			pool.execute(() -> write(path));
+		}
+		
+		synchronized void write(final Path path) {
+			var stored = new StoredHistograms();
+			stored.version = VERSION;
+			stored.serverPath = server.getPath();
+			stored.baseDownsample = baseDownsample;
+			stored.tiles = new ArrayList<>(refinedTiles);
+			if (Double.isNaN(stored.baseDownsample))
+				return;
+			isChanged = false;
+			var gson = new Gson();
+			var json = gson.toJsonTree(stored).getAsJsonObject();
+			var jsonHistograms = new JsonObject();
+			for (var entry : map.entrySet()) {
+				var channel = channels.get(entry.getKey());
+				var future = entry.getValue();
+				if (channel == null || channel.isMutable() || !future.isDone() || future.isCompletedExceptionally())
+					continue;
+				var histogram = future.join();
+				if (histogram == null)
+					continue;
+				synchronized (histogram) {
+					if (histogram.getCount() > 0)
+						jsonHistograms.add(entry.getKey(), gson.toJsonTree(histogram));
 				}
 			}
-			ensureChannels(server, Collections.singletonList(channel));
-			return map.get(getKey(channel));
+			json.add("histograms", jsonHistograms);
+			try {
+				Files.writeString(path, gson.toJson(json));
+				logger.debug("Histograms written to {}", path);
+			} catch (IOException e) {
+				logger.warn("Unable to write histograms to {}: {}", path, e.getLocalizedMessage());
+			}
 		}
 		
 	}
 	
+	
+	/**
+	 * Histograms in the form used for storage.
+	 */
+	static class StoredHistograms {
+		
+		private int version;
+		private String serverPath;
+		private double baseDownsample;
+		private List<String> tiles;
+		private Map<String, HistogramAccumulator> histograms;
+		
+	}
+	
 
 }
@@ -306,6 +306,7 @@ import qupath.lib.gui.viewer.tools.PolylineTool;
 import qupath.lib.gui.viewer.tools.RectangleTool;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.ImageData.ImageType;
+import qupath.lib.images.servers.DiskTileCache;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerBuilder;
 import qupath.lib.images.servers.ImageServerProvider;
@@ -323,6 +324,7 @@ import qupath.lib.objects.helpers.PathObjectTools;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.objects.hierarchy.TMAGrid;
 import qupath.lib.plugins.AbstractPluginRunner;
+import qupath.lib.plugins.DetectionPluginTools;
 import qupath.lib.plugins.PathInteractivePlugin;
 import qupath.lib.plugins.PathPlugin;
 import qupath.lib.plugins.objects.DilateAnnotationPlugin;
@@ -533,6 +535,18 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 		AbstractPluginRunner.setNumThreadsRequested(PathPrefs.getNumCommandThreads());
 		PathPrefs.numCommandThreadsProperty().addListener(o -> AbstractPluginRunner.setNumThreadsRequested(PathPrefs.getNumCommandThreads()));
 		
+		// Choose whether detections should be loaded from data files on demand
+		PathIO.setDeferDetectionLoading(PathPrefs.deferDetectionLoadingProperty().get());
+		PathPrefs.deferDetectionLoadingProperty().addListener((v, o, n) -> PathIO.setDeferDetectionLoading(n));
+		
+		// Choose whether detection measurements should be stored in columns when data files are read
+		PathIO.setUseColumnarMeasurements(PathPrefs.useColumnarMeasurementsProperty().get());
+		PathPrefs.useColumnarMeasurementsProperty().addListener((v, o, n) -> PathIO.setUseColumnarMeasurements(n));
+		
+		// Choose whether detections should be moved out of memory during tiled detection
+		DetectionPluginTools.setStreamDetections(PathPrefs.streamDetectionsProperty().get());
+		PathPrefs.streamDetectionsProperty().addListener((v, o, n) -> DetectionPluginTools.setStreamDetections(n));
+		
 		// Activate the log at an early stage
 		Action actionLog = getAction(GUIActions.SHOW_LOG);
 		
@@ -777,6 +791,7 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 		
 		// Listen for cache request changes
 		PathPrefs.useProjectImageCacheProperty().addListener(v -> updateProjectActionStates());
+		PathPrefs.projectImageCacheSizeMBProperty().addListener(v -> updateProjectActionStates());
 		
 		// Menus should now be complete
 		initializingMenus.set(false);
@@ -3606,13 +3621,13 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 		case CONVEX_POINTS:
 			PathPrefs.showPointHullsProperty().addListener(e -> {
 				for (QuPathViewer v : getViewers())
-					v.repaint();
+					v.repaintOverlays();
 			});
 			return createSelectableCommandAction(PathPrefs.showPointHullsProperty(), "Show point convex hull");
 		case USE_SELECTED_COLOR:
 			PathPrefs.useSelectedColorProperty().addListener(e -> {
 				for (QuPathViewer v : getViewers())
-					v.repaint();
+					v.repaintOverlays();
 			});
 			return createSelectableCommandAction(PathPrefs.useSelectedColorProperty(), "Use selected color for points");
 		case DETECTIONS_TO_POINTS:
@@ -4589,6 +4604,29 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 			}
 		}
 		URLHelpers.setCacheFileSystem(fileSystem, fileSystemRoot);
+		
+		// Ensure the persistent tile cache is using the same directory
+		File dirTiles = fileSystemRoot == null ? null : new File(fileSystemRoot, "tiles");
+		long maxTileCacheBytes = PathPrefs.projectImageCacheSizeMBProperty().get() * 1024L * 1024L;
+		DiskTileCache diskTileCache = ImageServerProvider.getDiskTileCache();
+		if (diskTileCache != null) {
+			// Resize the existing cache if we can, rather than needing to index it again
+			if (diskTileCache.getDirectory().equals(dirTiles)) {
+				if (diskTileCache.getMaxSizeBytes() != maxTileCacheBytes)
+					diskTileCache.setMaxSizeBytes(maxTileCacheBytes);
+				return;
+			}
+			diskTileCache.close();
+			diskTileCache = null;
+		}
+		if (dirTiles != null) {
+			try {
+				diskTileCache = new DiskTileCache(dirTiles, maxTileCacheBytes);
+			} catch (IOException e) {
+				logger.error("Unable to create tile cache in " + dirTiles, e);
+			}
+		}
+		ImageServerProvider.setDiskTileCache(diskTileCache);
 	}
 	
 	
@@ -5052,7 +5090,7 @@ public class QuPathGUI implements ModeWrapper, ImageDataWrapper<BufferedImage>,
 		
 		public void repaintViewers() {
 			for (QuPathViewer v : viewers)
-				v.repaint();
+				v.repaintOverlays();
 		}
 
 		@Override
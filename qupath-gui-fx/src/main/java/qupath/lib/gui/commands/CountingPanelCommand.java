@@ -115,7 +115,7 @@ public class CountingPanelCommand implements PathCommand, ImageDataChangeListene
 		sliderRadius.valueProperty().addListener(event -> {
 			PathPrefs.setDefaultPointRadius((int)sliderRadius.getValue());
 //			PathPrefs.setMinPointSeparation(sliderRadius.getValue());
-			qupath.getViewer().repaint();
+			qupath.getViewer().repaintOverlays();
 			}
 		);
 		
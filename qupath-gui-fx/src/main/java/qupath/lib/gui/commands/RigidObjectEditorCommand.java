@@ -181,7 +181,7 @@ public class RigidObjectEditorCommand implements PathCommand, ImageDataChangeLis
 		// Reset any existing editor (and its visible handles)
 		viewer.getROIEditor().setROI(null);
 		
-		viewer.repaint();
+		viewer.repaintOverlays();
 //		tempObject = createTransformedObject();
 //		((PathAnnotationObject)tempObject).setLocked(true);
 //		viewer.setSelectedObject(tempObject);
@@ -341,7 +341,7 @@ public class RigidObjectEditorCommand implements PathCommand, ImageDataChangeLis
 				ROI roiTransformed = transformer.getTransformedROI(entry.getValue());
 				((PathROIObject)entry.getKey()).setROI(roiTransformed);
 			}
-			viewer.repaint();
+			viewer.repaintOverlays();
 		}
 		
 		
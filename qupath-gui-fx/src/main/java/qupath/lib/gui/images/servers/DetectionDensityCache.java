@@ -0,0 +1,582 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.servers;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import qupath.lib.gui.objects.helpers.PathObjectColorToolsAwt;
+import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.helpers.PathObjectTools;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Cache of detection densities, used to paint detections at low resolution without needing to paint each object individually.
+ * <p>
+ * Detections are counted in square bins according to the centers of their bounding boxes, separately for each class and color.
+ * Bins are grouped into blocks of {@link #BINS_PER_BLOCK} x {@link #BINS_PER_BLOCK}, which are computed on demand and cached.
+ * Several levels are available, with the bin size doubling at each level, so that the cost of painting a region
+ * depends upon the number of bins rather than the number of objects.
+ * <p>
+ * The cache should be registered as a listener to the hierarchy. Cached blocks are then updated in place when detections 
+ * are added, removed or reclassified, and are only recomputed after more complex structural changes.
+ *
+ * @author Pete Bankhead
+ *
+ */
+class DetectionDensityCache implements PathObjectHierarchyListener {
+
+	/**
+	 * Number of bins along each side of a block.
+	 */
+	static final int BINS_PER_BLOCK = 64;
+
+	/**
+	 * Bin size at the highest resolution level, in pixels.
+	 */
+	static final int MIN_BIN_SIZE = 4;
+
+	/**
+	 * Maximum number of blocks to cache across all levels.
+	 */
+	private static final int MAX_BLOCKS = 1024;
+
+	private final PathObjectHierarchy hierarchy;
+
+	// Incremented whenever blocks are invalidated, so that blocks computed concurrently are not cached
+	private final AtomicLong version = new AtomicLong();
+
+	@SuppressWarnings("serial")
+	private final Map<BlockKey, DensityBlock> blocks = Collections.synchronizedMap(new LinkedHashMap<>(64, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<BlockKey, DensityBlock> eldest) {
+			return size() > MAX_BLOCKS;
+		}
+	});
+
+	// The counted values for all detections in cached blocks, so that they can be subtracted when the detections change
+	// Guarded by the lock on blocks
+	private final Map<PathObject, CountedObject> counted = new HashMap<>();
+
+	DetectionDensityCache(final PathObjectHierarchy hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Get the bin size to use for a specified downsample; this is the largest available bin size that is no larger than the downsample,
+	 * so that each bin is painted to at most one pixel and bins are never downsampled by more than a factor of 2.
+	 *
+	 * @param downsample
+	 * @return
+	 */
+	static int getBinSize(final double downsample) {
+		int binSize = MIN_BIN_SIZE;
+		while (binSize * 2 <= downsample)
+			binSize *= 2;
+		return binSize;
+	}
+
+	/**
+	 * Get all the blocks required to paint a region at a specified downsample, computing them if necessary.
+	 *
+	 * @param region
+	 * @param downsample
+	 * @return
+	 */
+	List<DensityBlock> getBlocks(final ImageRegion region, final double downsample) {
+		int binSize = getBinSize(downsample);
+		int blockSize = binSize * BINS_PER_BLOCK;
+		int bx1 = Math.floorDiv(region.getMinX(), blockSize);
+		int by1 = Math.floorDiv(region.getMinY(), blockSize);
+		int bx2 = Math.floorDiv(region.getMaxX() - 1, blockSize);
+		int by2 = Math.floorDiv(region.getMaxY() - 1, blockSize);
+		List<DensityBlock> list = new ArrayList<>();
+		for (int by = by1; by <= by2; by++) {
+			for (int bx = bx1; bx <= bx2; bx++)
+				list.add(getBlock(new BlockKey(binSize, region.getZ(), region.getT(), bx, by)));
+		}
+		return list;
+	}
+
+	private DensityBlock getBlock(final BlockKey key) {
+		DensityBlock block = blocks.get(key);
+		if (block != null)
+			return block;
+		long currentVersion = version.get();
+		List<CountedObject> countedObjects = new ArrayList<>();
+		block = new DensityBlock(key, hierarchy, countedObjects);
+		// Only cache the block if nothing has changed in the meantime
+		synchronized (blocks) {
+			if (currentVersion == version.get()) {
+				blocks.put(key, block);
+				for (CountedObject countedObject : countedObjects)
+					counted.put(countedObject.pathObject, countedObject);
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * Update cached blocks to reflect changes in the hierarchy.
+	 * <p>
+	 * Added, removed and reclassified detections are applied to the bin counts of cached blocks directly.
+	 * Other structural changes cause blocks overlapping the changed object to be recomputed, or all blocks 
+	 * if the change affects the whole hierarchy.
+	 * <p>
+	 * Events are fired while the hierarchy's write lock is held, so blocks computed concurrently cannot miss a change 
+	 * that is not applied to them here.
+	 */
+	@Override
+	public void hierarchyChanged(final PathObjectHierarchyEvent event) {
+		switch (event.getEventType()) {
+		case ADDED:
+		case REMOVED:
+			List<PathObject> changed = new ArrayList<>();
+			for (PathObject pathObject : event.getChangedObjects())
+				PathObjectTools.getFlattenedObjectList(pathObject, changed, true);
+			update(changed, event.getEventType() == PathObjectHierarchyEvent.HierarchyEventType.REMOVED);
+			break;
+		case CHANGE_CLASSIFICATION:
+		case CHANGE_OTHER:
+			update(event.getChangedObjects(), false);
+			break;
+		case OTHER_STRUCTURE_CHANGE:
+			PathObject base = event.getStructureChangeBase();
+			if (base == null || base.isRootObject() || base.getROI() == null)
+				invalidateAll();
+			else
+				invalidate(ImageRegion.createInstance(base.getROI()));
+			break;
+		case CHANGE_MEASUREMENTS:
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Subtract the previous counts for the specified objects from any cached blocks, and add their current counts 
+	 * if they are still within the hierarchy.
+	 * 
+	 * @param pathObjects
+	 * @param removed true if the objects have been removed from the hierarchy
+	 */
+	private void update(final Collection<? extends PathObject> pathObjects, final boolean removed) {
+		synchronized (blocks) {
+			version.incrementAndGet();
+			Set<Integer> binSizes = new TreeSet<>();
+			for (BlockKey key : blocks.keySet())
+				binSizes.add(key.binSize);
+			Map<BlockKey, List<BinChange>> changes = new HashMap<>();
+			for (PathObject pathObject : pathObjects) {
+				CountedObject previous = counted.remove(pathObject);
+				if (previous != null)
+					addBinChanges(previous, -1, binSizes, changes);
+				if (removed || pathObject.getParent() == null)
+					continue;
+				CountedObject current = CountedObject.create(pathObject);
+				if (current != null && addBinChanges(current, 1, binSizes, changes))
+					counted.put(pathObject, current);
+			}
+			// Blocks may be painted concurrently, so are replaced rather than modified
+			for (Map.Entry<BlockKey, List<BinChange>> entry : changes.entrySet())
+				blocks.put(entry.getKey(), blocks.get(entry.getKey()).withChanges(entry.getValue()));
+		}
+	}
+
+	/**
+	 * Add the changes needed to apply the counts for one object to all the cached blocks containing it.
+	 * 
+	 * @return true if any cached block contains the object
+	 */
+	private boolean addBinChanges(final CountedObject countedObject, final int delta, final Collection<Integer> binSizes, final Map<BlockKey, List<BinChange>> changes) {
+		boolean inBlock = false;
+		for (int binSize : binSizes) {
+			int blockSize = binSize * BINS_PER_BLOCK;
+			int bx = (int)Math.floor(countedObject.x / blockSize);
+			int by = (int)Math.floor(countedObject.y / blockSize);
+			BlockKey key = new BlockKey(binSize, countedObject.z, countedObject.t, bx, by);
+			if (!blocks.containsKey(key))
+				continue;
+			int binX = (int)Math.floor((countedObject.x - key.getX()) / binSize);
+			int binY = (int)Math.floor((countedObject.y - key.getY()) / binSize);
+			if (binX < 0 || binY < 0 || binX >= BINS_PER_BLOCK || binY >= BINS_PER_BLOCK)
+				continue;
+			changes.computeIfAbsent(key, k -> new ArrayList<>()).add(new BinChange(countedObject, binY * BINS_PER_BLOCK + binX, delta));
+			inBlock = true;
+		}
+		return inBlock;
+	}
+
+	/**
+	 * Remove cached blocks overlapping a specified region, at all levels.
+	 * @param region
+	 */
+	void invalidate(final ImageRegion region) {
+		synchronized (blocks) {
+			version.incrementAndGet();
+			blocks.keySet().removeIf(key -> key.z == region.getZ() && key.t == region.getT() && region.intersects(key.getX(), key.getY(), key.getSize(), key.getSize()));
+			counted.values().removeIf(c -> c.z == region.getZ() && c.t == region.getT() && 
+					c.x >= region.getMinX() && c.x <= region.getMaxX() && c.y >= region.getMinY() && c.y <= region.getMaxY());
+		}
+	}
+
+	/**
+	 * Remove all cached blocks.
+	 */
+	void invalidateAll() {
+		synchronized (blocks) {
+			version.incrementAndGet();
+			blocks.clear();
+			counted.clear();
+		}
+	}
+
+	/**
+	 * Get the number of blocks currently cached, across all levels.
+	 * @return
+	 */
+	int size() {
+		return blocks.size();
+	}
+
+	/**
+	 * Get the mean size (maximum of bounding box width &amp; height) of detections in the specified blocks.
+	 *
+	 * @param blocks
+	 * @return the mean size, or NaN if the blocks contain no detections
+	 */
+	static double getMeanSize(final Collection<DensityBlock> blocks) {
+		double sum = 0;
+		long n = 0;
+		for (DensityBlock block : blocks) {
+			sum += block.sumSize;
+			n += block.nObjects;
+		}
+		return n == 0 ? Double.NaN : sum / n;
+	}
+
+	/**
+	 * Paint the densities for the specified blocks.
+	 * <p>
+	 * Each bin is painted using the mean color of the detections it contains, with an opacity based upon the
+	 * estimated proportion of the bin covered by detections. Hidden classes are excluded.
+	 *
+	 * @param g2d graphics object, transformed so that drawing uses the full-resolution image coordinates
+	 * @param blocks
+	 * @param overlayOptions
+	 */
+	static void paintBlocks(final Graphics2D g2d, final Collection<DensityBlock> blocks, final OverlayOptions overlayOptions) {
+		int n = BINS_PER_BLOCK * BINS_PER_BLOCK;
+		float[] red = new float[n];
+		float[] green = new float[n];
+		float[] blue = new float[n];
+		int[] counts = new int[n];
+		BufferedImage img = new BufferedImage(BINS_PER_BLOCK, BINS_PER_BLOCK, BufferedImage.TYPE_INT_ARGB);
+		// Interpolate so that bins aren't skipped when painting at a slightly lower resolution
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		for (DensityBlock block : blocks) {
+			if (block.nObjects == 0)
+				continue;
+			Arrays.fill(red, 0f);
+			Arrays.fill(green, 0f);
+			Arrays.fill(blue, 0f);
+			Arrays.fill(counts, 0);
+			for (Map.Entry<ClassColor, int[]> entry : block.counts.entrySet()) {
+				ClassColor classColor = entry.getKey();
+				if (overlayOptions != null && overlayOptions.isPathClassHidden(classColor.pathClass))
+					continue;
+				int rgb = classColor.rgb;
+				int r = (rgb >> 16) & 0xff;
+				int g = (rgb >> 8) & 0xff;
+				int b = rgb & 0xff;
+				int[] binCounts = entry.getValue();
+				for (int i = 0; i < n; i++) {
+					int count = binCounts[i];
+					if (count == 0)
+						continue;
+					red[i] += r * count;
+					green[i] += g * count;
+					blue[i] += b * count;
+					counts[i] += count;
+				}
+			}
+			// Estimate coverage using the mean object size
+			double meanSize = block.sumSize / block.nObjects;
+			double coveragePerObject = (meanSize * meanSize) / ((double)block.key.binSize * block.key.binSize);
+			int[] pixels = new int[n];
+			for (int i = 0; i < n; i++) {
+				int count = counts[i];
+				if (count == 0)
+					continue;
+				int alpha = (int)(255 * Math.max(0.25, Math.min(1.0, count * coveragePerObject)));
+				pixels[i] = (alpha << 24) |
+						(Math.round(red[i] / count) << 16) |
+						(Math.round(green[i] / count) << 8) |
+						Math.round(blue[i] / count);
+			}
+			img.setRGB(0, 0, BINS_PER_BLOCK, BINS_PER_BLOCK, pixels, 0, BINS_PER_BLOCK);
+			int size = block.key.getSize();
+			g2d.drawImage(img, block.key.getX(), block.key.getY(), size, size, null);
+		}
+	}
+
+
+	private static class BlockKey {
+
+		private final int binSize;
+		private final int z, t;
+		private final int bx, by;
+
+		BlockKey(int binSize, int z, int t, int bx, int by) {
+			this.binSize = binSize;
+			this.z = z;
+			this.t = t;
+			this.bx = bx;
+			this.by = by;
+		}
+
+		int getSize() {
+			return binSize * BINS_PER_BLOCK;
+		}
+
+		int getX() {
+			return bx * getSize();
+		}
+
+		int getY() {
+			return by * getSize();
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(binSize, z, t, bx, by);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof BlockKey))
+				return false;
+			BlockKey other = (BlockKey)obj;
+			return binSize == other.binSize && z == other.z && t == other.t && bx == other.bx && by == other.by;
+		}
+
+	}
+
+
+	/**
+	 * Key used to count detections with the same classification &amp; displayed color together.
+	 */
+	private static class ClassColor {
+
+		private final PathClass pathClass;
+		private final int rgb;
+
+		ClassColor(PathClass pathClass, int rgb) {
+			this.pathClass = pathClass;
+			this.rgb = rgb;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(pathClass, rgb);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof ClassColor))
+				return false;
+			ClassColor other = (ClassColor)obj;
+			return rgb == other.rgb && Objects.equals(pathClass, other.pathClass);
+		}
+
+	}
+
+
+	/**
+	 * The values used when counting a detection: the center of its bounding box, size, classification &amp; color.
+	 */
+	private static class CountedObject {
+
+		private final PathObject pathObject;
+		private final double x, y;
+		private final int z, t;
+		private final double size;
+		private final ClassColor classColor;
+
+		private CountedObject(PathObject pathObject, ROI roi) {
+			this.pathObject = pathObject;
+			this.x = roi.getBoundsX() + roi.getBoundsWidth()/2.0;
+			this.y = roi.getBoundsY() + roi.getBoundsHeight()/2.0;
+			this.z = roi.getZ();
+			this.t = roi.getT();
+			this.size = Math.max(roi.getBoundsWidth(), roi.getBoundsHeight());
+			Integer rgb = PathObjectColorToolsAwt.getDisplayedColor(pathObject);
+			this.classColor = new ClassColor(pathObject.getPathClass(), rgb == null ? 0 : rgb.intValue());
+		}
+
+		/**
+		 * Get the values to count for an object, or null if the object should not be counted.
+		 */
+		static CountedObject create(PathObject pathObject) {
+			ROI roi = pathObject.getROI();
+			if (roi == null || !(pathObject instanceof PathDetectionObject))
+				return null;
+			return new CountedObject(pathObject, roi);
+		}
+
+	}
+
+
+	/**
+	 * A change in the count of a single bin for one object.
+	 */
+	private static class BinChange {
+
+		private final CountedObject countedObject;
+		private final int bin;
+		private final int delta;
+
+		BinChange(CountedObject countedObject, int bin, int delta) {
+			this.countedObject = countedObject;
+			this.bin = bin;
+			this.delta = delta;
+		}
+
+	}
+
+
+	/**
+	 * Detection counts for a single block.
+	 */
+	static class DensityBlock {
+
+		private final BlockKey key;
+		private final Map<ClassColor, int[]> counts = new HashMap<>();
+		private int nObjects = 0;
+		private double sumSize = 0;
+
+		private DensityBlock(final BlockKey key) {
+			this.key = key;
+		}
+
+		private DensityBlock(final BlockKey key, final PathObjectHierarchy hierarchy, final List<CountedObject> countedObjects) {
+			this.key = key;
+			int x = key.getX();
+			int y = key.getY();
+			int binSize = key.binSize;
+			ImageRegion region = ImageRegion.createInstance(x, y, key.getSize(), key.getSize(), key.z, key.t);
+			for (PathObject pathObject : hierarchy.getObjectsForRegion(PathDetectionObject.class, region, null)) {
+				CountedObject countedObject = CountedObject.create(pathObject);
+				if (countedObject == null)
+					continue;
+				// Count each object only in the block containing the center of its bounding box
+				int bx = (int)Math.floor((countedObject.x - x) / binSize);
+				int by = (int)Math.floor((countedObject.y - y) / binSize);
+				if (bx < 0 || by < 0 || bx >= BINS_PER_BLOCK || by >= BINS_PER_BLOCK)
+					continue;
+				counts.computeIfAbsent(countedObject.classColor, c -> new int[BINS_PER_BLOCK * BINS_PER_BLOCK])[by * BINS_PER_BLOCK + bx]++;
+				nObjects++;
+				sumSize += countedObject.size;
+				countedObjects.add(countedObject);
+			}
+		}
+
+		/**
+		 * Create a copy of this block with the specified changes applied; the block itself is unchanged.
+		 */
+		private DensityBlock withChanges(final Collection<BinChange> changes) {
+			DensityBlock block = new DensityBlock(key);
+			block.counts.putAll(counts);
+			block.nObjects = nObjects;
+			block.sumSize = sumSize;
+			// Copy only the counts that change, since others can be shared
+			Set<ClassColor> copied = new HashSet<>();
+			for (BinChange change : changes) {
+				ClassColor classColor = change.countedObject.classColor;
+				int[] binCounts = block.counts.get(classColor);
+				if (binCounts == null)
+					binCounts = new int[BINS_PER_BLOCK * BINS_PER_BLOCK];
+				else if (!copied.contains(classColor))
+					binCounts = binCounts.clone();
+				copied.add(classColor);
+				block.counts.put(classColor, binCounts);
+				binCounts[change.bin] += change.delta;
+				block.nObjects += change.delta;
+				block.sumSize += change.delta * change.countedObject.size;
+			}
+			return block;
+		}
+
+		/**
+		 * Get the number of detections counted in this block.
+		 * @return
+		 */
+		int nObjects() {
+			return nObjects;
+		}
+
+		/**
+		 * Get the number of detections with a specified classification counted in this block.
+		 * @param pathClass
+		 * @return
+		 */
+		int nObjects(final PathClass pathClass) {
+			int n = 0;
+			for (Map.Entry<ClassColor, int[]> entry : counts.entrySet()) {
+				if (Objects.equals(pathClass, entry.getKey().pathClass)) {
+					for (int count : entry.getValue())
+						n += count;
+				}
+			}
+			return n;
+		}
+
+	}
+
+}
@@ -32,6 +32,7 @@ import java.util.Collections;
 import java.util.List;
 import qupath.lib.awt.color.ColorToolsAwt;
 import qupath.lib.awt.common.AwtTools;
+import qupath.lib.gui.helpers.MeasurementMapper;
 import qupath.lib.gui.viewer.OverlayOptions;
 import qupath.lib.gui.viewer.PathHierarchyPaintingHelper;
 import qupath.lib.gui.viewer.overlays.HierarchyOverlay;
@@ -72,6 +73,19 @@ public class PathHierarchyImageServer extends AbstractTileableImageServer implem
 	private OverlayOptions options;
 	private PathObjectHierarchy hierarchy;
 	
+	/**
+	 * Minimum downsample at which detection densities may be painted instead of individual objects.
+	 */
+	private static final double MIN_DENSITY_DOWNSAMPLE = 4.0;
+	
+	/**
+	 * Detection densities are painted instead of individual objects if the mean detection size is below this number of pixels 
+	 * at the requested downsample.
+	 */
+	private static final double MAX_DENSITY_OBJECT_SIZE = 2.0;
+	
+	private DetectionDensityCache densityCache;
+	
 	public PathHierarchyImageServer(final ImageData<BufferedImage> imageData, final OverlayOptions options) {
 		this(DEFAULT_PREFIX + " " + counter + "::", imageData, options);
 	}
@@ -87,6 +101,8 @@ public class PathHierarchyImageServer extends AbstractTileableImageServer implem
 		this.server = imageData.getServer();
 		this.hierarchy = imageData.getHierarchy();
 		this.options = options;
+		this.densityCache = new DetectionDensityCache(hierarchy);
+		hierarchy.addPathObjectListener(densityCache);
 		
 		double minDim = Math.min(server.getWidth(), server.getHeight());
 //		double maxDim = Math.max(server.getWidth(), server.getHeight());
@@ -138,8 +154,13 @@ public class PathHierarchyImageServer extends AbstractTileableImageServer implem
 		return !hierarchy.hasObjectsForRegion(PathDetectionObject.class, request) && (!options.getShowConnections() || imageData.getProperty(DefaultPathObjectConnectionGroup.KEY_OBJECT_CONNECTIONS) == null);
 	}
 	
+	/**
+	 * Stop listening for changes to the hierarchy.
+	 */
 	@Override
-	public void close() {}
+	public void close() {
+		hierarchy.removePathObjectListener(densityCache);
+	}
 
 	@Override
 	public String getServerType() {
@@ -187,25 +208,72 @@ public class PathHierarchyImageServer extends AbstractTileableImageServer implem
 		return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
 	}
 	
+	/**
+	 * Notify the server that the display of detections may have changed anywhere (e.g. their colors), so that any cached summaries are updated.
+	 * <p>
+	 * This isn't needed for changes to the hierarchy itself, since the server listens for these.
+	 */
+	public void invalidateAll() {
+		densityCache.invalidateAll();
+	}
+	
+	/**
+	 * Get the detection density blocks to paint for a request, or null if individual objects should be painted instead.
+	 * <p>
+	 * Densities are used when downsampling by a large amount and the detections in the region would be less than 
+	 * a few pixels in size, since then the cost of painting each object is high but the individual shapes are not visible anyway.
+	 * Measurement maps require individual objects to be painted.
+	 */
+	private List<DetectionDensityCache.DensityBlock> getDensityBlocks(RegionRequest request) {
+		double downsampleFactor = request.getDownsample();
+		if (downsampleFactor < MIN_DENSITY_DOWNSAMPLE)
+			return null;
+		MeasurementMapper mapper = options.getMeasurementMapper();
+		if (mapper != null && mapper.isValid())
+			return null;
+		var blocks = densityCache.getBlocks(request, downsampleFactor);
+		double meanSize = DetectionDensityCache.getMeanSize(blocks);
+		if (Double.isNaN(meanSize) || meanSize / downsampleFactor >= MAX_DENSITY_OBJECT_SIZE)
+			return null;
+		return blocks;
+	}
+	
 	@Override
 	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
-		RegionRequest request = tileRequest.getRegionRequest();
-		long startTime = System.currentTimeMillis();
+		return renderRegion(tileRequest.getRegionRequest());
+	}
+	
+	/**
+	 * Paint the objects for a region to a new image, bypassing any tile caches.
+	 * <p>
+	 * This is useful whenever the caller manages its own cache of rendered tiles, 
+	 * since it always reflects the current state of the hierarchy.
+	 * 
+	 * @param request
+	 * @return an ARGB image, or null if there is nothing to paint
+	 */
+	public BufferedImage renderRegion(RegionRequest request) {
 		
 		// Get connections
 		Object o = options.getShowConnections() ? imageData.getProperty(DefaultPathObjectConnectionGroup.KEY_OBJECT_CONNECTIONS) : null;
 		PathObjectConnections connections = (o instanceof PathObjectConnections) ? (PathObjectConnections)o : null;
 		
-		List<PathObject> pathObjects = new ArrayList<>(getObjectsToPaint(request));
-		if (pathObjects == null || pathObjects.isEmpty()) {
-			// We can only return null if no connections - otherwise we might still need to draw something
-			if (connections == null) {
-				return null;
+		// If we can, paint densities rather than individual objects
+		List<DetectionDensityCache.DensityBlock> densityBlocks = getDensityBlocks(request);
+		List<PathObject> pathObjects;
+		if (densityBlocks != null)
+			pathObjects = Collections.emptyList();
+		else {
+			pathObjects = new ArrayList<>(getObjectsToPaint(request));
+			if (pathObjects.isEmpty()) {
+				// We can only return null if no connections - otherwise we might still need to draw something
+				if (connections == null) {
+					return null;
+				}
 			}
+			Collections.sort(pathObjects, new HierarchyOverlay.DetectionComparator());
 		}
 		
-		Collections.sort(pathObjects, new HierarchyOverlay.DetectionComparator());
-		
 		double downsampleFactor = request.getDownsample();
 		int width = (int)(request.getWidth() / downsampleFactor);
 		int height = (int)(request.getHeight() / downsampleFactor);
@@ -219,7 +287,9 @@ public class PathHierarchyImageServer extends AbstractTileableImageServer implem
 		g2d.scale(scale, scale);
 		g2d.translate(-request.getX(), -request.getY());
 		// Note we don't want to pass a selection model, as selections shouldn't be included
-		if (pathObjects != null && !pathObjects.isEmpty())
+		if (densityBlocks != null)
+			DetectionDensityCache.paintBlocks(g2d, densityBlocks, options);
+		else if (!pathObjects.isEmpty())
 			PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, AwtTools.getBounds(request), pathObjects, options, null, downsampleFactor);
 		
 		// See if we have any connections to draw
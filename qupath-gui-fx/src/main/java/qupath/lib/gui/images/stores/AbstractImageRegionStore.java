@@ -31,15 +31,21 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -95,11 +101,22 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	// Create two threadpools: a larger one for images that need to be fetched (e.g. from disk, cloud storage), and a smaller one
 	// for painting image tiles... the reason being that the high latency of distantly-stored images otherwise risks lowering
 	// repainting performance
-	private ExecutorService pool = Executors.newFixedThreadPool(Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32)), new SimpleThreadFactory("region-store-", false));
-	private ExecutorService poolLocal = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new SimpleThreadFactory("region-store-local-", false));
+	// Tile requests for the most recent view are given priority over any stale requests that are still queued.
+	// Stale requests that have already started are demoted, by temporarily increasing the pool size so they don't 
+	// prevent new requests from starting.
+	private int nPoolThreads = Math.max(8, Math.min(Runtime.getRuntime().availableProcessors() * 4, 32));
+	private ThreadPoolExecutor pool = createPrioritizedPool(nPoolThreads, new SimpleThreadFactory("region-store-", false));
+	// Number of demoted workers still running in the main pool
+	private int nDemotedWorkers = 0;
+	private ThreadPoolExecutor poolLocal = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(),
+			0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new SimpleThreadFactory("region-store-local-", false));
 	
 	
 
+	// Used to order tile workers with the same priority by submission time
+	private static AtomicLong workerCounter = new AtomicLong();
+	
+
 	protected AbstractImageRegionStore(final SizeEstimator<T> sizeEstimator, final int thumbnailWidth, final long tileCacheSizeBytes) {
 		this.thumbnailWidth = thumbnailWidth;
 		cache = new DefaultRegionCache<>(sizeEstimator, tileCacheSizeBytes);
@@ -201,7 +218,13 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	protected void workerComplete(final TileWorker<T> worker) {
 		workers.remove(worker);
 		manager.taskCompleted(worker);
-   		if (worker.isCancelled() || !stopWaiting(worker.getRequest())) {
+		if (worker instanceof AbstractImageRegionStore.DefaultTileWorker && ((DefaultTileWorker)worker).completeDemoted() && !((DefaultTileWorker)worker).isLocal)
+			updateDemotedWorkers(-1);
+		if (worker.isCancelled()) {
+			waitingMap.remove(worker.getRequest(), worker);
+			return;
+		}
+   		if (!stopWaiting(worker.getRequest())) {
    			return;
    		}
 		try {
@@ -276,19 +299,23 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		// Start a worker & add to the list
 		TileWorker<T> worker = null;
 		worker = (TileWorker<T>)waitingMap.get(request); // TODO: Consider if this is a bad idea...
-		if (worker == null) {
-			worker = createTileWorker(server, request, cache, ensureTileReturned);
-			workers.add(worker);
-			if (server instanceof GeneratingImageServer) {
-				if (poolLocal.isShutdown())
-					return null;
-				poolLocal.execute(worker);
+		if (worker != null) {
+			// The tile is needed for the current view
+			if (worker instanceof AbstractImageRegionStore.DefaultTileWorker) {
+				// If the caller will wait for the tile, it shouldn't be cancelled if the view changes
+				if (ensureTileReturned)
+					((DefaultTileWorker)worker).isRetained = true;
+				updateGeneration((DefaultTileWorker)worker, manager.generation);
 			}
-			else {
-				if (pool.isShutdown())
-					return null;
-				pool.execute(worker);
+		} else {
+			worker = createTileWorker(server, request, cache, ensureTileReturned);
+			if (worker instanceof AbstractImageRegionStore.DefaultTileWorker) {
+				((DefaultTileWorker)worker).isRetained = ensureTileReturned;
+				((DefaultTileWorker)worker).generation = manager.generation;
 			}
+			workers.add(worker);
+			if (!executeWorker(server, worker))
+				return null;
 //			worker.execute();
 //				System.out.println("Event dispatch putting: " + SwingUtilities.isEventDispatchThread());
 			waitingMap.put(request, worker);
@@ -427,10 +454,141 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		pool.shutdownNow();
 		poolLocal.shutdownNow();
 		cache.clear();
+		logger.debug("Tile prefetch statistics: {}", getPrefetchStatistics());
+	}
+	
+	
+	/**
+	 * Request that tiles likely to be needed soon are fetched speculatively, using any spare capacity.
+	 * @param enabled
+	 */
+	public void setPrefetchEnabled(final boolean enabled) {
+		manager.prefetcher.setEnabled(enabled);
 	}
 	
+	/**
+	 * Query whether speculative tile requests are enabled.
+	 * @return
+	 */
+	public boolean isPrefetchEnabled() {
+		return manager.prefetcher.isEnabled();
+	}
+	
+	/**
+	 * Get statistics summarizing how effective tile prefetching has been.
+	 * @return
+	 */
+	public PrefetchStatistics getPrefetchStatistics() {
+		return manager.prefetcher.getStatistics();
+	}
+	
+	/**
+	 * Reset the statistics returned by {@link #getPrefetchStatistics()}.
+	 */
+	public void resetPrefetchStatistics() {
+		manager.prefetcher.resetStatistics();
+	}
+	
+	
+	
+	
+	
+	/**
+	 * Create a thread pool that runs queued tile workers in order of priority.
+	 * <p>
+	 * The pool normally has a fixed number of threads, but can grow up to double this size to accommodate demoted workers.
+	 * 
+	 * @param nThreads
+	 * @param threadFactory
+	 * @return
+	 */
+	private ThreadPoolExecutor createPrioritizedPool(final int nThreads, final ThreadFactory threadFactory) {
+		Comparator<Runnable> comparator = Comparator.comparingLong((Runnable r) -> -getPriority(r)).thenComparingLong(r -> getSequenceNumber(r));
+		return new ThreadPoolExecutor(nThreads, nThreads * 2, 10L, TimeUnit.SECONDS, new PriorityBlockingQueue<>(64, comparator), threadFactory);
+	}
+	
+	/**
+	 * Execute a worker, using the local pool for generated images &amp; the main pool otherwise.
+	 * @param server
+	 * @param worker
+	 * @return true if the worker was submitted, false if the relevant pool has been shut down
+	 */
+	private boolean executeWorker(final ImageServer<T> server, final TileWorker<T> worker) {
+		boolean isLocal = server instanceof GeneratingImageServer;
+		if (worker instanceof AbstractImageRegionStore.DefaultTileWorker)
+			((DefaultTileWorker)worker).isLocal = isLocal;
+		ThreadPoolExecutor executor = isLocal ? poolLocal : pool;
+		if (executor.isShutdown())
+			return false;
+		executor.execute(worker);
+		return true;
+	}
+	
+	/**
+	 * Update the count of demoted workers that are still running in the main pool, and adjust the pool size so that 
+	 * these don't count towards the number of threads available for new requests.
+	 * @param change
+	 */
+	private void updateDemotedWorkers(final int change) {
+		// Use the pool as a lock, rather than the store, because this may be called while the TileRequestManager is locked
+		synchronized (pool) {
+			nDemotedWorkers += change;
+			if (!pool.isShutdown())
+				pool.setCorePoolSize(nPoolThreads + Math.min(nDemotedWorkers, nPoolThreads));
+		}
+	}
+	
+	/**
+	 * Remove a worker from the queue of whichever pool it was submitted to, if it hasn't started running yet.
+	 * The worker should then be cancelled, so that it is recorded as complete.
+	 * 
+	 * @param worker
+	 * @return true if the worker was removed
+	 */
+	private boolean removeIfQueued(final TileWorker<T> worker) {
+		return pool.getQueue().remove(worker) || poolLocal.getQueue().remove(worker);
+	}
+	
+	/**
+	 * Cancel a worker only if it hasn't started running yet.
+	 * <p>
+	 * Note that {@link FutureTask#cancel(boolean)} would succeed even for a running task, but without stopping it.
+	 * 
+	 * @param worker
+	 * @return true if the worker was cancelled
+	 */
+	private boolean cancelIfQueued(final TileWorker<T> worker) {
+		if (removeIfQueued(worker))
+			return worker.cancel(false);
+		return false;
+	}
 	
+	/**
+	 * Increase the generation of a worker, reinserting it into the pool's queue if necessary to reflect its new priority.
+	 * @param worker
+	 * @param generation
+	 */
+	private void updateGeneration(final DefaultTileWorker worker, final long generation) {
+		if (worker.generation >= generation)
+			return;
+		var queue = pool.getQueue();
+		boolean isQueued = queue.remove(worker);
+		worker.generation = generation;
+		if (isQueued)
+			queue.offer(worker);
+	}
 	
+	private long getPriority(final Runnable runnable) {
+		if (runnable instanceof AbstractImageRegionStore.DefaultTileWorker)
+			return ((AbstractImageRegionStore<?>.DefaultTileWorker)runnable).getPriority();
+		return Long.MAX_VALUE;
+	}
+
+	private long getSequenceNumber(final Runnable runnable) {
+		if (runnable instanceof AbstractImageRegionStore.DefaultTileWorker)
+			return ((AbstractImageRegionStore<?>.DefaultTileWorker)runnable).sequenceNumber;
+		return 0L;
+	}
 	
 	
 	class TileRequestManager {
@@ -443,6 +601,14 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		private int busyThreads = 0;
 		
 		private List<TileWorker<T>> requestedWorkers = new ArrayList<>();
+		
+		// Predicts tiles likely to be needed soon, so these can be requested when threads would otherwise be idle
+		private TilePrefetcher<T> prefetcher = new TilePrefetcher<>();
+		private List<TileWorker<T>> prefetchWorkers = new ArrayList<>();
+		
+		// Incremented whenever the requested view changes, so that stale tile requests can be identified
+		private volatile long generation = 0;
+		private long nCancelled = 0, nDemoted = 0;
 				
 		TileRequestManager(final int nThreads) {
 			this.nThreads = nThreads;
@@ -470,6 +636,13 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 //				System.out.println(clipShape);
 			TileRequestCollection<T> requestCollection = new TileRequestCollection<>(tileListener, server, clipShape, downsampleFactor, zPosition, tPosition, 10);
 			list.add(requestCollection);
+			generation++;
+			
+			// Update the tiles to prefetch & cancel any speculative requests that are no longer relevant
+			prefetcher.viewChanged(tileListener, server, clipShape, downsampleFactor, zPosition, tPosition, r -> cache.containsKey(r));
+			cancelUnwantedPrefetches();
+			supersedeStaleRequests();
+			
 //			list.sort(comparator);
 			Collections.sort(list, comparator);
 			assignTasks();
@@ -490,6 +663,11 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		synchronized void assignTasks() {
 			if (list.isEmpty())
 				return;
+			assignRequestedTasks();
+			assignPrefetchTasks();
+		}
+		
+		private void assignRequestedTasks() {
 			int ind = 0;
 			TileRequestCollection<T> temp = list.get(ind);
 			while (busyThreads < nThreads && !list.isEmpty()) {
@@ -507,14 +685,9 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 					continue;
 				
 				TileWorker<T> worker = createTileWorker(temp.server, request, cache, false);
+				tagWorker(worker, false);
 				waitingMap.put(request, worker);
-				if (temp.server instanceof GeneratingImageServer) {
-					if (!poolLocal.isShutdown())
-						poolLocal.execute(worker);
-				} else {
-					if (!pool.isShutdown())
-						pool.execute(worker);
-				}
+				executeWorker(temp.server, worker);
 //				worker.execute();
 				requestedWorkers.add(worker);
 				busyThreads++;
@@ -523,10 +696,143 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 			Collections.sort(list, comparator);
 		}
 		
+		/**
+		 * Request tiles predicted to be needed soon, but only if there are no visible tiles still to be requested, 
+		 * and leaving some threads free to respond to new requests.
+		 */
+		private void assignPrefetchTasks() {
+			for (TileRequestCollection<T> temp : list) {
+				if (temp.zSeparation == 0 && temp.hasMoreTiles())
+					return;
+			}
+			ImageServer<T> server = prefetcher.getServer();
+			if (server == null)
+				return;
+			int maxPrefetchThreads = Math.max(1, nThreads / 2);
+			while (busyThreads < nThreads && prefetchWorkers.size() < maxPrefetchThreads) {
+				RegionRequest request = prefetcher.nextRequest();
+				if (request == null)
+					return;
+				if (cache.containsKey(request) || waitingMap.containsKey(request))
+					continue;
+				if (pool.isShutdown())
+					return;
+				TileWorker<T> worker = createTileWorker(server, request, cache, false);
+				tagWorker(worker, true);
+				waitingMap.put(request, worker);
+				requestedWorkers.add(worker);
+				prefetchWorkers.add(worker);
+				busyThreads++;
+				prefetcher.prefetchRequested(request);
+				pool.execute(worker);
+			}
+		}
+		
+		private void tagWorker(final TileWorker<T> worker, final boolean isPrefetch) {
+			if (worker instanceof AbstractImageRegionStore.DefaultTileWorker) {
+				DefaultTileWorker defaultWorker = (DefaultTileWorker)worker;
+				defaultWorker.generation = generation;
+				defaultWorker.isPrefetch = isPrefetch;
+			}
+		}
+		
+		/**
+		 * Check whether a tile overlaps the region that is currently requested for any listener.
+		 */
+		private boolean isRequested(final RegionRequest request) {
+			for (TileRequestCollection<T> temp : list) {
+				if (temp.zPosition == request.getZ() && temp.tPosition == request.getT() && 
+						request.getPath().equals(temp.server.getPath()) &&
+						temp.clipShape.intersects(request.getX(), request.getY(), request.getWidth(), request.getHeight()))
+					return true;
+			}
+			return false;
+		}
+		
+		/**
+		 * Handle requests made for a previous view.
+		 * <p>
+		 * Requests that are still relevant inherit the priority of the current view.  Otherwise, they are cancelled 
+		 * if they haven't started yet or demoted if they have, so that they no longer count towards the 
+		 * number of busy threads and cannot delay requests for the tiles that are now visible.
+		 * <p>
+		 * All stale requests are removed from the queues before any are cancelled or demoted, since either 
+		 * may free up a thread - which should never be used to start another stale request.
+		 */
+		private void supersedeStaleRequests() {
+			// Check both the workers we have created & those created for direct requests
+			Set<TileWorker<T>> allWorkers = new LinkedHashSet<>(requestedWorkers);
+			synchronized (workers) {
+				allWorkers.addAll(workers);
+			}
+			List<DefaultTileWorker> staleWorkers = new ArrayList<>();
+			for (TileWorker<T> worker : allWorkers) {
+				if (!(worker instanceof AbstractImageRegionStore.DefaultTileWorker))
+					continue;
+				DefaultTileWorker defaultWorker = (DefaultTileWorker)worker;
+				if (defaultWorker.generation == generation || defaultWorker.isDemoted)
+					continue;
+				RegionRequest request = worker.getRequest();
+				if (defaultWorker.isRetained || isRequested(request) || prefetcher.isWanted(request))
+					updateGeneration(defaultWorker, generation);
+				else
+					staleWorkers.add(defaultWorker);
+			}
+			if (staleWorkers.isEmpty())
+				return;
+			
+			// Remove all stale workers that haven't started
+			List<DefaultTileWorker> queuedWorkers = new ArrayList<>();
+			for (DefaultTileWorker worker : staleWorkers) {
+				if (removeIfQueued(worker))
+					queuedWorkers.add(worker);
+			}
+			
+			// Demote those that are running, growing the main pool to compensate
+			int nPoolDemoted = 0;
+			for (DefaultTileWorker worker : staleWorkers) {
+				if (queuedWorkers.contains(worker) || !worker.demote())
+					continue;
+				nDemoted++;
+				if (!worker.isLocal)
+					nPoolDemoted++;
+				if (requestedWorkers.remove(worker)) {
+					prefetchWorkers.remove(worker);
+					busyThreads--;
+				}
+			}
+			if (nPoolDemoted > 0)
+				updateDemotedWorkers(nPoolDemoted);
+			
+			// Cancel the queued workers, which will also update the busy threads
+			for (DefaultTileWorker worker : queuedWorkers) {
+				if (worker.cancel(false))
+					nCancelled++;
+			}
+			logger.trace("Stale tile requests cancelled: {}, demoted: {}", nCancelled, nDemoted);
+		}
+		
+		/**
+		 * Cancel speculative requests that haven't started yet, if the tiles are no longer expected to be needed.
+		 * Requests that have started are allowed to finish, since the tiles may still be useful and interrupting 
+		 * a read can leave some readers in a bad state.
+		 */
+		private void cancelUnwantedPrefetches() {
+			// Copy the list, since cancelled workers may be removed from it
+			for (TileWorker<T> worker : new ArrayList<>(prefetchWorkers)) {
+				if (!prefetcher.isWanted(worker.getRequest()) && cancelIfQueued(worker))
+					prefetcher.prefetchCancelled(worker.getRequest());
+			}
+		}
+		
 		
 		synchronized void taskCompleted(final TileWorker<T> worker) {
 			if (!requestedWorkers.remove(worker))
 				return;
+			if (worker.isCancelled())
+				waitingMap.remove(worker.getRequest(), worker);
+			if (prefetchWorkers.remove(worker) && !worker.isCancelled())
+				prefetcher.prefetchCompleted(worker.getRequest());
 			busyThreads--;
 			logger.trace("Number of busy threads: " + busyThreads);
 //			list.sort(comparator);
@@ -651,6 +957,17 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		private final RegionCache<T> cache;
 		private final RegionRequest request;
 		
+		// Generation of the view for which the tile was requested, used to prioritize requests for the current view
+		private volatile long generation;
+		private volatile boolean isPrefetch = false;
+		// Flag that the tile has been requested directly, so it should not be cancelled when the view changes
+		private volatile boolean isRetained = false;
+		// Flag that the worker was running when its request became stale
+		private volatile boolean isDemoted = false;
+		// Flag that the worker was submitted to the local pool, rather than the main pool
+		private volatile boolean isLocal = false;
+		private final long sequenceNumber = workerCounter.incrementAndGet();
+		
 		DefaultTileWorker(final ImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned) {
 			super(new Callable<T>() {
 
@@ -685,6 +1002,33 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	    	return request;
 	    }
 	    
+	    /**
+	     * Flag that the worker is still running, but its request is stale.
+	     * @return true if the worker was demoted, false if it has already completed or been demoted
+	     */
+	    synchronized boolean demote() {
+	    	if (isDone() || isDemoted)
+	    		return false;
+	    	isDemoted = true;
+	    	return true;
+	    }
+	    
+	    /**
+	     * Called on completion to check if the worker was demoted.
+	     * @return true if the worker was demoted while running
+	     */
+	    synchronized boolean completeDemoted() {
+	    	return isDemoted;
+	    }
+	    
+	    /**
+	     * Get the priority of the worker; higher values should be run first.
+	     * @return
+	     */
+	    long getPriority() {
+	    	return generation * 2 + (isPrefetch ? 0 : 1);
+	    }
+	    
 	    @Override
 		public RegionCache<T> getRequestedCache() {
 	    	return cache;
@@ -32,7 +32,10 @@ import java.awt.image.ImageObserver;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -59,9 +62,24 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 	static Logger logger = LoggerFactory.getLogger(DefaultImageRegionStore.class);
 	
 	private static boolean DEBUG_TILES = false;
+	
+	// Separator used when creating request paths for rendered tiles
+	private static final String RENDERED_PATH_SEPARATOR = "::";
+	
+	// Cache of RGB tiles after applying an ImageRenderer, stored separately so that they don't compete with raw tiles
+	// (but using part of the same memory budget)
+	private final DefaultRegionCache<BufferedImage> renderedCache;
+	
+	// Most recent request path used for rendered tiles, per renderer & server path - used to discard tiles when the renderer changes
+	private final Map<ImageRenderer, Map<String, String>> renderedPaths = new WeakHashMap<>();
+
+	// Memory shared by the caches of rendered overlay tiles for all viewers using this store
+	private final OverlayTileCache.SharedMemory overlayTileMemory;
 
 	protected DefaultImageRegionStore(int thumbnailWidth, long tileCacheSize) {
-		super(new BufferedImageSizeEstimator(), thumbnailWidth, tileCacheSize);
+		super(new BufferedImageSizeEstimator(), thumbnailWidth, tileCacheSize - tileCacheSize/4);
+		renderedCache = new DefaultRegionCache<>(new BufferedImageSizeEstimator(), tileCacheSize/4);
+		overlayTileMemory = new OverlayTileCache.SharedMemory(tileCacheSize/4);
 	}
 
 	protected DefaultImageRegionStore(long tileCacheSize) {
@@ -69,6 +87,20 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 	}
 
 
+	/**
+	 * Get the approximate maximum memory used to cache rendered overlay tiles.
+	 * This is a quarter of the tile cache size requested for the store, shared by all {@link OverlayTileCache}s created for the store.
+	 * 
+	 * @return
+	 */
+	public long getOverlayTileCacheSizeBytes() {
+		return overlayTileMemory.getMaxMemoryBytes();
+	}
+	
+	OverlayTileCache.SharedMemory getOverlayTileMemory() {
+		return overlayTileMemory;
+	}
+
 	public RegionCache<BufferedImage> getThumbnailCache() {
 		return thumbnailCache;
 	}
@@ -76,6 +108,88 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 	public int getPreferredThumbnailSize() {
 		return DEFAULT_THUMBNAIL_WIDTH;
 	}
+	
+	/**
+	 * Get the cache used to store tiles after they have been transformed by an {@link ImageRenderer}.
+	 * <p>
+	 * Requests in this cache have a path derived from the server path, the renderer's unique ID and its last change timestamp - 
+	 * so that any change to the display settings means that previously-rendered tiles are no longer used.
+	 * 
+	 * @return
+	 */
+	public RegionCache<BufferedImage> getRenderedCache() {
+		return renderedCache;
+	}
+	
+	
+	/**
+	 * Get the path used to store tiles rendered for the specified server and renderer, in its current state.
+	 * <p>
+	 * If the renderer has changed since the last call, any tiles rendered with its previous state are removed.
+	 * 
+	 * @param server
+	 * @param renderer
+	 * @return
+	 */
+	private String getRenderedPath(ImageServer<BufferedImage> server, ImageRenderer renderer) {
+		String serverPath = server.getPath();
+		String path = serverPath + RENDERED_PATH_SEPARATOR + renderer.getUniqueID() + "@" + renderer.getLastChangeTimestamp();
+		String previousPath;
+		synchronized (renderedPaths) {
+			previousPath = renderedPaths.computeIfAbsent(renderer, r -> new HashMap<>()).put(serverPath, path);
+		}
+		if (previousPath != null && !previousPath.equals(path))
+			renderedCache.clearCacheForPath(previousPath);
+		return path;
+	}
+	
+	
+	/**
+	 * Get a rendered version of a tile, using a cached version if available or applying the renderer (and caching the result) if not.
+	 * 
+	 * @param renderedPath path returned by {@link #getRenderedPath(ImageServer, ImageRenderer)}
+	 * @param request the request for the raw tile
+	 * @param img the raw tile
+	 * @param renderer
+	 * @param timestamp the renderer timestamp when painting began
+	 * @return the rendered tile (or the raw tile, if rendering would not change it), 
+	 *         or null if the renderer has changed since painting began (and so rendering should be aborted)
+	 */
+	private BufferedImage getRenderedTile(String renderedPath, RegionRequest request, BufferedImage img, ImageRenderer renderer, long timestamp) {
+		// Don't use up the cache with copies of raw tiles
+		if (renderer.isIdentity())
+			return img;
+		RegionRequest renderedRequest = RegionRequest.createInstance(renderedPath, request.getDownsample(), request);
+		BufferedImage imgRendered = renderedCache.get(renderedRequest);
+		if (imgRendered != null)
+			return imgRendered;
+		if (timestamp != renderer.getLastChangeTimestamp())
+			return null;
+		imgRendered = renderer.applyTransforms(img, null);
+		// Store this only if we know we've still got the same display settings
+		// This avoids making the cache inconsistent
+		if (timestamp != renderer.getLastChangeTimestamp())
+			return null;
+		renderedCache.put(renderedRequest, imgRendered);
+		return imgRendered;
+	}
+	
+	
+	/**
+	 * Get the requests corresponding to the specified request, for all rendered tiles with the same server path.
+	 * 
+	 * @param request
+	 * @return
+	 */
+	private List<RegionRequest> getRenderedRequests(RegionRequest request) {
+		String prefix = request.getPath() + RENDERED_PATH_SEPARATOR;
+		List<RegionRequest> requests = new ArrayList<>();
+		for (String path : renderedCache.getPaths()) {
+			if (path.startsWith(prefix))
+				requests.add(RegionRequest.createInstance(path, request.getDownsample(), request));
+		}
+		return requests;
+	}
 
 
 	/**
@@ -102,7 +216,8 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 
 		// Loop through and create the image
 		List<TileWorker<BufferedImage>> workers = new ArrayList<>();
-		BufferedImage imgTemp = null;
+		long displayTimestamp = imageDisplay == null ? 0L : imageDisplay.getLastChangeTimestamp();
+		String renderedPath = imageDisplay == null ? null : getRenderedPath(server, imageDisplay);
 
 		for (RegionRequest request : ImageRegionStoreHelpers.getTilesToRequest(server, clipShapeVisible, downsampleFactor, zPosition, tPosition, null)) {
 
@@ -111,8 +226,10 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 			// If we have an image, paint it & record coordinates
 			if (result instanceof BufferedImage) {
 				if (imageDisplay != null) {
-					imgTemp = imageDisplay.applyTransforms((BufferedImage)result, imgTemp);
-					g.drawImage(imgTemp, request.getX(), request.getY(), request.getWidth(), request.getHeight(), observer);
+					BufferedImage imgRendered = getRenderedTile(renderedPath, request, (BufferedImage)result, imageDisplay, displayTimestamp);
+					if (imgRendered == null)
+						imgRendered = imageDisplay.applyTransforms((BufferedImage)result, null);
+					g.drawImage(imgRendered, request.getX(), request.getY(), request.getWidth(), request.getHeight(), observer);
 				} else
 					g.drawImage((BufferedImage)result, request.getX(), request.getY(), request.getWidth(), request.getHeight(), observer);
 			} else if (result instanceof TileWorker) {
@@ -167,9 +284,10 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 				continue;
 			RegionRequest request = worker.getRequest();
 			if (imageDisplay != null) {
-				imgTemp = imageDisplay.applyTransforms(imgTile, imgTemp);
-				g.drawImage(imgTemp, request.getX(), request.getY(), request.getWidth(), request.getHeight(), observer);
-
+				BufferedImage imgRendered = getRenderedTile(renderedPath, request, imgTile, imageDisplay, displayTimestamp);
+				if (imgRendered == null)
+					imgRendered = imageDisplay.applyTransforms(imgTile, null);
+				g.drawImage(imgRendered, request.getX(), request.getY(), request.getWidth(), request.getHeight(), observer);
 			} else
 				g.drawImage(imgTile, request.getX(), request.getY(), request.getWidth(), request.getHeight(), observer);
 		}
@@ -192,6 +310,10 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 		// Check if we have all the regions required for this request
 		List<RegionRequest> requests = ImageRegionStoreHelpers.getTilesToRequest(server, clipShapeVisible, downsampleFactor, zPosition, tPosition, null);
 
+		// Rendered tiles can be reused for so long as the ImageRenderer remains constant
+		long displayTimestamp = imageDisplay == null ? 0L : imageDisplay.getLastChangeTimestamp();
+		String renderedPath = imageDisplay == null ? null : getRenderedPath(server, imageDisplay);
+
 //		System.out.println("Requesting tiles: " + requests.size());
 //		System.out.println("Requesting tiles " + server.getServerPath() + ": " + requests.size());
 
@@ -201,6 +323,8 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 			for (RegionRequest request : requests) {
 				// Load the image
 				BufferedImage img = getCachedTile(server, request);
+				if (img == null && renderedPath != null)
+					img = renderedCache.get(RegionRequest.createInstance(renderedPath, request.getDownsample(), request));
 				if (img == null && !cache.containsKey(request)) {
 					if (missingBounds == null)
 						missingBounds = AwtTools.getBounds(request);
@@ -227,7 +351,9 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 				else if (imgThumbnail != null) {
 					// The best we can do is paint the thumbnail
 					if (imageDisplay != null) {
-						BufferedImage imgTemp = imageDisplay.applyTransforms(imgThumbnail, null);
+						BufferedImage imgTemp = getRenderedTile(renderedPath, getThumbnailRequest(server, zPosition, tPosition), imgThumbnail, imageDisplay, displayTimestamp);
+						if (imgTemp == null)
+							return;
 						imgThumbnail = imgTemp;
 					}
 					g.drawImage(imgThumbnail, 0, 0, server.getWidth(), server.getHeight(), observer);
@@ -235,48 +361,27 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 			}
 		}
 
-		// If we're compositing channels, it's worthwhile to cache RGB tiles for so long as the ImageDisplay remains constant
-		boolean useDisplayCache = imageDisplay != null && !server.isRGB() && server.nChannels() > 1;
-		long displayTimestamp = imageDisplay == null ? 0L : imageDisplay.getLastChangeTimestamp();
-		String displayCachePath = useDisplayCache ? server.getPath() + imageDisplay.getUniqueID() : null;
-
 		// Loop through and draw whatever tiles we've got
-		BufferedImage imgTemp = null;
 		for (RegionRequest request : requests) {
-			// Load the image
-			BufferedImage img = getCachedRegion(server, request);
-
-			// If there is no image tile, try to get a lower-resolution version to draw -
-			// this can actually paint over previously-available regions, but they will be repainted again when this region's request comes through
-			if (img == null)
-				continue;
-
-			// If we have an image, paint it & record coordinates
-			// Apply any required color transformations
-			if (imageDisplay != null) {
-				// We can abort now - we know the display has changed, additional painting is futile...
-				if (displayTimestamp != imageDisplay.getLastChangeTimestamp())
-					return;
-				if (useDisplayCache) {
-					// Apply transforms, creating & caching new temp images
-					RegionRequest requestCache = RegionRequest.createInstance(displayCachePath, request.getDownsample(), request);
-					imgTemp = cache.get(requestCache);
-					if (imgTemp == null) {
-						imgTemp = imageDisplay.applyTransforms(img, null);
-						// Store this if we know we've still got the same display settings
-						// This avoids making the cache inconsistent
-						if (displayTimestamp == imageDisplay.getLastChangeTimestamp())
-							cache.put(requestCache, imgTemp);
-						else
-							return;
-					}
-				} else {
-					// Apply transforms, trying to reuse temp image
-					if (imgTemp != null && (imgTemp.getWidth() != img.getWidth() || imgTemp.getHeight() != img.getHeight()))
-						imgTemp = null;
-					imgTemp = imageDisplay.applyTransforms(img, imgTemp);
+			// Use a rendered tile if we have one, otherwise load the image
+			BufferedImage img = null;
+			if (renderedPath != null)
+				img = renderedCache.get(RegionRequest.createInstance(renderedPath, request.getDownsample(), request));
+			if (img == null) {
+				img = getCachedRegion(server, request);
+
+				// If there is no image tile, try to get a lower-resolution version to draw -
+				// this can actually paint over previously-available regions, but they will be repainted again when this region's request comes through
+				if (img == null)
+					continue;
+
+				// Apply any required color transformations, caching the result
+				if (imageDisplay != null) {
+					img = getRenderedTile(renderedPath, request, img, imageDisplay, displayTimestamp);
+					// We can abort now - we know the display has changed, additional painting is futile...
+					if (img == null)
+						return;
 				}
-				img = imgTemp;
 			}
 //			System.err.println(String.format("%dx%d, %.2f - %.2f", img.getWidth(), img.getHeight(), (double)request.getHeight()/img.getHeight(), request.getDownsample()));
 			g.drawImage(img, request.getX(), request.getY(), request.getWidth(), request.getHeight(), observer);
@@ -289,6 +394,30 @@ public class DefaultImageRegionStore extends AbstractImageRegionStore<BufferedIm
 	}
 
 
+	@Override
+	public synchronized void clearCache(final boolean clearThumbnails, final boolean stopWaiting) {
+		super.clearCache(clearThumbnails, stopWaiting);
+		renderedCache.clear();
+	}
+	
+	@Override
+	public synchronized void clearCacheForServer(final ImageServer<BufferedImage> server) {
+		super.clearCacheForServer(server);
+		String prefix = server.getPath() + RENDERED_PATH_SEPARATOR;
+		for (String path : renderedCache.getPaths()) {
+			if (path.startsWith(prefix))
+				renderedCache.clearCacheForPath(path);
+		}
+	}
+	
+	@Override
+	public synchronized void clearCacheForRequestOverlap(final RegionRequest request) {
+		super.clearCacheForRequestOverlap(request);
+		for (RegionRequest renderedRequest : getRenderedRequests(request))
+			renderedCache.clearCacheForRequestOverlap(renderedRequest);
+	}
+
+
 	@Override
 	public void close() {
 		super.close();
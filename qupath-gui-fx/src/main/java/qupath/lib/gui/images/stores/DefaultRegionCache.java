@@ -21,14 +21,25 @@
  * #L%
  */
 
+
 package qupath.lib.gui.images.stores;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.regions.RegionRequest;
@@ -36,106 +47,144 @@ import qupath.lib.regions.RegionRequest;
 /**
  * Map for storing image tiles, which automatically removes tiles that have not been accessed
  * in a while after it reaches a maximum number of tiles, or maximum memory consumption.
- * 
+ * <p>
  * The memory consumption estimate is based on the bit-depth of the image &amp; number of pixels it contains
  * (other overhead is ignored).
+ * <p>
+ * The cache is designed to be accessed from many threads at once: reads do not require any locking, 
+ * and writes only contend with other writes for the same region. Eviction is approximately least-recently-used, 
+ * using a 'second chance' queue rather than strict access ordering.
+ * <p>
+ * Null values are permitted, and are used to indicate that a region has been requested, but that there is 
+ * nothing to show for it.
  * 
  * @author Pete Bankhead
  *
  */
 class DefaultRegionCache<T> implements RegionCache<T> {
 
-	private Map<RegionRequest, T> map;
+	private final Map<RegionRequest, CacheEntry<T>> map = new ConcurrentHashMap<>();
+	private final Map<String, Set<RegionRequest>> keysByPath = new ConcurrentHashMap<>();
+	private final Queue<CacheEntry<T>> evictionQueue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger evictionQueueSize = new AtomicInteger();
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	
 	private final SizeEstimator<T> sizeEstimator;
-	private int maxCapacity;
-	private int nonNullSize = 0;
-	private long maxMemoryBytes;
-	private long memoryBytes = 0; // Rely on synchronization to control access to map anyway, so no need for atomic...?
+	private final int maxCapacity;
+	private final long maxMemoryBytes;
+	private final AtomicInteger nonNullSize = new AtomicInteger();
+	private final AtomicLong memoryBytes = new AtomicLong();
+	
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
 
 	DefaultRegionCache(final SizeEstimator<T> sizeEstimator, final int maxCapacity, final long maxSizeBytes) {
 		this.maxMemoryBytes = maxSizeBytes;
 		this.sizeEstimator = sizeEstimator;
 		this.maxCapacity = maxCapacity;
-		map = new LinkedHashMap<RegionRequest, T>(maxCapacity+1, 2f, true) {
-
-			private static final long serialVersionUID = 1L;
-
-			@Override
-			protected synchronized boolean removeEldestEntry(Map.Entry<RegionRequest, T> eldest) {
-				// Remove if the map is full (in terms of numbers), or occupying too much memory
-				boolean doRemove = nonNullSize >= maxCapacity || memoryBytes > maxMemoryBytes;
-				if (doRemove) {
-					memoryBytes = memoryBytes - sizeEstimator.getApproxImageSize(eldest.getValue());
-					if (eldest.getValue() != null)
-						nonNullSize--;
-//					if (getApproxImageSize(eldest.getValue()) > 10784000)
-//											logger.info(String.format("REMOVED! %.2f MB remaining, %d images", memoryBytes/(1024. * 1024.), size()));
-				}
-				return doRemove;
-			}
-
-		}; // Should never have to resize the cache, so loadfactor is > 1
-		//			logger.info("Max capacity: " + maxCapacity);
-		//			logger.info("Max size: " + maxSizeBytes);
-		map = Collections.synchronizedMap(map);
 	}
 
 	DefaultRegionCache(final SizeEstimator<T> sizeEstimator, long maxSizeBytes) {
 		this(sizeEstimator, Math.max(200, (int)(maxSizeBytes / (256 * 256 * 4) + 10)), maxSizeBytes);
 	}
 
-	synchronized void clearCacheForServer(ImageServer<?> server) {
-		Iterator<Entry<RegionRequest, T>> iter = map.entrySet().iterator();
-		while (iter.hasNext()) {
-			Entry<RegionRequest, T> entry = iter.next();
-			if (entry.getKey().getPath().equals(server.getPath())) {
-				memoryBytes -= sizeEstimator.getApproxImageSize(entry.getValue());
-				if (entry.getValue() != null)
-					nonNullSize--;
-				iter.remove();
-			}
-		}
+	void clearCacheForServer(ImageServer<?> server) {
+		clearCacheForPath(server.getPath());
 	}
 	
+	/**
+	 * Remove all entries for requests with the specified path.
+	 * @param path
+	 */
+	void clearCacheForPath(String path) {
+		Set<RegionRequest> keys = keysByPath.get(path);
+		if (keys == null)
+			return;
+		for (RegionRequest key : keys)
+			remove(key);
+	}
 	
-	synchronized void clearCacheForRequestOverlap(RegionRequest request) {
-		Iterator<Entry<RegionRequest, T>> iter = map.entrySet().iterator();
-		while (iter.hasNext()) {
-			Entry<RegionRequest, T> entry = iter.next();
-			if (request.overlapsRequest(entry.getKey())) {
-				memoryBytes -= sizeEstimator.getApproxImageSize(entry.getValue());
-				if (entry.getValue() != null)
-					nonNullSize--;
-				iter.remove();
-			}
+	/**
+	 * Get a snapshot of the paths for which requests are currently stored.
+	 * @return
+	 */
+	List<String> getPaths() {
+		return new ArrayList<>(keysByPath.keySet());
+	}
+	
+	void clearCacheForRequestOverlap(RegionRequest request) {
+		Set<RegionRequest> keys = keysByPath.get(request.getPath());
+		if (keys == null)
+			return;
+		for (RegionRequest key : keys) {
+			if (request.overlapsRequest(key))
+				remove(key);
 		}
 	}
+	
+	/**
+	 * Get the number of requests for which a cached value was found.
+	 * @return
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+	
+	/**
+	 * Get the number of requests for which no cached value was found.
+	 * @return
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+	
+	/**
+	 * Get the number of entries that have been removed to keep the cache within its size limits.
+	 * @return
+	 */
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+	
+	/**
+	 * Get the current estimated memory used by cached values, in bytes.
+	 * @return
+	 */
+	public long getMemoryBytes() {
+		return memoryBytes.get();
+	}
 
 	/* (non-Javadoc)
 	 * @see qupath.lib.images.stores.RegionCache#put(qupath.lib.regions.RegionRequest, T)
 	 */
 	@Override
-	public synchronized T put(RegionRequest request, T img) {
+	public T put(RegionRequest request, T img) {
+		CacheEntry<T> entry = new CacheEntry<>(request, img, sizeEstimator.getApproxImageSize(img));
+		// Use compute so that the key index is updated atomically along with the map
+		AtomicReference<CacheEntry<T>> previousRef = new AtomicReference<>();
+		map.compute(request, (k, v) -> {
+			previousRef.set(v);
+			addToPathIndex(k);
+			return entry;
+		});
 		// Update the memory requirements
-		T imgPrevious = map.put(request, img);
-		if (img != null) {
-			memoryBytes += sizeEstimator.getApproxImageSize(img);
-			nonNullSize++;
-		}
-		if (imgPrevious != null) {
-			memoryBytes -= sizeEstimator.getApproxImageSize(imgPrevious);
-			nonNullSize--;
-		}
-//		else
-//			System.out.println("PUTTING NEW: " + nonNullSize + ", " + request + ", " + Thread.currentThread());
-		return imgPrevious;
+		CacheEntry<T> previous = previousRef.get();
+		addToTotals(entry, 1);
+		if (previous != null)
+			addToTotals(previous, -1);
+		evictionQueue.add(entry);
+		evictionQueueSize.incrementAndGet();
+		if (isFull())
+			evict();
+		return previous == null ? null : previous.value;
 	}
 	
 	/* (non-Javadoc)
 	 * @see qupath.lib.images.stores.RegionCache#containsKey(qupath.lib.regions.RegionRequest)
 	 */
 	@Override
-	public synchronized boolean containsKey(RegionRequest request) {
+	public boolean containsKey(RegionRequest request) {
 		return map.containsKey(request);
 	}
 
@@ -143,79 +192,227 @@ class DefaultRegionCache<T> implements RegionCache<T> {
 	 * @see qupath.lib.images.stores.RegionCache#get(qupath.lib.regions.RegionRequest)
 	 */
 	@Override
-	public synchronized T get(RegionRequest request) {
-		return map.get(request);
+	public T get(RegionRequest request) {
+		CacheEntry<T> entry = map.get(request);
+		if (entry == null) {
+			missCount.increment();
+			return null;
+		}
+		hitCount.increment();
+		entry.accessed = true;
+		return entry.value;
 	}
 
-	public synchronized void clear() {
-		memoryBytes = 0;
-		nonNullSize = 0;
-		map.clear();
+	@Override
+	public void clear() {
+		for (RegionRequest key : map.keySet())
+			remove(key);
+		purgeEvictionQueue();
+	}
+	
+	private boolean isFull() {
+		return nonNullSize.get() >= maxCapacity || memoryBytes.get() > maxMemoryBytes;
+	}
+	
+	private void addToTotals(CacheEntry<T> entry, int sign) {
+		memoryBytes.addAndGet(sign * entry.size);
+		if (entry.value != null)
+			nonNullSize.addAndGet(sign);
+	}
+	
+	/**
+	 * Remove entries until the cache is within its limits again.
+	 * <p>
+	 * Entries are taken from the head of the eviction queue; any that have been accessed since they were 
+	 * last checked are given a second chance by being moved to the tail.
+	 * Only one thread evicts at a time - others simply continue, since the evicting thread will remove enough for everyone.
+	 */
+	private void evict() {
+		if (!evictionLock.tryLock())
+			return;
+		try {
+			while (isFull()) {
+				CacheEntry<T> entry = evictionQueue.poll();
+				if (entry == null)
+					break;
+				evictionQueueSize.decrementAndGet();
+				// Skip entries that have already been removed or replaced
+				if (map.get(entry.key) != entry)
+					continue;
+				if (entry.accessed) {
+					entry.accessed = false;
+					evictionQueue.add(entry);
+					evictionQueueSize.incrementAndGet();
+					continue;
+				}
+				if (removeEntry(entry.key, entry) != null)
+					evictionCount.increment();
+			}
+			// Avoid the queue filling up with entries that were removed explicitly
+			if (evictionQueueSize.get() > map.size() * 2 + 100)
+				purgeEvictionQueue();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+	
+	private void purgeEvictionQueue() {
+		evictionQueue.removeIf(e -> {
+			if (map.get(e.key) == e)
+				return false;
+			evictionQueueSize.decrementAndGet();
+			return true;
+		});
+	}
+	
+	/**
+	 * Remove the entry for a key, optionally only if it matches a specified entry.
+	 * 
+	 * @param key
+	 * @param expected the entry to remove, or null if any entry should be removed
+	 * @return the entry that was removed, or null if no entry was removed
+	 */
+	private CacheEntry<T> removeEntry(RegionRequest key, CacheEntry<T> expected) {
+		AtomicReference<CacheEntry<T>> removedRef = new AtomicReference<>();
+		map.computeIfPresent(key, (k, v) -> {
+			if (expected != null && v != expected)
+				return v;
+			removedRef.set(v);
+			removeFromPathIndex(k);
+			return null;
+		});
+		CacheEntry<T> removed = removedRef.get();
+		if (removed != null)
+			addToTotals(removed, -1);
+		return removed;
+	}
+	
+	/**
+	 * Add a key to the per-path index.
+	 * This is called while the map entry for the key is locked; the index for the path is updated atomically 
+	 * so that it can't be discarded by a concurrent removal.
+	 * @param key
+	 */
+	private void addToPathIndex(RegionRequest key) {
+		keysByPath.compute(key.getPath(), (p, keys) -> {
+			if (keys == null)
+				keys = ConcurrentHashMap.newKeySet();
+			keys.add(key);
+			return keys;
+		});
+	}
+	
+	/**
+	 * Remove a key from the per-path index, discarding the set for the path once it is empty.
+	 * @param key
+	 */
+	private void removeFromPathIndex(RegionRequest key) {
+		keysByPath.computeIfPresent(key.getPath(), (p, keys) -> {
+			keys.remove(key);
+			return keys.isEmpty() ? null : keys;
+		});
 	}
 	
 	
 	@Override
 	public String toString() {
-		return String.format("Cache: %d (%d/%d non-null), %s", map.size(), nonNullSize, maxCapacity, map.toString());
+		return String.format("Cache: %d (%d/%d non-null), %.1f/%.1f MB, %d hits, %d misses, %d evictions",
+				map.size(), nonNullSize.get(), maxCapacity,
+				memoryBytes.get()/(1024.0*1024.0), maxMemoryBytes/(1024.0*1024.0),
+				getHitCount(), getMissCount(), getEvictionCount());
 	}
 
 	@Override
-	public synchronized int size() {
+	public int size() {
 		return map.size();
 	}
 
 	@Override
-	public synchronized boolean isEmpty() {
+	public boolean isEmpty() {
 		return map.isEmpty();
 	}
 
 	@Override
-	public synchronized boolean containsKey(Object key) {
+	public boolean containsKey(Object key) {
 		return map.containsKey(key);
 	}
 
 	@Override
-	public synchronized boolean containsValue(Object value) {
-		return map.containsValue(value);
+	public boolean containsValue(Object value) {
+		for (CacheEntry<T> entry : map.values()) {
+			if (value == null ? entry.value == null : value.equals(entry.value))
+				return true;
+		}
+		return false;
 	}
 
 	@Override
-	public synchronized T get(Object key) {
-		return map.get(key);
+	public T get(Object key) {
+		if (key instanceof RegionRequest)
+			return get((RegionRequest)key);
+		return null;
 	}
 
 	@Override
-	public synchronized T remove(Object key) {
-		// Update the memory requirements
-		T imgPrevious = map.remove(key);
-		if (imgPrevious != null) {
-			memoryBytes -= sizeEstimator.getApproxImageSize(imgPrevious);
-			nonNullSize--;
-		}
-		return imgPrevious;
+	public T remove(Object key) {
+		if (!(key instanceof RegionRequest))
+			return null;
+		CacheEntry<T> entry = removeEntry((RegionRequest)key, null);
+		return entry == null ? null : entry.value;
 	}
 
 	@Override
-	public synchronized void putAll(Map<? extends RegionRequest, ? extends T> m) {
+	public void putAll(Map<? extends RegionRequest, ? extends T> m) {
 		for (Entry<? extends RegionRequest, ? extends T> entry : m.entrySet()) {
 			put(entry.getKey(), entry.getValue());
 		}
 	}
 
+	/**
+	 * Returns an unmodifiable view of the keys.
+	 */
 	@Override
-	public synchronized Set<RegionRequest> keySet() {
-		return map.keySet();
+	public Set<RegionRequest> keySet() {
+		return Collections.unmodifiableSet(map.keySet());
 	}
 
+	/**
+	 * Returns a snapshot of the current values.
+	 */
 	@Override
-	public synchronized Collection<T> values() {
-		return map.values();
+	public Collection<T> values() {
+		List<T> values = new ArrayList<>();
+		for (CacheEntry<T> entry : map.values())
+			values.add(entry.value);
+		return Collections.unmodifiableList(values);
 	}
 
+	/**
+	 * Returns a snapshot of the current entries.
+	 */
 	@Override
-	public synchronized Set<Entry<RegionRequest, T>> entrySet() {
-		return map.entrySet();
+	public Set<Entry<RegionRequest, T>> entrySet() {
+		Set<Entry<RegionRequest, T>> entries = new LinkedHashSet<>();
+		for (CacheEntry<T> entry : map.values())
+			entries.add(new SimpleImmutableEntry<>(entry.key, entry.value));
+		return Collections.unmodifiableSet(entries);
+	}
+	
+	
+	private static class CacheEntry<T> {
+		
+		private final RegionRequest key;
+		private final T value;
+		private final long size;
+		private volatile boolean accessed = false;
+		
+		private CacheEntry(final RegionRequest key, final T value, final long size) {
+			this.key = key;
+			this.value = value;
+			this.size = size;
+		}
+		
 	}
 	
 
-}
\ No newline at end of file
+}
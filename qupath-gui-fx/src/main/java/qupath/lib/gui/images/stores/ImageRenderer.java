@@ -38,4 +38,16 @@ public interface ImageRenderer {
 	 */
 	public String getUniqueID();
 	
+	/**
+	 * Returns true if {@link #applyTransforms(BufferedImage, BufferedImage)} would only copy the input image unchanged, 
+	 * e.g. for an RGB image without any brightness/contrast adjustment.
+	 * <p>
+	 * In this case, there is no benefit in caching the output.
+	 * 
+	 * @return
+	 */
+	public default boolean isIdentity() {
+		return false;
+	}
+	
 }
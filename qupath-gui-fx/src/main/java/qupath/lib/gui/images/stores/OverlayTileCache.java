@@ -0,0 +1,428 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.gui.images.servers.PathHierarchyImageServer;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Cache of tiles rendered from a {@link PathHierarchyImageServer}, i.e. the rasterized detection overlay.
+ * <p>
+ * Unlike the main tile cache of an {@link ImageRegionStore}, tiles are not discarded whenever objects change.
+ * Rather, a spatial index of the cached tiles is used to mark only those tiles that intersect the changed objects as stale.
+ * Stale tiles continue to be painted until a replacement has been rendered on a background thread,
+ * at which point any {@link TileListener} registered with the region store is notified - so that the viewer can repaint.
+ * <p>
+ * Tiles are only rendered when they are painted, so invalidating tiles that are not currently visible is cheap.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class OverlayTileCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(OverlayTileCache.class);
+
+	/**
+	 * Number of pixels (at the tile resolution) by which tile bounds are expanded when checking for changes,
+	 * since object outlines may be painted slightly beyond the ROI bounds.
+	 */
+	private static final double TILE_PADDING = 4.0;
+
+	private static final ExecutorService pool = Executors.newFixedThreadPool(
+			Math.max(2, Runtime.getRuntime().availableProcessors() / 2), new SimpleThreadFactory("overlay-tiles-", true));
+
+	private final PathHierarchyImageServer server;
+	private final AbstractImageRegionStore<BufferedImage> regionStore;
+	private final SharedMemory sharedMemory;
+
+	private final Map<RegionRequest, OverlayTile> tiles = new ConcurrentHashMap<>();
+	// Index of tile envelopes - access must be synchronized, since the Quadtree is not thread-safe
+	private final Quadtree index = new Quadtree();
+
+	private final AtomicLong memoryBytes = new AtomicLong();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor for a cache that shares the memory available for overlay tiles with all other caches using the same region store.
+	 *
+	 * @param server the server used to render tiles
+	 * @param regionStore region store whose tile listeners should be notified whenever a new tile is available
+	 * @see DefaultImageRegionStore#getOverlayTileCacheSizeBytes()
+	 */
+	public OverlayTileCache(final PathHierarchyImageServer server, final DefaultImageRegionStore regionStore) {
+		this(server, regionStore, regionStore.getOverlayTileMemory());
+	}
+
+	/**
+	 * Constructor for a cache with its own memory limit.
+	 *
+	 * @param server the server used to render tiles
+	 * @param regionStore region store whose tile listeners should be notified whenever a new tile is available (may be null)
+	 * @param maxMemoryBytes approximate maximum memory to use for rendered tiles
+	 */
+	public OverlayTileCache(final PathHierarchyImageServer server, final DefaultImageRegionStore regionStore, final long maxMemoryBytes) {
+		this(server, regionStore, new SharedMemory(maxMemoryBytes));
+	}
+
+	private OverlayTileCache(final PathHierarchyImageServer server, final DefaultImageRegionStore regionStore, final SharedMemory sharedMemory) {
+		this.server = server;
+		this.regionStore = regionStore;
+		this.sharedMemory = sharedMemory;
+		sharedMemory.caches.add(this);
+	}
+
+	/**
+	 * Get the server used to render tiles.
+	 * @return
+	 */
+	public PathHierarchyImageServer getServer() {
+		return server;
+	}
+
+	/**
+	 * Paint the tiles required for the specified region.
+	 * <p>
+	 * Any tiles that are missing or stale are requested in the background.
+	 * Stale tiles are painted in the meantime, while for missing tiles a lower-resolution tile is used if available.
+	 *
+	 * @param g2d
+	 * @param clipShape the region to paint, in the full-resolution image space
+	 * @param zPosition
+	 * @param tPosition
+	 * @param downsampleFactor
+	 * @param observer
+	 * @param paintCompletely if true, any missing or stale tiles are rendered immediately in the current thread rather than in the background
+	 */
+	public void paintRegion(final Graphics2D g2d, final Shape clipShape, final int zPosition, final int tPosition, final double downsampleFactor, final ImageObserver observer, final boolean paintCompletely) {
+		if (closed)
+			return;
+		List<RegionRequest> requests = ImageRegionStoreHelpers.getTilesToRequest(server, clipShape, downsampleFactor, zPosition, tPosition, null);
+		for (RegionRequest request : requests) {
+			OverlayTile tile = getTile(request);
+			tile.lastAccess = sharedMemory.accessCounter.incrementAndGet();
+			if (!tile.isCurrent()) {
+				if (paintCompletely || (!tile.isRendered() && server.isEmptyRegion(request)))
+					render(tile);
+				else
+					requestRender(tile);
+			}
+			if (tile.isRendered()) {
+				BufferedImage img = tile.image;
+				if (img != null)
+					g2d.drawImage(img, request.getX(), request.getY(), request.getWidth(), request.getHeight(), observer);
+			} else
+				paintLowerResolution(g2d, tile, observer);
+		}
+		sharedMemory.evict();
+	}
+
+	/**
+	 * Paint the best available lower-resolution tile in place of a tile that has not yet been rendered.
+	 */
+	private void paintLowerResolution(final Graphics2D g2d, final OverlayTile tile, final ImageObserver observer) {
+		RegionRequest request = tile.request;
+		OverlayTile best = null;
+		for (OverlayTile candidate : query(new Envelope(request.getMinX(), request.getMaxX(), request.getMinY(), request.getMaxY()))) {
+			RegionRequest r = candidate.request;
+			if (r.getDownsample() <= request.getDownsample() || r.getZ() != request.getZ() || r.getT() != request.getT() ||
+					!candidate.isRendered() || !r.contains(request.getX(), request.getY(), request.getZ(), request.getT()))
+				continue;
+			if (best == null || r.getDownsample() < best.request.getDownsample())
+				best = candidate;
+		}
+		if (best == null || best.image == null)
+			return;
+		RegionRequest r = best.request;
+		Shape clip = g2d.getClip();
+		g2d.clipRect(request.getX(), request.getY(), request.getWidth(), request.getHeight());
+		g2d.drawImage(best.image, r.getX(), r.getY(), r.getWidth(), r.getHeight(), observer);
+		g2d.setClip(clip);
+	}
+
+	/**
+	 * Mark all tiles as stale, so that they will be rendered again the next time they are painted.
+	 * Existing tiles remain available until the replacements are ready.
+	 */
+	public void invalidateAll() {
+		for (OverlayTile tile : tiles.values())
+			tile.version.incrementAndGet();
+	}
+
+	/**
+	 * Mark all tiles that overlap the specified region as stale.
+	 * @param region
+	 * @see #invalidateAll()
+	 */
+	public void invalidate(final ImageRegion region) {
+		Envelope envelope = new Envelope(region.getMinX(), region.getMaxX(), region.getMinY(), region.getMaxY());
+		for (OverlayTile tile : query(envelope)) {
+			RegionRequest request = tile.request;
+			if (request.getZ() == region.getZ() && request.getT() == region.getT() && tile.envelope.intersects(envelope))
+				tile.version.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Mark all tiles that overlap any of the specified regions as stale.
+	 * @param regions
+	 * @see #invalidateAll()
+	 */
+	public void invalidate(final Collection<? extends ImageRegion> regions) {
+		for (ImageRegion region : regions)
+			invalidate(region);
+	}
+
+	/**
+	 * Remove all tiles from the cache, and prevent any further tiles being rendered.
+	 */
+	public void close() {
+		closed = true;
+		sharedMemory.caches.remove(this);
+		for (OverlayTile tile : new ArrayList<>(tiles.values()))
+			removeTile(tile);
+	}
+
+	/**
+	 * Get the approximate memory currently used for rendered tiles.
+	 * @return
+	 */
+	public long getMemoryBytes() {
+		return memoryBytes.get();
+	}
+
+	/**
+	 * Get the number of tiles currently cached, including those that have not yet been rendered.
+	 * @return
+	 */
+	public int size() {
+		return tiles.size();
+	}
+	
+	/**
+	 * Get the number of cached tiles that need to be rendered again.
+	 * @return
+	 */
+	int getStaleTileCount() {
+		return (int)tiles.values().stream().filter(t -> !t.isCurrent()).count();
+	}
+
+
+	private List<OverlayTile> query(final Envelope envelope) {
+		synchronized (index) {
+			@SuppressWarnings("unchecked")
+			List<OverlayTile> list = index.query(envelope);
+			return list;
+		}
+	}
+
+	private OverlayTile getTile(final RegionRequest request) {
+		OverlayTile tile = tiles.get(request);
+		if (tile != null)
+			return tile;
+		OverlayTile newTile = new OverlayTile(this, request);
+		tile = tiles.putIfAbsent(request, newTile);
+		if (tile != null)
+			return tile;
+		synchronized (index) {
+			index.insert(newTile.envelope, newTile);
+		}
+		return newTile;
+	}
+
+	private void removeTile(final OverlayTile tile) {
+		if (!tiles.remove(tile.request, tile))
+			return;
+		synchronized (index) {
+			index.remove(tile.envelope, tile);
+		}
+		synchronized (tile) {
+			addMemoryBytes(-tile.size);
+			tile.size = 0;
+		}
+	}
+
+	private void requestRender(final OverlayTile tile) {
+		if (!tile.pending.compareAndSet(false, true))
+			return;
+		pool.execute(() -> {
+			try {
+				// Skip tiles that have been removed in the meantime
+				if (closed || tiles.get(tile.request) != tile)
+					return;
+				render(tile);
+			} catch (Exception e) {
+				logger.error("Unable to render overlay tile for " + tile.request, e);
+				return;
+			} finally {
+				tile.pending.set(false);
+			}
+			// Let listeners know the tile is available - this should trigger a repaint,
+			// which will request the tile again if it became stale during rendering
+			if (regionStore != null) {
+				for (TileListener<BufferedImage> listener : new ArrayList<>(regionStore.tileListeners))
+					listener.tileAvailable(server.getPath(), tile.request, tile.image);
+			}
+		});
+	}
+
+	private void render(final OverlayTile tile) {
+		long version = tile.version.get();
+		BufferedImage img = server.isEmptyRegion(tile.request) ? null : server.renderRegion(tile.request);
+		long size = img == null ? 0 : (long)img.getWidth() * img.getHeight() * 4L;
+		synchronized (tile) {
+			// Don't replace a newer tile (this is possible if a tile was rendered immediately while a background request was in progress)
+			if (tile.renderedVersion > version)
+				return;
+			if (tiles.get(tile.request) == tile)
+				addMemoryBytes(size - tile.size);
+			tile.size = size;
+			tile.image = img;
+			tile.renderedVersion = version;
+		}
+		// Don't keep empty tiles, since they would never be evicted - a new tile will be created if the region is painted again
+		if (img == null)
+			removeTile(tile);
+	}
+
+	private void addMemoryBytes(final long delta) {
+		memoryBytes.addAndGet(delta);
+		sharedMemory.memoryBytes.addAndGet(delta);
+	}
+
+
+	/**
+	 * Memory limit shared by several overlay tile caches, e.g. for different viewers.
+	 * When the limit is exceeded, the least recently painted tiles are removed from whichever cache contains them.
+	 */
+	static class SharedMemory {
+
+		private final long maxMemoryBytes;
+		private final Set<OverlayTileCache> caches = ConcurrentHashMap.newKeySet();
+		private final AtomicLong memoryBytes = new AtomicLong();
+		private final AtomicLong accessCounter = new AtomicLong();
+		private final ReentrantLock evictionLock = new ReentrantLock();
+
+		SharedMemory(final long maxMemoryBytes) {
+			this.maxMemoryBytes = maxMemoryBytes;
+		}
+
+		/**
+		 * Get the approximate memory used for rendered tiles, across all caches.
+		 * @return
+		 */
+		long getMemoryBytes() {
+			return memoryBytes.get();
+		}
+
+		/**
+		 * Get the approximate maximum memory to use for rendered tiles, across all caches.
+		 * @return
+		 */
+		long getMaxMemoryBytes() {
+			return maxMemoryBytes;
+		}
+
+		/**
+		 * Remove the least recently painted tiles if the memory limit has been exceeded.
+		 */
+		private void evict() {
+			if (memoryBytes.get() <= maxMemoryBytes || !evictionLock.tryLock())
+				return;
+			try {
+				List<OverlayTile> list = new ArrayList<>();
+				for (OverlayTileCache cache : caches)
+					list.addAll(cache.tiles.values());
+				list.sort(Comparator.comparingLong(t -> t.lastAccess));
+				long targetBytes = maxMemoryBytes * 3 / 4;
+				for (OverlayTile tile : list) {
+					if (memoryBytes.get() <= targetBytes)
+						break;
+					tile.cache.removeTile(tile);
+				}
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+
+	}
+
+
+	private static class OverlayTile {
+
+		private final OverlayTileCache cache;
+		private final RegionRequest request;
+		private final Envelope envelope;
+
+		// Incremented whenever the tile becomes stale
+		private final AtomicLong version = new AtomicLong();
+		private final AtomicBoolean pending = new AtomicBoolean(false);
+
+		private volatile long renderedVersion = -1L;
+		private volatile BufferedImage image;
+		private volatile long lastAccess;
+		private long size;
+
+		OverlayTile(final OverlayTileCache cache, final RegionRequest request) {
+			this.cache = cache;
+			this.request = request;
+			double pad = TILE_PADDING * request.getDownsample();
+			this.envelope = new Envelope(request.getMinX() - pad, request.getMaxX() + pad, request.getMinY() - pad, request.getMaxY() + pad);
+		}
+
+		boolean isRendered() {
+			return renderedVersion >= 0;
+		}
+
+		boolean isCurrent() {
+			return renderedVersion == version.get();
+		}
+
+	}
+
+}
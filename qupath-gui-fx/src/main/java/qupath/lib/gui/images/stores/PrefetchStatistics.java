@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+/**
+ * Snapshot of statistics describing how effective tile prefetching has been.
+ * <p>
+ * Visible tiles are counted once each time they come into view; a hit means the tile was already cached
+ * at that time, so could be painted without waiting for it to be read.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class PrefetchStatistics {
+
+	private final long nVisible;
+	private final long nVisibleCached;
+	private final long nPrefetchRequested;
+	private final long nPrefetchCompleted;
+	private final long nPrefetchUsed;
+	private final long nPrefetchCancelled;
+
+	PrefetchStatistics(final long nVisible, final long nVisibleCached, final long nPrefetchRequested, final long nPrefetchCompleted, final long nPrefetchUsed, final long nPrefetchCancelled) {
+		this.nVisible = nVisible;
+		this.nVisibleCached = nVisibleCached;
+		this.nPrefetchRequested = nPrefetchRequested;
+		this.nPrefetchCompleted = nPrefetchCompleted;
+		this.nPrefetchUsed = nPrefetchUsed;
+		this.nPrefetchCancelled = nPrefetchCancelled;
+	}
+
+	/**
+	 * Get the number of tiles that came into view.
+	 * @return
+	 */
+	public long getVisibleTileCount() {
+		return nVisible;
+	}
+
+	/**
+	 * Get the number of tiles that were already cached when they came into view.
+	 * @return
+	 */
+	public long getVisibleTileHitCount() {
+		return nVisibleCached;
+	}
+
+	/**
+	 * Get the proportion of tiles that were already cached when they came into view.
+	 * @return the hit rate, or NaN if no tiles have been viewed
+	 */
+	public double getHitRate() {
+		return nVisible == 0 ? Double.NaN : (double)nVisibleCached / nVisible;
+	}
+
+	/**
+	 * Get the number of tiles requested speculatively.
+	 * @return
+	 */
+	public long getPrefetchRequestedCount() {
+		return nPrefetchRequested;
+	}
+
+	/**
+	 * Get the number of speculative tile requests that completed.
+	 * @return
+	 */
+	public long getPrefetchCompletedCount() {
+		return nPrefetchCompleted;
+	}
+
+	/**
+	 * Get the number of prefetched tiles that subsequently came into view.
+	 * @return
+	 */
+	public long getPrefetchUsedCount() {
+		return nPrefetchUsed;
+	}
+
+	/**
+	 * Get the number of speculative tile requests that were cancelled before they started, because the view moved elsewhere.
+	 * @return
+	 */
+	public long getPrefetchCancelledCount() {
+		return nPrefetchCancelled;
+	}
+
+	/**
+	 * Get the proportion of completed prefetch requests that subsequently came into view.
+	 * @return the accuracy, or NaN if no prefetch requests have completed
+	 */
+	public double getPrefetchAccuracy() {
+		return nPrefetchCompleted == 0 ? Double.NaN : (double)nPrefetchUsed / nPrefetchCompleted;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Visible tiles: %d, hit rate: %.3f; prefetched tiles: %d requested, %d completed, %d used, %d cancelled (accuracy %.3f)",
+				nVisible, getHitRate(), nPrefetchRequested, nPrefetchCompleted, nPrefetchUsed, nPrefetchCancelled, getPrefetchAccuracy());
+	}
+
+}
@@ -0,0 +1,307 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Predicate;
+
+import qupath.lib.images.servers.GeneratingImageServer;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Helper class to predict which tiles will be needed next, based upon how the view is changing.
+ * <p>
+ * Each time the visible region changes, the velocity of the view and the direction of the last zoom are estimated.
+ * These are used to determine tiles likely to be needed soon: those in the direction of motion, those
+ * at the resolution expected after the next zoom step, and those immediately surrounding the visible region.
+ * <p>
+ * The velocity decays to zero if the view doesn't change for a while, but the zoom direction is retained 
+ * since zooming in or out is often repeated after a pause.
+ * A view that has never been moved or zoomed doesn't prefetch anything, since there is no indication which tiles will be needed next.
+ * <p>
+ * Statistics are also recorded to help assess how effective prefetching is.
+ *
+ * @author Pete Bankhead
+ *
+ * @param <T>
+ */
+class TilePrefetcher<T> {
+
+	/**
+	 * Time into the future for which the view location should be predicted.
+	 */
+	static final long LOOKAHEAD_MILLIS = 500L;
+
+	/**
+	 * Maximum time between view changes for these to be treated as part of the same movement.
+	 */
+	static final long MAX_MOTION_INTERVAL_MILLIS = 500L;
+
+	/**
+	 * Proportion of the visible width &amp; height to prefetch around the visible region.
+	 */
+	static final double MARGIN = 0.25;
+
+	/**
+	 * Maximum number of tiles to prefetch for any view.
+	 */
+	static final int MAX_PREFETCH_TILES = 64;
+
+	/**
+	 * Maximum number of prefetched tiles to remember when checking whether they were used.
+	 */
+	private static final int MAX_TRACKED_TILES = 4096;
+
+	private boolean enabled = true;
+
+	private final Map<TileListener<T>, ViewState> views = new WeakHashMap<>();
+
+	private ImageServer<T> pendingServer;
+	private Set<RegionRequest> pending = new LinkedHashSet<>();
+
+	@SuppressWarnings("serial")
+	private final Set<RegionRequest> prefetched = Collections.newSetFromMap(new LinkedHashMap<>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<RegionRequest, Boolean> eldest) {
+			return size() > MAX_TRACKED_TILES;
+		}
+	});
+
+	private long nVisible, nVisibleCached;
+	private long nPrefetchRequested, nPrefetchCompleted, nPrefetchUsed, nPrefetchCancelled;
+
+	synchronized void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled)
+			pending.clear();
+	}
+
+	synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Update the prediction following a change in the visible region.
+	 *
+	 * @param tileListener the listener associated with the view (may be null)
+	 * @param server
+	 * @param clipShape the visible region, in image coordinates
+	 * @param downsampleFactor
+	 * @param zPosition
+	 * @param tPosition
+	 * @param isCached predicate used to check whether a tile is currently cached
+	 */
+	void viewChanged(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor,
+			final int zPosition, final int tPosition, final Predicate<RegionRequest> isCached) {
+		viewChanged(tileListener, server, clipShape, downsampleFactor, zPosition, tPosition, isCached, System.currentTimeMillis());
+	}
+
+	/**
+	 * Update the prediction following a change in the visible region at a specified time.
+	 *
+	 * @see #viewChanged(TileListener, ImageServer, Shape, double, int, int, Predicate)
+	 */
+	synchronized void viewChanged(final TileListener<T> tileListener, final ImageServer<T> server, final Shape clipShape, final double downsampleFactor,
+			final int zPosition, final int tPosition, final Predicate<RegionRequest> isCached, final long timestamp) {
+
+		Rectangle2D bounds = clipShape.getBounds2D();
+		ViewState previous = views.get(tileListener);
+
+		// Record whether tiles that have just come into view were available
+		Set<RegionRequest> visible = new HashSet<>(ImageRegionStoreHelpers.getTilesToRequest(server, clipShape, downsampleFactor, zPosition, tPosition, null));
+		for (RegionRequest request : visible) {
+			if (previous != null && previous.visible.contains(request))
+				continue;
+			nVisible++;
+			boolean cached = isCached.test(request);
+			if (cached)
+				nVisibleCached++;
+			if (prefetched.remove(request) && cached)
+				nPrefetchUsed++;
+		}
+
+		// Estimate how the view is moving
+		ViewState current = new ViewState(server.getPath(), bounds, downsampleFactor, zPosition, tPosition, timestamp, visible);
+		if (previous != null && previous.isSameImagePlane(current)) {
+			long dt = timestamp - previous.timestamp;
+			if (dt > 0 && dt <= MAX_MOTION_INTERVAL_MILLIS) {
+				current.vx = 0.5 * (bounds.getCenterX() - previous.bounds.getCenterX()) / dt + 0.5 * previous.vx;
+				current.vy = 0.5 * (bounds.getCenterY() - previous.bounds.getCenterY()) / dt + 0.5 * previous.vy;
+			}
+			// Keep the last zoom direction however long ago it was - only the velocity decays
+			if (downsampleFactor != previous.downsampleFactor)
+				current.zoom = downsampleFactor / previous.downsampleFactor;
+			else
+				current.zoom = previous.zoom;
+		}
+		views.put(tileListener, current);
+
+		// Determine which tiles to prefetch
+		pending.clear();
+		pendingServer = server;
+		if (!enabled || server instanceof GeneratingImageServer)
+			return;
+		double w = bounds.getWidth();
+		double h = bounds.getHeight();
+		boolean isMoving = current.vx != 0 || current.vy != 0;
+		// In the direction of motion
+		if (isMoving) {
+			double dx = clip(current.vx * LOOKAHEAD_MILLIS, -w, w);
+			double dy = clip(current.vy * LOOKAHEAD_MILLIS, -h, h);
+			addPending(server, new Rectangle2D.Double(bounds.getX() + dx, bounds.getY() + dy, w, h), downsampleFactor, zPosition, tPosition, visible);
+		}
+		// At the next zoom step
+		if (Math.abs(current.zoom - 1) > 1e-3) {
+			double ratio = clip(current.zoom, 0.25, 4);
+			double nextDownsample = Math.max(1, downsampleFactor * ratio);
+			double w2 = w * nextDownsample / downsampleFactor;
+			double h2 = h * nextDownsample / downsampleFactor;
+			addPending(server, new Rectangle2D.Double(bounds.getCenterX() - w2/2, bounds.getCenterY() - h2/2, w2, h2), nextDownsample, zPosition, tPosition, visible);
+		}
+		// Surrounding the visible region
+		if (isMoving)
+			addPending(server, new Rectangle2D.Double(bounds.getX() - w * MARGIN, bounds.getY() - h * MARGIN, w * (1 + 2*MARGIN), h * (1 + 2*MARGIN)),
+					downsampleFactor, zPosition, tPosition, visible);
+	}
+
+	private void addPending(final ImageServer<T> server, final Rectangle2D region, final double downsampleFactor, final int zPosition, final int tPosition, final Set<RegionRequest> visible) {
+		Rectangle2D clipped = region.createIntersection(new Rectangle2D.Double(0, 0, server.getWidth(), server.getHeight()));
+		if (clipped.isEmpty())
+			return;
+		for (RegionRequest request : ImageRegionStoreHelpers.getTilesToRequest(server, clipped, downsampleFactor, zPosition, tPosition, null)) {
+			if (pending.size() >= MAX_PREFETCH_TILES)
+				return;
+			if (!visible.contains(request))
+				pending.add(request);
+		}
+	}
+
+	private static double clip(final double value, final double min, final double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/**
+	 * Get the server for which tiles should currently be prefetched.
+	 * @return
+	 */
+	synchronized ImageServer<T> getServer() {
+		return pendingServer;
+	}
+
+	/**
+	 * Get the next tile to prefetch, removing it from the list of pending requests.
+	 * @return the request, or null if there are no more tiles to prefetch
+	 */
+	synchronized RegionRequest nextRequest() {
+		var iter = pending.iterator();
+		if (!iter.hasNext())
+			return null;
+		RegionRequest request = iter.next();
+		iter.remove();
+		return request;
+	}
+
+	/**
+	 * Check whether a tile is still expected to be needed soon, given the most recent view.
+	 * @param request
+	 * @return
+	 */
+	synchronized boolean isWanted(final RegionRequest request) {
+		if (pending.contains(request))
+			return true;
+		for (ViewState view : views.values()) {
+			if (view.visible.contains(request))
+				return true;
+		}
+		return false;
+	}
+
+	synchronized void prefetchRequested(final RegionRequest request) {
+		nPrefetchRequested++;
+	}
+
+	synchronized void prefetchCompleted(final RegionRequest request) {
+		nPrefetchCompleted++;
+		prefetched.add(request);
+	}
+
+	synchronized void prefetchCancelled(final RegionRequest request) {
+		nPrefetchCancelled++;
+	}
+
+	synchronized PrefetchStatistics getStatistics() {
+		return new PrefetchStatistics(nVisible, nVisibleCached, nPrefetchRequested, nPrefetchCompleted, nPrefetchUsed, nPrefetchCancelled);
+	}
+
+	synchronized void resetStatistics() {
+		nVisible = 0;
+		nVisibleCached = 0;
+		nPrefetchRequested = 0;
+		nPrefetchCompleted = 0;
+		nPrefetchUsed = 0;
+		nPrefetchCancelled = 0;
+		prefetched.clear();
+	}
+
+
+	private static class ViewState {
+
+		private final String serverPath;
+		private final Rectangle2D bounds;
+		private final double downsampleFactor;
+		private final int zPosition, tPosition;
+		private final long timestamp;
+		private final Set<RegionRequest> visible;
+
+		// Velocity, in pixels per millisecond
+		private double vx = 0, vy = 0;
+		// Ratio of the downsample after the last zoom to the downsample before it
+		private double zoom = 1;
+
+		ViewState(final String serverPath, final Rectangle2D bounds, final double downsampleFactor, final int zPosition, final int tPosition, final long timestamp, final Set<RegionRequest> visible) {
+			this.serverPath = serverPath;
+			this.bounds = bounds;
+			this.downsampleFactor = downsampleFactor;
+			this.zPosition = zPosition;
+			this.tPosition = tPosition;
+			this.timestamp = timestamp;
+			this.visible = visible;
+		}
+
+		boolean isSameImagePlane(final ViewState other) {
+			return serverPath.equals(other.serverPath) && zPosition == other.zPosition && tPosition == other.tPosition;
+		}
+
+	}
+
+}
@@ -59,6 +59,8 @@ import qupath.lib.gui.models.ObservableMeasurementTableData.ROICentroidMeasureme
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.measurements.ColumnarMeasurementStore;
+import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.MetadataStore;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathDetectionObject;
@@ -330,10 +332,11 @@ public class ObservableMeasurementTableData implements PathTableData<PathObject>
 				values[i] = getNumericValue(filterList.get(i), column);
 			return values;
 		}
-		// Good news! We just need a regular measurement
-		for (int i = 0; i < filterList.size(); i++)
-			values[i] = filterList.get(i).getMeasurementList().getMeasurementValue(column);
-		return values;
+		// Good news! We just need a regular measurement - which can be read in bulk
+		List<MeasurementList> lists = new ArrayList<>(filterList.size());
+		for (PathObject pathObject : filterList)
+			lists.add(pathObject.getMeasurementList());
+		return ColumnarMeasurementStore.getValues(column, lists, values);
 	}
 	
 	@Override
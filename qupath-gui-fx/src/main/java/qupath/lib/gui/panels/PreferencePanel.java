@@ -133,6 +133,13 @@ public class PreferencePanel {
 						+ "\nThis should be > 0 and <= the available processors on the computer."
 						+ "\nIf outside this range, it will default to the available processors (here, " + Runtime.getRuntime().availableProcessors() + ")"
 						+ "\nIt's usually fine to use the default, but it may help to decrease it if you encounter out-of-memory errors.");
+		
+		addPropertyPreference(PathPrefs.projectScriptParallelImagesProperty(), Integer.class,
+				"Number of images to script in parallel",
+				category,
+				"Number of images processed at the same time when running a script for a project."
+						+ "\nAll images share the processors available for parallel commands, so they are kept busy while the last tasks for each image complete."
+						+ "\nSet this to 1 if a script must be run for one image at a time, e.g. because it writes to a file shared by all images.");
 
 		addPropertyPreference(PathPrefs.imageTypeSettingProperty(), ImageTypeSetting.class,
 				"Set image type",
@@ -172,6 +179,26 @@ public class PreferencePanel {
 			category,
 			"Store image tiles for hosted images of each project in a local cache.\nThis avoids requiring lengthy HTTP requests every time an image is (re)analysed or viewed, at the cost of needing more local storage space.");
 		
+		addPropertyPreference(PathPrefs.projectImageCacheSizeMBProperty(), Integer.class,
+			"Project image cache size (MB)",
+			category,
+			"Maximum size of the tiles stored in the project image cache.\nThe least recently used tiles are removed whenever this is exceeded.");
+		
+		addPropertyPreference(PathPrefs.deferDetectionLoadingProperty(), Boolean.class,
+			"Load detections on demand",
+			category,
+			"Only read detections from data files for the regions of the image that are actually needed.\nThis can make opening images with very large numbers of detections much faster, and reduce memory use.");
+		
+		addPropertyPreference(PathPrefs.useColumnarMeasurementsProperty(), Boolean.class,
+			"Store detection measurements in columns",
+			category,
+			"Store the measurements of all detections in shared columns when reading data files, rather than in a separate list for each detection.\nThis greatly reduces the memory required for images with many detections.");
+		
+		addPropertyPreference(PathPrefs.streamDetectionsProperty(), Boolean.class,
+			"Stream tiled detections to disk",
+			category,
+			"Write detections to a temporary file as each tile is completed when detecting objects across large regions, reading them back only when needed.\nThis greatly reduces the memory required to detect millions of cells, but detections may take a moment to appear when viewed.");
+		
 		addPropertyPreference(PathPrefs.tmaExportDownsampleProperty(), Double.class,
 			"TMA export downsample factor",
 			category,
@@ -1531,7 +1531,7 @@ public class ClassifierBuilderPanel<T extends PathObjectClassifier> implements P
 				panelClassifier.getScene().getWindow().isShowing()) {
 			//			updateClassificationInBackground();
 			updateClassification(false);
-			qupath.getViewer().repaint();
+			qupath.getViewer().repaintOverlays();
 			//			viewer.repaint();
 		}
 	}
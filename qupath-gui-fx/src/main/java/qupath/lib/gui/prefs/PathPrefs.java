@@ -143,6 +143,62 @@ public class PathPrefs {
 	public static void setUseProjectImageCache(final boolean useCache) {
 		useProjectImageCache.set(useCache);
 	}
+	
+	private static IntegerProperty projectImageCacheSizeMB = createPersistentPreference("projectImageCacheSizeMB", 2048);
+	
+	/**
+	 * Maximum size of the tiles stored in the project image cache, in MB. 
+	 * The least recently used tiles are removed whenever this is exceeded.
+	 * 
+	 * @return
+	 * 
+	 * @see #useProjectImageCacheProperty()
+	 */
+	public static IntegerProperty projectImageCacheSizeMBProperty() {
+		return projectImageCacheSizeMB;
+	}
+	
+	private static BooleanProperty deferDetectionLoading = createPersistentPreference("deferDetectionLoading", Boolean.FALSE);
+	
+	/**
+	 * If true, detections are only read from data files when they are needed (e.g. to display a region of the image), 
+	 * rather than all being read as soon as the image is opened.
+	 * 
+	 * @return
+	 * 
+	 * @see qupath.lib.io.PathIO#setDeferDetectionLoading(boolean)
+	 */
+	public static BooleanProperty deferDetectionLoadingProperty() {
+		return deferDetectionLoading;
+	}
+	
+	private static BooleanProperty useColumnarMeasurements = createPersistentPreference("useColumnarMeasurements", Boolean.FALSE);
+	
+	/**
+	 * If true, the measurements of detections read from data files are stored in columns shared by the entire hierarchy, 
+	 * rather than in a separate list for each detection.
+	 * 
+	 * @return
+	 * 
+	 * @see qupath.lib.io.PathIO#setUseColumnarMeasurements(boolean)
+	 */
+	public static BooleanProperty useColumnarMeasurementsProperty() {
+		return useColumnarMeasurements;
+	}
+	
+	private static BooleanProperty streamDetections = createPersistentPreference("streamDetections", Boolean.FALSE);
+	
+	/**
+	 * If true, detections made by tiled detection commands are written to a temporary file as each tile is complete, 
+	 * and only read again when they are needed.
+	 * 
+	 * @return
+	 * 
+	 * @see qupath.lib.plugins.DetectionPluginTools#setStreamDetections(boolean)
+	 */
+	public static BooleanProperty streamDetectionsProperty() {
+		return streamDetections;
+	}
 
 	private static StringProperty scriptsPath = createPersistentPreference("scriptsPath", (String)null); // Base directory containing scripts
 	
@@ -162,6 +218,28 @@ public class PathPrefs {
 	}
 	
 	
+	private static IntegerProperty projectScriptParallelImages = createPersistentPreference("projectScriptParallelImages", 2);
+	
+	/**
+	 * Get the number of images for which a script is run at the same time when running a script for a project.
+	 * 
+	 * @return
+	 */
+	public static int getProjectScriptParallelImages() {
+		return projectScriptParallelImages.get();
+	}
+	
+	/**
+	 * Number of images for which a script is run at the same time when running a script for a project.
+	 * Tasks for all these images share the same threads, so that threads aren't left idle while the last tasks for one image complete.
+	 * 
+	 * @return
+	 */
+	public static IntegerProperty projectScriptParallelImagesProperty() {
+		return projectScriptParallelImages;
+	}
+	
+	
 	private static BooleanProperty showImageNameInTitle = createPersistentPreference("showImageNameInTitle", Boolean.TRUE);
 	
 	public static BooleanProperty showImageNameInTitleProperty() {
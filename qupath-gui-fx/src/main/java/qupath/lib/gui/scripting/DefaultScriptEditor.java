@@ -38,7 +38,11 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import javax.script.ScriptContext;
@@ -108,6 +112,7 @@ import javafx.stage.Modality;
 import javafx.stage.Stage;
 import javafx.util.Callback;
 import qupath.lib.common.GeneralTools;
+import qupath.lib.common.SimpleThreadFactory;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.commands.interfaces.PathCommand;
 import qupath.lib.gui.helpers.DisplayHelpers;
@@ -1262,37 +1267,30 @@ public class DefaultScriptEditor implements ScriptEditor {
 			
 			long startTime = System.currentTimeMillis();
 			
-			int counter = 0;
-			for (ProjectImageEntry<BufferedImage> entry : imagesToProcess) {
-				try {
-					// Stop
-					if (isQuietlyCancelled() || isCancelled()) {
-						logger.warn("Script cancelled with " + (imagesToProcess.size() - counter) + " image(s) remaining");
-						break;
-					}
-					
-					updateProgress(counter, imagesToProcess.size());
-					counter++;
-					updateMessage(entry.getImageName() + " (" + counter + "/" + imagesToProcess.size() + ")");
-					
-					// Create a new region store if we need one
-					System.gc();
-
-					// Open saved data if there is any, or else the image itself
-					ImageData<BufferedImage> imageData = (ImageData<BufferedImage>)entry.readImageData();
-					if (imageData == null) {
-						logger.warn("Unable to open {} - will be skipped", entry.getImageName());
-						continue;
-					}
-//					QPEx.setBatchImageData(imageData);
-					executeScript(tab, tab.getEditorComponent().getText(), imageData);
-					if (doSave)
-						entry.saveImageData(imageData);
-					imageData.getServer().close();
-				} catch (Exception e) {
-					logger.error("Error running batch script: {}", e);
+			// Process several images at once, so that plugin tasks for the next image can use any threads left idle 
+			// while the last tasks for the previous image are running
+			int nImages = imagesToProcess.size();
+			int nParallel = Math.max(1, Math.min(PathPrefs.getProjectScriptParallelImages(), nImages));
+			ExecutorService pool = Executors.newFixedThreadPool(nParallel, new SimpleThreadFactory("project-script-", true));
+			AtomicInteger counter = new AtomicInteger(0);
+			List<Future<?>> futures = new ArrayList<>();
+			for (ProjectImageEntry<BufferedImage> entry : imagesToProcess)
+				futures.add(pool.submit(() -> processEntry(entry, counter, nImages)));
+			pool.shutdown();
+			try {
+				int nCompleted = 0;
+				for (Future<?> future : futures) {
+					future.get();
+					updateProgress(++nCompleted, nImages);
 				}
+			} catch (InterruptedException e) {
+				logger.warn("Script interrupted: {}", e.getLocalizedMessage());
+				pool.shutdownNow();
+			} catch (ExecutionException e) {
+				logger.error("Error running batch script: {}", e.getLocalizedMessage(), e);
 			}
+			if (counter.get() < nImages)
+				logger.warn("Script cancelled with " + (nImages - counter.get()) + " image(s) remaining");
 			updateProgress(imagesToProcess.size(), imagesToProcess.size());
 			
 			long endTime = System.currentTimeMillis();
@@ -1312,6 +1310,37 @@ public class DefaultScriptEditor implements ScriptEditor {
 		}
 		
 		
+		/**
+		 * Run the script for a single image, unless the task has been cancelled.
+		 */
+		private void processEntry(final ProjectImageEntry<BufferedImage> entry, final AtomicInteger counter, final int nImages) {
+			try {
+				// Stop
+				if (isQuietlyCancelled() || isCancelled())
+					return;
+				
+				int n = counter.incrementAndGet();
+				updateMessage(entry.getImageName() + " (" + n + "/" + nImages + ")");
+				
+				// Create a new region store if we need one
+				System.gc();
+
+				// Open saved data if there is any, or else the image itself
+				ImageData<BufferedImage> imageData = (ImageData<BufferedImage>)entry.readImageData();
+				if (imageData == null) {
+					logger.warn("Unable to open {} - will be skipped", entry.getImageName());
+					return;
+				}
+//				QPEx.setBatchImageData(imageData);
+				executeScript(tab, tab.getEditorComponent().getText(), imageData);
+				if (doSave)
+					entry.saveImageData(imageData);
+				imageData.getServer().close();
+			} catch (Exception e) {
+				logger.error("Error running batch script: {}", e);
+			}
+		}
+		
 		@Override
 		protected void done() {
 			super.done();
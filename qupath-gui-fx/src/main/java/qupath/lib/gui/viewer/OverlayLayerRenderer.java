@@ -0,0 +1,351 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.gui.viewer;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.SimpleThreadFactory;
+import qupath.lib.gui.viewer.overlays.PathOverlay;
+import qupath.lib.gui.viewer.overlays.PathOverlay.OverlaySnapshot;
+import qupath.lib.regions.ImageRegion;
+
+/**
+ * Helper class to render viewer overlays in the background.
+ * <p>
+ * Each overlay is painted into its own back buffer by a worker thread, while the UI thread only draws
+ * the most recently completed buffers.  This means that slow overlays cannot stall user interaction;
+ * rather, they are temporarily drawn at their previous location (transformed to match the current view)
+ * until an up-to-date version becomes available.
+ * <p>
+ * Rendering requests are coalesced, so that at most one render is in progress for each overlay and
+ * only the most recent request is rendered when it finishes.
+ * <p>
+ * Worker threads only ever paint a {@link OverlaySnapshot} created on the requesting thread, so they are not 
+ * affected by later changes to the overlay options or selection.  Overlays that cannot create a snapshot 
+ * are painted directly on the requesting thread instead.
+ *
+ * @author Pete Bankhead
+ *
+ */
+class OverlayLayerRenderer {
+
+	private static final Logger logger = LoggerFactory.getLogger(OverlayLayerRenderer.class);
+
+	private static final ExecutorService pool = Executors.newFixedThreadPool(
+			Math.max(2, Runtime.getRuntime().availableProcessors() / 2), new SimpleThreadFactory("viewer-overlays-", true));
+
+	private final Runnable repaintCallback;
+
+	// Incremented whenever the overlays may have changed, so that all layers are rendered again
+	private final AtomicLong version = new AtomicLong();
+
+	private final Map<PathOverlay, Layer> layers = Collections.synchronizedMap(new WeakHashMap<>());
+
+	private volatile boolean isClosed = false;
+
+	/**
+	 * Constructor.
+	 * @param repaintCallback called (from a worker thread) whenever a newly-rendered layer is available
+	 */
+	OverlayLayerRenderer(final Runnable repaintCallback) {
+		this.repaintCallback = repaintCallback;
+	}
+
+	/**
+	 * Notify the renderer that the content of the overlays may have changed, so any cached layers are out of date.
+	 */
+	void invalidate() {
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Draw the most recent available version of each overlay, and request background rendering for any
+	 * overlay where this is out of date.
+	 * <p>
+	 * This should be called from the thread that owns the overlays (usually the JavaFX Application Thread), 
+	 * since it is where snapshots of the overlays are created.
+	 *
+	 * @param g graphics object to which the layers should be drawn, without the viewer transform applied
+	 * @param overlays overlays to paint, in order
+	 * @param transform the current viewer transform, converting image to component coordinates
+	 * @param width the component width
+	 * @param height the component height
+	 * @param imageRegion the maximum image region that should be shown
+	 * @param downsampleFactor the current viewer downsample factor
+	 * @param preferredColor the preferred overlay color
+	 * @param paintCompletely passed on to {@link PathOverlay#paintOverlay(Graphics2D, ImageRegion, double, java.awt.image.ImageObserver, boolean)}
+	 * @param opacity the opacity with which the layers should be drawn
+	 */
+	void paintLayers(final Graphics2D g, final PathOverlay[] overlays, final AffineTransform transform, final int width, final int height,
+			final ImageRegion imageRegion, final double downsampleFactor, final Color preferredColor, final boolean paintCompletely, final float opacity) {
+
+		RenderState state = new RenderState(transform, width, height, imageRegion, downsampleFactor, preferredColor, paintCompletely, version.get());
+
+		Graphics2D g2d = (Graphics2D)g.create();
+		if (opacity < 1)
+			g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity));
+
+		for (PathOverlay overlay : overlays) {
+			if (overlay.isInvisible())
+				continue;
+			Layer layer;
+			synchronized (layers) {
+				if (isClosed)
+					break;
+				layer = layers.get(overlay);
+			}
+			// Only create a snapshot if the layer needs to be rendered again
+			if (layer == null || layer.needsRender(state)) {
+				overlay.setPreferredOverlayColor(preferredColor);
+				OverlaySnapshot snapshot = overlay.createSnapshot();
+				if (snapshot == null) {
+					// Paint directly if we can't safely render in the background
+					layers.remove(overlay);
+					paintDirectly(g2d, overlay, state);
+					continue;
+				}
+				synchronized (layers) {
+					layer = layers.computeIfAbsent(overlay, o -> new Layer(o));
+				}
+				layer.request(state, snapshot);
+			}
+			layer.paint(g2d, state);
+		}
+		g2d.dispose();
+
+		// Discard any layers we no longer need
+		Set<PathOverlay> current = new HashSet<>(Arrays.asList(overlays));
+		layers.keySet().retainAll(current);
+	}
+
+	private static void paintDirectly(final Graphics2D g, final PathOverlay overlay, final RenderState state) {
+		Graphics2D g2d = (Graphics2D)g.create();
+		g2d.transform(state.transform);
+		try {
+			overlay.paintOverlay(g2d, state.imageRegion, state.downsampleFactor, null, state.paintCompletely);
+		} finally {
+			g2d.dispose();
+		}
+	}
+
+	/**
+	 * Discard all layers, and stop rendering.
+	 */
+	void close() {
+		synchronized (layers) {
+			isClosed = true;
+			layers.clear();
+		}
+	}
+
+
+	/**
+	 * Snapshot of the viewer state required to render an overlay.
+	 */
+	private static class RenderState {
+
+		private final AffineTransform transform;
+		private final int width, height;
+		private final ImageRegion imageRegion;
+		private final double downsampleFactor;
+		private final Color preferredColor;
+		private final boolean paintCompletely;
+		private final long version;
+
+		RenderState(final AffineTransform transform, final int width, final int height, final ImageRegion imageRegion,
+				final double downsampleFactor, final Color preferredColor, final boolean paintCompletely, final long version) {
+			this.transform = new AffineTransform(transform);
+			this.width = width;
+			this.height = height;
+			this.imageRegion = imageRegion;
+			this.downsampleFactor = downsampleFactor;
+			this.preferredColor = preferredColor;
+			this.paintCompletely = paintCompletely;
+			this.version = version;
+		}
+
+		/**
+		 * Check whether a layer rendered with this state can be drawn for another state (possibly after transforming).
+		 */
+		boolean isCompatible(final RenderState other) {
+			return Objects.equals(imageRegion, other.imageRegion);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(transform, width, height, imageRegion, downsampleFactor, preferredColor, paintCompletely, version);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof RenderState))
+				return false;
+			RenderState other = (RenderState)obj;
+			return width == other.width && height == other.height &&
+					downsampleFactor == other.downsampleFactor &&
+					paintCompletely == other.paintCompletely &&
+					version == other.version &&
+					transform.equals(other.transform) &&
+					Objects.equals(imageRegion, other.imageRegion) &&
+					Objects.equals(preferredColor, other.preferredColor);
+		}
+
+	}
+
+
+	/**
+	 * Back buffers for a single overlay.
+	 * <p>
+	 * The worker thread paints only to the spare image, which is swapped with the displayed image
+	 * when complete; the UI thread only ever draws the displayed image.
+	 */
+	private class Layer {
+
+		private final PathOverlay overlay;
+
+		// Most recently requested state & snapshot, and flag indicating whether a render is queued or running
+		private RenderState requested;
+		private OverlaySnapshot requestedSnapshot;
+		private boolean isRendering = false;
+
+		// Lock guarding the completed image & state
+		private final Object displayLock = new Object();
+		private BufferedImage imgDisplay;
+		private RenderState stateDisplay;
+
+		// Image used for rendering - accessed only by the worker
+		private BufferedImage imgSpare;
+
+		Layer(final PathOverlay overlay) {
+			this.overlay = overlay;
+		}
+
+		synchronized boolean needsRender(final RenderState state) {
+			return !state.equals(requested);
+		}
+
+		synchronized void request(final RenderState state, final OverlaySnapshot snapshot) {
+			if (state.equals(requested))
+				return;
+			requested = state;
+			requestedSnapshot = snapshot;
+			if (!isRendering) {
+				isRendering = true;
+				pool.execute(this::render);
+			}
+		}
+
+		private void render() {
+			RenderState state;
+			OverlaySnapshot snapshot;
+			synchronized (this) {
+				state = requested;
+				snapshot = requestedSnapshot;
+			}
+			while (true) {
+				if (!isClosed) {
+					renderState(state, snapshot);
+					repaintCallback.run();
+				}
+				synchronized (this) {
+					if (isClosed || state == requested) {
+						// Don't keep the snapshot (and any objects it references) for longer than needed
+						requestedSnapshot = null;
+						isRendering = false;
+						return;
+					}
+					state = requested;
+					snapshot = requestedSnapshot;
+				}
+			}
+		}
+
+		private void renderState(final RenderState state, final OverlaySnapshot snapshot) {
+			if (imgSpare == null || imgSpare.getWidth() != state.width || imgSpare.getHeight() != state.height)
+				imgSpare = new BufferedImage(state.width, state.height, BufferedImage.TYPE_INT_ARGB_PRE);
+			Graphics2D g2d = imgSpare.createGraphics();
+			g2d.setComposite(AlphaComposite.Clear);
+			g2d.fillRect(0, 0, state.width, state.height);
+			g2d.setComposite(AlphaComposite.SrcOver);
+			g2d.transform(state.transform);
+			try {
+				snapshot.paintOverlay(g2d, state.imageRegion, state.downsampleFactor, state.paintCompletely);
+			} catch (Exception e) {
+				logger.warn("Unable to render overlay {}: {}", overlay, e.getLocalizedMessage());
+				logger.debug("", e);
+			} finally {
+				g2d.dispose();
+			}
+			synchronized (displayLock) {
+				BufferedImage imgTemp = imgDisplay;
+				imgDisplay = imgSpare;
+				stateDisplay = state;
+				imgSpare = imgTemp;
+			}
+		}
+
+		/**
+		 * Draw the most recent completed image, transforming it if it was rendered for a different view.
+		 */
+		void paint(final Graphics2D g2d, final RenderState state) {
+			synchronized (displayLock) {
+				if (imgDisplay == null || !stateDisplay.isCompatible(state))
+					return;
+				if (stateDisplay.transform.equals(state.transform)) {
+					g2d.drawImage(imgDisplay, 0, 0, null);
+					return;
+				}
+				try {
+					AffineTransform transform = new AffineTransform(state.transform);
+					transform.concatenate(stateDisplay.transform.createInverse());
+					g2d.drawImage(imgDisplay, transform, null);
+				} catch (NoninvertibleTransformException e) {
+					logger.debug("Unable to transform overlay layer: {}", e.getLocalizedMessage());
+				}
+			}
+		}
+
+	}
+
+}
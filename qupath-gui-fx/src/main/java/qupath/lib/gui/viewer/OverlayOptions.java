@@ -63,6 +63,36 @@ public class OverlayOptions {
 
 	private FloatProperty opacity = new SimpleFloatProperty(1.0f);
 	
+	/**
+	 * Create overlay options with default values.
+	 */
+	public OverlayOptions() {}
+	
+	/**
+	 * Create a copy of existing overlay options.
+	 * <p>
+	 * The copy is independent of the original, so it can be used to paint on a background thread 
+	 * while the original continues to be changed.
+	 * 
+	 * @param options
+	 */
+	public OverlayOptions(final OverlayOptions options) {
+		measurementMapper.set(options.measurementMapper.get());
+		showAnnotations.set(options.showAnnotations.get());
+		showTMAGrid.set(options.showTMAGrid.get());
+		showPixelClassification.set(options.showPixelClassification.get());
+		showDetections.set(options.showDetections.get());
+		showConnections.set(options.showConnections.get());
+		fillDetections.set(options.fillDetections.get());
+		fillAnnotations.set(options.fillAnnotations.get());
+		showTMACoreLabels.set(options.showTMACoreLabels.get());
+		showGrid.set(options.showGrid.get());
+		gridLines.set(options.gridLines.get());
+		hiddenClasses.addAll(options.hiddenClasses);
+		cellDisplayMode.set(options.cellDisplayMode.get());
+		opacity.set(options.opacity.get());
+	}
+	
 	
 //    public void addPropertyChangeListener(PropertyChangeListener listener) {
 //        this.pcs.addPropertyChangeListener(listener);
@@ -184,8 +184,8 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	private boolean thumbnailIsFullImage = false;
 
 	// Flag used to indicates that the image was updated for a repaint (otherwise it's assumed only the overlay may have changed)
-	protected boolean imageUpdated = false;
-	protected boolean locationUpdated = false;
+	protected volatile boolean imageUpdated = false;
+	protected volatile boolean locationUpdated = false;
 	
 	// Flag that is temporarily set to true while the ImageData is being set
 	private BooleanProperty imageDataChanging = new SimpleBooleanProperty(false);
@@ -238,7 +238,10 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 
 	private LongProperty lastRepaintTimestamp = new SimpleLongProperty(0L); // Used for debugging repaint times
 	
-	private boolean repaintRequested = false;
+	private volatile boolean repaintRequested = false;
+	
+	// Renders overlay layers in the background, so that slow overlays don't block the UI thread
+	private final OverlayLayerRenderer overlayRenderer = new OverlayLayerRenderer(() -> overlayLayerRendered());
 	
 	private double mouseX, mouseY;
 	
@@ -410,7 +413,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		GraphicsContext context = canvas.getGraphicsContext2D();
 		
 		Graphics2D g = imgCache.createGraphics();
-		paintViewer(g, getWidth(), getHeight());
+		paintViewer(g, getWidth(), getHeight(), true);
 		g.dispose();
 		
 		imgCacheFX = SwingFXUtils.toFXImage(imgCache, imgCacheFX);
@@ -500,6 +503,28 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			return;
 		Platform.runLater(() -> paintCanvas());
 	}
+	
+	/**
+	 * Request a repaint after the content of the overlays has changed.
+	 * <p>
+	 * Overlays that are rendered in the background are only rendered again when the view changes, 
+	 * the hierarchy or selection changes, or this method is called. 
+	 * It should therefore be used instead of {@link #repaint()} whenever the appearance of an overlay 
+	 * changes without any corresponding hierarchy event, e.g. while a ROI is being edited.
+	 */
+	public void repaintOverlays() {
+		overlayRenderer.invalidate();
+		repaint();
+	}
+	
+	/**
+	 * Called when a new overlay layer has been rendered in the background.
+	 * This triggers the canvas to be painted, but without invalidating the overlays again.
+	 */
+	private void overlayLayerRendered() {
+		repaintRequested = true;
+		Platform.runLater(() -> paintCanvas());
+	}
 
 	/**
 	 * Default map without tools - need to call registerTools to change this
@@ -560,7 +585,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	private InvalidationListener repainter = new InvalidationListener() {
 		@Override
 		public void invalidated(Observable observable) {
-			repaint();
+			repaintOverlays();
 		}
 	};
 	
@@ -741,7 +766,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		// Prepare overlay layers
 		customOverlayLayers.addListener((Change<? extends PathOverlay> e) -> refreshAllOverlayLayers());
 		coreOverlayLayers.addListener((Change<? extends PathOverlay> e) -> refreshAllOverlayLayers());
-		allOverlayLayers.addListener((Change<? extends PathOverlay> e) -> repaint());
+		allOverlayLayers.addListener((Change<? extends PathOverlay> e) -> repaintOverlays());
 		
 		hierarchyOverlay = new HierarchyOverlay(this.regionStore, overlayOptions, imageData);
 		tmaGridOverlay = new TMAGridOverlay(overlayOptions, imageData);
@@ -1419,6 +1444,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		setSelectedObject(null);
 		
 		// TODO: Consider shifting, fixing magnification, repainting etc.
+		overlayRenderer.invalidate();
 		if (isShowing())
 			repaint();
 		
@@ -1512,6 +1538,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		manager.detachAll();
 		manager.clear();
 		regionStore.removeTileListener(this);
+		overlayRenderer.close();
 //		// Set the server to null
 //		setImageData(null);
 		// Notify listeners
@@ -1550,6 +1577,23 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	
 
 	protected void paintViewer(Graphics g, int w, int h) {
+		paintViewer(g, w, h, false);
+	}
+	
+	/**
+	 * Paint the viewer, optionally rendering overlay layers in the background.
+	 * <p>
+	 * If renderOverlaysAsync is true, then the most recently-rendered version of each overlay is drawn 
+	 * and a new version requested if necessary.  This avoids slow overlays blocking the calling thread, 
+	 * but means the result may not be completely up-to-date; it should therefore only be used when 
+	 * painting to the screen, where a further repaint will occur once rendering is complete.
+	 * 
+	 * @param g
+	 * @param w
+	 * @param h
+	 * @param renderOverlaysAsync
+	 */
+	protected void paintViewer(Graphics g, int w, int h, boolean renderOverlaysAsync) {
 		
 		ImageServer<BufferedImage> server = getServer();
 		if (server == null) {
@@ -1664,10 +1708,15 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 
 			Color color = getSuggestedOverlayColor();
 			// Paint the overlay layers
-			for (PathOverlay overlay : allOverlayLayers.toArray(PathOverlay[]::new)) {
-				overlay.setPreferredOverlayColor(color);
-//				overlay.paintOverlay(g2d, regionBounds, downsample, null, paintCompletely);
-				overlay.paintOverlay(g2d, getServerBounds(), downsample, null, paintCompletely);
+			PathOverlay[] overlays = allOverlayLayers.toArray(PathOverlay[]::new);
+			if (renderOverlaysAsync) {
+				overlayRenderer.paintLayers((Graphics2D)g, overlays, transform, w, h, getServerBounds(), downsample, color, paintCompletely, opacity);
+			} else {
+				for (PathOverlay overlay : overlays) {
+					overlay.setPreferredOverlayColor(color);
+//					overlay.paintOverlay(g2d, regionBounds, downsample, null, paintCompletely);
+					overlay.paintOverlay(g2d, getServerBounds(), downsample, null, paintCompletely);
+				}
 			}
 //			if (hierarchyOverlay != null) {
 //				hierarchyOverlay.setPreferredOverlayColor(color);
@@ -2494,9 +2543,17 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		if (!hasServer())
 			return;
 		
+		// New tiles may be used to refine the histograms for the current image
+		if (imageDisplay != null)
+			imageDisplay.tileAvailable(serverPath, region, tile);
+		
 		// Check contains rather than equals to all for derived servers (e.g. for painting hierarchies)
-		if (serverPath == null || serverPath.contains(getServerPath()))
+		if (serverPath == null || serverPath.contains(getServerPath())) {
+			// Tiles for derived servers are painted by overlays, which must then be rendered again
+			if (serverPath == null || !serverPath.equals(getServerPath()))
+				overlayRenderer.invalidate();
 			repaintImageRegion(AwtTools.getBounds(region), true);//!serverPath.startsWith(PathHierarchyImageServer.DEFAULT_PREFIX));
+		}
 		
 		//		imageUpdated = true;
 		//		repaint();
@@ -2510,7 +2567,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	 */
 	public void forceOverlayUpdate() {
 		hierarchyOverlay.clearCachedOverlay();
-		repaint();
+		repaintOverlays();
 	}
 
 
@@ -2533,28 +2590,23 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			logger.trace(event.toString());
 		// Clear any cached regions of the overlay, if necessary
 		// TODO: Make this update a bit less conservative - it isn't really needed if we don't modify detections?
-		if (event == null || event.isStructureChangeEvent())
+		if (event == null)
 			hierarchyOverlay.clearCachedOverlay();
+		else if (event.isStructureChangeEvent())
+			hierarchyOverlay.clearCachedOverlayTiles();
 		else {
 			List<PathObject> pathObjects = event.getChangedObjects();
 			List<PathObject> pathDetectionObjects = PathObjectTools.getObjectsOfClass(pathObjects, PathDetectionObject.class);
-			if (pathDetectionObjects.size() <= 50) {
-				// TODO: PUT THIS LISTENER INTO THE HIERARCHY OVERLAY ITSELF?  But then the order of events is uncertain... hierarchy would need to be able to call repaint as well
-				// (or possibly post an event?)
-				for (PathObject temp : pathDetectionObjects) {
-					if (temp.hasROI())
-						hierarchyOverlay.clearCachedOverlayForRegion(ImageRegion.createInstance(temp.getROI()));
-				}
-			} else {
-				hierarchyOverlay.clearCachedOverlay();
-			}
+			// TODO: PUT THIS LISTENER INTO THE HIERARCHY OVERLAY ITSELF?  But then the order of events is uncertain... hierarchy would need to be able to call repaint as well
+			// (or possibly post an event?)
+			hierarchyOverlay.clearCachedOverlayForObjects(pathDetectionObjects);
 		}
 
 		// Just in case, make sure the handles are updated in any ROIEditor
 		if (event != null && !event.isChanging())
 			updateRoiEditor();
 		// Request repaint
-		repaint();
+		repaintOverlays();
 	}
 
 
@@ -2587,7 +2639,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 
 		logger.trace("Selected path object changed from {} to {}", previousObject, pathObjectSelected);
 
-		repaint();
+		repaintOverlays();
 //		repaintEntireImage();
 	}
 
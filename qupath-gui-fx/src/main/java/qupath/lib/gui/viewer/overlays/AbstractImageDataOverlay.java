@@ -28,7 +28,9 @@ import java.awt.image.BufferedImage;
 import qupath.lib.gui.viewer.OverlayOptions;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectSelectionModel;
 
 /**
  * Abstract implementation of an ImageDataOverlay.
@@ -65,5 +67,28 @@ public abstract class AbstractImageDataOverlay extends AbstractOverlay implement
 	protected ImageServer<BufferedImage> getServer() {
 		return imageData == null ? null : imageData.getServer();
 	}
+	
+	/**
+	 * Create a copy of the current selection model of the hierarchy, so that the selection can be painted 
+	 * on another thread without being affected by later changes.
+	 * 
+	 * @return a new selection model containing the same objects, or null if there is no hierarchy
+	 * @see #createSnapshot()
+	 */
+	protected PathObjectSelectionModel createSelectionModelSnapshot() {
+		PathObjectHierarchy hierarchy = getHierarchy();
+		if (hierarchy == null)
+			return null;
+		PathObjectSelectionModel selectionModel = hierarchy.getSelectionModel();
+		PathObjectSelectionModel snapshot = new PathObjectSelectionModel();
+		synchronized (selectionModel) {
+			PathObject primary = selectionModel.getSelectedObject();
+			if (!selectionModel.getSelectedObjects().isEmpty())
+				snapshot.setSelectedObjects(selectionModel.getSelectedObjects(), primary);
+			else if (primary != null)
+				snapshot.setSelectedObject(primary);
+		}
+		return snapshot;
+	}
 
 }
\ No newline at end of file
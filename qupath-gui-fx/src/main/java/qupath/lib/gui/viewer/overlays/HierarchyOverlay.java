@@ -47,6 +47,7 @@ import qupath.lib.awt.color.ColorToolsAwt;
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.gui.images.servers.PathHierarchyImageServer;
 import qupath.lib.gui.images.stores.DefaultImageRegionStore;
+import qupath.lib.gui.images.stores.OverlayTileCache;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.viewer.OverlayOptions;
 import qupath.lib.gui.viewer.PathHierarchyPaintingHelper;
@@ -59,8 +60,8 @@ import qupath.lib.objects.PathDetectionObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectConnections;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectSelectionModel;
 import qupath.lib.regions.ImageRegion;
-import qupath.lib.regions.RegionRequest;
 
 
 /**
@@ -76,8 +77,15 @@ import qupath.lib.regions.RegionRequest;
 public class HierarchyOverlay extends AbstractImageDataOverlay {
 	
 	final static private Logger logger = LoggerFactory.getLogger(HierarchyOverlay.class);
+	
+	/**
+	 * Maximum number of changed objects for which the cached overlay is updated for each object's region - 
+	 * beyond this, it is faster to mark all tiles as stale.
+	 */
+	private static final int MAX_OBJECTS_FOR_REGION_UPDATE = 10_000;
 
 	private PathHierarchyImageServer overlayServer = null;
+	private OverlayTileCache overlayTileCache = null;
 
 	private DefaultImageRegionStore regionStore = null;
 	private boolean smallImage = false; // If the image is small enough, objects should be drawn directly
@@ -101,13 +109,22 @@ public class HierarchyOverlay extends AbstractImageDataOverlay {
 	
 	
 	void updateOverlayServer() {
-		clearCachedOverlay();
-		if (getImageData() == null)
+		if (overlayTileCache != null) {
+			overlayTileCache.close();
+			overlayTileCache = null;
+		}
+		if (overlayServer != null) {
+			overlayServer.close();
 			overlayServer = null;
-		else {
+		}
+		if (getImageData() != null) {
 			ImageServer<BufferedImage> server = getImageData().getServer();
 			// If the image is small, don't really need a server at all...
-			overlayServer = new PathHierarchyImageServer(getImageData(), getOverlayOptions());
+			// Without a region store, objects are painted directly - so tiles aren't cached
+			if (regionStore != null) {
+				overlayServer = new PathHierarchyImageServer(getImageData(), getOverlayOptions());
+				overlayTileCache = new OverlayTileCache(overlayServer, regionStore);
+			}
 //			overlayServer = new PathHierarchyImageServer(server, getHierarchy(), getOverlayOptions());
 			smallImage = server.getWidth() < PathPrefs.getMinWholeSlideDimension() && server.getHeight() < PathPrefs.getMinWholeSlideDimension();
 		}
@@ -122,13 +139,42 @@ public class HierarchyOverlay extends AbstractImageDataOverlay {
 
 	@Override
 	public void paintOverlay(final Graphics2D g2d, final ImageRegion imageRegion, final double downsampleFactor, final ImageObserver observer, final boolean paintCompletely) {
+		ImageData<BufferedImage> imageData = getImageData();
+		if (imageData == null)
+			return;
+		PathObjectHierarchy hierarchy = imageData.getHierarchy();
+		paintHierarchy(g2d, imageRegion, downsampleFactor, observer, paintCompletely,
+				imageData, getOverlayOptions(), hierarchy.getSelectionModel(), isInvisible(), overlayTileCache, smallImage);
+	}
+	
+	/**
+	 * Create a snapshot using copies of the overlay options and the current selection, 
+	 * so that painting in the background isn't affected by any changes made while it is in progress.
+	 */
+	@Override
+	public OverlaySnapshot createSnapshot() {
+		ImageData<BufferedImage> imageData = getImageData();
+		if (imageData == null)
+			return (g2d, imageRegion, downsampleFactor, paintCompletely) -> {};
+		OverlayOptions overlayOptions = new OverlayOptions(getOverlayOptions());
+		PathObjectSelectionModel selectionModel = createSelectionModelSnapshot();
+		boolean isInvisible = isInvisible();
+		OverlayTileCache tileCache = overlayTileCache;
+		boolean smallImage = this.smallImage;
+		return (g2d, imageRegion, downsampleFactor, paintCompletely) -> paintHierarchy(g2d, imageRegion, downsampleFactor, null, paintCompletely,
+				imageData, overlayOptions, selectionModel, isInvisible, tileCache, smallImage);
+	}
+	
+	private void paintHierarchy(final Graphics2D g2d, final ImageRegion imageRegion, final double downsampleFactor, final ImageObserver observer, final boolean paintCompletely,
+			final ImageData<BufferedImage> imageData, final OverlayOptions overlayOptions, final PathObjectSelectionModel selectionModel, 
+			final boolean isInvisible, final OverlayTileCache tileCache, final boolean smallImage) {
 		
 		// Get the selection model, which can influence colours (TODO: this might not be the best way to do it!)
-		PathObjectHierarchy hierarchy = getHierarchy();
+		PathObjectHierarchy hierarchy = imageData.getHierarchy();
 		if (hierarchy == null)
 			return;
 		
-		if (isInvisible() && hierarchy.getSelectionModel().noSelection())
+		if (isInvisible && selectionModel.noSelection())
 			return;
 
 		Rectangle serverBounds = AwtTools.getBounds(imageRegion);
@@ -156,33 +202,25 @@ public class HierarchyOverlay extends AbstractImageDataOverlay {
 		long startTime = System.currentTimeMillis();
 
 		// TODO: Cache detections on an overlay image for faster repainting e.g. when drawing ROIs
-		OverlayOptions overlayOptions = getOverlayOptions();
 		if (overlayOptions.getShowDetections() && !hierarchy.isEmpty()) {
 
 			// If we aren't downsampling by much, or we're upsampling, paint directly - making sure to paint the right number of times, and in the right order
-			if (smallImage || overlayServer == null || regionStore == null || downsampleFactor < 1.0) {
+			if (smallImage || tileCache == null || downsampleFactor < 1.0) {
 				Set<PathObject> pathObjectsToPaint = new TreeSet<>(comparator);
 				Collection<PathObject> pathObjects = hierarchy.getObjectsForRegion(PathDetectionObject.class, region, pathObjectsToPaint);
 				g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
-				PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, boundsDisplayed, pathObjects, overlayOptions, hierarchy.getSelectionModel(), downsampleFactor);
+				PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, boundsDisplayed, pathObjects, overlayOptions, selectionModel, downsampleFactor);
 				
 				if (overlayOptions.getShowConnections()) {
-					Object connections = getImageData().getProperty(DefaultPathObjectConnectionGroup.KEY_OBJECT_CONNECTIONS);
+					Object connections = imageData.getProperty(DefaultPathObjectConnectionGroup.KEY_OBJECT_CONNECTIONS);
 					if (connections instanceof PathObjectConnections)
-							PathHierarchyPaintingHelper.paintConnections((PathObjectConnections)connections, hierarchy, g2d, getImageData().isFluorescence() ? ColorToolsAwt.TRANSLUCENT_WHITE : ColorToolsAwt.TRANSLUCENT_BLACK, downsampleFactor);
+							PathHierarchyPaintingHelper.paintConnections((PathObjectConnections)connections, hierarchy, g2d, imageData.isFluorescence() ? ColorToolsAwt.TRANSLUCENT_WHITE : ColorToolsAwt.TRANSLUCENT_BLACK, downsampleFactor);
 				}
 				
 			} else {					
 				// If the image hasn't been updated, then we are viewing the stationary image - we want to wait for a full repaint then to avoid flickering;
 				// On the other hand, if a large image has been updated then we may be browsing quickly - better to repaint quickly while tiles may still be loading
-				if (paintCompletely) {
-////											System.out.println("Painting completely");
-					regionStore.paintRegionCompletely(overlayServer, g2d, shapeRegion, z, t, downsampleFactor, observer, null, 5000);
-				}
-				else {
-////											System.out.println("Painting PROGRESSIVELY");
-					regionStore.paintRegion(overlayServer, g2d, shapeRegion, z, t, downsampleFactor, null, observer, null);
-				}
+				tileCache.paintRegion(g2d, shapeRegion, z, t, downsampleFactor, observer, paintCompletely);
 			}
 		}
 
@@ -193,7 +231,7 @@ public class HierarchyOverlay extends AbstractImageDataOverlay {
 		// Paint the annotations
 		Collection<PathObject> pathObjects = hierarchy.getObjectsForRegion(PathAnnotationObject.class, region, null);
 
-		Collection<PathObject> selectedObjects = new ArrayList<>(hierarchy.getSelectionModel().getSelectedObjects());
+		Collection<PathObject> selectedObjects = new ArrayList<>(selectionModel.getSelectedObjects());
 		selectedObjects.removeIf(p -> p.getROI().getZ() != z || p.getROI().getT() != t);
 		
 		pathObjects.removeAll(selectedObjects);
@@ -213,10 +251,10 @@ public class HierarchyOverlay extends AbstractImageDataOverlay {
 			float opacity = overlayOptions.getOpacity();
 			if (opacity < 1) {
 				g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER));
-				PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, boundsDisplayed, hierarchy.getSelectionModel().getSelectedObjects(), overlayOptions, hierarchy.getSelectionModel(), downsampleFactor);
+				PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, boundsDisplayed, selectionModel.getSelectedObjects(), overlayOptions, selectionModel, downsampleFactor);
 				g2d.setComposite(previousComposite);
 			} else {
-				PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, boundsDisplayed, hierarchy.getSelectionModel().getSelectedObjects(), overlayOptions, hierarchy.getSelectionModel(), downsampleFactor);				
+				PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, boundsDisplayed, selectionModel.getSelectedObjects(), overlayOptions, selectionModel, downsampleFactor);				
 			}			
 		} else
 			PathHierarchyPaintingHelper.paintSpecifiedObjects(g2d, boundsDisplayed, pathObjectList, overlayOptions, null, downsampleFactor);
@@ -224,15 +262,52 @@ public class HierarchyOverlay extends AbstractImageDataOverlay {
 
 
 	
+	/**
+	 * Mark all cached detection tiles as stale, so that they are rendered again - 
+	 * and discard any cached detection summaries, since the display of detections may have changed (e.g. their colors).
+	 * Existing tiles continue to be displayed until their replacements are ready.
+	 */
 	public void clearCachedOverlay() {
-		if (regionStore != null && overlayServer != null)
-			regionStore.clearCacheForServer(overlayServer);
+		if (overlayServer != null)
+			overlayServer.invalidateAll();
+		if (overlayTileCache != null)
+			overlayTileCache.invalidateAll();
 	}
 	
+	/**
+	 * Mark all cached detection tiles as stale after the hierarchy has changed, so that they are rendered again.
+	 * Unlike {@link #clearCachedOverlay()}, cached detection summaries are retained since they are updated 
+	 * as the hierarchy changes.
+	 */
+	public void clearCachedOverlayTiles() {
+		if (overlayTileCache != null)
+			overlayTileCache.invalidateAll();
+	}
 	
+	/**
+	 * Mark any cached detection tiles overlapping the specified region as stale, so that they are rendered again.
+	 * @param request
+	 */
 	public void clearCachedOverlayForRegion(ImageRegion request) {
-		if (regionStore != null && overlayServer != null)
-			regionStore.clearCacheForRequestOverlap(RegionRequest.createInstance(overlayServer.getPath(), 1, request));
+		if (overlayTileCache != null)
+			overlayTileCache.invalidate(request);
+	}
+	
+	/**
+	 * Mark any cached detection tiles overlapping the ROIs of the specified objects as stale, so that they are rendered again.
+	 * @param pathObjects
+	 */
+	public void clearCachedOverlayForObjects(Collection<? extends PathObject> pathObjects) {
+		if (overlayTileCache == null)
+			return;
+		if (pathObjects.size() > MAX_OBJECTS_FOR_REGION_UPDATE) {
+			overlayTileCache.invalidateAll();
+			return;
+		}
+		for (PathObject pathObject : pathObjects) {
+			if (pathObject.hasROI())
+				overlayTileCache.invalidate(ImageRegion.createInstance(pathObject.getROI()));
+		}
 	}
 	
 	
@@ -98,4 +98,41 @@ public interface PathOverlay {
 	 */
 	public void setOpacity(double opacity);
 	
+	/**
+	 * Capture the current state of the overlay, so that it can be painted on another thread.
+	 * <p>
+	 * This is called on the thread that requests painting (usually the JavaFX Application Thread). 
+	 * The snapshot should not depend upon any state that may change afterwards, such as JavaFX properties, 
+	 * the current selection or the preferred overlay color.
+	 * <p>
+	 * The default implementation returns null, indicating that the overlay can only be painted 
+	 * on the requesting thread.
+	 * 
+	 * @return a snapshot that can be painted from any thread, or null if this is not supported
+	 */
+	public default OverlaySnapshot createSnapshot() {
+		return null;
+	}
+	
+	
+	/**
+	 * Immutable state of an overlay, which can be painted from any thread.
+	 * 
+	 * @see PathOverlay#createSnapshot()
+	 */
+	@FunctionalInterface
+	public static interface OverlaySnapshot {
+		
+		/**
+		 * Paint the overlay, as with {@link PathOverlay#paintOverlay(Graphics2D, ImageRegion, double, ImageObserver, boolean)}.
+		 * 
+		 * @param g2d
+		 * @param imageRegion
+		 * @param downsampleFactor
+		 * @param paintCompletely
+		 */
+		public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, boolean paintCompletely);
+		
+	}
+	
 }
@@ -23,6 +23,7 @@
 
 package qupath.lib.gui.viewer.overlays;
 
+import java.awt.AlphaComposite;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
@@ -33,6 +34,7 @@ import qupath.lib.gui.viewer.PathHierarchyPaintingHelper;
 import qupath.lib.images.ImageData;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.objects.hierarchy.TMAGrid;
+import qupath.lib.objects.hierarchy.events.PathObjectSelectionModel;
 import qupath.lib.regions.ImageRegion;
 
 
@@ -65,21 +67,41 @@ public class TMAGridOverlay extends AbstractImageDataOverlay {
 		if (hierarchy == null)
 			return;
 		
+		paintTMAGrid(g, hierarchy.getTMAGrid(), getOverlayOptions(), hierarchy.getSelectionModel(), getAlphaComposite(), downsampleFactor);
+	}
+	
+	/**
+	 * Create a snapshot using copies of the overlay options and the current selection, 
+	 * so that painting in the background isn't affected by any changes made while it is in progress.
+	 */
+	@Override
+	public OverlaySnapshot createSnapshot() {
+		PathObjectHierarchy hierarchy = getHierarchy();
+		if (isInvisible() || hierarchy == null || hierarchy.getTMAGrid() == null)
+			return (g2d, imageRegion, downsampleFactor, paintCompletely) -> {};
 		TMAGrid tmaGrid = hierarchy.getTMAGrid();
+		OverlayOptions overlayOptions = new OverlayOptions(getOverlayOptions());
+		PathObjectSelectionModel selectionModel = createSelectionModelSnapshot();
+		AlphaComposite composite = getAlphaComposite();
+		return (g2d, imageRegion, downsampleFactor, paintCompletely) -> paintTMAGrid(g2d, tmaGrid, overlayOptions, selectionModel, composite, downsampleFactor);
+	}
+	
+	private static void paintTMAGrid(final Graphics2D g, final TMAGrid tmaGrid, final OverlayOptions overlayOptions, final PathObjectSelectionModel selectionModel, 
+			final AlphaComposite composite, final double downsampleFactor) {
 		if (tmaGrid == null)
 			return;
 
-		
 		Graphics2D g2d = (Graphics2D)g.create();
 		// Set alpha composite if needed
-		setAlphaComposite(g2d);
+		if (composite != null)
+			g2d.setComposite(composite);
 		
 //		Rectangle serverBounds = imageRegion.getBounds();
 		
 		// Ensure antialias is on...?
 		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 		
-		PathHierarchyPaintingHelper.paintTMAGrid(g2d, tmaGrid, getOverlayOptions(), hierarchy.getSelectionModel(), downsampleFactor);
+		PathHierarchyPaintingHelper.paintTMAGrid(g2d, tmaGrid, overlayOptions, selectionModel, downsampleFactor);
 		
 		g2d.dispose();
 	}
@@ -29,10 +29,12 @@ import java.awt.Shape;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Writer;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.AbstractList;
 import java.util.List;
+import java.util.RandomAccess;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,6 +56,9 @@ import qupath.lib.objects.PathObject;
  * Default ViewTracker implementation.
  * 
  * This tracks only viewer location and cursor position (no eye tracking... because it can't see you).
+ * <p>
+ * Frames are streamed to a {@link ViewRecordingStore} rather than being retained in memory, 
+ * so that long recordings can be made at a high frequency.
  * 
  * TODO: Deal with rotations in the tracker
  * 
@@ -76,7 +81,8 @@ public class DefaultViewTracker implements ViewTracker, QuPathViewerListener {
 
 	private long startTime = 0;
 
-	private List<ViewRecordingFrame> frames = new ArrayList<>();
+	// Frames are only written to a file while recording, otherwise they are kept in memory
+	private volatile ViewRecordingStore frames = ViewRecordingStore.createInMemory();
 	transient ViewRecordingFrame lastFrame = null;
 	private boolean hasEyeTrackingData = false;
 	
@@ -165,7 +171,17 @@ public class DefaultViewTracker implements ViewTracker, QuPathViewerListener {
 	public void resetRecording() {
 		if (isRecording())
 			setRecording(false);
-		frames.clear();
+		resetFrames(false);
+		//		initializeRecording(null, 0, 0);
+	}
+	
+	/**
+	 * Discard all frames, closing the current store and creating a new one.
+	 * @param forRecording if true, the new store will write frames to a temporary file; otherwise, they are kept in memory
+	 */
+	private synchronized void resetFrames(final boolean forRecording) {
+		frames.close();
+		frames = forRecording ? ViewRecordingStore.createTemporary() : ViewRecordingStore.createInMemory();
 		lastFrame = null;
 		//		initializeRecording(null, 0, 0);
 	}
@@ -182,8 +198,7 @@ public class DefaultViewTracker implements ViewTracker, QuPathViewerListener {
 	// TODO: Confirm if initialization is necessary at all
 	@Deprecated
 	public void initializeRecording(String path, int width, int height) {
-		frames.clear();
-		lastFrame = null;
+		resetFrames(true);
 		//		initialized = true;
 	}
 
@@ -193,7 +208,7 @@ public class DefaultViewTracker implements ViewTracker, QuPathViewerListener {
 
 	@Override
 	public boolean isEmpty() {
-		return frames.isEmpty();
+		return frames.size() == 0;
 	}
 
 
@@ -223,7 +238,8 @@ public class DefaultViewTracker implements ViewTracker, QuPathViewerListener {
 		ViewRecordingFrame frame = new ViewRecordingFrame(timestamp-startTime, imageBounds, canvasSize, cursorPoint, eyePoint, isFixated);
 		appendFrame(frame);
 		// Log the frame
-		logger.info(toLogString(lastFrame, LOG_DELIMITER, doCursorTracking, supportsEyeTracking()));
+		if (logger.isInfoEnabled())
+			logger.info(toLogString(lastFrame, LOG_DELIMITER, doCursorTracking, supportsEyeTracking()));
 		return frame;
 	}
 
@@ -232,7 +248,7 @@ public class DefaultViewTracker implements ViewTracker, QuPathViewerListener {
 	public synchronized void appendFrame(final ViewRecordingFrame frame) {
 		if (lastFrame != null && lastFrame.getTimestamp() > frame.getTimestamp())
 			throw new RuntimeException("Unable to append frame - frame timestamp is earlier than the current timestamp");
-		frames.add(frame);
+		frames.append(frame);
 		lastFrame = frame;
 		hasEyeTrackingData = hasEyeTrackingData || frame.hasEyePosition();
 	}
@@ -420,26 +436,41 @@ public class DefaultViewTracker implements ViewTracker, QuPathViewerListener {
 	
 	/**
 	 * Return an unmodifiable list of all the frames stored by this view tracker.
+	 * <p>
+	 * Frames are read from the underlying store on demand, so the list does not hold them all in memory.
+	 * If the recording is reset, the list can no longer be read & will throw an {@link IllegalStateException}.
 	 * @return
 	 */
 	public List<ViewRecordingFrame> getFrames() {
-		return Collections.unmodifiableList(frames);
+		return new FrameList(frames);
 	}
 
 
 
 	@Override
 	public String getSummaryString() {
-		StringBuffer sb = new StringBuffer();
-		String delimiter = PathPrefs.getTableDelimiter();
-		sb.append(getLogHeadings(delimiter, doCursorTracking, hasEyeTrackingData));
-		sb.append("\n");
-		for (ViewRecordingFrame frame : frames) {
-			sb.append(toLogString(frame, delimiter, doCursorTracking, hasEyeTrackingData));
-			sb.append("\n");
+		StringBuilder sb = new StringBuilder();
+		try {
+			writeSummary(sb);
+		} catch (IOException e) {
+			// Shouldn't occur when writing to a StringBuilder
+			logger.error("Unable to create view tracking summary", e);
 		}
 		return sb.toString();
 	}
+	
+	
+	@Override
+	public void writeSummary(final Writer writer) throws IOException {
+		writeSummary((Appendable)writer);
+	}
+	
+	private void writeSummary(final Appendable out) throws IOException {
+		String delimiter = PathPrefs.getTableDelimiter();
+		out.append(getLogHeadings(delimiter, doCursorTracking, hasEyeTrackingData));
+		out.append("\n");
+		frames.writeLogStrings(out, delimiter, doCursorTracking, hasEyeTrackingData);
+	}
 
 
 	//	public String getSummaryString() {
@@ -503,7 +534,7 @@ public class DefaultViewTracker implements ViewTracker, QuPathViewerListener {
 
 	@Override
 	public boolean isLastFrame(ViewRecordingFrame frame) {
-		return frame == lastFrame;
+		return frame != null && frame.equals(lastFrame);
 	}
 
 
@@ -516,13 +547,15 @@ public class DefaultViewTracker implements ViewTracker, QuPathViewerListener {
 	 */
 	@Override
 	public ViewRecordingFrame getFrameForTime(long t) {
-		// TODO: Improve efficiency of frame identification code!
-		for (int i = frames.size()-1; i >= 0; i--) {
-			if (frames.get(i).getTimestamp() < t) {
-				return frames.get(i);
-			}
+		var store = frames;
+		try {
+			int ind = store.getIndexForTime(t);
+			return ind < 0 ? null : store.get(ind);
+		} catch (IllegalStateException e) {
+			// The recording was reset while we were reading, e.g. during playback
+			logger.debug("Unable to get frame for time {}: {}", t, e.getLocalizedMessage());
+			return null;
 		}
-		return null;
 	}
 
 	@Override
@@ -582,5 +615,29 @@ public class DefaultViewTracker implements ViewTracker, QuPathViewerListener {
 	public void imageDataChanged(QuPathViewer viewer, ImageData<BufferedImage> imageDataOld,
 			ImageData<BufferedImage> imageDataNew) {}
 	
+	
+	/**
+	 * Read-only list view of the frames in a store.
+	 */
+	private static class FrameList extends AbstractList<ViewRecordingFrame> implements RandomAccess {
+		
+		private final ViewRecordingStore store;
+		
+		FrameList(final ViewRecordingStore store) {
+			this.store = store;
+		}
+
+		@Override
+		public ViewRecordingFrame get(int index) {
+			return store.get(index);
+		}
+
+		@Override
+		public int size() {
+			return store.size();
+		}
+		
+	}
+	
 
 }
\ No newline at end of file
@@ -30,6 +30,7 @@ import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.text.DecimalFormat;
+import java.util.Objects;
 
 /**
  * Data relating to a single recording frame.
@@ -124,4 +125,28 @@ public class ViewRecordingFrame {
 		return canvasSize;
 	}
 	
+	/**
+	 * Frames are considered equal if they contain the same information, using the bounds of the region 
+	 * (since this is what is retained when frames are stored).
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof ViewRecordingFrame))
+			return false;
+		ViewRecordingFrame other = (ViewRecordingFrame)obj;
+		return timestamp == other.timestamp &&
+				region.getBounds2D().equals(other.region.getBounds2D()) &&
+				Objects.equals(canvasSize, other.canvasSize) &&
+				Objects.equals(cursorPosition, other.cursorPosition) &&
+				Objects.equals(eyePosition, other.eyePosition) &&
+				Objects.equals(isFixated, other.isFixated);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(timestamp, region.getBounds2D(), canvasSize, cursorPosition, eyePosition, isFixated);
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,437 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package qupath.lib.gui.viewer.recording;
+
+import java.awt.Dimension;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.SimpleThreadFactory;
+
+/**
+ * Append-only store for view recording frames, backed by a compact binary file.
+ * <p>
+ * Frames are written in the background as fixed-size records, so that memory use does not grow
+ * during long recordings and any frame can be read directly by its index.
+ * Frames that have been appended but not yet written remain available from memory.
+ * <p>
+ * Each record contains the information needed to recreate the frame as it would be represented
+ * by {@link DefaultViewTracker#toLogString(ViewRecordingFrame, String, boolean, boolean)},
+ * so conversion to the text format is lossless.
+ * If the file cannot be written, frames are retained in memory instead.
+ *
+ * @author Pete Bankhead
+ *
+ */
+public class ViewRecordingStore implements Closeable {
+
+	private final static Logger logger = LoggerFactory.getLogger(ViewRecordingStore.class);
+
+	private static final ExecutorService pool = Executors.newSingleThreadExecutor(new SimpleThreadFactory("view-tracking-", true));
+
+	private static final int MAGIC = 0x51505654; // QPVT
+	private static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 8;
+
+	// Timestamp, bounds (x, y, width, height), canvas size, flags, cursor (x, y), eye (x, y)
+	static final int RECORD_SIZE = 8 + 4*8 + 2*4 + 1 + 2*8 + 2*8;
+
+	private static final int FLAG_CURSOR = 1;
+	private static final int FLAG_EYE = 2;
+	private static final int FLAG_HAS_FIXATED = 4;
+	private static final int FLAG_FIXATED = 8;
+
+	/**
+	 * Maximum number of frames to read at a time when iterating through all frames.
+	 */
+	private static final int MAX_BATCH_SIZE = 4096;
+
+	private final Path path;
+	private final boolean deleteOnClose;
+	private final FileChannel channel;
+
+	// Number of frames written to the file
+	private int nWritten = 0;
+	// Frames that have been appended but not yet written
+	private final List<ViewRecordingFrame> pending = new ArrayList<>();
+	private boolean isWriting = false;
+	private boolean writeFailed = false;
+	private boolean isClosed = false;
+
+	private ViewRecordingStore(final Path path, final FileChannel channel, final int nWritten, final boolean deleteOnClose) {
+		this.path = path;
+		this.channel = channel;
+		this.nWritten = nWritten;
+		this.deleteOnClose = deleteOnClose;
+	}
+
+	/**
+	 * Create a new store, writing to the specified file.  Any existing file will be overwritten.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static ViewRecordingStore create(final Path path) throws IOException {
+		return create(path, false);
+	}
+
+	/**
+	 * Create a new store that keeps all frames in memory, without any file.
+	 * This is suitable for small numbers of frames, e.g. those parsed from an existing summary.
+	 *
+	 * @return
+	 */
+	public static ViewRecordingStore createInMemory() {
+		return new ViewRecordingStore(null, null, 0, false);
+	}
+
+	/**
+	 * Create a new store backed by a temporary file, which will be deleted when the store is closed.
+	 * If the temporary file cannot be created, frames will be stored in memory.
+	 *
+	 * @return
+	 */
+	public static ViewRecordingStore createTemporary() {
+		try {
+			var path = Files.createTempFile("qupath-tracking-", ".qptrack");
+			path.toFile().deleteOnExit();
+			return create(path, true);
+		} catch (IOException e) {
+			logger.warn("Unable to create file for view tracking - frames will be stored in memory ({})", e.getLocalizedMessage());
+			return createInMemory();
+		}
+	}
+
+	private static ViewRecordingStore create(final Path path, final boolean deleteOnClose) throws IOException {
+		var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		var buffer = ByteBuffer.allocate(HEADER_SIZE);
+		buffer.putInt(MAGIC).putInt(VERSION).flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer, buffer.position());
+		return new ViewRecordingStore(path, channel, 0, deleteOnClose);
+	}
+
+	/**
+	 * Open an existing store, so that frames can be read or appended.
+	 * Any incomplete record at the end of the file (e.g. because writing was interrupted) will be ignored.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException if the file cannot be read, or is not a view recording file
+	 */
+	public static ViewRecordingStore open(final Path path) throws IOException {
+		var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			var buffer = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, buffer, 0);
+			if (buffer.getInt() != MAGIC)
+				throw new IOException(path + " is not a view recording file");
+			int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported view recording version " + version);
+			long n = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+			if (n > Integer.MAX_VALUE)
+				throw new IOException("Too many frames in " + path);
+			return new ViewRecordingStore(path, channel, (int)n, false);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the file used to store frames.
+	 * @return the path, or null if frames are stored in memory
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Append a frame to the store.  This returns immediately, with the frame being written in the background.
+	 * @param frame
+	 */
+	public synchronized void append(final ViewRecordingFrame frame) {
+		if (isClosed)
+			throw new IllegalStateException("Cannot append frame - store is closed");
+		pending.add(frame);
+		if (!isWriting && !writeFailed && channel != null) {
+			isWriting = true;
+			pool.execute(this::writePending);
+		}
+	}
+
+	/**
+	 * Get the number of frames in the store, including any that have not yet been written.
+	 * @return
+	 */
+	public synchronized int size() {
+		return nWritten + pending.size();
+	}
+
+	/**
+	 * Get the frame with the specified index.
+	 *
+	 * @param index
+	 * @return
+	 * @throws IndexOutOfBoundsException if the index is not valid
+	 * @throws IllegalStateException if the store has been closed
+	 * @throws UncheckedIOException if the frame could not be read
+	 */
+	public ViewRecordingFrame get(final int index) {
+		return getFrames(index, index + 1).get(0);
+	}
+
+	/**
+	 * Get the frames in a specified range of indices.
+	 *
+	 * @param fromIndex first index (inclusive)
+	 * @param toIndex last index (exclusive)
+	 * @return
+	 * @throws IndexOutOfBoundsException if the indices are not valid
+	 * @throws IllegalStateException if the store has been closed
+	 * @throws UncheckedIOException if the frames could not be read
+	 */
+	public List<ViewRecordingFrame> getFrames(final int fromIndex, final int toIndex) {
+		int nFromFile;
+		List<ViewRecordingFrame> frames = new ArrayList<>(Math.max(0, toIndex - fromIndex));
+		synchronized (this) {
+			if (isClosed)
+				throw new IllegalStateException("Cannot read frames - store is closed");
+			if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex)
+				throw new IndexOutOfBoundsException("Cannot get frames " + fromIndex + "-" + toIndex + " from store with " + size() + " frames");
+			// Copy any pending frames we need while we hold the lock, since these may be written & removed
+			nFromFile = Math.max(0, Math.min(toIndex, nWritten) - fromIndex);
+			for (int i = Math.max(fromIndex, nWritten); i < toIndex; i++)
+				frames.add(pending.get(i - nWritten));
+		}
+		if (nFromFile == 0)
+			return frames;
+		// Frames can't be removed from the file, so we can read without holding the lock - 
+		// but the store might be closed while we are reading
+		var buffer = ByteBuffer.allocate(nFromFile * RECORD_SIZE);
+		try {
+			readFully(channel, buffer, HEADER_SIZE + (long)fromIndex * RECORD_SIZE);
+		} catch (ClosedChannelException e) {
+			throw new IllegalStateException("Cannot read frames - store is closed", e);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to read view recording frames", e);
+		}
+		List<ViewRecordingFrame> framesFromFile = new ArrayList<>(nFromFile + frames.size());
+		for (int i = 0; i < nFromFile; i++)
+			framesFromFile.add(readRecord(buffer));
+		framesFromFile.addAll(frames);
+		return framesFromFile;
+	}
+
+	/**
+	 * Get the index of the last frame with a timestamp earlier than the specified time.
+	 * This assumes that frames have been appended in order of timestamp.
+	 *
+	 * @param timestamp
+	 * @return the index, or -1 if there is no such frame
+	 */
+	public int getIndexForTime(final long timestamp) {
+		int low = 0;
+		int high = size() - 1;
+		int result = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (get(mid).getTimestamp() < timestamp) {
+				result = mid;
+				low = mid + 1;
+			} else
+				high = mid - 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Write all frames in the text format used by {@link DefaultViewTracker#toLogString(ViewRecordingFrame, String, boolean, boolean)},
+	 * one frame per line.
+	 *
+	 * @param out
+	 * @param delimiter
+	 * @param includeCursor
+	 * @param includeEyeTracking
+	 * @throws IOException
+	 */
+	public void writeLogStrings(final Appendable out, final String delimiter, final boolean includeCursor, final boolean includeEyeTracking) throws IOException {
+		int n = size();
+		for (int i = 0; i < n; i += MAX_BATCH_SIZE) {
+			for (ViewRecordingFrame frame : getFrames(i, Math.min(n, i + MAX_BATCH_SIZE))) {
+				out.append(DefaultViewTracker.toLogString(frame, delimiter, includeCursor, includeEyeTracking));
+				out.append("\n");
+			}
+		}
+	}
+
+	/**
+	 * Wait until all appended frames have been written to the file.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitWritten() throws InterruptedException {
+		while (isWriting)
+			wait();
+	}
+
+	/**
+	 * Close the store, after writing any pending frames.
+	 * If the store was created using {@link #createTemporary()}, the file will also be deleted.
+	 * <p>
+	 * Frames can no longer be read once the store is closed.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (isClosed)
+				return;
+			isClosed = true;
+		}
+		if (channel == null)
+			return;
+		// Tasks are run in order, so any pending frames will be written first
+		pool.execute(() -> {
+			try {
+				channel.close();
+				if (deleteOnClose)
+					Files.deleteIfExists(path);
+			} catch (IOException e) {
+				logger.warn("Error closing view recording store: {}", e.getLocalizedMessage());
+			}
+		});
+	}
+
+	private void writePending() {
+		while (true) {
+			List<ViewRecordingFrame> batch;
+			long position;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					isWriting = false;
+					notifyAll();
+					return;
+				}
+				batch = new ArrayList<>(pending);
+				position = HEADER_SIZE + (long)nWritten * RECORD_SIZE;
+			}
+			var buffer = ByteBuffer.allocate(batch.size() * RECORD_SIZE);
+			for (ViewRecordingFrame frame : batch)
+				writeRecord(buffer, frame);
+			buffer.flip();
+			try {
+				while (buffer.hasRemaining())
+					channel.write(buffer, position + buffer.position());
+			} catch (IOException e) {
+				logger.error("Unable to write view tracking frames - any more frames will be stored in memory", e);
+				synchronized (this) {
+					writeFailed = true;
+					isWriting = false;
+					notifyAll();
+				}
+				return;
+			}
+			synchronized (this) {
+				pending.subList(0, batch.size()).clear();
+				nWritten += batch.size();
+			}
+		}
+	}
+
+	private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of view recording file");
+		}
+		buffer.flip();
+	}
+
+	static void writeRecord(final ByteBuffer buffer, final ViewRecordingFrame frame) {
+		buffer.putLong(frame.getTimestamp());
+		Rectangle2D bounds = frame.getImageShape().getBounds2D();
+		buffer.putDouble(bounds.getX());
+		buffer.putDouble(bounds.getY());
+		buffer.putDouble(bounds.getWidth());
+		buffer.putDouble(bounds.getHeight());
+		Dimension size = frame.getSize();
+		buffer.putInt(size.width);
+		buffer.putInt(size.height);
+		int flags = 0;
+		if (frame.hasCursorPosition())
+			flags |= FLAG_CURSOR;
+		if (frame.hasEyePosition())
+			flags |= FLAG_EYE;
+		Boolean isFixated = frame.isEyeFixated();
+		if (isFixated != null) {
+			flags |= FLAG_HAS_FIXATED;
+			if (isFixated)
+				flags |= FLAG_FIXATED;
+		}
+		buffer.put((byte)flags);
+		putPoint(buffer, frame.getCursorPosition());
+		putPoint(buffer, frame.getEyePosition());
+	}
+
+	private static void putPoint(final ByteBuffer buffer, final Point2D p) {
+		buffer.putDouble(p == null ? Double.NaN : p.getX());
+		buffer.putDouble(p == null ? Double.NaN : p.getY());
+	}
+
+	static ViewRecordingFrame readRecord(final ByteBuffer buffer) {
+		long timestamp = buffer.getLong();
+		var bounds = new Rectangle2D.Double(buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+		var size = new Dimension(buffer.getInt(), buffer.getInt());
+		int flags = buffer.get();
+		Point2D cursor = getPoint(buffer, (flags & FLAG_CURSOR) != 0);
+		Point2D eye = getPoint(buffer, (flags & FLAG_EYE) != 0);
+		Boolean isFixated = (flags & FLAG_HAS_FIXATED) == 0 ? null : (flags & FLAG_FIXATED) != 0;
+		return new ViewRecordingFrame(timestamp, bounds, size, cursor, eye, isFixated);
+	}
+
+	private static Point2D getPoint(final ByteBuffer buffer, final boolean hasPoint) {
+		double x = buffer.getDouble();
+		double y = buffer.getDouble();
+		return hasPoint ? new Point2D.Double(x, y) : null;
+	}
+
+}
@@ -23,6 +23,9 @@
 
 package qupath.lib.gui.viewer.recording;
 
+import java.io.IOException;
+import java.io.Writer;
+
 import javafx.beans.property.BooleanProperty;
 
 /**
@@ -60,4 +63,15 @@ public interface ViewTracker {
 	
 	public String getSummaryString();
 	
+	/**
+	 * Write the summary of all frames, in the same format as {@link #getSummaryString()}.
+	 * Implementations may override this to avoid creating the full summary in memory.
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	public default void writeSummary(Writer writer) throws IOException {
+		writer.write(getSummaryString());
+	}
+	
 }
\ No newline at end of file
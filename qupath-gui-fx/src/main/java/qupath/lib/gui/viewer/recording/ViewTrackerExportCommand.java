@@ -23,8 +23,11 @@
 
 package qupath.lib.gui.viewer.recording;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
@@ -80,9 +83,9 @@ public class ViewTrackerExportCommand implements PathCommand {
 		
 		PrintWriter out = null;
 		try {
-			out = new PrintWriter(fileExport);
-			out.print(tracker.getSummaryString());
-		} catch (FileNotFoundException e) {
+			out = new PrintWriter(new BufferedWriter(new FileWriter(fileExport)));
+			tracker.writeSummary(out);
+		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
 			if (out != null)
@@ -66,13 +66,13 @@ abstract class AbstractPathDraggingROITool extends AbstractPathROITool {
 			ROI roiUpdated = editor.setActiveHandlePosition(p.getX(), p.getY(), 0.25, e.isShiftDown());
 			if (roiUpdated != currentROI) {
 				((PathROIObject)pathObject).setROI(roiUpdated);
-				viewer.repaint();
+				viewer.repaintOverlays();
 			}
 			
 			viewer.getHierarchy().fireObjectsChangedEvent(this, Collections.singleton(pathObject), true);
 //			editor.setActiveHandlePosition(x, y, minDisplacement, shiftDown)
 //			currentROI.updateAdjustment(p.getX(), p.getY(), e.isShiftDown());
-			viewer.repaint();
+			viewer.repaintOverlays();
 		}
 	}
 
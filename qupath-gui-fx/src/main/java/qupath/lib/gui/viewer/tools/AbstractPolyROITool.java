@@ -41,7 +41,7 @@ public abstract class AbstractPolyROITool extends AbstractPathROITool {
 			if (currentObject != null && currentObject.getROI() != roiUpdated && currentObject instanceof PathROIObject) {
 				((PathROIObject)currentObject).setROI(roiUpdated);
 			}
-			viewer.repaint();
+			viewer.repaintOverlays();
 		}
 		else {
 			commitObjectToHierarchy(e, currentObject);
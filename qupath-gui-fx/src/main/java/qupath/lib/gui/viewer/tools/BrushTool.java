@@ -271,7 +271,7 @@ public class BrushTool extends AbstractPathROITool {
 		if (pathObject != pathObjectUpdated)
 			viewer.setSelectedObject(pathObjectUpdated, PathPrefs.isSelectionMode());
 		else
-			viewer.repaint();
+			viewer.repaintOverlays();
 	}
 	
 	
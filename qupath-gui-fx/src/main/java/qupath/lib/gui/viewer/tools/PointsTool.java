@@ -114,7 +114,7 @@ public class PointsTool extends AbstractPathTool {
 		
 		PathROIObject currentObject = (PathROIObject)viewer.getSelectedObject();
 		currentObject.setROI(points2);
-		viewer.repaint();
+		viewer.repaintOverlays();
 		
 //		viewer.getHierarchy().fireHierarchyChangedEvent(this, currentObject);
 
@@ -248,7 +248,7 @@ public class PointsTool extends AbstractPathTool {
 //				viewer.getHierarchy().fireHierarchyChangedEvent(this, currentObject);
 			}
 		}
-		viewer.repaint();
+		viewer.repaintOverlays();
 	}
 	
 	
@@ -0,0 +1,155 @@
+package qupath.lib.display;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import qupath.lib.awt.color.model.ColorModelFactory;
+import qupath.lib.display.ChannelDisplayInfo.DirectServerChannelInfo;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageIoImageServer;
+
+public class TestChannelDisplayInfo {
+
+	private static final int N_CHANNELS = 4;
+
+	@Test
+	public void testComposite8Bit() {
+		var sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, 1, 1, N_CHANNELS, N_CHANNELS, new int[] {0, 1, 2, 3});
+		checkComposite(sampleModel, 8, 255);
+	}
+
+	@Test
+	public void testComposite16Bit() {
+		var sampleModel = new BandedSampleModel(DataBuffer.TYPE_USHORT, 1, 1, N_CHANNELS);
+		checkComposite(sampleModel, 16, 65535);
+	}
+
+	@Test
+	public void testCompositeFloat() {
+		var sampleModel = new BandedSampleModel(DataBuffer.TYPE_FLOAT, 1, 1, N_CHANNELS);
+		checkComposite(sampleModel, 32, 1000);
+	}
+
+	@Test
+	public void testParallelStrips() throws Exception {
+		var sampleModel = new BandedSampleModel(DataBuffer.TYPE_USHORT, 800, 700, N_CHANNELS);
+		var rand = new Random(100L);
+		var img = createImage(sampleModel, 16, 65535, rand);
+		var imageData = new ImageData<>(new ImageIoImageServer("image", "image", img));
+		List<DirectServerChannelInfo> channels = new ArrayList<>();
+		for (int c = 0; c < N_CHANNELS; c++) {
+			var channel = new DirectServerChannelInfo(imageData, c);
+			channel.setLUTColor(rand.nextInt(256), rand.nextInt(256), rand.nextInt(256));
+			channel.setMinDisplay(1000 * c);
+			channel.setMaxDisplay(40000 + 5000 * c);
+			channels.add(channel);
+		}
+		int[] expected = DirectServerChannelInfo.getRGBComposite(img, channels, null, true, false);
+		assertArrayEquals(expected, DirectServerChannelInfo.getRGBComposite(img, channels, null, true, true));
+		
+		// Request composites from many threads at once, as when tiles are painted by a pool
+		var pool = Executors.newFixedThreadPool(8);
+		List<Future<int[]>> futures = new ArrayList<>();
+		for (int i = 0; i < 32; i++)
+			futures.add(pool.submit(() -> DirectServerChannelInfo.getRGBComposite(img, channels, null, true, true)));
+		for (var future : futures)
+			assertArrayEquals(expected, future.get(30, TimeUnit.SECONDS));
+		pool.shutdown();
+	}
+
+	/**
+	 * Check that compositing channels gives exactly the same result as converting each pixel value separately,
+	 * for small images (one strip) and larger ones (several strips, processed in parallel).
+	 */
+	private static void checkComposite(SampleModel sampleModel, int bpp, int maxValue) {
+		var rand = new Random(bpp);
+		for (int[] size : new int[][] {{37, 23}, {600, 500}}) {
+			var img = createImage(sampleModel.createCompatibleSampleModel(size[0], size[1]), bpp, maxValue, rand);
+			var imageData = new ImageData<>(new ImageIoImageServer("image", "image", img));
+			List<DirectServerChannelInfo> channels = new ArrayList<>();
+			for (int c = 0; c < N_CHANNELS; c++) {
+				var channel = new DirectServerChannelInfo(imageData, c);
+				channel.setLUTColor(rand.nextInt(256), rand.nextInt(256), rand.nextInt(256));
+				channels.add(channel);
+			}
+			for (int trial = 0; trial < 5; trial++) {
+				for (int c = 0; c < N_CHANNELS; c++) {
+					var channel = channels.get(c);
+					channel.setMinMaxAllowed(-maxValue, maxValue * 2);
+					float min = (rand.nextFloat() - 0.25f) * maxValue / 2;
+					float max = min + rand.nextFloat() * maxValue * 1.5f;
+					// Include channels without any display range, which should be skipped
+					if (c > 0 && trial == 1)
+						max = min;
+					channel.setMinDisplay(min);
+					channel.setMaxDisplay(max);
+				}
+				for (boolean useColorLUT : new boolean[] {true, false}) {
+					int[] expected = getRGBPerPixel(img, channels, useColorLUT);
+					int[] composite = DirectServerChannelInfo.getRGBComposite(img, channels, null, useColorLUT);
+					assertArrayEquals(expected, composite);
+					// Check the output array is reused if possible
+					int[] output = new int[expected.length];
+					assertSame(output, DirectServerChannelInfo.getRGBComposite(img, channels, output, useColorLUT));
+					assertArrayEquals(expected, output);
+					// Check the same result is given by the bulk transform of the first channel
+					assertArrayEquals(expected, channels.get(0).getRGB(img, channels.subList(1, N_CHANNELS), null, useColorLUT));
+					// Check a single channel
+					assertArrayEquals(getRGBPerPixel(img, channels.subList(0, 1), useColorLUT), channels.get(0).getRGB(img, null, useColorLUT));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Convert each pixel using getRGB for the first channel and updateRGBAdditive for the others,
+	 * without any lookup tables.
+	 */
+	private static int[] getRGBPerPixel(BufferedImage img, List<DirectServerChannelInfo> channels, boolean useColorLUT) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		var raster = img.getRaster();
+		var first = channels.get(0);
+		int[] rgb = new int[w * h];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++)
+				rgb[y * w + x] = first.getRGB(raster.getSampleFloat(x, y, first.getChannel()), useColorLUT);
+		}
+		for (var channel : channels.subList(1, channels.size()))
+			channel.updateRGBAdditive(img, rgb, useColorLUT);
+		return rgb;
+	}
+
+	private static BufferedImage createImage(SampleModel sampleModel, int bpp, int maxValue, Random rand) {
+		WritableRaster raster = Raster.createWritableRaster(sampleModel, null);
+		int w = raster.getWidth();
+		int h = raster.getHeight();
+		for (int b = 0; b < raster.getNumBands(); b++) {
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					if (bpp == 32)
+						raster.setSample(x, y, b, (rand.nextFloat() * 1.5f - 0.25f) * maxValue);
+					else
+						raster.setSample(x, y, b, rand.nextInt(maxValue + 1));
+				}
+			}
+		}
+		return new BufferedImage(ColorModelFactory.getDummyColorModel(bpp), raster, false, null);
+	}
+
+}
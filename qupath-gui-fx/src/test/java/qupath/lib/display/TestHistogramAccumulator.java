@@ -0,0 +1,167 @@
+package qupath.lib.display;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+import qupath.lib.analysis.stats.Histogram;
+import qupath.lib.display.ChannelDisplayInfo.DirectServerChannelInfo;
+import qupath.lib.display.ImageDisplay.HistogramManager;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.regions.ImageRegion;
+
+public class TestHistogramAccumulator {
+
+	@Test
+	public void testIntegerValues() {
+		float[] values = new float[256 * 4];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i % 256;
+		var accumulator = new HistogramAccumulator();
+		accumulator.addValues(values, values.length, 1);
+
+		var histogram = accumulator.toHistogram();
+		assertTrue(histogram.isInteger());
+		assertEquals(256, histogram.nBins());
+		assertEquals(0, histogram.getEdgeMin(), 1e-6);
+		for (int i = 0; i < histogram.nBins(); i++) {
+			assertEquals(1, histogram.getBinWidth(i), 1e-6);
+			assertEquals(4, histogram.getCountsForBin(i), 1e-6);
+		}
+		assertEquals(values.length, histogram.nValues());
+		assertEquals(127.5, histogram.getMeanValue(), 1e-6);
+		assertEquals(255, histogram.getMaxValue(), 1e-6);
+	}
+
+	@Test
+	public void testExpandRange() {
+		// Compare counts after expanding with those computed directly from all the values
+		var rand = new Random(100L);
+		float[] first = new float[1000];
+		for (int i = 0; i < first.length; i++)
+			first[i] = 100 + rand.nextInt(50);
+		float[] second = new float[1000];
+		for (int i = 0; i < second.length; i++)
+			second[i] = rand.nextInt(5000) - 1000;
+		var accumulator = new HistogramAccumulator(64);
+		accumulator.addValues(first, first.length, 1);
+		accumulator.addValues(second, second.length, 1);
+
+		var histogram = accumulator.toHistogram();
+		assertTrue(histogram.isInteger());
+		assertEquals(first.length + second.length, histogram.getCountSum());
+		for (int i = 0; i < histogram.nBins(); i++) {
+			double left = histogram.getBinLeftEdge(i);
+			double right = histogram.getBinRightEdge(i);
+			assertEquals(Math.rint(right - left), right - left, 1e-6);
+			long count = 0;
+			for (float v : first)
+				if (v >= left && v < right)
+					count++;
+			for (float v : second)
+				if (v >= left && v < right)
+					count++;
+			assertEquals(count, histogram.getCountsForBin(i), 1e-6);
+		}
+	}
+
+	@Test
+	public void testWeightedValues() {
+		var accumulator = new HistogramAccumulator();
+		accumulator.addValues(new float[] {0.5f, Float.NaN}, 2, 16);
+		accumulator.addValues(new float[] {1.5f, 1.5f, 1.5f, 1.5f}, 4, 1);
+		var histogram = accumulator.toHistogram();
+		assertFalse(histogram.isInteger());
+		assertEquals(20, histogram.nValues());
+		assertEquals(16, histogram.nMissingValues());
+		assertEquals((0.5 * 16 + 1.5 * 4) / 20, histogram.getMeanValue(), 1e-6);
+		assertEquals(0.5, histogram.getEdgeMin(), 1e-6);
+		assertEquals(1.5, histogram.getEdgeMax(), 1e-6);
+	}
+
+	@Test
+	public void testManager() throws Exception {
+		var img = new BufferedImage(2048, 2048, BufferedImage.TYPE_USHORT_GRAY);
+		var raster = img.getRaster();
+		for (int y = 0; y < img.getHeight(); y++) {
+			for (int x = 0; x < img.getWidth(); x++)
+				raster.setSample(x, y, 0, x + y);
+		}
+		var server = new ImageIoImageServer("image", "image", img);
+		server.setMetadata(new ImageServerMetadata.Builder(ImageIoImageServer.class, server.getMetadata()).levelsFromDownsamples(1, 4).build());
+		var imageData = new ImageData<>(server);
+		var channel = new DirectServerChannelInfo(imageData, 0);
+
+		// Histograms should be computed in the background from the lowest resolution
+		var manager = new HistogramManager(server);
+		manager.ensureChannels(Collections.singletonList(channel)).get();
+		Histogram histogram = manager.getHistogram(channel, false);
+		assertNotNull(histogram);
+		assertTrue(histogram.isInteger());
+		assertEquals(2048L * 2048L, histogram.nValues());
+
+		// Refining with a higher-resolution tile should replace the pixels it represents, once only
+		var tile = img.getSubimage(0, 0, 512, 512);
+		var region = ImageRegion.createInstance(0, 0, 512, 512, 0, 0);
+		var future = manager.refine(region, tile);
+		assertNotNull(future);
+		future.get();
+		assertNull(manager.refine(region, tile));
+		histogram = manager.getHistogram(channel, false);
+		assertEquals(2048L * 2048L, histogram.nValues());
+		assertEquals(2047.0, histogram.getMeanValue(), 1.0);
+		
+		// Tiles at other resolutions should only be used if they don't overlap a region already refined
+		var region2 = ImageRegion.createInstance(0, 0, 1024, 1024, 0, 0);
+		assertNull(manager.refine(region2, subsample(img, region2, 2)));
+		var region3 = ImageRegion.createInstance(1024, 0, 1024, 1024, 0, 0);
+		future = manager.refine(region3, subsample(img, region3, 2));
+		assertNotNull(future);
+		future.get();
+		histogram = manager.getHistogram(channel, false);
+		assertEquals(2048L * 2048L, histogram.nValues());
+		assertEquals(2047.0, histogram.getMeanValue(), 1.0);
+
+		// Histograms should be restored from a file without being recomputed
+		var file = Files.createTempFile("histograms", ".json");
+		try {
+			assertTrue(manager.isChanged());
+			manager.write(file);
+			assertFalse(manager.isChanged());
+			var manager2 = new HistogramManager(server);
+			assertTrue(manager2.read(file));
+			assertTrue(manager2.getHistogramFuture(channel).isDone());
+			var histogram2 = manager2.getHistogram(channel, false);
+			assertEquals(2048L * 2048L, histogram2.nValues());
+			assertEquals(histogram.getMeanValue(), histogram2.getMeanValue(), 1e-6);
+			assertFalse(manager2.isChanged());
+			// Refined regions should also be restored
+			assertNull(manager2.refine(region, tile));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private static BufferedImage subsample(BufferedImage img, ImageRegion region, int downsample) {
+		var imgSmall = new BufferedImage(region.getWidth() / downsample, region.getHeight() / downsample, img.getType());
+		for (int y = 0; y < imgSmall.getHeight(); y++) {
+			for (int x = 0; x < imgSmall.getWidth(); x++)
+				imgSmall.getRaster().setSample(x, y, 0, img.getRaster().getSample(region.getX() + x * downsample, region.getY() + y * downsample, 0));
+		}
+		return imgSmall;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOddBins() throws IOException {
+		new HistogramAccumulator(5);
+	}
+
+}
@@ -0,0 +1,129 @@
+package qupath.lib.gui.images.servers;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+
+public class TestDetectionDensityCache {
+	
+	private static List<PathObject> createDetections(int width, int height, int spacing) {
+		List<PathObject> detections = new ArrayList<>();
+		for (int y = 0; y < height; y += spacing) {
+			for (int x = 0; x < width; x += spacing)
+				detections.add(PathObjects.createDetectionObject(ROIs.createEllipseROI(x + 1, y + 1, 6, 6, ImagePlane.getDefaultPlane())));
+		}
+		return detections;
+	}
+	
+	private static int countObjects(List<DetectionDensityCache.DensityBlock> blocks) {
+		return blocks.stream().mapToInt(b -> b.nObjects()).sum();
+	}
+	
+	private static int countObjects(List<DetectionDensityCache.DensityBlock> blocks, PathClass pathClass) {
+		return blocks.stream().mapToInt(b -> b.nObjects(pathClass)).sum();
+	}
+
+	@Test
+	public void testCounts() {
+		var hierarchy = new PathObjectHierarchy();
+		var detections = createDetections(2048, 2048, 16);
+		hierarchy.addPathObjects(detections, false);
+		
+		var cache = new DetectionDensityCache(hierarchy);
+		var region = ImageRegion.createInstance(0, 0, 2048, 2048, 0, 0);
+		for (double downsample : new double[] {4, 16, 64}) {
+			var blocks = cache.getBlocks(region, downsample);
+			assertEquals(detections.size(), countObjects(blocks));
+			assertEquals(6.0, DetectionDensityCache.getMeanSize(blocks), 1e-6);
+		}
+		
+		// Removing objects should only be reflected after invalidation, if the cache isn't listening to the hierarchy
+		var toRemove = detections.subList(0, 128);
+		hierarchy.removeObjects(toRemove, false);
+		assertEquals(detections.size(), countObjects(cache.getBlocks(region, 16)));
+		cache.invalidate(ImageRegion.createInstance(0, 0, 2048, 16, 0, 0));
+		assertEquals(detections.size() - toRemove.size(), countObjects(cache.getBlocks(region, 16)));
+		assertEquals(detections.size() - toRemove.size(), countObjects(cache.getBlocks(region, 64)));
+	}
+	
+	@Test
+	public void testIncrementalUpdates() {
+		var hierarchy = new PathObjectHierarchy();
+		var detections = createDetections(2048, 2048, 16);
+		hierarchy.addPathObjects(detections, false);
+		
+		var cache = new DetectionDensityCache(hierarchy);
+		hierarchy.addPathObjectListener(cache);
+		var region = ImageRegion.createInstance(0, 0, 2048, 2048, 0, 0);
+		double[] downsamples = new double[] {16, 64};
+		for (double downsample : downsamples)
+			cache.getBlocks(region, downsample);
+		int nBlocks = cache.size();
+		
+		// Adding, removing & reclassifying detections should update the cached blocks, without recomputing them
+		var added = PathObjects.createDetectionObject(ROIs.createEllipseROI(101, 203, 20, 20, ImagePlane.getDefaultPlane()));
+		hierarchy.addPathObject(added, false);
+		hierarchy.removeObject(detections.get(10), true);
+		var pathClass = PathClassFactory.getPathClass("Tumor");
+		var reclassified = detections.subList(100, 300);
+		for (var pathObject : reclassified)
+			pathObject.setPathClass(pathClass);
+		hierarchy.fireObjectClassificationsChangedEvent(this, reclassified);
+		added.setPathClass(pathClass);
+		hierarchy.fireObjectClassificationsChangedEvent(this, Collections.singletonList(added));
+		assertEquals(nBlocks, cache.size());
+		
+		var expectedCache = new DetectionDensityCache(hierarchy);
+		for (double downsample : downsamples) {
+			var blocks = cache.getBlocks(region, downsample);
+			var expected = expectedCache.getBlocks(region, downsample);
+			assertEquals(detections.size(), countObjects(blocks));
+			assertEquals(reclassified.size() + 1, countObjects(blocks, pathClass));
+			assertEquals(countObjects(expected, null), countObjects(blocks, null));
+			assertEquals(DetectionDensityCache.getMeanSize(expected), DetectionDensityCache.getMeanSize(blocks), 1e-6);
+		}
+		assertEquals(nBlocks, cache.size());
+		
+		// Structural changes affecting the whole hierarchy require blocks to be recomputed
+		var toRemove = detections.subList(1000, 1128);
+		hierarchy.removeObjects(toRemove, false);
+		assertEquals(0, cache.size());
+		assertEquals(detections.size() - toRemove.size(), countObjects(cache.getBlocks(region, 16)));
+	}
+	
+	@Test
+	public void testRenderDensity() {
+		var server = new ImageIoImageServer("image", "image", new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_RGB));
+		var imageData = new ImageData<>(server);
+		imageData.getHierarchy().addPathObjects(createDetections(1024, 1024, 16), false);
+		var overlayServer = new PathHierarchyImageServer(imageData, new OverlayOptions());
+		
+		// Densities should be used at low resolution, objects at high resolution - both should paint something
+		for (double downsample : new double[] {1, 16}) {
+			var img = overlayServer.renderRegion(RegionRequest.createInstance(overlayServer.getPath(), downsample, 0, 0, 1024, 1024));
+			assertNotNull(img);
+			int[] rgb = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+			assertTrue("Nothing painted at downsample " + downsample, Arrays.stream(rgb).anyMatch(v -> v != 0));
+		}
+	}
+
+}
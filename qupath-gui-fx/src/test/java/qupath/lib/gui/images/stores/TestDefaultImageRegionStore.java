@@ -0,0 +1,91 @@
+package qupath.lib.gui.images.stores;
+
+import static org.junit.Assert.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import qupath.lib.images.servers.ImageIoImageServer;
+
+public class TestDefaultImageRegionStore {
+	
+	/**
+	 * Renderer that counts how often it is applied, and whose timestamp can be changed on demand.
+	 */
+	static class CountingRenderer extends AbstractImageRenderer {
+		
+		private AtomicInteger count = new AtomicInteger();
+		private long timestamp = 1L;
+		private boolean identity = false;
+
+		@Override
+		public BufferedImage applyTransforms(BufferedImage imgInput, BufferedImage imgOutput) {
+			count.incrementAndGet();
+			var img = new BufferedImage(imgInput.getWidth(), imgInput.getHeight(), BufferedImage.TYPE_INT_RGB);
+			img.getGraphics().drawImage(imgInput, 0, 0, null);
+			return img;
+		}
+		
+		@Override
+		public long getLastChangeTimestamp() {
+			return timestamp;
+		}
+		
+		@Override
+		public boolean isIdentity() {
+			return identity;
+		}
+		
+	}
+
+	@Test
+	public void testRenderedTileCache() {
+		var store = ImageRegionStoreFactory.createImageRegionStore(64L * 1024L * 1024L);
+		var server = new ImageIoImageServer("image", "image", new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB));
+		var renderer = new CountingRenderer();
+		var imgOutput = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+		var bounds = new Rectangle(0, 0, 256, 256);
+		
+		store.paintRegionCompletely(server, imgOutput.createGraphics(), bounds, 0, 0, 1.0, null, renderer, 5000L);
+		int nRendered = renderer.count.get();
+		assertTrue(nRendered > 0);
+		assertEquals(nRendered, store.getRenderedCache().size());
+		
+		// Repainting with the same renderer state should reuse the rendered tiles
+		store.paintRegionCompletely(server, imgOutput.createGraphics(), bounds, 0, 0, 1.0, null, renderer, 5000L);
+		assertEquals(nRendered, renderer.count.get());
+		
+		// Changing the renderer should require new tiles, and discard the old ones
+		renderer.timestamp++;
+		store.paintRegionCompletely(server, imgOutput.createGraphics(), bounds, 0, 0, 1.0, null, renderer, 5000L);
+		assertEquals(nRendered * 2, renderer.count.get());
+		assertEquals(nRendered, store.getRenderedCache().size());
+		
+		// Clearing the server should also clear rendered tiles
+		store.clearCacheForServer(server);
+		assertTrue(store.getRenderedCache().isEmpty());
+		
+		store.close();
+	}
+	
+	@Test
+	public void testIdentityNotCached() {
+		var store = ImageRegionStoreFactory.createImageRegionStore(64L * 1024L * 1024L);
+		var server = new ImageIoImageServer("image", "image", new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB));
+		var renderer = new CountingRenderer();
+		renderer.identity = true;
+		var imgOutput = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+		var bounds = new Rectangle(0, 0, 256, 256);
+		
+		// Raw tiles should be painted directly, without rendering or caching copies
+		store.paintRegionCompletely(server, imgOutput.createGraphics(), bounds, 0, 0, 1.0, null, renderer, 5000L);
+		assertEquals(0, renderer.count.get());
+		assertTrue(store.getRenderedCache().isEmpty());
+		
+		store.close();
+	}
+
+}
@@ -0,0 +1,126 @@
+package qupath.lib.gui.images.stores;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.regions.RegionRequest;
+
+public class TestDefaultRegionCache {
+	
+	// Each tile is 64 x 64 x 4 bytes
+	private static final long TILE_BYTES = 64 * 64 * 4;
+	
+	private static RegionRequest createRequest(String path, int x, int y) {
+		return RegionRequest.createInstance(path, 1.0, x, y, 64, 64);
+	}
+	
+	private static BufferedImage createImage() {
+		return new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+	}
+
+	@Test
+	public void testPutGetRemove() {
+		var cache = new DefaultRegionCache<>(new BufferedImageSizeEstimator(), 100, TILE_BYTES * 100);
+		var request = createRequest("a", 0, 0);
+		var img = createImage();
+		assertNull(cache.get(request));
+		assertNull(cache.put(request, img));
+		assertSame(img, cache.get(request));
+		assertEquals(TILE_BYTES, cache.getMemoryBytes());
+		
+		// Null values should be retained
+		var requestNull = createRequest("a", 64, 0);
+		cache.put(requestNull, null);
+		assertTrue(cache.containsKey(requestNull));
+		assertNull(cache.get(requestNull));
+		assertEquals(2, cache.size());
+		
+		assertSame(img, cache.remove(request));
+		assertFalse(cache.containsKey(request));
+		assertEquals(0, cache.getMemoryBytes());
+		
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+	
+	@Test
+	public void testEviction() {
+		int maxTiles = 10;
+		var cache = new DefaultRegionCache<>(new BufferedImageSizeEstimator(), 1000, TILE_BYTES * maxTiles);
+		var first = createRequest("a", 0, 0);
+		cache.put(first, createImage());
+		for (int i = 1; i < 50; i++) {
+			// Keep accessing the first tile, which should help it to stay in the cache
+			cache.get(first);
+			cache.put(createRequest("a", i * 64, 0), createImage());
+			assertTrue(cache.getMemoryBytes() <= TILE_BYTES * maxTiles);
+		}
+		assertTrue(cache.containsKey(first));
+		assertTrue(cache.size() <= maxTiles);
+		assertTrue(cache.getEvictionCount() >= 40);
+	}
+
+	@Test
+	public void testClearForServer() {
+		var cache = new DefaultRegionCache<>(new BufferedImageSizeEstimator(), 1000, TILE_BYTES * 1000);
+		for (int i = 0; i < 20; i++) {
+			cache.put(createRequest("a", i * 64, 0), createImage());
+			cache.put(createRequest("b", i * 64, 0), createImage());
+		}
+		cache.clearCacheForRequestOverlap(RegionRequest.createInstance("b", 1.0, 0, 0, 128, 64));
+		assertEquals(38, cache.size());
+		
+		var server = new ImageIoImageServer("a", "a", createImage());
+		cache.clearCacheForServer(server);
+		assertEquals(18, cache.size());
+		for (var key : cache.keySet())
+			assertEquals("b", key.getPath());
+		
+		cache.clear();
+		assertTrue(cache.isEmpty());
+		assertEquals(0, cache.getMemoryBytes());
+		// Paths should be forgotten once they have no entries
+		assertTrue(cache.getPaths().isEmpty());
+	}
+	
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		int maxTiles = 50;
+		var cache = new DefaultRegionCache<>(new BufferedImageSizeEstimator(), 1000, TILE_BYTES * maxTiles);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			int offset = t;
+			futures.add(pool.submit(() -> {
+				for (int i = 0; i < 2000; i++) {
+					var request = createRequest("a", ((i + offset * 7) % 200) * 64, 0);
+					if (cache.get(request) == null)
+						cache.put(request, createImage());
+					if (i % 100 == 0)
+						cache.remove(request);
+				}
+			}));
+		}
+		for (var future : futures)
+			future.get();
+		pool.shutdown();
+		
+		// Check the accounting is consistent with the contents
+		long bytes = 0;
+		for (var img : cache.values())
+			bytes += img == null ? 0 : TILE_BYTES;
+		assertEquals(bytes, cache.getMemoryBytes());
+		cache.put(createRequest("b", 0, 0), createImage());
+		assertTrue(cache.getMemoryBytes() <= TILE_BYTES * maxTiles);
+	}
+
+}
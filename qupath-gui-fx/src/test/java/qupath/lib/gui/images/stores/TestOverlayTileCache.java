@@ -0,0 +1,146 @@
+package qupath.lib.gui.images.stores;
+
+import static org.junit.Assert.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import qupath.lib.gui.images.servers.PathHierarchyImageServer;
+import qupath.lib.gui.viewer.OverlayOptions;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.ROIs;
+
+public class TestOverlayTileCache {
+
+	@Test
+	public void testInvalidation() {
+		var server = new ImageIoImageServer("image", "image", new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_RGB));
+		var imageData = new ImageData<>(server);
+		List<PathObject> detections = new ArrayList<>();
+		for (int y = 0; y < 1024; y += 32) {
+			for (int x = 0; x < 1024; x += 32)
+				detections.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(x + 4, y + 4, 20, 20, ImagePlane.getDefaultPlane())));
+		}
+		imageData.getHierarchy().addPathObjects(detections, false);
+		
+		var tileCache = new OverlayTileCache(new PathHierarchyImageServer(imageData, new OverlayOptions()), null, 64L * 1024L * 1024L);
+		var img = new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_ARGB);
+		var g2d = img.createGraphics();
+		var bounds = new Rectangle(0, 0, 1024, 1024);
+		tileCache.paintRegion(g2d, bounds, 0, 0, 1.0, null, true);
+		int nTiles = tileCache.size();
+		assertEquals(16, nTiles);
+		assertEquals(0, tileCache.getStaleTileCount());
+		assertTrue(tileCache.getMemoryBytes() > 0);
+		
+		// Changing a single object should only affect the tile containing it
+		tileCache.invalidate(ImageRegion.createInstance(detections.get(33).getROI()));
+		assertEquals(1, tileCache.getStaleTileCount());
+		
+		// Stale tiles should still be painted while they are being updated
+		var img2 = new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_ARGB);
+		var g2d2 = img2.createGraphics();
+		tileCache.paintRegion(g2d2, bounds, 0, 0, 1.0, null, false);
+		int[] rgb = img.getRGB(0, 0, 1024, 1024, null, 0, 1024);
+		assertArrayEquals(rgb, img2.getRGB(0, 0, 1024, 1024, null, 0, 1024));
+		assertTrue(Arrays.stream(rgb).anyMatch(v -> v != 0));
+		
+		tileCache.invalidateAll();
+		assertEquals(nTiles, tileCache.getStaleTileCount());
+		assertEquals(nTiles, tileCache.size());
+		
+		tileCache.close();
+		assertEquals(0, tileCache.size());
+		assertEquals(0, tileCache.getMemoryBytes());
+		g2d.dispose();
+		g2d2.dispose();
+	}
+	
+	@Test
+	public void testPaintCompletely() {
+		var server = new ImageIoImageServer("image", "image", new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_RGB));
+		var imageData = new ImageData<>(server);
+		// Only add detections to the top half of the image
+		List<PathObject> detections = new ArrayList<>();
+		for (int y = 0; y < 512; y += 32) {
+			for (int x = 0; x < 1024; x += 32)
+				detections.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(x + 4, y + 4, 20, 20, ImagePlane.getDefaultPlane())));
+		}
+		imageData.getHierarchy().addPathObjects(detections, false);
+		
+		var tileCache = new OverlayTileCache(new PathHierarchyImageServer(imageData, new OverlayOptions()), null, 64L * 1024L * 1024L);
+		var img = new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_ARGB);
+		var g2d = img.createGraphics();
+		var bounds = new Rectangle(0, 0, 1024, 1024);
+		
+		// Empty tiles shouldn't be retained
+		tileCache.paintRegion(g2d, bounds, 0, 0, 1.0, null, true);
+		int nTiles = tileCache.size();
+		assertTrue(nTiles > 0 && nTiles < 16);
+		tileCache.paintRegion(g2d, bounds, 0, 0, 1.0, null, false);
+		assertEquals(nTiles, tileCache.size());
+		
+		// Stale tiles should be rendered immediately when painting completely
+		var detection = detections.get(0);
+		imageData.getHierarchy().removeObject(detection, false);
+		tileCache.invalidate(ImageRegion.createInstance(detection.getROI()));
+		assertEquals(1, tileCache.getStaleTileCount());
+		var img2 = new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_ARGB);
+		var g2d2 = img2.createGraphics();
+		tileCache.paintRegion(g2d2, bounds, 0, 0, 1.0, null, true);
+		assertEquals(0, tileCache.getStaleTileCount());
+		assertTrue(Arrays.stream(img.getRGB(0, 0, 32, 32, null, 0, 32)).anyMatch(v -> v != 0));
+		assertTrue(Arrays.stream(img2.getRGB(0, 0, 32, 32, null, 0, 32)).allMatch(v -> v == 0));
+		
+		tileCache.close();
+		g2d.dispose();
+		g2d2.dispose();
+	}
+	
+	@Test
+	public void testSharedMemory() {
+		var server = new ImageIoImageServer("image", "image", new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_RGB));
+		var imageData = new ImageData<>(server);
+		List<PathObject> detections = new ArrayList<>();
+		for (int y = 0; y < 1024; y += 32) {
+			for (int x = 0; x < 1024; x += 32)
+				detections.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(x + 4, y + 4, 20, 20, ImagePlane.getDefaultPlane())));
+		}
+		imageData.getHierarchy().addPathObjects(detections, false);
+		
+		// Caches for different viewers using the same store should share a single memory limit, large enough for about 6 tiles
+		var store = ImageRegionStoreFactory.createImageRegionStore(6L * 4L * 256L * 256L * 4L);
+		long maxBytes = store.getOverlayTileCacheSizeBytes();
+		var tileCache1 = new OverlayTileCache(new PathHierarchyImageServer(imageData, new OverlayOptions()), store);
+		var tileCache2 = new OverlayTileCache(new PathHierarchyImageServer(imageData, new OverlayOptions()), store);
+		var img = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
+		var g2d = img.createGraphics();
+		
+		tileCache1.paintRegion(g2d, new Rectangle(0, 0, 512, 512), 0, 0, 1.0, null, true);
+		long bytes1 = tileCache1.getMemoryBytes();
+		assertTrue(bytes1 > 0 && bytes1 <= maxBytes);
+		
+		// Painting with the second cache should evict the least recently painted tiles from the first
+		tileCache2.paintRegion(g2d, new Rectangle(512, 512, 512, 512), 0, 0, 1.0, null, true);
+		assertTrue(tileCache2.getMemoryBytes() > 0);
+		assertTrue(tileCache1.getMemoryBytes() < bytes1);
+		assertTrue(tileCache1.getMemoryBytes() + tileCache2.getMemoryBytes() <= maxBytes);
+		
+		// Closing a cache should release its share of the memory
+		tileCache2.close();
+		assertEquals(0, tileCache2.getMemoryBytes());
+		tileCache1.close();
+		g2d.dispose();
+	}
+
+}
@@ -0,0 +1,87 @@
+package qupath.lib.gui.images.stores;
+
+import static org.junit.Assert.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.regions.RegionRequest;
+
+public class TestTilePrefetcher {
+	
+	@Test
+	public void testPrefetchInDirectionOfMotion() throws InterruptedException {
+		var server = new ImageIoImageServer("image", "image", new BufferedImage(8192, 2048, BufferedImage.TYPE_BYTE_GRAY));
+		server.setMetadata(new ImageServerMetadata.Builder(ImageIoImageServer.class, server.getMetadata()).preferredTileSize(256, 256).build());
+		var prefetcher = new TilePrefetcher<BufferedImage>();
+		Set<RegionRequest> cached = new HashSet<>();
+		
+		// Stationary view - nothing should be prefetched
+		var view = new Rectangle(2048, 512, 1024, 1024);
+		prefetcher.viewChanged(null, server, view, 1.0, 0, 0, r -> cached.contains(r));
+		assertNull(prefetcher.nextRequest());
+		assertEquals(0, prefetcher.getStatistics().getVisibleTileHitCount());
+		long nVisible = prefetcher.getStatistics().getVisibleTileCount();
+		assertTrue(nVisible > 0);
+		
+		// Moving right - the first tiles prefetched should be ahead of the view
+		Thread.sleep(50L);
+		view = new Rectangle(2304, 512, 1024, 1024);
+		prefetcher.viewChanged(null, server, view, 1.0, 0, 0, r -> cached.contains(r));
+		var request = prefetcher.nextRequest();
+		assertTrue(request.getX() >= view.getMaxX());
+		
+		// Tiles should be counted only when they first come into view
+		assertTrue(prefetcher.getStatistics().getVisibleTileCount() < nVisible * 2);
+		
+		// If prefetched tiles come into view, they should be recorded as used
+		cached.add(request);
+		prefetcher.prefetchRequested(request);
+		prefetcher.prefetchCompleted(request);
+		Thread.sleep(50L);
+		prefetcher.viewChanged(null, server, new Rectangle(request.getX(), request.getY(), 1024, 1024), 1.0, 0, 0, r -> cached.contains(r));
+		var stats = prefetcher.getStatistics();
+		assertEquals(1, stats.getPrefetchUsedCount());
+		assertEquals(1, stats.getVisibleTileHitCount());
+		assertEquals(1.0, stats.getPrefetchAccuracy(), 1e-6);
+		
+		// Disabling should stop any further prefetching
+		prefetcher.setEnabled(false);
+		assertNull(prefetcher.nextRequest());
+	}
+	
+	@Test
+	public void testPrefetchInDirectionOfZoom() {
+		var server = new ImageIoImageServer("image", "image", new BufferedImage(8192, 8192, BufferedImage.TYPE_BYTE_GRAY));
+		server.setMetadata(new ImageServerMetadata.Builder(ImageIoImageServer.class, server.getMetadata())
+				.preferredTileSize(256, 256)
+				.levelsFromDownsamples(1, 2, 4, 8)
+				.build());
+		var prefetcher = new TilePrefetcher<BufferedImage>();
+		
+		// Zooming in slowly should still prefetch tiles at the next resolution
+		long timestamp = 10000L;
+		prefetcher.viewChanged(null, server, new Rectangle(2048, 2048, 4096, 4096), 8.0, 0, 0, r -> false, timestamp);
+		assertNull(prefetcher.nextRequest());
+		timestamp += TilePrefetcher.MAX_MOTION_INTERVAL_MILLIS * 4;
+		prefetcher.viewChanged(null, server, new Rectangle(3072, 3072, 2048, 2048), 4.0, 0, 0, r -> false, timestamp);
+		var request = prefetcher.nextRequest();
+		assertNotNull(request);
+		assertEquals(2.0, request.getDownsample(), 1e-6);
+		
+		// The zoom direction should be retained after a pause, even when the view is moved at the same resolution
+		timestamp += TilePrefetcher.MAX_MOTION_INTERVAL_MILLIS * 4;
+		prefetcher.viewChanged(null, server, new Rectangle(3328, 3072, 2048, 2048), 4.0, 0, 0, r -> false, timestamp);
+		boolean zoomRequested = false;
+		while ((request = prefetcher.nextRequest()) != null)
+			zoomRequested = zoomRequested || request.getDownsample() == 2.0;
+		assertTrue(zoomRequested);
+	}
+
+}
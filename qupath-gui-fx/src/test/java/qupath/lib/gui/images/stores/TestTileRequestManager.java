@@ -0,0 +1,127 @@
+package qupath.lib.gui.images.stores;
+
+import static org.junit.Assert.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import qupath.lib.images.servers.ImageIoImageServer;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.regions.RegionRequest;
+
+public class TestTileRequestManager {
+
+	/**
+	 * Server that blocks reading tiles within one region until released, and records which tiles have started.
+	 */
+	static class LatchServer extends ImageIoImageServer {
+
+		private final Rectangle blockedRegion;
+		private final CountDownLatch release = new CountDownLatch(1);
+		private final Semaphore blockedStarted = new Semaphore(0);
+		private final Semaphore otherStarted = new Semaphore(0);
+		private final List<RegionRequest> started = Collections.synchronizedList(new ArrayList<>());
+
+		LatchServer(BufferedImage img, Rectangle blockedRegion) {
+			super("latch", "latch", img);
+			setMetadata(new ImageServerMetadata.Builder(ImageIoImageServer.class, getMetadata()).preferredTileSize(256, 256).build());
+			this.blockedRegion = blockedRegion;
+		}
+
+		@Override
+		public void close() {}
+
+		@Override
+		public BufferedImage readBufferedImage(RegionRequest request) {
+			started.add(request);
+			if (isBlocked(request)) {
+				blockedStarted.release();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					return null;
+				}
+			} else
+				otherStarted.release();
+			return super.readBufferedImage(request);
+		}
+
+		boolean isBlocked(RegionRequest request) {
+			return blockedRegion.intersects(request.getX(), request.getY(), request.getWidth(), request.getHeight());
+		}
+
+		Set<RegionRequest> getStarted(boolean blocked) {
+			synchronized (started) {
+				return started.stream().filter(r -> isBlocked(r) == blocked).collect(Collectors.toSet());
+			}
+		}
+
+	}
+
+	@Test
+	public void testStaleRequestsDemoted() throws InterruptedException {
+		var store = ImageRegionStoreFactory.createImageRegionStore(64L * 1024L * 1024L);
+		store.setPrefetchEnabled(false);
+		var region1 = new Rectangle(0, 0, 2048, 2048);
+		var region2 = new Rectangle(2048, 2048, 2048, 2048);
+		var server = new LatchServer(new BufferedImage(4096, 4096, BufferedImage.TYPE_BYTE_GRAY), region1);
+		var img = new BufferedImage(512, 512, BufferedImage.TYPE_BYTE_GRAY);
+
+		// Request more tiles than there are threads - each new thread is given a tile directly, while the rest are queued
+		Set<Thread> threadsBefore = new HashSet<>(Thread.getAllStackTraces().keySet());
+		List<TileWorker<BufferedImage>> workers1 = new ArrayList<>();
+		for (var request : ImageRegionStoreHelpers.getTilesToRequest(server, region1, 1.0, 0, 0, null)) {
+			@SuppressWarnings("unchecked")
+			var worker = (TileWorker<BufferedImage>)store.requestImageTile(server, request, store.getCache(), false);
+			workers1.add(worker);
+		}
+		int nThreads = (int)Thread.getAllStackTraces().keySet().stream()
+				.filter(t -> !threadsBefore.contains(t) && t.getName().startsWith("region-store-") && !t.getName().startsWith("region-store-local-"))
+				.count();
+		assertTrue(nThreads > 0 && nThreads < workers1.size());
+		assertTrue(server.blockedStarted.tryAcquire(nThreads, 10, TimeUnit.SECONDS));
+		var running1 = server.getStarted(true);
+		assertEquals(nThreads, running1.size());
+
+		// Move elsewhere - stale requests that haven't started should be cancelled immediately
+		store.paintRegion(server, img.createGraphics(), region2, 0, 0, 1.0, null, null, null);
+		for (var worker : workers1)
+			assertNotEquals(running1.contains(worker.getRequest()), worker.isCancelled());
+
+		// New tiles should be read without waiting for the stale reads to complete
+		assertTrue(server.otherStarted.tryAcquire(10, TimeUnit.SECONDS));
+		assertEquals(running1, server.getStarted(true));
+
+		// Once the stale reads have completed, no more stale tiles should be read
+		server.release.countDown();
+		for (var worker : workers1) {
+			if (!worker.isCancelled())
+				assertTrue(worker.getRequest() + " not read", waitUntilDone(worker));
+		}
+		assertTrue(server.otherStarted.tryAcquire(8, 10, TimeUnit.SECONDS));
+		assertEquals(running1, server.getStarted(true));
+
+		store.close();
+	}
+
+	private static boolean waitUntilDone(TileWorker<BufferedImage> worker) {
+		try {
+			worker.get(10, TimeUnit.SECONDS);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+package qupath.lib.gui.viewer;
+
+import static org.junit.Assert.*;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.gui.viewer.overlays.PathOverlay;
+import qupath.lib.regions.ImageRegion;
+
+public class TestOverlayLayerRenderer {
+	
+	/**
+	 * Overlay that fills the image region, but takes a long time to do so.
+	 */
+	static class SlowOverlay extends AbstractOverlay {
+		
+		private final long delayMillis;
+		private volatile Color color = Color.RED;
+		private volatile int nPaints = 0;
+		
+		SlowOverlay(long delayMillis) {
+			this.delayMillis = delayMillis;
+		}
+
+		@Override
+		public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, ImageObserver observer, boolean paintCompletely) {
+			paintSlowly(g2d, imageRegion, color);
+		}
+		
+		@Override
+		public OverlaySnapshot createSnapshot() {
+			Color color = this.color;
+			return (g2d, imageRegion, downsampleFactor, paintCompletely) -> paintSlowly(g2d, imageRegion, color);
+		}
+		
+		private void paintSlowly(Graphics2D g2d, ImageRegion imageRegion, Color color) {
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			g2d.setColor(color);
+			g2d.fillRect(imageRegion.getX(), imageRegion.getY(), imageRegion.getWidth(), imageRegion.getHeight());
+			nPaints++;
+		}
+		
+	}
+	
+	/**
+	 * Overlay without snapshot support, which should always be painted directly.
+	 */
+	static class DirectOverlay extends AbstractOverlay {
+		
+		private volatile Thread paintThread;
+
+		@Override
+		public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, ImageObserver observer, boolean paintCompletely) {
+			paintThread = Thread.currentThread();
+			g2d.setColor(Color.BLUE);
+			g2d.fillRect(imageRegion.getX(), imageRegion.getY(), imageRegion.getWidth(), imageRegion.getHeight());
+		}
+		
+	}
+	
+	@Test
+	public void testPaintLayers() throws InterruptedException {
+		Semaphore semaphore = new Semaphore(0);
+		OverlayLayerRenderer renderer = new OverlayLayerRenderer(() -> semaphore.release());
+		SlowOverlay overlay = new SlowOverlay(500L);
+		PathOverlay[] overlays = new PathOverlay[] {overlay};
+		
+		int w = 100, h = 100;
+		ImageRegion region = ImageRegion.createInstance(0, 0, 200, 200, 0, 0);
+		AffineTransform transform = AffineTransform.getScaleInstance(0.5, 0.5);
+		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		
+		// Painting should return immediately, without anything drawn
+		long startTime = System.currentTimeMillis();
+		paint(renderer, img, overlays, transform, region);
+		assertTrue(System.currentTimeMillis() - startTime < overlay.delayMillis);
+		assertEquals(0, img.getRGB(50, 50));
+		
+		// Once rendered, the layer should be drawn
+		assertTrue(semaphore.tryAcquire(5, TimeUnit.SECONDS));
+		paint(renderer, img, overlays, transform, region);
+		assertEquals(Color.RED.getRGB(), img.getRGB(50, 50));
+		assertEquals(1, overlay.nPaints);
+		
+		// Changing the view should draw the previous layer immediately, transformed
+		transform = AffineTransform.getScaleInstance(0.25, 0.25);
+		paint(renderer, img, overlays, transform, region);
+		assertEquals(Color.RED.getRGB(), img.getRGB(25, 25));
+		assertEquals(0, img.getRGB(75, 75));
+		assertTrue(semaphore.tryAcquire(5, TimeUnit.SECONDS));
+		assertEquals(2, overlay.nPaints);
+		
+		// Painting again without changes shouldn't require rendering, but invalidating should
+		paint(renderer, img, overlays, transform, region);
+		assertFalse(semaphore.tryAcquire(overlay.delayMillis * 2, TimeUnit.MILLISECONDS));
+		renderer.invalidate();
+		paint(renderer, img, overlays, transform, region);
+		assertTrue(semaphore.tryAcquire(5, TimeUnit.SECONDS));
+		assertEquals(3, overlay.nPaints);
+		
+		// Changes made after the request shouldn't affect the render in progress
+		renderer.invalidate();
+		paint(renderer, img, overlays, transform, region);
+		overlay.color = Color.GREEN;
+		assertTrue(semaphore.tryAcquire(5, TimeUnit.SECONDS));
+		paint(renderer, img, overlays, transform, region);
+		assertEquals(Color.RED.getRGB(), img.getRGB(25, 25));
+		
+		renderer.close();
+	}
+	
+	@Test
+	public void testPaintWithoutSnapshot() {
+		OverlayLayerRenderer renderer = new OverlayLayerRenderer(() -> fail("Overlays without snapshots shouldn't be rendered in the background"));
+		DirectOverlay overlay = new DirectOverlay();
+		PathOverlay[] overlays = new PathOverlay[] {overlay};
+		
+		ImageRegion region = ImageRegion.createInstance(0, 0, 200, 200, 0, 0);
+		AffineTransform transform = AffineTransform.getScaleInstance(0.5, 0.5);
+		BufferedImage img = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+		
+		paint(renderer, img, overlays, transform, region);
+		assertSame(Thread.currentThread(), overlay.paintThread);
+		assertEquals(Color.BLUE.getRGB(), img.getRGB(50, 50));
+		
+		renderer.close();
+	}
+	
+	private static void paint(OverlayLayerRenderer renderer, BufferedImage img, PathOverlay[] overlays, AffineTransform transform, ImageRegion region) {
+		Graphics2D g2d = img.createGraphics();
+		g2d.setComposite(AlphaComposite.Clear);
+		g2d.fillRect(0, 0, img.getWidth(), img.getHeight());
+		g2d.setComposite(AlphaComposite.SrcOver);
+		renderer.paintLayers(g2d, overlays, transform, img.getWidth(), img.getHeight(), region, 1.0/transform.getScaleX(), Color.BLACK, true, 1f);
+		g2d.dispose();
+	}
+
+}
@@ -0,0 +1,143 @@
+package qupath.lib.gui.viewer.recording;
+
+import static org.junit.Assert.*;
+
+import java.awt.Dimension;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestViewRecordingStore {
+	
+	private static List<ViewRecordingFrame> createFrames(int n) {
+		var rand = new Random(100L);
+		List<ViewRecordingFrame> frames = new ArrayList<>();
+		long timestamp = 0;
+		for (int i = 0; i < n; i++) {
+			timestamp += rand.nextInt(3);
+			var region = new Rectangle2D.Double(rand.nextInt(10000), rand.nextInt(10000), 1000 + rand.nextDouble() * 100, 800);
+			var size = new Dimension(1000, 800);
+			Point2D cursor = i % 3 == 0 ? null : new Point2D.Double(rand.nextDouble() * 10000, rand.nextDouble() * 10000);
+			Point2D eye = i % 5 == 0 ? null : new Point2D.Double(rand.nextDouble() * 10000, rand.nextDouble() * 10000);
+			Boolean isFixated = i % 7 == 0 ? null : Boolean.valueOf(i % 2 == 0);
+			frames.add(new ViewRecordingFrame(timestamp, region, size, cursor, eye, isFixated));
+		}
+		return frames;
+	}
+
+	@Test
+	public void testAppendAndRead() throws Exception {
+		var frames = createFrames(10000);
+		var path = Files.createTempFile("tracking", ".qptrack");
+		try (var store = ViewRecordingStore.create(path)) {
+			for (int i = 0; i < frames.size(); i++) {
+				store.append(frames.get(i));
+				// Frames should be available immediately, whether or not they have been written
+				assertEquals(frames.get(i), store.get(i));
+			}
+			store.awaitWritten();
+			assertEquals(frames.size(), store.size());
+			assertEquals(ViewRecordingStore.HEADER_SIZE + (long)frames.size() * ViewRecordingStore.RECORD_SIZE, Files.size(path));
+			assertEquals(frames, store.getFrames(0, frames.size()));
+			
+			// Check indexing by time matches a linear search
+			for (long t = -1; t < frames.get(frames.size()-1).getTimestamp() + 2; t += 7) {
+				int expected = -1;
+				for (int i = 0; i < frames.size(); i++) {
+					if (frames.get(i).getTimestamp() < t)
+						expected = i;
+				}
+				int ind = store.getIndexForTime(t);
+				if (expected < 0)
+					assertEquals(-1, ind);
+				else
+					assertEquals(frames.get(expected).getTimestamp(), store.get(ind).getTimestamp());
+			}
+			
+			// Conversion to the text format should match the original frames
+			var sb = new StringBuilder();
+			for (var frame : frames)
+				sb.append(DefaultViewTracker.toLogString(frame, "\t", true, true)).append("\n");
+			var sb2 = new StringBuilder();
+			store.writeLogStrings(sb2, "\t", true, true);
+			assertEquals(sb.toString(), sb2.toString());
+		}
+
+		// Reopen the file, ignoring any incomplete record
+		Thread.sleep(100L);
+		try (var channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.allocate(10));
+		}
+		try (var store = ViewRecordingStore.open(path)) {
+			assertEquals(frames.size(), store.size());
+			assertEquals(frames.get(frames.size()-1), store.get(frames.size()-1));
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+	
+	@Test
+	public void testTrackerSummary() throws Exception {
+		var tracker = new DefaultViewTracker(null);
+		var frames = createFrames(100);
+		for (var frame : frames)
+			tracker.appendFrame(frame);
+		assertEquals(frames.size(), tracker.nFrames());
+		assertEquals(frames, tracker.getFrames());
+		assertTrue(tracker.isLastFrame(tracker.getFrame(frames.size()-1)));
+		assertTrue(tracker.hasEyeTrackingData());
+		
+		String summary = tracker.getSummaryString();
+		var tracker2 = DefaultViewTracker.parseSummaryString(summary, null, null);
+		assertEquals(frames.size(), tracker2.nFrames());
+		assertEquals(summary, tracker2.getSummaryString());
+		
+		// Frames from the previous recording can no longer be read once it is reset
+		var oldFrames = tracker.getFrames();
+		tracker.resetRecording();
+		assertTrue(tracker.isEmpty());
+		assertNull(tracker.getFrameForTime(Long.MAX_VALUE));
+		try {
+			oldFrames.get(0);
+			fail("Frames should not be readable after reset");
+		} catch (IllegalStateException e) {}
+	}
+	
+	@Test
+	public void testClosedStore() throws Exception {
+		// Stores should only use a file when requested
+		assertNull(ViewRecordingStore.createInMemory().getPath());
+		
+		var store = ViewRecordingStore.createTemporary();
+		var path = store.getPath();
+		var frames = createFrames(100);
+		for (var frame : frames)
+			store.append(frame);
+		store.awaitWritten();
+		assertEquals(frames, store.getFrames(0, frames.size()));
+		store.close();
+		try {
+			store.get(0);
+			fail("Frames should not be readable after the store is closed");
+		} catch (IllegalStateException e) {}
+		try {
+			store.append(frames.get(0));
+			fail("Frames should not be appended after the store is closed");
+		} catch (IllegalStateException e) {}
+		// Files are closed & written by a single thread, so once another store has been written the file should be deleted
+		try (var store2 = ViewRecordingStore.createTemporary()) {
+			store2.append(frames.get(0));
+			store2.awaitWritten();
+			assertFalse(Files.exists(path));
+		}
+	}
+
+}